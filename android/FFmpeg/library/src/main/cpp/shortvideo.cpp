@@ -35,6 +35,13 @@ int ShortVideo::openOutput(std::string &uri) {
 int ShortVideo::beginSection() {
     audioNextPts = 0;
     videoNextPts = 0;
+    // the rotation is left to the rotate metadata of the stream.
+    if (converter.setup(wlanjie::FRAME_FORMAT_RGBA, arguments.videoWidth, arguments.videoHeight,
+                        arguments.videoWidth, arguments.videoHeight,
+                        libyuv::kRotate0, libyuv::kFilterNone) != 0) {
+        LOGE("frame converter setup error %dx%d", arguments.videoWidth, arguments.videoHeight);
+        return RGBA_TO_I420_ERROR;
+    }
     initVideoEncoderContext();
     initAudioEncoderContext();
     outputContext.writeHeader(ec);
@@ -80,6 +87,7 @@ int ShortVideo::endSection() {
     videoEncoderContext->close();
     audioEncoderContext->close();
     outputContext.close();
+    converter.release();
     delete videoEncoderContext;
     delete audioEncoderContext;
     return SUCCESS;
@@ -109,35 +117,18 @@ int ShortVideo::encodeAudio(uint8_t *audioFrame) {
 }
 
 int ShortVideo::encodeVideo(uint8_t *videoFrame) {
-    int width = arguments.videoWidth;
-    int height = arguments.videoHeight;
-    int ySize = width * height;
-    uint8_t *data = static_cast<uint8_t *> (av_malloc(width * height * 3 / 2));
-    uint8_t *y = data;
-    uint8_t *u = y + ySize;
-    uint8_t *v = u + (ySize >> 2);
-    int yStride = width;
-    int uStride = width >> 1;
-    int vStride = width >> 1;
-    int result = libyuv::RGBAToI420((const uint8 *) videoFrame, width * 4,
-                                    y, yStride,
-                                    u, uStride,
-                                    v, vStride,
-                                    width, height);
-    if (result != 0) {
+    wlanjie::I420Frame picture;
+    if (converter.convert(videoFrame, &picture) != 0) {
         LOGE("rgba to I420 error.");
         return RGBA_TO_I420_ERROR;
     }
-    VideoFrame outFrame(AV_PIX_FMT_YUV420P, width, height);
-    outFrame.raw()->linesize[0] = yStride;
-    outFrame.raw()->linesize[1] = uStride;
-    outFrame.raw()->linesize[2] = vStride;
-    outFrame.raw()->data[0] = y;
-    outFrame.raw()->data[1] = u;
-    outFrame.raw()->data[2] = v;
+    VideoFrame outFrame(AV_PIX_FMT_YUV420P, picture.width, picture.height);
+    for (int plane = 0; plane < 3; plane++) {
+        outFrame.raw()->linesize[plane] = picture.stride[plane];
+        outFrame.raw()->data[plane] = picture.data[plane];
+    }
     outFrame.raw()->pts = videoNextPts++;
     Packet videoPacket = videoEncoderContext->encode(outFrame, ec);
-    av_free(data);
     if (ec || !videoPacket) {
         LOGE("encode video error: %s.", ec.message().c_str());
         return ENCODING_VIDEO_ERROR;
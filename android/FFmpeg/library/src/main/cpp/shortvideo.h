@@ -10,6 +10,7 @@
 #include "core/codeccontext.h"
 
 #include "arguments.h"
+#include "frame_converter.h"
 
 namespace av {
 
@@ -44,6 +45,8 @@ private:
     int videoNextPts;
 
     Arguments arguments;
+    // rgba to i420, the buffer is allocated once for the section.
+    wlanjie::FrameConverter converter;
 };
 
 }
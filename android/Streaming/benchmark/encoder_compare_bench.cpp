@@ -0,0 +1,222 @@
+//
+// Created by wlanjie on 2017/8/19.
+//
+// fps and quality for the bits of the soft encoder backends at the same target bitrate.
+// every output is decoded by openh264 and compared with its source frame.
+// usage: encoder_compare_bench [width height fps kbps frames [input.yuv]]
+// input.yuv is tightly packed i420 of the size, synthetic frames without it.
+//
+
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <vector>
+#include "frame_converter.h"
+#include "video_encoder.h"
+#include "packet_pool.h"
+#include "utils.h"
+#include "synthetic_frame.h"
+#include "wels/codec_api.h"
+
+// x264_tune_names indices.
+#define TUNE_ZEROLATENCY (1 << 7)
+
+struct Backend {
+    const char *name;
+    int codec;
+    int preset;
+    int tune;
+    int slicedThreads;
+};
+
+static const Backend backends[] = {
+        {"openh264",                 wlanjie::VIDEO_CODEC_OPENH264, 0, 0,                0},
+        {"x264 ultrafast",           wlanjie::VIDEO_CODEC_X264,     0, TUNE_ZEROLATENCY, 0},
+        {"x264 ultrafast sliced",    wlanjie::VIDEO_CODEC_X264,     0, TUNE_ZEROLATENCY, 1},
+        {"x264 superfast",           wlanjie::VIDEO_CODEC_X264,     1, TUNE_ZEROLATENCY, 0},
+        {"x264 superfast sliced",    wlanjie::VIDEO_CODEC_X264,     1, TUNE_ZEROLATENCY, 1},
+};
+
+/**
+ * @return squared error of a plane.
+ */
+static double squaredError(const uint8_t *a, int a_stride, const uint8_t *b, int b_stride, int width, int height) {
+    double error = 0;
+    for (int row = 0; row < height; row++) {
+        const uint8_t *line_a = a + row * a_stride;
+        const uint8_t *line_b = b + row * b_stride;
+        for (int column = 0; column < width; column++) {
+            int difference = line_a[column] - line_b[column];
+            error += difference * difference;
+        }
+    }
+    return error;
+}
+
+static double psnr(double squared_error, double samples) {
+    if (squared_error <= 0) {
+        return 100;
+    }
+    return 10 * log10(255.0 * 255.0 * samples / squared_error);
+}
+
+/**
+ * decodes the annexb output of an encoder and measures its error against the source frames.
+ */
+class QualityMeter {
+public:
+    QualityMeter() : decoder(NULL), frames(0), error(0), samples(0) {}
+
+    ~QualityMeter() {
+        if (decoder != NULL) {
+            decoder->Uninitialize();
+            WelsDestroyDecoder(decoder);
+        }
+    }
+
+    bool open() {
+        if (WelsCreateDecoder(&decoder) != 0 || decoder == NULL) {
+            return false;
+        }
+        SDecodingParam param;
+        memset(&param, 0, sizeof(param));
+        param.sVideoProperty.eVideoBsType = VIDEO_BITSTREAM_AVC;
+        return decoder->Initialize(&param) == 0;
+    }
+
+    /**
+     * @param sources the input frames, the decoded frames are matched in order, there are no b frames.
+     */
+    void decode(const uint8_t *h264, int size, const std::vector<uint8_t> &sources, int frame_size,
+                int distinct, int width, int height) {
+        uint8_t *planes[3] = {NULL, NULL, NULL};
+        SBufferInfo info;
+        memset(&info, 0, sizeof(info));
+        decoder->DecodeFrameNoDelay(h264, size, planes, &info);
+        if (info.iBufferStatus != 1) {
+            return;
+        }
+        const uint8_t *source = &sources[(size_t) frame_size * (frames % distinct)];
+        int chroma_width = (width + 1) >> 1;
+        int chroma_height = (height + 1) >> 1;
+        const uint8_t *source_u = source + width * height;
+        const uint8_t *source_v = source_u + chroma_width * chroma_height;
+        int luma_stride = info.UsrData.sSystemBuffer.iStride[0];
+        int chroma_stride = info.UsrData.sSystemBuffer.iStride[1];
+        error += squaredError(source, width, planes[0], luma_stride, width, height);
+        error += squaredError(source_u, chroma_width, planes[1], chroma_stride, chroma_width, chroma_height);
+        error += squaredError(source_v, chroma_width, planes[2], chroma_stride, chroma_width, chroma_height);
+        samples += width * height + 2 * chroma_width * chroma_height;
+        frames++;
+    }
+
+    int decodedFrames() const {
+        return frames;
+    }
+
+    /**
+     * @return psnr of all the samples, the planes weighted by their size.
+     */
+    double getPsnr() const {
+        return psnr(error, samples);
+    }
+
+private:
+    ISVCDecoder *decoder;
+    int frames;
+    double error;
+    double samples;
+};
+
+int main(int argc, char **argv) {
+    wlanjie::VideoParameter parameter;
+    memset(&parameter, 0, sizeof(parameter));
+    parameter.videoWidth = argc > 2 ? atoi(argv[1]) : 720;
+    parameter.videoHeight = argc > 2 ? atoi(argv[2]) : 1280;
+    parameter.frameRate = argc > 3 ? atoi(argv[3]) : 25;
+    parameter.bitrate = argc > 4 ? atoi(argv[4]) : 1500;
+    int frames = argc > 5 ? atoi(argv[5]) : 150;
+    const char *input_path = argc > 6 ? argv[6] : NULL;
+    parameter.frameWidth = parameter.videoWidth;
+    parameter.frameHeight = parameter.videoHeight;
+    parameter.inputFormat = wlanjie::FRAME_FORMAT_I420;
+    // frames are never skipped, each decoded frame matches its source.
+    parameter.rateControl = wlanjie::RATE_CONTROL_BITRATE;
+    parameter.intraPeriod = parameter.frameRate * 2;
+    if (parameter.videoWidth <= 0 || parameter.videoHeight <= 0 || parameter.frameRate <= 0 || frames < 2) {
+        fprintf(stderr, "usage: %s [width height fps kbps frames [input.yuv]]\n", argv[0]);
+        return 1;
+    }
+
+    int frame_size = i420FrameSize(parameter.videoWidth, parameter.videoHeight);
+    // loaded up front, the encode time is measured alone.
+    int distinct = frames < 50 ? frames : 50;
+    std::vector<uint8_t> input;
+    if (input_path != NULL) {
+        FILE *file = fopen(input_path, "rb");
+        if (file == NULL) {
+            fprintf(stderr, "can not open %s\n", input_path);
+            return 1;
+        }
+        input.resize((size_t) frame_size * frames);
+        distinct = (int) (fread(&input[0], (size_t) frame_size, (size_t) frames, file));
+        fclose(file);
+        if (distinct <= 0) {
+            fprintf(stderr, "%s has no frame of %dx%d\n", input_path, parameter.videoWidth, parameter.videoHeight);
+            return 1;
+        }
+    } else {
+        input.resize((size_t) frame_size * distinct);
+        for (int i = 0; i < distinct; i++) {
+            fillFrame(&input[(size_t) frame_size * i], parameter.videoWidth, parameter.videoHeight, i);
+        }
+    }
+
+    printf("%dx%d %d fps %d kbps, %d frames of %s\n", parameter.videoWidth, parameter.videoHeight,
+           parameter.frameRate, parameter.bitrate, frames, input_path != NULL ? input_path : "synthetic video");
+    printf("%-24s %8s %8s %8s %10s\n", "encoder", "fps", "kbps", "psnr", "psnr/mbps");
+    for (size_t b = 0; b < sizeof(backends) / sizeof(backends[0]); b++) {
+        const Backend &backend = backends[b];
+        parameter.codec = backend.codec;
+        parameter.preset = backend.preset;
+        parameter.tune = backend.tune;
+        parameter.slicedThreads = backend.slicedThreads;
+        wlanjie::VideoEncoder *encoder = wlanjie::VideoEncoder::create(backend.codec);
+        QualityMeter meter;
+        encoder->setVideoParameter(parameter);
+        if (!encoder->open() || !meter.open()) {
+            fprintf(stderr, "open %s error\n", backend.name);
+            encoder->close();
+            delete encoder;
+            continue;
+        }
+        int64_t bytes = 0;
+        int encoded = 0;
+        int64_t elapsed = 0;
+        for (int i = 0; i < frames; i++) {
+            int h264_length = 0;
+            uint8_t *h264 = NULL;
+            int64_t start = wlanjie::current_time_ms();
+            encoder->encoder((char *) &input[(size_t) frame_size * (i % distinct)],
+                             i * 1000 / parameter.frameRate, &h264_length, &h264);
+            elapsed += wlanjie::current_time_ms() - start;
+            if (h264_length > 0) {
+                bytes += h264_length;
+                encoded++;
+                // decoded outside of the timing.
+                meter.decode(h264, h264_length, input, frame_size, distinct,
+                             parameter.videoWidth, parameter.videoHeight);
+                wlanjie::packet_pool.release((char *) h264);
+            }
+        }
+        encoder->close();
+        delete encoder;
+        float fps = frames * 1000.0f / (elapsed > 0 ? elapsed : 1);
+        double kbps = encoded > 0 ? bytes * 8.0 * parameter.frameRate / encoded / 1000 : 0;
+        double quality = meter.decodedFrames() > 0 ? meter.getPsnr() : 0;
+        printf("%-24s %8.1f %8.0f %8.2f %10.2f\n", backend.name, fps, kbps, quality,
+               kbps > 0 ? quality * 1000 / kbps : 0);
+    }
+    return 0;
+}
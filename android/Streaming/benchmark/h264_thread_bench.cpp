@@ -0,0 +1,90 @@
+//
+// Created by wlanjie on 2017/8/19.
+//
+// fps of wlanjie::H264Encoder against the thread count on synthetic i420 frames.
+// usage: h264_thread_bench [width height fps kbps frames]
+//
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <vector>
+#include "h264encode.h"
+#include "packet_pool.h"
+#include "utils.h"
+#include "synthetic_frame.h"
+
+int main(int argc, char **argv) {
+    wlanjie::VideoParameter parameter;
+    memset(&parameter, 0, sizeof(parameter));
+    parameter.videoWidth = argc > 2 ? atoi(argv[1]) : 720;
+    parameter.videoHeight = argc > 2 ? atoi(argv[2]) : 1280;
+    parameter.frameRate = argc > 3 ? atoi(argv[3]) : 25;
+    parameter.bitrate = argc > 4 ? atoi(argv[4]) : 1500;
+    int frames = argc > 5 ? atoi(argv[5]) : 150;
+    parameter.frameWidth = parameter.videoWidth;
+    parameter.frameHeight = parameter.videoHeight;
+    parameter.inputFormat = wlanjie::FRAME_FORMAT_I420;
+    if (parameter.videoWidth <= 0 || parameter.videoHeight <= 0 || parameter.frameRate <= 0 || frames < 2) {
+        fprintf(stderr, "usage: %s [width height fps kbps frames]\n", argv[0]);
+        return 1;
+    }
+
+    int frame_size = i420FrameSize(parameter.videoWidth, parameter.videoHeight);
+    // generated up front, the encode time is measured alone.
+    int distinct = frames < 50 ? frames : 50;
+    std::vector<uint8_t> input((size_t) frame_size * distinct);
+    for (int i = 0; i < distinct; i++) {
+        fillFrame(&input[(size_t) frame_size * i], parameter.videoWidth, parameter.videoHeight, i);
+    }
+
+    printf("%dx%d %d fps %d kbps, %d frames\n", parameter.videoWidth, parameter.videoHeight,
+           parameter.frameRate, parameter.bitrate, frames);
+    printf("threads slices      fps  speedup     kbps\n");
+    float single_fps = 0;
+    for (int threads = 1; threads <= H264_MAX_THREADS; threads++) {
+        parameter.threadCount = threads;
+        if (wlanjie::H264Encoder::getThreadCount(parameter) != threads) {
+            // the video is too small for more slices.
+            break;
+        }
+        wlanjie::H264Encoder encoder;
+        encoder.setVideoParameter(parameter);
+        if (!encoder.open()) {
+            fprintf(stderr, "open encoder with %d threads error\n", threads);
+            encoder.close();
+            return 1;
+        }
+        int64_t bytes = 0;
+        int64_t start = 0;
+        for (int i = 0; i < frames; i++) {
+            if (i == 1) {
+                // the first frame is an idr and allocates the encoder buffers.
+                start = wlanjie::current_time_ms();
+            }
+            int h264_length = 0;
+            uint8_t *h264 = NULL;
+            encoder.encoder((char *) &input[(size_t) frame_size * (i % distinct)],
+                            i * 1000 / parameter.frameRate, &h264_length, &h264);
+            if (h264_length > 0) {
+                bytes += h264_length;
+                wlanjie::packet_pool.release((char *) h264);
+            }
+        }
+        int64_t elapsed = wlanjie::current_time_ms() - start;
+        encoder.close();
+        float fps = (frames - 1) * 1000.0f / (elapsed > 0 ? elapsed : 1);
+        if (threads == 1) {
+            single_fps = fps;
+        }
+        printf("%7d %6d %8.1f %8.2f %8lld\n", threads, wlanjie::H264Encoder::getSliceCount(parameter), fps,
+               single_fps > 0 ? fps / single_fps : 0, (long long) (bytes * 8 * parameter.frameRate / frames / 1000));
+    }
+
+    parameter.threadCount = 0;
+    wlanjie::CalibrationResult results[H264_MAX_THREADS];
+    memset(results, 0, sizeof(results));
+    int chosen = wlanjie::H264Encoder::calibrate(parameter, 30, results);
+    printf("calibrated threads = %d of %d online\n", chosen, wlanjie::H264Encoder::getThreadCount(parameter));
+    return 0;
+}
@@ -0,0 +1,31 @@
+//
+// Created by wlanjie on 2017/8/19.
+//
+
+#ifndef STREAMING_BENCHMARK_ANDROID_LOG_H
+#define STREAMING_BENCHMARK_ANDROID_LOG_H
+
+#include <stdarg.h>
+#include <stdio.h>
+
+// the android log of the native sources on the host, warnings and errors go to stderr.
+#define ANDROID_LOG_VERBOSE 2
+#define ANDROID_LOG_DEBUG 3
+#define ANDROID_LOG_INFO 4
+#define ANDROID_LOG_WARN 5
+#define ANDROID_LOG_ERROR 6
+
+static inline int __android_log_print(int priority, const char *tag, const char *format, ...) {
+    if (priority < ANDROID_LOG_WARN || format == NULL) {
+        return 0;
+    }
+    va_list args;
+    va_start(args, format);
+    fprintf(stderr, "%s: ", tag);
+    int length = vfprintf(stderr, format, args);
+    fputc('\n', stderr);
+    va_end(args);
+    return length;
+}
+
+#endif //STREAMING_BENCHMARK_ANDROID_LOG_H
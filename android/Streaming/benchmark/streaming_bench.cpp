@@ -0,0 +1,599 @@
+//
+// Created by wlanjie on 2017/8/19.
+//
+// throughput, per frame latency and bitrate accuracy of the native publishing path on a linux host:
+// the libyuv conversion of the readback, the soft video encoder, fdk-aac and the flv muxing of both.
+// the report is json on stdout, or in the file of --output.
+// usage: streaming_bench [--width 720] [--height 1280] [--source-width w] [--source-height h]
+//                        [--fps 25] [--kbps 1500] [--frames 300] [--codec openh264|x264] [--slices 1]
+//                        [--rgba input.rgba] [--i420 input.yuv] [--pcm input.pcm]
+//                        [--sample-rate 44100] [--channels 2] [--audio-kbps 64] [--output report.json]
+// the inputs are tightly packed raw frames looped over, synthetic frames without them.
+// the video encoder is only measured when the benchmark is built with openh264 and x264.
+// mux_h264_flv_srs is the former per nalu muxing with the srs raw stream, the baseline of mux_h264_flv.
+//
+
+#include <algorithm>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <string>
+#include <vector>
+#include "frame_converter.h"
+#include "audioencode.h"
+#include "muxer.h"
+#include <srs_kernel_buffer.hpp>
+#include <srs_kernel_codec.hpp>
+#include <srs_kernel_error.hpp>
+#include <srs_raw_avc.hpp>
+#include "packet_pool.h"
+#include "utils.h"
+#include "synthetic_frame.h"
+#ifdef BENCH_VIDEO
+#include "video_encoder.h"
+#endif
+
+// samples of each channel in an aac lc frame.
+#define AAC_FRAME_SAMPLES 1024
+// distinct synthetic video frames, looped over.
+#define SYNTHETIC_FRAMES 50
+
+struct Options {
+    int width;
+    int height;
+    int source_width;
+    int source_height;
+    int fps;
+    int kbps;
+    int frames;
+    const char *codec;
+    // slices of each synthetic access unit.
+    int slices;
+    const char *rgba_path;
+    const char *i420_path;
+    const char *pcm_path;
+    int sample_rate;
+    int channels;
+    int audio_kbps;
+    const char *output_path;
+};
+
+/**
+ * the measurements of one case.
+ */
+class CaseResult {
+public:
+    explicit CaseResult(const char *name) : name(name), input_bytes(0), output_bytes(0), elapsed_ns(0),
+                                            target_kbps(0), media_seconds(0) {}
+
+    void record(int64_t latency_ns, int64_t input, int64_t output) {
+        latencies.push_back(latency_ns);
+        elapsed_ns += latency_ns;
+        input_bytes += input;
+        output_bytes += output;
+    }
+
+    /**
+     * @param seconds duration of the media encoded, the bitrate is measured against it.
+     */
+    void setBitrate(int kbps, double seconds) {
+        target_kbps = kbps;
+        media_seconds = seconds;
+    }
+
+    void print(FILE *file, bool last) {
+        std::sort(latencies.begin(), latencies.end());
+        size_t frames = latencies.size();
+        double seconds = elapsed_ns > 0 ? elapsed_ns / 1000000000.0 : 1e-9;
+        fprintf(file, "    {\n");
+        fprintf(file, "      \"name\": \"%s\",\n", name.c_str());
+        fprintf(file, "      \"frames\": %zu,\n", frames);
+        fprintf(file, "      \"fps\": %.1f,\n", frames / seconds);
+        fprintf(file, "      \"input_mb_per_s\": %.2f,\n", input_bytes / seconds / 1000000.0);
+        fprintf(file, "      \"output_mb_per_s\": %.2f,\n", output_bytes / seconds / 1000000.0);
+        fprintf(file, "      \"latency_us\": {\"p50\": %.1f, \"p90\": %.1f, \"p99\": %.1f, \"max\": %.1f}",
+                percentile(50) / 1000.0, percentile(90) / 1000.0, percentile(99) / 1000.0,
+                (frames > 0 ? latencies[frames - 1] : 0) / 1000.0);
+        if (target_kbps > 0 && media_seconds > 0) {
+            double kbps = output_bytes * 8 / media_seconds / 1000;
+            fprintf(file, ",\n      \"target_kbps\": %d,\n", target_kbps);
+            fprintf(file, "      \"kbps\": %.1f,\n", kbps);
+            fprintf(file, "      \"bitrate_error_percent\": %.2f", (kbps - target_kbps) * 100 / target_kbps);
+        }
+        fprintf(file, "\n    }%s\n", last ? "" : ",");
+    }
+
+private:
+    /**
+     * nearest rank of the sorted latencies.
+     */
+    int64_t percentile(int percent) const {
+        if (latencies.empty()) {
+            return 0;
+        }
+        size_t rank = (latencies.size() * percent + 99) / 100;
+        return latencies[rank > 0 ? rank - 1 : 0];
+    }
+
+private:
+    std::string name;
+    std::vector<int64_t> latencies;
+    int64_t input_bytes;
+    int64_t output_bytes;
+    int64_t elapsed_ns;
+    int target_kbps;
+    double media_seconds;
+};
+
+/**
+ * @return frames read from a file of tightly packed frames, at most max_frames, 0 on error.
+ */
+static int readFrames(const char *path, int frame_size, int max_frames, std::vector<uint8_t> &frames) {
+    FILE *file = fopen(path, "rb");
+    if (file == NULL) {
+        fprintf(stderr, "can not open %s\n", path);
+        return 0;
+    }
+    frames.resize((size_t) frame_size * max_frames);
+    int count = (int) fread(&frames[0], (size_t) frame_size, (size_t) max_frames, file);
+    fclose(file);
+    frames.resize((size_t) frame_size * (count > 0 ? count : 0));
+    if (count <= 0) {
+        fprintf(stderr, "%s has no frame of %d bytes\n", path, frame_size);
+    }
+    return count;
+}
+
+/**
+ * the rgba readback of the gl thread to i420 of the encoder size, rotated by 180 degrees and scaled,
+ * the same plan the soft encoders set up.
+ */
+static bool benchConvert(const Options &options, std::vector<CaseResult> &results) {
+    int frame_size = options.source_width * options.source_height * 4;
+    std::vector<uint8_t> input;
+    int distinct;
+    if (options.rgba_path != NULL) {
+        distinct = readFrames(options.rgba_path, frame_size, options.frames, input);
+        if (distinct <= 0) {
+            return false;
+        }
+    } else {
+        distinct = std::min(options.frames, SYNTHETIC_FRAMES);
+        input.resize((size_t) frame_size * distinct);
+        for (int i = 0; i < distinct; i++) {
+            fillRgbaFrame(&input[(size_t) frame_size * i], options.source_width, options.source_height, i);
+        }
+    }
+    wlanjie::FrameConverter converter;
+    if (converter.setup(wlanjie::FRAME_FORMAT_RGBA, options.source_width, options.source_height,
+                        options.width, options.height, libyuv::kRotate180, libyuv::kFilterNone) != 0) {
+        fprintf(stderr, "frame converter setup error\n");
+        return false;
+    }
+    CaseResult result("convert_rgba_i420");
+    for (int i = 0; i < options.frames; i++) {
+        wlanjie::I420Frame output;
+        int64_t start = wlanjie::current_time_ns();
+        int ret = converter.convert(&input[(size_t) frame_size * (i % distinct)], &output);
+        int64_t latency = wlanjie::current_time_ns() - start;
+        if (ret != 0) {
+            fprintf(stderr, "convert frame %d error\n", i);
+            converter.release();
+            return false;
+        }
+        result.record(latency, frame_size, converter.getOutputSize());
+    }
+    converter.release();
+    results.push_back(result);
+    return true;
+}
+
+#ifdef BENCH_VIDEO
+/**
+ * @param packets the annexb output of each frame, muxed by benchMuxH264.
+ */
+static bool benchVideo(const Options &options, std::vector<std::string> &packets, std::vector<CaseResult> &results) {
+    int frame_size = i420FrameSize(options.width, options.height);
+    std::vector<uint8_t> input;
+    int distinct;
+    if (options.i420_path != NULL) {
+        distinct = readFrames(options.i420_path, frame_size, options.frames, input);
+        if (distinct <= 0) {
+            return false;
+        }
+    } else {
+        distinct = std::min(options.frames, SYNTHETIC_FRAMES);
+        input.resize((size_t) frame_size * distinct);
+        for (int i = 0; i < distinct; i++) {
+            fillFrame(&input[(size_t) frame_size * i], options.width, options.height, i);
+        }
+    }
+    int codec = strcmp(options.codec, "x264") == 0 ? wlanjie::VIDEO_CODEC_X264 : wlanjie::VIDEO_CODEC_OPENH264;
+    wlanjie::VideoParameter parameter;
+    memset(&parameter, 0, sizeof(parameter));
+    parameter.videoWidth = options.width;
+    parameter.videoHeight = options.height;
+    parameter.frameWidth = options.width;
+    parameter.frameHeight = options.height;
+    parameter.frameRate = options.fps;
+    parameter.bitrate = options.kbps;
+    parameter.inputFormat = wlanjie::FRAME_FORMAT_I420;
+    // frames are never skipped, the bitrate is measured over all of them.
+    parameter.rateControl = wlanjie::RATE_CONTROL_BITRATE;
+    parameter.intraPeriod = options.fps * 2;
+    parameter.codec = codec;
+    // x264 ultrafast with zerolatency, the defaults of VideoParameter.java.
+    parameter.tune = 1 << 7;
+    parameter.slicedThreads = 1;
+    wlanjie::VideoEncoder *encoder = wlanjie::VideoEncoder::create(codec);
+    encoder->setVideoParameter(parameter);
+    if (!encoder->open()) {
+        fprintf(stderr, "open %s error\n", options.codec);
+        encoder->close();
+        delete encoder;
+        return false;
+    }
+    CaseResult result(codec == wlanjie::VIDEO_CODEC_X264 ? "encode_x264" : "encode_openh264");
+    for (int i = 0; i < options.frames; i++) {
+        int h264_length = 0;
+        uint8_t *h264 = NULL;
+        int64_t start = wlanjie::current_time_ns();
+        encoder->encoder((char *) &input[(size_t) frame_size * (i % distinct)],
+                         i * 1000 / options.fps, &h264_length, &h264);
+        int64_t latency = wlanjie::current_time_ns() - start;
+        result.record(latency, frame_size, h264_length > 0 ? h264_length : 0);
+        if (h264_length > 0) {
+            packets.push_back(std::string((const char *) h264, (size_t) h264_length));
+            wlanjie::packet_pool.release((char *) h264);
+        }
+    }
+    encoder->close();
+    delete encoder;
+    result.setBitrate(options.kbps, (double) options.frames / options.fps);
+    results.push_back(result);
+    return true;
+}
+#endif
+
+static void appendNal(std::string &stream, const uint8_t *nal, int size) {
+    static const char start_code[] = {0, 0, 0, 1};
+    stream.append(start_code, sizeof(start_code));
+    stream.append((const char *) nal, (size_t) size);
+}
+
+/**
+ * annexb access units of the shape the encoders write, sps and pps before every idr,
+ * the frame is split in options.slices slices of random bytes, the muxer never parses them.
+ */
+static void syntheticH264(const Options &options, std::vector<std::string> &packets) {
+    // baseline profile level 3.1.
+    static const uint8_t sps[] = {0x67, 0x42, 0xc0, 0x1f, 0xda, 0x01, 0x68, 0x14, 0x7e, 0x40};
+    static const uint8_t pps[] = {0x68, 0xce, 0x3c, 0x80};
+    int average = std::max(options.kbps * 1000 / 8 / options.fps, 64);
+    uint32_t seed = 1;
+    std::vector<uint8_t> slice;
+    for (int i = 0; i < options.frames; i++) {
+        bool idr = i % (options.fps * 2) == 0;
+        slice.resize((size_t) std::max((idr ? average * 4 : average) / options.slices, 2));
+        std::string packet;
+        if (idr) {
+            appendNal(packet, sps, sizeof(sps));
+            appendNal(packet, pps, sizeof(pps));
+        }
+        for (int s = 0; s < options.slices; s++) {
+            slice[0] = (uint8_t) (idr ? 0x65 : 0x41);
+            for (size_t b = 1; b < slice.size(); b++) {
+                seed = seed * 1103515245u + 12345u;
+                // no emulation of a start code.
+                slice[b] = (uint8_t) ((seed >> 24) | 0x10);
+            }
+            appendNal(packet, &slice[0], (int) slice.size());
+        }
+        packets.push_back(packet);
+    }
+}
+
+static void benchMuxH264(const Options &options, std::vector<std::string> &packets, std::vector<CaseResult> &results) {
+    wlanjie::Muxer muxer;
+    CaseResult result("mux_h264_flv");
+    for (size_t i = 0; i < packets.size(); i++) {
+        char *sps_pps = NULL;
+        int sps_pps_size = 0;
+        char *h264 = NULL;
+        int h264_size = 0;
+        u_int32_t pts = (u_int32_t) (i * 1000 / options.fps);
+        int64_t start = wlanjie::current_time_ns();
+        muxer.muxH264(&packets[i][0], (int) packets[i].size(), pts, pts, &sps_pps, &sps_pps_size, &h264, &h264_size);
+        int64_t latency = wlanjie::current_time_ns() - start;
+        result.record(latency, (int64_t) packets[i].size(), sps_pps_size + h264_size);
+        wlanjie::packet_pool.release(sps_pps);
+        wlanjie::packet_pool.release(h264);
+    }
+    results.push_back(result);
+}
+
+/**
+ * wrap the avc payload in a flv video tag as the muxer did before, copied through a std::string.
+ */
+static void srsAvc2Flv(const std::string &video, int8_t frame_type, int8_t avc_packet_type, u_int32_t dts,
+                       u_int32_t pts, std::vector<char *> &tags, int64_t &tags_size) {
+    int size = (int) video.length() + 5;
+    char *data = wlanjie::packet_pool.alloc(size);
+    u_int32_t cts = pts - dts;
+    data[0] = (char) ((frame_type << 4) | SrsCodecVideoAVC);
+    data[1] = avc_packet_type;
+    data[2] = (char) (cts >> 16);
+    data[3] = (char) (cts >> 8);
+    data[4] = (char) cts;
+    memcpy(data + 5, video.data(), video.length());
+    tags.push_back(data);
+    tags_size += size;
+}
+
+/**
+ * the former muxing of the srs raw stream: sps and pps copied to strings for every idr,
+ * each slice copied to a string and then to its own flv tag.
+ */
+static void benchMuxH264Srs(const Options &options, std::vector<std::string> &packets,
+                            std::vector<CaseResult> &results) {
+    SrsRawH264Stream avc_raw;
+    SrsBuffer stream;
+    std::string h264_sps;
+    std::string h264_pps;
+    bool sps_pps_changed = false;
+    bool sps_pps_sent = false;
+    std::vector<char *> tags;
+    CaseResult result("mux_h264_flv_srs");
+    for (size_t i = 0; i < packets.size(); i++) {
+        u_int32_t pts = (u_int32_t) (i * 1000 / options.fps);
+        int64_t tags_size = 0;
+        int64_t start = wlanjie::current_time_ns();
+        stream.initialize(&packets[i][0], (int) packets[i].size());
+        while (!stream.empty()) {
+            char *frame = NULL;
+            int frame_size = 0;
+            if (avc_raw.annexb_demux(&stream, &frame, &frame_size) != ERROR_SUCCESS) {
+                break;
+            }
+            if (frame_size <= 0) {
+                continue;
+            }
+            if (avc_raw.is_sps(frame, frame_size) || avc_raw.is_pps(frame, frame_size)) {
+                std::string parameter_set;
+                bool sps = avc_raw.is_sps(frame, frame_size);
+                if (sps) {
+                    avc_raw.sps_demux(frame, frame_size, parameter_set);
+                } else {
+                    avc_raw.pps_demux(frame, frame_size, parameter_set);
+                }
+                std::string &kept = sps ? h264_sps : h264_pps;
+                if (kept != parameter_set) {
+                    kept = parameter_set;
+                    sps_pps_changed = true;
+                }
+                continue;
+            }
+            if (sps_pps_changed && !h264_sps.empty() && !h264_pps.empty()) {
+                std::string sh;
+                avc_raw.mux_sequence_header(h264_sps, h264_pps, pts, pts, sh);
+                srsAvc2Flv(sh, SrsCodecVideoAVCFrameKeyFrame, SrsCodecVideoAVCTypeSequenceHeader, pts, pts,
+                           tags, tags_size);
+                sps_pps_changed = false;
+                sps_pps_sent = true;
+            }
+            SrsAvcNaluType nut = (SrsAvcNaluType) (frame[0] & 0x1f);
+            if (!sps_pps_sent || (nut != SrsAvcNaluTypeIDR && nut != SrsAvcNaluTypeNonIDR)) {
+                continue;
+            }
+            std::string ibp;
+            avc_raw.mux_ipb_frame(frame, frame_size, ibp);
+            srsAvc2Flv(ibp, nut == SrsAvcNaluTypeIDR ? SrsCodecVideoAVCFrameKeyFrame : SrsCodecVideoAVCFrameInterFrame,
+                       SrsCodecVideoAVCTypeNALU, pts, pts, tags, tags_size);
+        }
+        int64_t latency = wlanjie::current_time_ns() - start;
+        result.record(latency, (int64_t) packets[i].size(), tags_size);
+        for (size_t t = 0; t < tags.size(); t++) {
+            wlanjie::packet_pool.release(tags[t]);
+        }
+        tags.clear();
+    }
+    results.push_back(result);
+}
+
+/**
+ * @param config the AudioSpecificConfig of the encoder.
+ * @param packets the raw access unit of each frame, muxed by benchMuxAac.
+ */
+static bool benchAudio(const Options &options, std::string &config, std::vector<std::string> &packets,
+                       std::vector<CaseResult> &results) {
+    int frame_size = AAC_FRAME_SAMPLES * options.channels * 2;
+    std::vector<uint8_t> input;
+    int distinct;
+    if (options.pcm_path != NULL) {
+        distinct = readFrames(options.pcm_path, frame_size, options.frames, input);
+        if (distinct <= 0) {
+            return false;
+        }
+    } else {
+        // generated for every frame, the tone runs on without a seam.
+        distinct = options.frames;
+        input.resize((size_t) frame_size * distinct);
+        fillPcm((int16_t *) &input[0], AAC_FRAME_SAMPLES * distinct, options.channels, options.sample_rate, 0);
+    }
+    wlanjie::AudioEncode encoder;
+    if (!encoder.open(options.channels, options.sample_rate, options.audio_kbps * 1000)) {
+        fprintf(stderr, "open aac encoder error\n");
+        encoder.close();
+        return false;
+    }
+    uint8_t *specific_config = NULL;
+    int config_size = encoder.getSpecificConfig(&specific_config);
+    config.assign((const char *) specific_config, (size_t) config_size);
+    CaseResult result("encode_aac");
+    for (int i = 0; i < options.frames; i++) {
+        int aac_size = 0;
+        uint8_t *aac = NULL;
+        int64_t start = wlanjie::current_time_ns();
+        int ret = encoder.encode((char *) &input[(size_t) frame_size * (i % distinct)], frame_size, &aac_size, &aac);
+        int64_t latency = wlanjie::current_time_ns() - start;
+        result.record(latency, frame_size, ret > 0 ? aac_size : 0);
+        if (ret > 0) {
+            packets.push_back(std::string((const char *) aac, (size_t) aac_size));
+        }
+    }
+    encoder.close();
+    result.setBitrate(options.audio_kbps, (double) options.frames * AAC_FRAME_SAMPLES / options.sample_rate);
+    results.push_back(result);
+    return true;
+}
+
+static void benchMuxAac(const Options &options, const std::string &config, std::vector<std::string> &packets,
+                        std::vector<CaseResult> &results) {
+    wlanjie::Muxer muxer;
+    muxer.setAacSpecificConfig(config.data(), (int) config.size());
+    CaseResult result("mux_aac_flv");
+    for (size_t i = 0; i < packets.size(); i++) {
+        char *aac_sh = NULL;
+        int aac_sh_size = 0;
+        char *aac = NULL;
+        int aac_size = 0;
+        u_int32_t pts = (u_int32_t) (i * AAC_FRAME_SAMPLES * 1000 / options.sample_rate);
+        int64_t start = wlanjie::current_time_ns();
+        muxer.muxAacRaw(&packets[i][0], (int) packets[i].size(), pts, &aac_sh, &aac_sh_size, &aac, &aac_size);
+        int64_t latency = wlanjie::current_time_ns() - start;
+        result.record(latency, (int64_t) packets[i].size(), aac_sh_size + aac_size);
+        wlanjie::packet_pool.release(aac_sh);
+        wlanjie::packet_pool.release(aac);
+    }
+    results.push_back(result);
+}
+
+static bool parseOptions(int argc, char **argv, Options *options) {
+    memset(options, 0, sizeof(Options));
+    options->width = 720;
+    options->height = 1280;
+    options->fps = 25;
+    options->kbps = 1500;
+    options->frames = 300;
+    options->codec = "openh264";
+    options->slices = 1;
+    options->sample_rate = 44100;
+    options->channels = 2;
+    options->audio_kbps = 64;
+    for (int i = 1; i < argc; i++) {
+        const char *name = argv[i];
+        if (i + 1 >= argc) {
+            return false;
+        }
+        const char *value = argv[++i];
+        if (strcmp(name, "--width") == 0) {
+            options->width = atoi(value);
+        } else if (strcmp(name, "--height") == 0) {
+            options->height = atoi(value);
+        } else if (strcmp(name, "--source-width") == 0) {
+            options->source_width = atoi(value);
+        } else if (strcmp(name, "--source-height") == 0) {
+            options->source_height = atoi(value);
+        } else if (strcmp(name, "--fps") == 0) {
+            options->fps = atoi(value);
+        } else if (strcmp(name, "--kbps") == 0) {
+            options->kbps = atoi(value);
+        } else if (strcmp(name, "--frames") == 0) {
+            options->frames = atoi(value);
+        } else if (strcmp(name, "--codec") == 0) {
+            options->codec = value;
+        } else if (strcmp(name, "--slices") == 0) {
+            options->slices = atoi(value);
+        } else if (strcmp(name, "--rgba") == 0) {
+            options->rgba_path = value;
+        } else if (strcmp(name, "--i420") == 0) {
+            options->i420_path = value;
+        } else if (strcmp(name, "--pcm") == 0) {
+            options->pcm_path = value;
+        } else if (strcmp(name, "--sample-rate") == 0) {
+            options->sample_rate = atoi(value);
+        } else if (strcmp(name, "--channels") == 0) {
+            options->channels = atoi(value);
+        } else if (strcmp(name, "--audio-kbps") == 0) {
+            options->audio_kbps = atoi(value);
+        } else if (strcmp(name, "--output") == 0) {
+            options->output_path = value;
+        } else {
+            return false;
+        }
+    }
+    if (options->source_width <= 0) {
+        options->source_width = options->width;
+    }
+    if (options->source_height <= 0) {
+        options->source_height = options->height;
+    }
+    return options->width > 0 && options->height > 0 && options->fps > 0 && options->kbps > 0
+           && options->frames > 0 && options->slices > 0 && options->sample_rate > 0
+           && (options->channels == 1 || options->channels == 2) && options->audio_kbps > 0
+           && (strcmp(options->codec, "openh264") == 0 || strcmp(options->codec, "x264") == 0);
+}
+
+int main(int argc, char **argv) {
+    Options options;
+    if (!parseOptions(argc, argv, &options)) {
+        fprintf(stderr, "usage: %s [--width 720] [--height 1280] [--source-width w] [--source-height h]\n"
+                        "       [--fps 25] [--kbps 1500] [--frames 300] [--codec openh264|x264] [--slices 1]\n"
+                        "       [--rgba input.rgba] [--i420 input.yuv] [--pcm input.pcm]\n"
+                        "       [--sample-rate 44100] [--channels 2] [--audio-kbps 64] [--output report.json]\n",
+                argv[0]);
+        return 1;
+    }
+
+    std::vector<CaseResult> results;
+    bool success = benchConvert(options, results);
+
+    std::vector<std::string> h264_packets;
+#ifdef BENCH_VIDEO
+    success = benchVideo(options, h264_packets, results) && success;
+    const char *h264_source = options.codec;
+#else
+    const char *h264_source = "synthetic";
+#endif
+    if (h264_packets.empty()) {
+        h264_source = "synthetic";
+        syntheticH264(options, h264_packets);
+    }
+    benchMuxH264Srs(options, h264_packets, results);
+    benchMuxH264(options, h264_packets, results);
+
+    std::string aac_config;
+    std::vector<std::string> aac_packets;
+    if (benchAudio(options, aac_config, aac_packets, results)) {
+        benchMuxAac(options, aac_config, aac_packets, results);
+    } else {
+        success = false;
+    }
+
+    FILE *file = stdout;
+    if (options.output_path != NULL) {
+        file = fopen(options.output_path, "w");
+        if (file == NULL) {
+            fprintf(stderr, "can not open %s\n", options.output_path);
+            return 1;
+        }
+    }
+    fprintf(file, "{\n");
+    fprintf(file, "  \"video\": {\"width\": %d, \"height\": %d, \"source_width\": %d, \"source_height\": %d, "
+                  "\"fps\": %d, \"kbps\": %d, \"frames\": %d, \"slices\": %d, \"rgba\": \"%s\", \"i420\": \"%s\", \"h264\": \"%s\"},\n",
+            options.width, options.height, options.source_width, options.source_height, options.fps, options.kbps,
+            options.frames, options.slices, options.rgba_path != NULL ? "file" : "synthetic",
+            options.i420_path != NULL ? "file" : "synthetic", h264_source);
+    fprintf(file, "  \"audio\": {\"sample_rate\": %d, \"channels\": %d, \"kbps\": %d, \"input\": \"%s\"},\n",
+            options.sample_rate, options.channels, options.audio_kbps,
+            options.pcm_path != NULL ? "file" : "synthetic");
+    fprintf(file, "  \"results\": [\n");
+    for (size_t i = 0; i < results.size(); i++) {
+        results[i].print(file, i + 1 == results.size());
+    }
+    fprintf(file, "  ]\n}\n");
+    if (file != stdout) {
+        fclose(file);
+    }
+    return success ? 0 : 1;
+}
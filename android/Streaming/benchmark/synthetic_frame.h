@@ -0,0 +1,81 @@
+//
+// Created by wlanjie on 2017/8/19.
+//
+
+#ifndef STREAMING_BENCHMARK_SYNTHETIC_FRAME_H
+#define STREAMING_BENCHMARK_SYNTHETIC_FRAME_H
+
+#include <math.h>
+#include <stdint.h>
+
+/**
+ * @return bytes of a tightly packed i420 frame.
+ */
+static inline int i420FrameSize(int width, int height) {
+    return width * height + 2 * ((width + 1) >> 1) * ((height + 1) >> 1);
+}
+
+/**
+ * a tightly packed i420 frame of moving bars over a gradient with noise, close to the motion of a camera.
+ */
+static inline void fillFrame(uint8_t *frame, int width, int height, int index) {
+    uint32_t seed = (uint32_t) index * 2654435761u + 1;
+    for (int row = 0; row < height; row++) {
+        uint8_t *line = frame + row * width;
+        for (int column = 0; column < width; column++) {
+            seed = seed * 1103515245u + 12345u;
+            int bar = ((column + index * 6) / 32) & 1 ? 48 : 0;
+            line[column] = (uint8_t) (((row * 160 / height) + bar + ((seed >> 26) & 0x07)) & 0xff);
+        }
+    }
+    int chroma_width = (width + 1) >> 1;
+    int chroma_height = (height + 1) >> 1;
+    uint8_t *u = frame + width * height;
+    uint8_t *v = u + chroma_width * chroma_height;
+    for (int row = 0; row < chroma_height; row++) {
+        for (int column = 0; column < chroma_width; column++) {
+            u[row * chroma_width + column] = (uint8_t) (96 + ((column + index) & 0x3f));
+            v[row * chroma_width + column] = (uint8_t) (160 - ((row + index) & 0x3f));
+        }
+    }
+}
+
+/**
+ * a tightly packed rgba frame of the same moving bars, in the byte order of glReadPixels.
+ */
+static inline void fillRgbaFrame(uint8_t *frame, int width, int height, int index) {
+    uint32_t seed = (uint32_t) index * 2654435761u + 1;
+    for (int row = 0; row < height; row++) {
+        uint8_t *pixel = frame + row * width * 4;
+        for (int column = 0; column < width; column++, pixel += 4) {
+            seed = seed * 1103515245u + 12345u;
+            int bar = ((column + index * 6) / 32) & 1 ? 48 : 0;
+            int luma = (row * 160 / height) + bar + ((seed >> 26) & 0x07);
+            pixel[0] = (uint8_t) (luma & 0xff);
+            pixel[1] = (uint8_t) ((luma + ((column + index) & 0x3f)) & 0xff);
+            pixel[2] = (uint8_t) ((luma + 64 - ((row + index) & 0x3f)) & 0xff);
+            pixel[3] = 0xff;
+        }
+    }
+}
+
+/**
+ * 16bit interleaved pcm of a chord with a little noise, the phase continues from the sample offset.
+ */
+static inline void fillPcm(int16_t *pcm, int samples, int channels, int sample_rate, int64_t offset) {
+    static const double tones[] = {220.0, 277.2, 329.6};
+    uint32_t seed = (uint32_t) offset * 2654435761u + 1;
+    for (int i = 0; i < samples; i++) {
+        double t = (double) (offset + i) / sample_rate;
+        double value = 0;
+        for (int tone = 0; tone < 3; tone++) {
+            value += sin(2 * M_PI * tones[tone] * t) * 6000;
+        }
+        for (int channel = 0; channel < channels; channel++) {
+            seed = seed * 1103515245u + 12345u;
+            pcm[i * channels + channel] = (int16_t) (value + (int) ((seed >> 22) & 0x1ff) - 256);
+        }
+    }
+}
+
+#endif //STREAMING_BENCHMARK_SYNTHETIC_FRAME_H
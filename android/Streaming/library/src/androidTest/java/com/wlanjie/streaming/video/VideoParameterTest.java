@@ -0,0 +1,23 @@
+package com.wlanjie.streaming.video;
+
+import junit.framework.TestCase;
+
+/**
+ * Created by wlanjie on 2017/8/19.
+ */
+public class VideoParameterTest extends TestCase {
+
+  public void testCanConvertAlignedSizesOnGpu() {
+    assertTrue(VideoParameter.canConvertOnGpu(VideoParameter.FORMAT_I420, 720, 1280));
+    assertTrue(VideoParameter.canConvertOnGpu(VideoParameter.FORMAT_I420, 368, 640));
+    assertTrue(VideoParameter.canConvertOnGpu(VideoParameter.FORMAT_NV12, 540, 960));
+  }
+
+  public void testCanNotConvertNonAlignedSizesOnGpu() {
+    assertFalse(VideoParameter.canConvertOnGpu(VideoParameter.FORMAT_I420, 540, 960));
+    assertFalse(VideoParameter.canConvertOnGpu(VideoParameter.FORMAT_I420, 480, 854));
+    assertFalse(VideoParameter.canConvertOnGpu(VideoParameter.FORMAT_I420, 360, 642));
+    assertFalse(VideoParameter.canConvertOnGpu(VideoParameter.FORMAT_NV12, 482, 854));
+    assertFalse(VideoParameter.canConvertOnGpu(VideoParameter.FORMAT_NV12, 542, 960));
+  }
+}
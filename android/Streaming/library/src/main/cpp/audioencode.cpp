@@ -16,7 +16,6 @@ wlanjie::AudioEncode::~AudioEncode() {
 
 bool wlanjie::AudioEncode::open(int channel, int sample_rate, int bitrate) {
     LOGD("audio encode open");
-    _outputStream.open("/sdcard/wlanjie.aac", std::ios_base::binary | std::ios_base::out);
     this->channel = channel;
     this->sample_rate = sample_rate;
     this->bitrate = bitrate;
@@ -47,7 +46,8 @@ bool wlanjie::AudioEncode::open(int channel, int sample_rate, int bitrate) {
     if (aacEncoder_SetParam(aac_handle, AACENC_BITRATE, bitrate) != AACENC_OK) {
         return false;
     }
-    if (aacEncoder_SetParam(aac_handle, AACENC_TRANSMUX, 2) != AACENC_OK) {
+    // raw access units, the muxer takes the AudioSpecificConfig once instead of parsing adts.
+    if (aacEncoder_SetParam(aac_handle, AACENC_TRANSMUX, TT_MP4_RAW) != AACENC_OK) {
         return false;
     }
     if (aacEncEncode(aac_handle, NULL, NULL, NULL, NULL) != AACENC_OK) {
@@ -60,7 +60,7 @@ void wlanjie::AudioEncode::close() {
     if (aac_handle) {
         aacEncClose(&aac_handle);
     }
-    _outputStream.close();
+    info.confSize = 0;
 }
 
 int wlanjie::AudioEncode::encode(char *pcm, int pcm_length, int *aac_size, uint8_t **aac) {
@@ -69,11 +69,12 @@ int wlanjie::AudioEncode::encode(char *pcm, int pcm_length, int *aac_size, uint8
     AACENC_InArgs in_args = { 0 };
     AACENC_OutArgs out_args = { 0 };
     int in_buffer_identifier = IN_AUDIO_DATA;
-    int in_buffer_size = 2 * channel * pcm_length;
+    // pcm_length is in bytes of 16bit interleaved samples.
+    int in_buffer_size = pcm_length;
     int in_buffer_element_size = 2;
     void *in_ptr = pcm;
 
-    in_args.numInSamples = channel * pcm_length;
+    in_args.numInSamples = pcm_length / in_buffer_element_size;
 
     in_buf.numBufs = 1;
     in_buf.bufs = &in_ptr;
@@ -81,7 +82,6 @@ int wlanjie::AudioEncode::encode(char *pcm, int pcm_length, int *aac_size, uint8
     in_buf.bufSizes = &in_buffer_size;
     in_buf.bufElSizes = &in_buffer_element_size;
 
-    uint8_t aac_buf[8192];
     void *out_ptr = aac_buf;
     int out_buffer_identifier = OUT_BITSTREAM_DATA;
     int out_buffer_size = sizeof(aac_buf);
@@ -100,8 +100,12 @@ int wlanjie::AudioEncode::encode(char *pcm, int pcm_length, int *aac_size, uint8
         LOGE("Encode aac size is 0.\n");
         return -2;
     }
-    _outputStream.write((const char *) aac_buf, out_args.numOutBytes);
     *aac_size = out_args.numOutBytes;
     *aac = aac_buf;
     return out_args.numOutBytes;
-}
\ No newline at end of file
+}
+
+int wlanjie::AudioEncode::getSpecificConfig(uint8_t **config) {
+    *config = info.confBuf;
+    return info.confSize;
+}
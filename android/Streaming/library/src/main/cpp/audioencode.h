@@ -6,12 +6,13 @@
 #define STREAMING_AUDIOENCODE_H
 
 #include <cstdint>
-#include <fstream>
-#include <iostream>
 #include "libAACenc/include/aacenc_lib.h"
 
 namespace wlanjie {
 
+    /**
+     * fdk-aac lc writing raw access units, TT_MP4_RAW, the AudioSpecificConfig comes from getSpecificConfig.
+     */
     class AudioEncode {
     public:
         AudioEncode();
@@ -26,14 +27,25 @@ namespace wlanjie {
     private:
         HANDLE_AACENCODER aac_handle;
         AACENC_InfoStruct info = {0};
-        std::ofstream _outputStream;
+        // output of encode, valid until the next encode.
+        uint8_t aac_buf[8192];
 
     public:
         bool open(int channel, int sample_rate, int bitrate);
 
         void close();
 
+        /**
+         * @param pcm_length bytes of pcm.
+         * @param aac point to the encoded frame owned by the encoder, valid until the next encode.
+         */
         int encode(char *pcm, int pcm_length, int *aac_size, uint8_t **aac);
+
+        /**
+         * @param config point to the AudioSpecificConfig owned by the encoder, valid until close.
+         * @return bytes of the config, 0 before open.
+         */
+        int getSpecificConfig(uint8_t **config);
     };
 }
 
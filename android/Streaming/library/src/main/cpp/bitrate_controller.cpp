@@ -0,0 +1,109 @@
+//
+// Created by wlanjie on 2017/8/13.
+//
+
+#include "bitrate_controller.h"
+#include "log.h"
+
+wlanjie::BitrateController::BitrateController() :
+        min_kbps(0),
+        max_kbps(0),
+        target_kbps(0),
+        send_kbps(0),
+        rtt_ms(0),
+        window_start_ms(0),
+        window_bytes(0),
+        window_write_ms(0),
+        window_packets(0),
+        idle_intervals(0) {
+
+}
+
+wlanjie::BitrateController::~BitrateController() {
+
+}
+
+void wlanjie::BitrateController::setRange(int min_kbps, int max_kbps) {
+    if (min_kbps <= 0 || min_kbps > max_kbps) {
+        min_kbps = max_kbps;
+    }
+    this->min_kbps = min_kbps;
+    this->max_kbps = max_kbps;
+    target_kbps = max_kbps;
+    send_kbps = 0;
+    rtt_ms = 0;
+    window_start_ms = 0;
+    window_bytes = 0;
+    window_write_ms = 0;
+    window_packets = 0;
+    idle_intervals = 0;
+}
+
+void wlanjie::BitrateController::onPacketSent(int size, int write_ms, int queue_bytes) {
+    int64_t now = current_time_ms();
+    if (window_start_ms == 0) {
+        window_start_ms = now;
+    }
+    window_bytes += size;
+    window_write_ms += write_ms;
+    window_packets++;
+
+    int64_t elapsed = now - window_start_ms;
+    if (elapsed < BITRATE_CHECK_INTERVAL_MS) {
+        return;
+    }
+    int kbps = (int) (window_bytes * 8 / elapsed);
+    int rtt = (int) (window_write_ms / window_packets);
+    send_kbps = kbps;
+    rtt_ms = rtt;
+    window_start_ms = now;
+    window_bytes = 0;
+    window_write_ms = 0;
+    window_packets = 0;
+
+    if (max_kbps <= 0 || min_kbps == max_kbps) {
+        return;
+    }
+
+    // how long the queued data needs to drain at the measured rate.
+    int queue_delay_ms = kbps > 0 ? (int) ((int64_t) queue_bytes * 8 / kbps) : BITRATE_CONGESTED_DELAY_MS;
+    int target = target_kbps;
+    if (queue_delay_ms >= BITRATE_CONGESTED_DELAY_MS || rtt >= BITRATE_CONGESTED_WRITE_MS) {
+        target = target * 3 / 4;
+        // the measured rate also carries audio, never aim above it when congested.
+        if (kbps > 0 && target > kbps) {
+            target = kbps;
+        }
+        idle_intervals = 0;
+    } else if (queue_delay_ms <= BITRATE_IDLE_DELAY_MS) {
+        if (++idle_intervals >= BITRATE_INCREASE_INTERVALS) {
+            target += target / 10 > 10 ? target / 10 : 10;
+            idle_intervals = 0;
+        }
+    } else {
+        idle_intervals = 0;
+    }
+
+    if (target < min_kbps) {
+        target = min_kbps;
+    } else if (target > max_kbps) {
+        target = max_kbps;
+    }
+    if (target != target_kbps) {
+        LOGI("video bitrate %d -> %d kbps, send = %d kbps, queue delay = %d ms, rtt = %d ms",
+             (int) target_kbps, target, kbps, queue_delay_ms, rtt);
+        target_kbps = target;
+    }
+}
+
+int wlanjie::BitrateController::getTargetBitrate() {
+    return target_kbps;
+}
+
+int wlanjie::BitrateController::getSendKbps() {
+    return send_kbps;
+}
+
+int wlanjie::BitrateController::getRtt() {
+    return rtt_ms;
+}
@@ -0,0 +1,74 @@
+//
+// Created by wlanjie on 2017/8/13.
+//
+
+#ifndef STREAMING_BITRATE_CONTROLLER_H
+#define STREAMING_BITRATE_CONTROLLER_H
+
+#include <atomic>
+#include <stdint.h>
+#include "utils.h"
+
+// how often the controller looks at the measurements.
+#define BITRATE_CHECK_INTERVAL_MS 1000
+// queue delay above which the uplink is treated as congested.
+#define BITRATE_CONGESTED_DELAY_MS 800
+// queue delay below which the uplink is treated as idle.
+#define BITRATE_IDLE_DELAY_MS 200
+// write time above which the socket is treated as blocked.
+#define BITRATE_CONGESTED_WRITE_MS 150
+// idle intervals needed before the bitrate is increased.
+#define BITRATE_INCREASE_INTERVALS 3
+
+namespace wlanjie {
+
+    /**
+     * adaptive bitrate controller of the video encoder.
+     * fed by the sender thread after each packet is written, it measures
+     * the uplink kbps and the time a write blocks (an estimate of the rtt
+     * once the socket buffer is full), and moves the target bitrate between
+     * min and max: multiplicative decrease when the send queue grows,
+     * additive increase when the queue stays empty.
+     * the encoder threads read the target with getTargetBitrate().
+     */
+    class BitrateController {
+    public:
+        BitrateController();
+
+        ~BitrateController();
+
+        /**
+         * @param min_kbps lowest video bitrate.
+         * @param max_kbps highest video bitrate, also the initial bitrate.
+         */
+        void setRange(int min_kbps, int max_kbps);
+
+        /**
+         * called by the sender thread after a packet is written.
+         * @param size bytes of the packet.
+         * @param write_ms time srs_rtmp_write_packet blocked.
+         * @param queue_bytes bytes still waiting in the send queue.
+         */
+        void onPacketSent(int size, int write_ms, int queue_bytes);
+
+        int getTargetBitrate();
+
+        int getSendKbps();
+
+        int getRtt();
+
+    private:
+        int min_kbps;
+        int max_kbps;
+        std::atomic<int> target_kbps;
+        std::atomic<int> send_kbps;
+        std::atomic<int> rtt_ms;
+        int64_t window_start_ms;
+        int64_t window_bytes;
+        int64_t window_write_ms;
+        int window_packets;
+        int idle_intervals;
+    };
+}
+
+#endif //STREAMING_BITRATE_CONTROLLER_H
@@ -0,0 +1,287 @@
+//
+// Created by wlanjie on 2017/8/19.
+//
+
+#include <stdlib.h>
+#include <string.h>
+#include "frame_converter.h"
+
+// rows of every buffer start on a simd friendly boundary.
+#define FRAME_ALIGN 64
+#define ALIGN_UP(x, a) (((x) + (a) - 1) & ~((a) - 1))
+
+static void layout(uint8_t *base, int width, int height, wlanjie::I420Frame *frame) {
+    int half_height = (height + 1) >> 1;
+    frame->width = width;
+    frame->height = height;
+    frame->stride[0] = ALIGN_UP(width, FRAME_ALIGN);
+    frame->stride[1] = frame->stride[2] = ALIGN_UP((width + 1) >> 1, FRAME_ALIGN);
+    frame->data[0] = base;
+    frame->data[1] = base + frame->stride[0] * height;
+    frame->data[2] = frame->data[1] + frame->stride[1] * half_height;
+}
+
+static int frameSize(int width, int height) {
+    return ALIGN_UP(width, FRAME_ALIGN) * height + 2 * ALIGN_UP((width + 1) >> 1, FRAME_ALIGN) * ((height + 1) >> 1);
+}
+
+static uint8_t *alignedAlloc(int size) {
+    void *buffer = NULL;
+    if (posix_memalign(&buffer, FRAME_ALIGN, (size_t) size) != 0) {
+        return NULL;
+    }
+    return (uint8_t *) buffer;
+}
+
+wlanjie::FrameConverter::FrameConverter() :
+        format(FRAME_FORMAT_RGBA),
+        src_width(0),
+        src_height(0),
+        dst_width(0),
+        dst_height(0),
+        rotation(libyuv::kRotate0),
+        filter(libyuv::kFilterNone),
+        scale_width(0),
+        scale_height(0),
+        rgba_scale(false),
+        rgba_scale_rotate(false),
+        convert_flip(false),
+        i420_scale(false),
+        i420_scale_flip(false),
+        mirror(false),
+        mirror_flip(false),
+        rotate(false),
+        pass_count(0),
+        pass(0),
+        target(NULL),
+        rgba_buffer(NULL),
+        rgba_stride(0) {
+    buffers[0] = buffers[1] = NULL;
+    memset(frames, 0, sizeof(frames));
+    memset(&source, 0, sizeof(source));
+}
+
+wlanjie::FrameConverter::~FrameConverter() {
+    release();
+}
+
+int wlanjie::FrameConverter::setup(FrameFormat format, int src_width, int src_height,
+                                   int dst_width, int dst_height,
+                                   libyuv::RotationMode rotation, libyuv::FilterMode filter) {
+    release();
+    if (src_width <= 0 || src_height <= 0 || dst_width <= 0 || dst_height <= 0) {
+        return -1;
+    }
+    this->format = format;
+    this->src_width = src_width;
+    this->src_height = src_height;
+    this->dst_width = dst_width;
+    this->dst_height = dst_height;
+    this->rotation = rotation;
+    this->filter = filter;
+
+    rotate = rotation == libyuv::kRotate90 || rotation == libyuv::kRotate270;
+    scale_width = rotate ? dst_height : dst_width;
+    scale_height = rotate ? dst_width : dst_height;
+    bool scale = scale_width != src_width || scale_height != src_height;
+    // a rotation of 180 degrees is a vertical flip and a mirror, each taken by the first pass able to.
+    bool flip = rotation == libyuv::kRotate180;
+    bool mirror_pending = flip;
+
+    // shrinking rgba before the conversion touches the fewest bytes, the scaler mirrors and flips for free.
+    rgba_scale = format == FRAME_FORMAT_RGBA && scale
+                 && (int64_t) scale_width * scale_height < (int64_t) src_width * src_height;
+    rgba_scale_rotate = rgba_scale && flip;
+    if (rgba_scale) {
+        flip = mirror_pending = false;
+    }
+    convert_flip = format != FRAME_FORMAT_I420 && flip;
+    if (format != FRAME_FORMAT_I420) {
+        flip = false;
+    }
+    i420_scale = scale && !rgba_scale;
+    i420_scale_flip = i420_scale && flip;
+    if (i420_scale) {
+        flip = false;
+    }
+    mirror = mirror_pending;
+    mirror_flip = mirror && flip;
+
+    pass_count = (format != FRAME_FORMAT_I420 ? 1 : 0) + (i420_scale ? 1 : 0) + (mirror ? 1 : 0) + (rotate ? 1 : 0);
+    int size = frameSize(src_width, src_height);
+    if (frameSize(scale_width, scale_height) > size) {
+        size = frameSize(scale_width, scale_height);
+    }
+    if (frameSize(dst_width, dst_height) > size) {
+        size = frameSize(dst_width, dst_height);
+    }
+    for (int i = 0; i < pass_count && i < 2; i++) {
+        buffers[i] = alignedAlloc(size);
+        if (buffers[i] == NULL) {
+            release();
+            return -1;
+        }
+    }
+    if (rgba_scale) {
+        rgba_stride = ALIGN_UP(scale_width * 4, FRAME_ALIGN);
+        rgba_buffer = alignedAlloc(rgba_stride * scale_height);
+        if (rgba_buffer == NULL) {
+            release();
+            return -1;
+        }
+    }
+    return 0;
+}
+
+wlanjie::I420Frame *wlanjie::FrameConverter::nextFrame(const wlanjie::I420Frame *input, int width, int height) {
+    if (++pass == pass_count && target != NULL) {
+        return const_cast<I420Frame *>(target);
+    }
+    int index = input == &frames[0] ? 1 : 0;
+    layout(buffers[index], width, height, &frames[index]);
+    return &frames[index];
+}
+
+int wlanjie::FrameConverter::convert(const uint8_t *src, wlanjie::I420Frame *dst) {
+    return run(src, NULL, dst);
+}
+
+int wlanjie::FrameConverter::convert(const uint8_t *src, const wlanjie::I420Frame &target) {
+    if (target.width != dst_width || target.height != dst_height) {
+        return -1;
+    }
+    I420Frame dst;
+    if (run(src, &target, &dst) != 0) {
+        return -1;
+    }
+    if (pass_count > 0) {
+        return 0;
+    }
+    // nothing to convert, the source is copied.
+    return libyuv::I420Copy(dst.data[0], dst.stride[0],
+                            dst.data[1], dst.stride[1],
+                            dst.data[2], dst.stride[2],
+                            target.data[0], target.stride[0],
+                            target.data[1], target.stride[1],
+                            target.data[2], target.stride[2],
+                            dst_width, dst_height);
+}
+
+int wlanjie::FrameConverter::getOutputSize() const {
+    return dst_width * dst_height + 2 * ((dst_width + 1) >> 1) * ((dst_height + 1) >> 1);
+}
+
+int wlanjie::FrameConverter::getOutputWidth() const {
+    return dst_width;
+}
+
+int wlanjie::FrameConverter::getOutputHeight() const {
+    return dst_height;
+}
+
+void wlanjie::FrameConverter::wrap(uint8_t *data, int width, int height, wlanjie::I420Frame *frame) {
+    int half_width = (width + 1) >> 1;
+    frame->width = width;
+    frame->height = height;
+    frame->stride[0] = width;
+    frame->stride[1] = frame->stride[2] = half_width;
+    frame->data[0] = data;
+    frame->data[1] = data + width * height;
+    frame->data[2] = frame->data[1] + half_width * ((height + 1) >> 1);
+}
+
+int wlanjie::FrameConverter::run(const uint8_t *src, const wlanjie::I420Frame *target, wlanjie::I420Frame *dst) {
+    if (src == NULL || src_width <= 0) {
+        return -1;
+    }
+    this->target = target;
+    pass = 0;
+    int ret = 0;
+    I420Frame *current;
+    I420Frame *output;
+    if (format == FRAME_FORMAT_RGBA) {
+        const uint8_t *rgba = src;
+        int stride = src_width * 4;
+        int width = src_width;
+        int height = src_height;
+        if (rgba_scale) {
+            ret |= libyuv::ARGBScale(src, stride,
+                                     rgba_scale_rotate ? -src_width : src_width,
+                                     rgba_scale_rotate ? -src_height : src_height,
+                                     rgba_buffer, rgba_stride,
+                                     scale_width, scale_height, filter);
+            rgba = rgba_buffer;
+            stride = rgba_stride;
+            width = scale_width;
+            height = scale_height;
+        }
+        output = nextFrame(NULL, width, height);
+        ret |= libyuv::ABGRToI420(rgba, stride,
+                                  output->data[0], output->stride[0],
+                                  output->data[1], output->stride[1],
+                                  output->data[2], output->stride[2],
+                                  width, convert_flip ? -height : height);
+        current = output;
+    } else if (format == FRAME_FORMAT_NV12) {
+        output = nextFrame(NULL, src_width, src_height);
+        ret |= libyuv::NV12ToI420(src, src_width,
+                                  src + src_width * src_height, ALIGN_UP(src_width, 2),
+                                  output->data[0], output->stride[0],
+                                  output->data[1], output->stride[1],
+                                  output->data[2], output->stride[2],
+                                  src_width, convert_flip ? -src_height : src_height);
+        current = output;
+    } else {
+        wrap((uint8_t *) src, src_width, src_height, &source);
+        current = &source;
+    }
+
+    if (i420_scale) {
+        output = nextFrame(current, scale_width, scale_height);
+        ret |= libyuv::I420Scale(current->data[0], current->stride[0],
+                                 current->data[1], current->stride[1],
+                                 current->data[2], current->stride[2],
+                                 current->width, i420_scale_flip ? -current->height : current->height,
+                                 output->data[0], output->stride[0],
+                                 output->data[1], output->stride[1],
+                                 output->data[2], output->stride[2],
+                                 scale_width, scale_height, filter);
+        current = output;
+    }
+    if (mirror) {
+        output = nextFrame(current, current->width, current->height);
+        ret |= libyuv::I420Mirror(current->data[0], current->stride[0],
+                                  current->data[1], current->stride[1],
+                                  current->data[2], current->stride[2],
+                                  output->data[0], output->stride[0],
+                                  output->data[1], output->stride[1],
+                                  output->data[2], output->stride[2],
+                                  current->width, mirror_flip ? -current->height : current->height);
+        current = output;
+    }
+    if (rotate) {
+        output = nextFrame(current, current->height, current->width);
+        ret |= libyuv::I420Rotate(current->data[0], current->stride[0],
+                                  current->data[1], current->stride[1],
+                                  current->data[2], current->stride[2],
+                                  output->data[0], output->stride[0],
+                                  output->data[1], output->stride[1],
+                                  output->data[2], output->stride[2],
+                                  current->width, current->height, rotation);
+        current = output;
+    }
+    *dst = *current;
+    this->target = NULL;
+    return ret == 0 ? 0 : -1;
+}
+
+void wlanjie::FrameConverter::release() {
+    for (int i = 0; i < 2; i++) {
+        free(buffers[i]);
+        buffers[i] = NULL;
+    }
+    free(rgba_buffer);
+    rgba_buffer = NULL;
+    rgba_stride = 0;
+    src_width = src_height = 0;
+}
@@ -0,0 +1,133 @@
+//
+// Created by wlanjie on 2017/8/19.
+//
+
+#ifndef STREAMING_FRAME_CONVERTER_H
+#define STREAMING_FRAME_CONVERTER_H
+
+#include <stdint.h>
+#include "libyuv.h"
+
+namespace wlanjie {
+
+    /**
+     * formats of the frames given to the encoders, keep in sync with VideoParameter.java.
+     */
+    enum FrameFormat {
+        // the byte order of glReadPixels, r g b a in memory, libyuv calls it abgr.
+        FRAME_FORMAT_RGBA = 0,
+        FRAME_FORMAT_I420 = 1,
+        FRAME_FORMAT_NV12 = 2
+    };
+
+    /**
+     * planes of an i420 frame, owned by whoever filled it.
+     */
+    struct I420Frame {
+        uint8_t *data[3];
+        int stride[3];
+        int width;
+        int height;
+    };
+
+    /**
+     * converts frames to i420 of the encoder size, rotated and scaled.
+     * setup() plans the cheapest sequence of libyuv calls once and allocates aligned buffers,
+     * convert() runs it without allocating:
+     *  - a vertical flip is a negative height of the first pass, free.
+     *  - a rgba frame that shrinks is scaled before the conversion, with the 180 degrees
+     *    rotation folded in as a negative width and height, two passes in total.
+     *  - everything else is converted first and scaled, mirrored or rotated as i420.
+     *  - an i420 frame of the encoder size is passed through without a copy.
+     * not thread safe, one converter for each encoder.
+     */
+    class FrameConverter {
+    public:
+        FrameConverter();
+
+        ~FrameConverter();
+
+        /**
+         * @param rotation rotation applied to the source, with 90 and 270 degrees dst_width
+         *                 and dst_height are the size after the rotation.
+         * @param filter libyuv::kFilterNone is the fastest, kFilterBox the best downscale.
+         * @return 0 on success, -1 on an invalid size.
+         */
+        int setup(FrameFormat format, int src_width, int src_height,
+                  int dst_width, int dst_height,
+                  libyuv::RotationMode rotation, libyuv::FilterMode filter);
+
+        /**
+         * @param src frame of the source format and size, tightly packed.
+         * @param dst points to the converted planes, valid until the next convert or release.
+         * @return 0 on success.
+         */
+        int convert(const uint8_t *src, I420Frame *dst);
+
+        /**
+         * convert into the planes of target, the last pass writes there directly.
+         * @param target planes of dst_width and dst_height.
+         * @return 0 on success.
+         */
+        int convert(const uint8_t *src, const I420Frame &target);
+
+        /**
+         * @return bytes of a tightly packed i420 frame of the destination size.
+         */
+        int getOutputSize() const;
+
+        int getOutputWidth() const;
+
+        int getOutputHeight() const;
+
+        /**
+         * lay out a tightly packed i420 frame over data.
+         */
+        static void wrap(uint8_t *data, int width, int height, I420Frame *frame);
+
+        void release();
+
+    private:
+        /**
+         * @return the buffer of the next pass laid out for the size, the other one than input.
+         */
+        I420Frame *nextFrame(const I420Frame *input, int width, int height);
+
+        int run(const uint8_t *src, const I420Frame *target, I420Frame *dst);
+
+    private:
+        FrameFormat format;
+        int src_width;
+        int src_height;
+        int dst_width;
+        int dst_height;
+        libyuv::RotationMode rotation;
+        libyuv::FilterMode filter;
+
+        // size before the rotation.
+        int scale_width;
+        int scale_height;
+        // the passes of the plan.
+        bool rgba_scale;
+        bool rgba_scale_rotate;
+        bool convert_flip;
+        bool i420_scale;
+        bool i420_scale_flip;
+        bool mirror;
+        bool mirror_flip;
+        bool rotate;
+        // passes writing i420, the last one goes to the target of convert.
+        int pass_count;
+        int pass;
+        const I420Frame *target;
+
+        uint8_t *rgba_buffer;
+        int rgba_stride;
+        // passes alternate between the two buffers.
+        uint8_t *buffers[2];
+        I420Frame frames[2];
+        I420Frame source;
+    };
+}
+
+#endif //STREAMING_FRAME_CONVERTER_H
@@ -0,0 +1,406 @@
+//
+// Created by wlanjie on 2017/8/12.
+//
+
+#include <sys/time.h>
+#include "frame_queue.h"
+#include "packet_pool.h"
+#include "utils.h"
+#include "log.h"
+
+wlanjie::FrameRing::FrameRing() :
+        slots(NULL),
+        capacity(0),
+        head(0),
+        count(0) {
+
+}
+
+wlanjie::FrameRing::~FrameRing() {
+    clear();
+    delete[] slots;
+}
+
+void wlanjie::FrameRing::allocate(int capacity) {
+    clear();
+    delete[] slots;
+    slots = new Frame[capacity];
+    this->capacity = capacity;
+}
+
+bool wlanjie::FrameRing::empty() {
+    return count == 0;
+}
+
+int wlanjie::FrameRing::size() {
+    return count;
+}
+
+void wlanjie::FrameRing::push(const Frame &frame) {
+    slots[(head + count) % capacity] = frame;
+    count++;
+}
+
+wlanjie::Frame wlanjie::FrameRing::pop() {
+    Frame frame = slots[head];
+    head = (head + 1) % capacity;
+    count--;
+    return frame;
+}
+
+wlanjie::Frame &wlanjie::FrameRing::at(int index) {
+    return slots[(head + index) % capacity];
+}
+
+template<typename Predicate>
+int wlanjie::FrameRing::remove(int end, Predicate predicate, int *removed) {
+    int bytes = 0;
+    int write = 0;
+    for (int read = 0; read < count; read++) {
+        Frame &frame = at(read);
+        if (read < end && predicate(frame)) {
+            bytes += frame.size;
+            (*removed)++;
+            packet_pool.release(frame.data);
+            continue;
+        }
+        if (write != read) {
+            at(write) = frame;
+        }
+        write++;
+    }
+    count = write;
+    return bytes;
+}
+
+void wlanjie::FrameRing::clear() {
+    while (count > 0) {
+        packet_pool.release(pop().data);
+    }
+    head = 0;
+}
+
+wlanjie::FrameQueue::FrameQueue() :
+        capacity(0),
+        max_bytes(DEFAULT_QUEUE_MAX_BYTES),
+        drop_frame_ms(DEFAULT_DROP_FRAME_DELAY_MS),
+        drop_gop_ms(DEFAULT_DROP_GOP_DELAY_MS),
+        count(0),
+        total_bytes(0),
+        wait_keyframe(false),
+        wait_keyframe_reason(DROP_CONGESTION_FRAME),
+        temporal_layered(false),
+        aborted(false) {
+    for (int i = 0; i < DROP_REASON_COUNT; i++) {
+        dropped_frames[i] = 0;
+    }
+    pthread_mutex_init(&mutex, NULL);
+    pthread_cond_init(&cond, NULL);
+    setCapacity(DEFAULT_QUEUE_MAX_FRAMES, DEFAULT_QUEUE_MAX_BYTES);
+}
+
+wlanjie::FrameQueue::~FrameQueue() {
+    pthread_cond_destroy(&cond);
+    pthread_mutex_destroy(&mutex);
+}
+
+void wlanjie::FrameQueue::setCapacity(int max_frames, int max_bytes) {
+    pthread_mutex_lock(&mutex);
+    if (max_frames > 0 && max_frames != capacity && count == 0) {
+        // each ring can hold all the frames, the total is limited by capacity.
+        audio.allocate(max_frames);
+        video.allocate(max_frames);
+        capacity = max_frames;
+    }
+    if (max_bytes > 0) {
+        this->max_bytes = max_bytes;
+    }
+    pthread_mutex_unlock(&mutex);
+}
+
+void wlanjie::FrameQueue::setDropThreshold(int drop_frame_ms, int drop_gop_ms) {
+    pthread_mutex_lock(&mutex);
+    this->drop_frame_ms = drop_frame_ms;
+    this->drop_gop_ms = drop_gop_ms;
+    pthread_mutex_unlock(&mutex);
+}
+
+bool wlanjie::FrameQueue::push(Frame &frame) {
+    pthread_mutex_lock(&mutex);
+    if (aborted) {
+        pthread_mutex_unlock(&mutex);
+        return false;
+    }
+    frame.enqueue_ms = current_time_ms();
+    DropReason reason;
+    if (frame.packet_type == VIDEO_TYPE && !frame.sequence_header && !dropCongestedVideo(frame, &reason)) {
+        dropped_frames[reason]++;
+        pthread_mutex_unlock(&mutex);
+        return false;
+    }
+
+    bool full = isFull(frame.size);
+    bool inter_frame = frame.packet_type == VIDEO_TYPE && !frame.keyframe && !frame.sequence_header;
+    if (full && !video.empty()) {
+        // make room by dropping video first.
+        if (!dropVideoGop(DROP_QUEUE_FULL, frame.keyframe) && inter_frame) {
+            // the dropped frames are referenced by this one.
+            full = true;
+        } else {
+            full = isFull(frame.size);
+        }
+    }
+    if (full && frame.packet_type == AUDIO_TYPE && !frame.sequence_header) {
+        // live audio keeps the newest, the oldest queued audio makes room.
+        full = !dropOldestAudio(frame.size);
+    }
+    if (full && frame.sequence_header) {
+        // every frame after it needs it, it goes beyond the caps while its ring has a slot.
+        full = (frame.packet_type == AUDIO_TYPE ? audio : video).size() >= capacity;
+    }
+    if (full) {
+        if (inter_frame) {
+            waitKeyframe(DROP_QUEUE_FULL);
+        }
+        dropped_frames[DROP_QUEUE_FULL]++;
+        pthread_mutex_unlock(&mutex);
+        return false;
+    }
+
+    if (frame.packet_type == AUDIO_TYPE) {
+        audio.push(frame);
+    } else {
+        video.push(frame);
+    }
+    count++;
+    total_bytes += frame.size;
+    pthread_cond_signal(&cond);
+    pthread_mutex_unlock(&mutex);
+    return true;
+}
+
+bool wlanjie::FrameQueue::isFull(int size) {
+    // always accept one frame when empty, so a frame larger than max_bytes can not block the stream.
+    return count >= capacity || (count > 0 && total_bytes + size > max_bytes);
+}
+
+void wlanjie::FrameQueue::waitKeyframe(DropReason reason) {
+    wait_keyframe = true;
+    wait_keyframe_reason = reason;
+}
+
+bool wlanjie::FrameQueue::dropOldestAudio(int size) {
+    while (isFull(size)) {
+        int oldest = 0;
+        while (oldest < audio.size() && audio.at(oldest).sequence_header) {
+            oldest++;
+        }
+        if (oldest >= audio.size()) {
+            return false;
+        }
+        // the frames before the oldest are sequence headers, only it is removed.
+        int removed = 0;
+        int bytes = audio.remove(oldest + 1, [](const Frame &f) {
+            return !f.sequence_header;
+        }, &removed);
+        onRemoved(removed, bytes, DROP_QUEUE_FULL);
+    }
+    return true;
+}
+
+bool wlanjie::FrameQueue::dropCongestedVideo(const Frame &frame, DropReason *reason) {
+    if (frame.temporal_id > 0) {
+        temporal_layered = true;
+    }
+    if (wait_keyframe) {
+        if (!frame.keyframe) {
+            // counted with the drop that started the wait.
+            *reason = wait_keyframe_reason;
+            return false;
+        }
+        wait_keyframe = false;
+    }
+    // the sequence headers stay in the queue, measure the delay from the oldest frame.
+    int oldest = 0;
+    while (oldest < video.size() && video.at(oldest).sequence_header) {
+        oldest++;
+    }
+    if (oldest >= video.size()) {
+        return true;
+    }
+
+    int64_t delay = frame.enqueue_ms - video.at(oldest).enqueue_ms;
+    if (drop_gop_ms > 0 && delay >= drop_gop_ms) {
+        if (!dropVideoGop(DROP_CONGESTION_GOP, frame.keyframe) && !frame.keyframe) {
+            waitKeyframe(DROP_CONGESTION_GOP);
+            *reason = DROP_CONGESTION_GOP;
+            return false;
+        }
+        return true;
+    }
+    if (drop_frame_ms > 0 && delay >= drop_frame_ms) {
+        // non-reference frames can be dropped without breaking the decoding of others.
+        int removed = 0;
+        int bytes = video.remove(video.size(), [](const Frame &f) {
+            return f.disposable;
+        }, &removed);
+        onRemoved(removed, bytes, DROP_CONGESTION_FRAME);
+        if (frame.disposable) {
+            *reason = DROP_CONGESTION_FRAME;
+            return false;
+        }
+        // the base temporal layers decode on their own, only a single layer stream waits for an idr.
+        if (!frame.keyframe && !temporal_layered) {
+            waitKeyframe(DROP_CONGESTION_FRAME);
+            *reason = DROP_CONGESTION_FRAME;
+            return false;
+        }
+    }
+    return true;
+}
+
+bool wlanjie::FrameQueue::dropVideoGop(DropReason reason, bool keyframe) {
+    // a new idr starts a new gop, everything queued before it can go.
+    int newest_keyframe = keyframe ? video.size() : -1;
+    for (int i = video.size() - 1; i >= 0 && newest_keyframe < 0; i--) {
+        if (video.at(i).keyframe) {
+            newest_keyframe = i;
+        }
+    }
+    int end = newest_keyframe >= 0 ? newest_keyframe : video.size();
+    int removed = 0;
+    int bytes = video.remove(end, [](const Frame &f) {
+        return !f.sequence_header;
+    }, &removed);
+    onRemoved(removed, bytes, reason);
+    return newest_keyframe >= 0;
+}
+
+bool wlanjie::FrameQueue::restartFromKeyframe() {
+    pthread_mutex_lock(&mutex);
+    bool found = dropVideoGop(DROP_RECONNECT, false);
+    if (!found) {
+        waitKeyframe(DROP_RECONNECT);
+    }
+    pthread_mutex_unlock(&mutex);
+    return found;
+}
+
+void wlanjie::FrameQueue::onRemoved(int frames, int bytes, DropReason reason) {
+    if (frames <= 0) {
+        return;
+    }
+    count -= frames;
+    total_bytes -= bytes;
+    dropped_frames[reason] += frames;
+    LOGW("drop %d queued frames, %d bytes, reason = %d", frames, bytes, reason);
+}
+
+bool wlanjie::FrameQueue::pop(Frame *frame) {
+    pthread_mutex_lock(&mutex);
+    while (count == 0 && !aborted) {
+        pthread_cond_wait(&cond, &mutex);
+    }
+    if (aborted) {
+        pthread_mutex_unlock(&mutex);
+        return false;
+    }
+    *frame = popLocked();
+    pthread_mutex_unlock(&mutex);
+    return true;
+}
+
+int wlanjie::FrameQueue::popBatch(Frame *frames, int max_frames, int max_bytes, int linger_ms) {
+    pthread_mutex_lock(&mutex);
+    while (count == 0 && !aborted) {
+        pthread_cond_wait(&cond, &mutex);
+    }
+    if (aborted) {
+        pthread_mutex_unlock(&mutex);
+        return 0;
+    }
+    struct timespec deadline;
+    if (linger_ms > 0) {
+        struct timeval now;
+        gettimeofday(&now, NULL);
+        int64_t deadline_us = (int64_t) now.tv_sec * 1000000 + now.tv_usec + (int64_t) linger_ms * 1000;
+        deadline.tv_sec = (time_t) (deadline_us / 1000000);
+        deadline.tv_nsec = (long) (deadline_us % 1000000) * 1000;
+    }
+    int taken = 0;
+    int batch_bytes = 0;
+    bool full = false;
+    while (!aborted) {
+        while (count > 0 && taken < max_frames) {
+            Frame &next = audio.empty() ? video.at(0) : audio.at(0);
+            if (taken > 0 && batch_bytes + next.size > max_bytes) {
+                full = true;
+                break;
+            }
+            frames[taken] = popLocked();
+            batch_bytes += frames[taken].size;
+            taken++;
+        }
+        if (full || taken >= max_frames || batch_bytes >= max_bytes || linger_ms <= 0) {
+            break;
+        }
+        // the batch is not full, wait for more frames until the flush interval is over.
+        if (pthread_cond_timedwait(&cond, &mutex, &deadline) != 0) {
+            linger_ms = 0;
+        }
+    }
+    pthread_mutex_unlock(&mutex);
+    return taken;
+}
+
+wlanjie::Frame wlanjie::FrameQueue::popLocked() {
+    Frame frame = audio.empty() ? video.pop() : audio.pop();
+    count--;
+    total_bytes -= frame.size;
+    return frame;
+}
+
+void wlanjie::FrameQueue::abort() {
+    pthread_mutex_lock(&mutex);
+    aborted = true;
+    pthread_cond_broadcast(&cond);
+    pthread_mutex_unlock(&mutex);
+}
+
+void wlanjie::FrameQueue::resume() {
+    pthread_mutex_lock(&mutex);
+    aborted = false;
+    pthread_mutex_unlock(&mutex);
+}
+
+void wlanjie::FrameQueue::reset() {
+    pthread_mutex_lock(&mutex);
+    audio.clear();
+    video.clear();
+    count = 0;
+    total_bytes = 0;
+    for (int i = 0; i < DROP_REASON_COUNT; i++) {
+        dropped_frames[i] = 0;
+    }
+    wait_keyframe = false;
+    temporal_layered = false;
+    pthread_mutex_unlock(&mutex);
+}
+
+int wlanjie::FrameQueue::frames() {
+    pthread_mutex_lock(&mutex);
+    int frames = count;
+    pthread_mutex_unlock(&mutex);
+    return frames;
+}
+
+int wlanjie::FrameQueue::bytes() {
+    pthread_mutex_lock(&mutex);
+    int bytes = total_bytes;
+    pthread_mutex_unlock(&mutex);
+    return bytes;
+}
+
+int wlanjie::FrameQueue::dropped(DropReason reason) {
+    return dropped_frames[reason];
+}
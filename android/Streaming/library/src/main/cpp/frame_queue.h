@@ -0,0 +1,244 @@
+//
+// Created by wlanjie on 2017/8/12.
+//
+
+#ifndef STREAMING_FRAME_QUEUE_H
+#define STREAMING_FRAME_QUEUE_H
+
+#include <atomic>
+#include <pthread.h>
+#include <stdint.h>
+
+#define AUDIO_TYPE 0
+#define VIDEO_TYPE 1
+
+// default capacity of the send queue, about 3 seconds of 25fps video plus audio.
+#define DEFAULT_QUEUE_MAX_FRAMES 256
+#define DEFAULT_QUEUE_MAX_BYTES (2 * 1024 * 1024)
+
+// default queue delay to drop inter frames until the next idr.
+#define DEFAULT_DROP_FRAME_DELAY_MS 1000
+// default queue delay to drop whole gops.
+#define DEFAULT_DROP_GOP_DELAY_MS 3000
+
+namespace wlanjie {
+
+    struct Frame {
+        // allocated from the packet pool.
+        char *data;
+        int size = 0;
+        int packet_type;
+        int pts;
+        // idr frame.
+        bool keyframe = false;
+        // avc sequence header or aac specific config, never dropped.
+        bool sequence_header = false;
+        // non-reference frame, nal_ref_idc is 0.
+        bool disposable = false;
+        // temporal layer of an svc encoder, 0 is the base layer every other layer references.
+        int temporal_id = 0;
+        int64_t enqueue_ms = 0;
+    };
+
+    enum DropReason {
+        // the queue reached max frames or max bytes.
+        DROP_QUEUE_FULL = 0,
+        // inter frames dropped until the next idr.
+        DROP_CONGESTION_FRAME,
+        // whole gops dropped.
+        DROP_CONGESTION_GOP,
+        // video before the newest idr dropped after a reconnect.
+        DROP_RECONNECT,
+        DROP_REASON_COUNT
+    };
+
+    /**
+     * fixed size ring of frames, not thread safe.
+     */
+    class FrameRing {
+    public:
+        FrameRing();
+
+        ~FrameRing();
+
+        void allocate(int capacity);
+
+        bool empty();
+
+        int size();
+
+        void push(const Frame &frame);
+
+        Frame pop();
+
+        /**
+         * @param index 0 is the oldest frame.
+         */
+        Frame &at(int index);
+
+        /**
+         * release and remove the frames in [0, end) the predicate matches, keep the order of the others.
+         * @return bytes removed.
+         */
+        template<typename Predicate>
+        int remove(int end, Predicate predicate, int *removed);
+
+        /**
+         * release all frames.
+         */
+        void clear();
+
+    private:
+        Frame *slots;
+        int capacity;
+        int head;
+        int count;
+    };
+
+    /**
+     * bounded queue of flv tags, written by the encoder threads and
+     * read by the single sender thread.
+     * the sender blocks on a condition variable until a frame is pushed,
+     * so a frame is sent as soon as it is muxed.
+     * audio and video are kept in separate rings and pending audio is always
+     * sent first. when the oldest queued video waits too long, inter frames
+     * are dropped until the next idr, and then whole gops are dropped.
+     * a stream of temporal layers only loses its non-reference top layer at the first threshold,
+     * the lower layers keep decoding at a lower frame rate.
+     * audio and sequence headers are never dropped by the congestion policy.
+     * when the queue is full, video is dropped first, then the oldest audio for newer audio.
+     * sequence headers are kept beyond max frames and max bytes.
+     * a frame dropped while waiting for an idr is counted with the drop that started the wait.
+     */
+    class FrameQueue {
+    public:
+        FrameQueue();
+
+        ~FrameQueue();
+
+        /**
+         * set the max frames and max bytes the queue can hold.
+         * must be called when the queue is empty, before the sender started.
+         */
+        void setCapacity(int max_frames, int max_bytes);
+
+        /**
+         * @param drop_frame_ms queue delay to drop inter frames until the next idr, 0 to disable.
+         * @param drop_gop_ms queue delay to drop whole gops, 0 to disable.
+         */
+        void setDropThreshold(int drop_frame_ms, int drop_gop_ms);
+
+        /**
+         * push a frame to the queue, the queue owns the reference of the frame data on success.
+         * @return false when the frame is dropped or the queue is aborted, the caller must release the data.
+         */
+        bool push(Frame &frame);
+
+        /**
+         * block until a frame is available or the queue is aborted.
+         * @return false when the queue is aborted.
+         */
+        bool pop(Frame *frame);
+
+        /**
+         * block until a frame is available, then take the pending frames in pop order
+         * until the batch holds max_frames or max_bytes.
+         * the first frame is always taken, even when it is larger than max_bytes.
+         * @param linger_ms wait up to this long after the first frame for more frames
+         *        while the batch is not full, 0 to take only what is pending.
+         * @return frames taken, 0 when the queue is aborted.
+         */
+        int popBatch(Frame *frames, int max_frames, int max_bytes, int linger_ms);
+
+        /**
+         * drop the queued video before the newest idr, so the sending restarts at a keyframe.
+         * when there is no idr, all queued video is dropped and inter frames are dropped until the next idr.
+         * audio and sequence headers are kept.
+         * @return false when there is no idr in the queue.
+         */
+        bool restartFromKeyframe();
+
+        /**
+         * wake up the sender and make all further push and pop fail.
+         */
+        void abort();
+
+        /**
+         * allow push and pop again after abort.
+         */
+        void resume();
+
+        /**
+         * release all pending frames and reset the drop counters, an aborted queue stays aborted.
+         */
+        void reset();
+
+        int frames();
+
+        int bytes();
+
+        int dropped(DropReason reason);
+
+    private:
+        /**
+         * apply the congestion policy before the video frame is queued.
+         * @param reason set to the reason of the drop when the frame must be dropped.
+         * @return false when the frame must be dropped.
+         */
+        bool dropCongestedVideo(const Frame &frame, DropReason *reason);
+
+        /**
+         * @return true when a frame of size does not fit in max frames or max bytes.
+         */
+        bool isFull(int size);
+
+        /**
+         * drop inter frames until the next idr, counted under reason.
+         */
+        void waitKeyframe(DropReason reason);
+
+        /**
+         * drop the oldest queued audio, sequence headers are kept, until a frame of size fits.
+         * @return false when it still does not fit.
+         */
+        bool dropOldestAudio(int size);
+
+        /**
+         * drop queued video before the newest idr, or all queued video when there is no idr.
+         * sequence headers are kept.
+         * @param keyframe the frame being pushed is an idr.
+         * @return false when there is no idr to continue from.
+         */
+        bool dropVideoGop(DropReason reason, bool keyframe);
+
+        void onRemoved(int frames, int bytes, DropReason reason);
+
+        /**
+         * pop the next frame, audio first, the mutex must be held and the queue not empty.
+         */
+        Frame popLocked();
+
+    private:
+        FrameRing audio;
+        FrameRing video;
+        int capacity;
+        int max_bytes;
+        int drop_frame_ms;
+        int drop_gop_ms;
+        int count;
+        int total_bytes;
+        // written under the mutex, read without it by the stats poller.
+        std::atomic<int> dropped_frames[DROP_REASON_COUNT];
+        // drop every inter frame until the next idr.
+        bool wait_keyframe;
+        // the drop that started the wait for an idr.
+        DropReason wait_keyframe_reason;
+        // a frame above the base temporal layer was pushed.
+        bool temporal_layered;
+        bool aborted;
+        pthread_mutex_t mutex;
+        pthread_cond_t cond;
+    };
+}
+
+#endif //STREAMING_FRAME_QUEUE_H
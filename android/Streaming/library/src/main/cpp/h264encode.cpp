@@ -3,11 +3,15 @@
 //
 
 #include <wels/codec_app_def.h>
+#include <stdlib.h>
 #include <string.h>
 #include <cstdint>
+#include <unistd.h>
 #include "libyuv.h"
 #include "h264encode.h"
+#include "packet_pool.h"
 #include "log.h"
+#include "utils.h"
 
 extern void logEncode(void *context, int level, const char *message);
 
@@ -15,8 +19,25 @@ void logEncode(void *context, int level, const char *message) {
     LOGD("%s", message);
 }
 
-wlanjie::H264Encoder::H264Encoder() {
+/**
+ * @param level 0 is the full size rendition, each level below has a third of the bitrate.
+ */
+static int layerBitrate(int bitrate, int level) {
+    for (int i = 0; i < level; i++) {
+        bitrate /= 3;
+    }
+    return bitrate;
+}
 
+wlanjie::H264Encoder::H264Encoder() :
+        encoder_(NULL),
+        applied_bitrate(0),
+        applied_max_bitrate(0),
+        vbv_fullness(0),
+        vbv_last_pts(-1),
+        skipped_frames(0),
+        spatial_layers(1) {
+    memset(&parameter, 0, sizeof(VideoParameter));
 }
 
 wlanjie::H264Encoder::~H264Encoder() {
@@ -28,9 +49,10 @@ void wlanjie::H264Encoder::setVideoParameter(wlanjie::VideoParameter videoParame
 }
 
 
-bool wlanjie::H264Encoder::openH264Encoder() {
+bool wlanjie::H264Encoder::open() {
     LOGD("h264 encode open");
     WelsCreateSVCEncoder(&encoder_);
+    spatial_layers = getSpatialLayerCount(parameter);
     SEncParamExt encoder_params = createEncoderParams();
     int ret = 0;
     if ((ret = encoder_->InitializeExt(&encoder_params)) != 0) {
@@ -38,61 +60,157 @@ bool wlanjie::H264Encoder::openH264Encoder() {
         return false;
     }
 
-    int level = WELS_LOG_DETAIL;
+    // detail traces every frame through the callback, too slow for the encoding thread.
+    int level = WELS_LOG_WARNING;
     encoder_->SetOption(ENCODER_OPTION_TRACE_LEVEL, &level);
     void (*func)(void *, int, const char *) = &logEncode;
     encoder_->SetOption(ENCODER_OPTION_TRACE_CALLBACK, &func);
     int video_format = videoFormatI420;
     encoder_->SetOption(ENCODER_OPTION_DATAFORMAT, &video_format);
 
+    FrameFormat format = (FrameFormat) parameter.inputFormat;
+    // gpu converted frames are already of the video size and rotated.
+    bool rgba = format == FRAME_FORMAT_RGBA;
+    if (converter.setup(format,
+                        rgba ? parameter.frameWidth : parameter.videoWidth,
+                        rgba ? parameter.frameHeight : parameter.videoHeight,
+                        parameter.videoWidth, parameter.videoHeight,
+                        rgba ? libyuv::kRotate180 : libyuv::kRotate0,
+                        (libyuv::FilterMode) parameter.scaleFilter) != 0) {
+        LOGE("frame converter setup error");
+        return false;
+    }
     memset(&_sourcePicture, 0, sizeof(Source_Picture_s));
-    uint8_t *data_ = NULL;
-    _sourcePicture.iPicWidth = parameter.frameWidth;
-    _sourcePicture.iPicHeight = parameter.frameHeight;
-    _sourcePicture.iStride[0] = parameter.frameWidth;
-    _sourcePicture.iStride[1] = _sourcePicture.iStride[2] = parameter.frameWidth >> 1;
-    data_ = static_cast<uint8_t  *> (realloc(data_, parameter.frameWidth * parameter.frameHeight * 3 / 2));
-    _sourcePicture.pData[0] = data_;
-    _sourcePicture.pData[1] = _sourcePicture.pData[0] + parameter.frameWidth * parameter.frameHeight;
-    _sourcePicture.pData[2] = _sourcePicture.pData[1] + (parameter.frameWidth * parameter.frameHeight >> 2);
+    _sourcePicture.iPicWidth = parameter.videoWidth;
+    _sourcePicture.iPicHeight = parameter.videoHeight;
     _sourcePicture.iColorFormat = videoFormatI420;
 
-    memset(&_scaleSourcePicture, 0, sizeof(Source_Picture_s));
-    uint8_t *scale_data_ = NULL;
-    _scaleSourcePicture.iPicWidth = parameter.videoWidth;
-    _scaleSourcePicture.iPicHeight = parameter.videoHeight;
-    _scaleSourcePicture.iStride[0] = parameter.videoWidth;
-    _scaleSourcePicture.iStride[1] = _scaleSourcePicture.iStride[2] = parameter.videoWidth >> 1;
-    scale_data_ = static_cast<uint8_t  *> (realloc(scale_data_, parameter.videoWidth * parameter.videoHeight * 3 / 2));
-    _scaleSourcePicture.pData[0] = scale_data_;
-    _scaleSourcePicture.pData[1] = _scaleSourcePicture.pData[0] + parameter.videoWidth * parameter.videoHeight;
-    _scaleSourcePicture.pData[2] = _scaleSourcePicture.pData[1] + (parameter.videoWidth * parameter.videoHeight >> 2);
-    _scaleSourcePicture.iColorFormat = videoFormatI420;
-
-    memset(&_rotationSourcePicture, 0, sizeof(Source_Picture_s));
-    uint8_t *rotation_data_ = NULL;
-    _rotationSourcePicture.iPicWidth = parameter.frameWidth;
-    _rotationSourcePicture.iPicHeight = parameter.frameHeight;
-    _rotationSourcePicture.iStride[0] = parameter.frameWidth;
-    _rotationSourcePicture.iStride[1] = _rotationSourcePicture.iStride[2] = parameter.frameWidth >> 1;
-    rotation_data_ = static_cast<uint8_t  *> (realloc(data_, parameter.frameWidth * parameter.frameHeight * 3 / 2));
-    _rotationSourcePicture.pData[0] = rotation_data_;
-    _rotationSourcePicture.pData[1] = _rotationSourcePicture.pData[0] + parameter.frameWidth * parameter.frameHeight;
-    _rotationSourcePicture.pData[2] = _rotationSourcePicture.pData[1] + (parameter.frameWidth * parameter.frameHeight >> 2);
-    _rotationSourcePicture.iColorFormat = videoFormatI420;
-
     memset(&info, 0, sizeof(SFrameBSInfo));
-    _outputStream.open("/sdcard/wlanjie.h264", std::ios_base::binary | std::ios_base::out);
-    return false;
+    applied_bitrate = parameter.bitrate;
+    applied_max_bitrate = getMaxBitrate();
+    vbv_fullness = 0;
+    vbv_last_pts = -1;
+    skipped_frames = 0;
+    return true;
 }
 
-void wlanjie::H264Encoder::closeH264Encoder() {
+void wlanjie::H264Encoder::close() {
     if (encoder_) {
         encoder_->Uninitialize();
         WelsDestroySVCEncoder(encoder_);
         encoder_ = nullptr;
     }
-    _outputStream.close();
+    converter.release();
+    if (skipped_frames > 0) {
+        LOGI("h264 encoder skipped %lld frames for the vbv", (long long) skipped_frames);
+    }
+}
+
+void wlanjie::H264Encoder::setBitrate(int bitrate) {
+    if (encoder_ == NULL || bitrate <= 0 || bitrate == parameter.bitrate) {
+        return;
+    }
+    // the max bitrate keeps its ratio to the target.
+    if (parameter.maxBitrate > 0 && parameter.bitrate > 0) {
+        parameter.maxBitrate = (int) ((int64_t) parameter.maxBitrate * bitrate / parameter.bitrate);
+    }
+    parameter.bitrate = bitrate;
+    applyBitrate(bitrate, getMaxBitrate());
+}
+
+int wlanjie::H264Encoder::getMaxBitrate() const {
+    return parameter.maxBitrate > parameter.bitrate ? parameter.maxBitrate : parameter.bitrate;
+}
+
+int wlanjie::H264Encoder::getTotalBitrate(int bitrate) const {
+    int total = 0;
+    for (int level = 0; level < spatial_layers; level++) {
+        total += layerBitrate(bitrate, level);
+    }
+    return total;
+}
+
+int wlanjie::H264Encoder::getSpatialLayers() const {
+    return spatial_layers;
+}
+
+int wlanjie::H264Encoder::getSpatialLayerCount(const wlanjie::VideoParameter &parameter) {
+    int layers = parameter.spatialLayers;
+    if (layers > H264_MAX_LAYERS) {
+        layers = H264_MAX_LAYERS;
+    }
+    int size = parameter.videoWidth < parameter.videoHeight ? parameter.videoWidth : parameter.videoHeight;
+    while (layers > 1 && (size >> (layers - 1)) < H264_MIN_LAYER_SIZE) {
+        layers--;
+    }
+    return layers < 1 ? 1 : layers;
+}
+
+void wlanjie::H264Encoder::applyBitrate(int target, int max) {
+    if (target == applied_bitrate && max == applied_max_bitrate) {
+        return;
+    }
+    // the bitrates are of the full size rendition, openh264 shares the total among the spatial layers
+    // in the ratio they were opened with.
+    SBitrateInfo target_info;
+    memset(&target_info, 0, sizeof(SBitrateInfo));
+    target_info.iLayer = SPATIAL_LAYER_ALL;
+    target_info.iBitrate = getTotalBitrate(target) * 1000;
+    SBitrateInfo max_info = target_info;
+    max_info.iBitrate = getTotalBitrate(max) * 1000;
+    // raise the max bitrate first, the target bitrate can not exceed it.
+    if (max > applied_max_bitrate) {
+        encoder_->SetOption(ENCODER_OPTION_MAX_BITRATE, &max_info);
+        encoder_->SetOption(ENCODER_OPTION_BITRATE, &target_info);
+    } else {
+        encoder_->SetOption(ENCODER_OPTION_BITRATE, &target_info);
+        encoder_->SetOption(ENCODER_OPTION_MAX_BITRATE, &max_info);
+    }
+    applied_bitrate = target;
+    applied_max_bitrate = max;
+}
+
+bool wlanjie::H264Encoder::updateVbv(long pts) {
+    if (parameter.vbvBufferSize <= 0 || parameter.rateControl == RATE_CONTROL_QUALITY) {
+        applyBitrate(parameter.bitrate, getMaxBitrate());
+        return true;
+    }
+    int64_t size = (int64_t) parameter.vbvBufferSize * 1000;
+    int max_bitrate = getMaxBitrate();
+    if (vbv_last_pts >= 0 && pts > vbv_last_pts) {
+        // kbit/s times ms is bits.
+        vbv_fullness -= (int64_t) max_bitrate * (pts - vbv_last_pts);
+        if (vbv_fullness < 0) {
+            vbv_fullness = 0;
+        }
+    }
+    vbv_last_pts = pts;
+    if (parameter.rateControl == RATE_CONTROL_BITRATE_SKIP && vbv_fullness >= size) {
+        skipped_frames++;
+        return false;
+    }
+    // past half of the buffer the target drops linearly to a quarter at full,
+    // changes under 5% are not worth a call into the rate control.
+    int target = parameter.bitrate;
+    if (vbv_fullness > size / 2) {
+        int64_t percent = 100 - 75 * (vbv_fullness - size / 2) / (size / 2);
+        target = (int) (parameter.bitrate * (percent < 25 ? 25 : percent) / 100);
+    }
+    if (target != parameter.bitrate && abs(target - applied_bitrate) * 20 < applied_bitrate) {
+        target = applied_bitrate;
+    }
+    applyBitrate(target, max_bitrate);
+    return true;
+}
+
+void wlanjie::H264Encoder::forceKeyframe() {
+    if (encoder_ != NULL) {
+        encoder_->ForceIntraFrame(true);
+    }
+}
+
+int wlanjie::H264Encoder::getBitrate() {
+    return parameter.bitrate;
 }
 
 SEncParamExt wlanjie::H264Encoder::createEncoderParams() const {
@@ -101,95 +219,253 @@ SEncParamExt wlanjie::H264Encoder::createEncoderParams() const {
     encoder_params.iUsageType = CAMERA_VIDEO_REAL_TIME;
     encoder_params.iPicWidth = parameter.videoWidth;
     encoder_params.iPicHeight = parameter.videoHeight;
-    // uses bit/s kbit/s
-    encoder_params.iTargetBitrate = parameter.bitrate * 1000;
+    // uses bit/s kbit/s, of all the spatial layers.
+    encoder_params.iTargetBitrate = getTotalBitrate(parameter.bitrate) * 1000;
     // max bit/s
-    encoder_params.iMaxBitrate = parameter.bitrate * 1000;
-    encoder_params.iRCMode = RC_OFF_MODE;
+    encoder_params.iMaxBitrate = getTotalBitrate(getMaxBitrate()) * 1000;
+    switch (parameter.rateControl) {
+        case RATE_CONTROL_QUALITY:
+            encoder_params.iRCMode = RC_QUALITY_MODE;
+            break;
+        case RATE_CONTROL_TIMESTAMP:
+            encoder_params.iRCMode = RC_TIMESTAMP_MODE;
+            break;
+        default:
+            // the bitrate can only be changed at runtime when rate control is on.
+            encoder_params.iRCMode = RC_BITRATE_MODE;
+            break;
+    }
     encoder_params.fMaxFrameRate = parameter.frameRate;
+    if (parameter.minQp > 0) {
+        encoder_params.iMinQp = parameter.minQp;
+    }
+    if (parameter.maxQp > 0) {
+        encoder_params.iMaxQp = parameter.maxQp;
+    }
 
-    encoder_params.bEnableFrameSkip = true;
+    encoder_params.bEnableFrameSkip = parameter.rateControl == RATE_CONTROL_BITRATE_SKIP;
     encoder_params.bEnableDenoise = false;
     encoder_params.bEnableLongTermReference = false;
     encoder_params.bEnableSceneChangeDetect = true;
     encoder_params.bPrefixNalAddingCtrl = false;
 
-    encoder_params.uiIntraPeriod = 60;
+    int temporal_layers = parameter.temporalLayers < 1 ? 1
+            : (parameter.temporalLayers > H264_MAX_LAYERS ? H264_MAX_LAYERS : parameter.temporalLayers);
+    int intra_period = parameter.intraPeriod > 0 ? parameter.intraPeriod : 0;
+    // an idr can only start a gop of the temporal layers, 2^(layers - 1) frames.
+    int gop = 1 << (temporal_layers - 1);
+    intra_period = (intra_period + gop - 1) / gop * gop;
+    encoder_params.uiIntraPeriod = (unsigned int) intra_period;
     encoder_params.uiMaxNalSize = 0;
-    encoder_params.iTemporalLayerNum = 1;
-    encoder_params.iSpatialLayerNum = 1;
-    encoder_params.iMultipleThreadIdc = 1;
-
-    encoder_params.sSpatialLayers[0].iVideoWidth = parameter.videoWidth;
-    encoder_params.sSpatialLayers[0].iVideoHeight = parameter.videoHeight;
-    encoder_params.sSpatialLayers[0].fFrameRate = parameter.frameRate;
-    encoder_params.sSpatialLayers[0].iSpatialBitrate = parameter.bitrate * 1000;
-    encoder_params.sSpatialLayers[0].iMaxSpatialBitrate = 0;
-//    encoder_params.sSpatialLayers[0].sSliceArgument.uiSliceMode = SM_AUTO_SLICE;
+    encoder_params.iTemporalLayerNum = temporal_layers;
+    encoder_params.iSpatialLayerNum = spatial_layers;
+    // each spatial layer is a plain avc stream of its own, any player decodes a rendition alone.
+    encoder_params.bSimulcastAVC = spatial_layers > 1;
+    int threads = getThreadCount(parameter);
+    int slices = getSliceCount(parameter);
+    // each thread encodes slices of the frame, a single slice compresses best.
+    encoder_params.iMultipleThreadIdc = threads;
+
+    // openh264 orders the spatial layers from the smallest, the last one is the full size.
+    for (int i = 0; i < spatial_layers; i++) {
+        int level = spatial_layers - 1 - i;
+        SSpatialLayerConfig &layer = encoder_params.sSpatialLayers[i];
+        layer.iVideoWidth = (parameter.videoWidth >> level) & ~1;
+        layer.iVideoHeight = (parameter.videoHeight >> level) & ~1;
+        layer.fFrameRate = parameter.frameRate;
+        layer.iSpatialBitrate = layerBitrate(parameter.bitrate, level) * 1000;
+        layer.iMaxSpatialBitrate = layerBitrate(getMaxBitrate(), level) * 1000;
+        int layer_slices = slices;
+        int max_slices = ((layer.iVideoHeight + 15) >> 4) / H264_MIN_SLICE_MB_ROWS;
+        if (layer_slices > max_slices) {
+            layer_slices = max_slices;
+        }
+        if (layer_slices > 1) {
+            layer.sSliceArgument.uiSliceMode = SM_FIXEDSLCNUM_SLICE;
+            layer.sSliceArgument.uiSliceNum = (unsigned int) layer_slices;
+        } else {
+            layer.sSliceArgument.uiSliceMode = SM_SINGLE_SLICE;
+        }
+    }
     encoder_params.eSpsPpsIdStrategy = CONSTANT_ID;
-    LOGE("frameWidth = %d frameHeight = %d videoWidth = %d videoHeight = %d frameRate = %d bitrate = %d",
-         parameter.frameWidth, parameter.frameHeight, parameter.videoWidth, parameter.videoHeight, parameter.frameRate, parameter.bitrate);
+    LOGI("frameWidth = %d frameHeight = %d videoWidth = %d videoHeight = %d frameRate = %d bitrate = %d threads = %d slices = %d",
+         parameter.frameWidth, parameter.frameHeight, parameter.videoWidth, parameter.videoHeight, parameter.frameRate, parameter.bitrate,
+         threads, slices);
+    LOGI("rateControl = %d maxBitrate = %d vbv = %d qp = %d-%d intraPeriod = %d spatialLayers = %d temporalLayers = %d",
+         parameter.rateControl, getMaxBitrate(), parameter.vbvBufferSize, parameter.minQp, parameter.maxQp, intra_period,
+         spatial_layers, temporal_layers);
     return encoder_params;
 }
 
-void wlanjie::H264Encoder::encoder(char *rgba, long pts, int *h264_length, uint8_t **h264) {
+int wlanjie::H264Encoder::encodeLayers(char *frame, long pts, wlanjie::H264Layer *layers) {
     if (encoder_ == NULL) {
-        return;
+        return 0;
+    }
+    if (!updateVbv(pts)) {
+        return 0;
+    }
+    I420Frame picture;
+    if (converter.convert((const uint8_t *) frame, &picture) != 0) {
+        LOGE("convert frame error");
+        return 0;
+    }
+    for (int plane = 0; plane < 3; plane++) {
+        _sourcePicture.pData[plane] = picture.data[plane];
+        _sourcePicture.iStride[plane] = picture.stride[plane];
     }
     _sourcePicture.uiTimeStamp = pts;
-    libyuv::RGBAToI420((const uint8 *) rgba, parameter.frameWidth * 4,
-                   _sourcePicture.pData[0], _sourcePicture.iStride[0],
-                   _sourcePicture.pData[1], _sourcePicture.iStride[1],
-                   _sourcePicture.pData[2], _sourcePicture.iStride[2],
-                   parameter.frameWidth, parameter.frameHeight);
-    libyuv::I420Rotate(
-            _sourcePicture.pData[0], _sourcePicture.iStride[0],
-            _sourcePicture.pData[1], _sourcePicture.iStride[1],
-            _sourcePicture.pData[2], _sourcePicture.iStride[2],
-            _rotationSourcePicture.pData[0], _rotationSourcePicture.iStride[0],
-            _rotationSourcePicture.pData[1], _rotationSourcePicture.iStride[1],
-            _rotationSourcePicture.pData[2], _rotationSourcePicture.iStride[2],
-            parameter.frameWidth, parameter.frameHeight,
-            libyuv::RotationMode::kRotate180
-    );
-    if (parameter.videoWidth != parameter.frameWidth || parameter.videoHeight != parameter.frameHeight) {
-        libyuv::I420Scale(
-                _rotationSourcePicture.pData[0], _rotationSourcePicture.iStride[0],
-                _rotationSourcePicture.pData[1], _rotationSourcePicture.iStride[1],
-                _rotationSourcePicture.pData[2], _rotationSourcePicture.iStride[2],
-                parameter.frameWidth, parameter.frameHeight,
-                _scaleSourcePicture.pData[0], _scaleSourcePicture.iStride[0],
-                _scaleSourcePicture.pData[1], _scaleSourcePicture.iStride[1],
-                _scaleSourcePicture.pData[2], _scaleSourcePicture.iStride[2],
-                parameter.videoWidth, parameter.videoHeight,
-                libyuv::FilterMode::kFilterNone
-        );
-    }
-
-    int ret = encoder_->EncodeFrame(parameter.videoWidth != parameter.frameWidth || parameter.videoHeight != parameter.frameHeight ? &_scaleSourcePicture : &_sourcePicture, &info);
-    if (!ret) {
-        if (info.eFrameType != videoFrameTypeSkip) {
-            int len = 0;
-            for (int layer = 0; layer < info.iLayerNum; ++layer) {
-                const SLayerBSInfo &layerInfo = info.sLayerInfo[layer];
-                for (int nal = 0; nal < layerInfo.iNalCount; ++nal) {
-                    len += layerInfo.pNalLengthInByte[nal];
-                }
+    int ret = encoder_->EncodeFrame(&_sourcePicture, &info);
+    if (ret != 0 || info.eFrameType == videoFrameTypeSkip) {
+        return 0;
+    }
+    memset(layers, 0, sizeof(H264Layer) * spatial_layers);
+    // the parameter sets and the slices of a rendition are gathered into one annexb frame.
+    for (int layer = 0; layer < info.iLayerNum; ++layer) {
+        const SLayerBSInfo &layerInfo = info.sLayerInfo[layer];
+        int rendition = spatial_layers - 1 - layerInfo.uiSpatialId;
+        if (rendition < 0 || rendition >= spatial_layers) {
+            continue;
+        }
+        for (int nal = 0; nal < layerInfo.iNalCount; ++nal) {
+            layers[rendition].size += layerInfo.pNalLengthInByte[nal];
+        }
+        if (layerInfo.uiLayerType == VIDEO_CODING_LAYER) {
+            layers[rendition].temporal_id = layerInfo.uiTemporalId;
+        }
+        layers[rendition].pts = pts;
+    }
+    int offsets[H264_MAX_LAYERS] = {0};
+    for (int rendition = 0; rendition < spatial_layers; rendition++) {
+        if (layers[rendition].size > 0) {
+            layers[rendition].data = (uint8_t *) packet_pool.alloc(layers[rendition].size);
+        }
+    }
+    for (int layer = 0; layer < info.iLayerNum; ++layer) {
+        const SLayerBSInfo &layerInfo = info.sLayerInfo[layer];
+        int rendition = spatial_layers - 1 - layerInfo.uiSpatialId;
+        if (rendition < 0 || rendition >= spatial_layers) {
+            continue;
+        }
+        int layerSize = 0;
+        for (int nal = 0; nal < layerInfo.iNalCount; ++nal) {
+            layerSize += layerInfo.pNalLengthInByte[nal];
+        }
+        memcpy(layers[rendition].data + offsets[rendition], layerInfo.pBsBuf, layerSize);
+        offsets[rendition] += layerSize;
+    }
+    // the vbv models the full size rendition, the others follow its bitrate.
+    vbv_fullness += (int64_t) layers[0].size * 8;
+    return spatial_layers;
+}
+
+int wlanjie::H264Encoder::getThreadCount(const wlanjie::VideoParameter &parameter) {
+    int threads = parameter.threadCount;
+    if (threads <= 0) {
+        long cores = sysconf(_SC_NPROCESSORS_ONLN);
+        threads = cores > 0 ? (int) cores : 1;
+    }
+    // more threads than slices worth encoding only wait.
+    int max_slices = ((parameter.videoHeight + 15) >> 4) / H264_MIN_SLICE_MB_ROWS;
+    if (threads > max_slices) {
+        threads = max_slices;
+    }
+    if (threads > H264_MAX_THREADS) {
+        threads = H264_MAX_THREADS;
+    }
+    return threads < 1 ? 1 : threads;
+}
+
+int wlanjie::H264Encoder::getSliceCount(const wlanjie::VideoParameter &parameter) {
+    int threads = getThreadCount(parameter);
+    if (threads <= 1) {
+        return 1;
+    }
+    if (parameter.sliceCount > 0) {
+        int mb_rows = (parameter.videoHeight + 15) >> 4;
+        // fewer slices than threads leave threads idle, a slice is at least a macroblock row.
+        int slices = parameter.sliceCount < threads ? threads : parameter.sliceCount;
+        return slices > mb_rows ? mb_rows : slices;
+    }
+    // one slice for each thread, the load balancing of openh264 moves the boundaries.
+    return threads;
+}
+
+/**
+ * a moving gradient with noise, the encoder can not skip it as static.
+ */
+static void fillCalibrationFrame(uint8_t *frame, int width, int height, int index) {
+    uint32_t seed = (uint32_t) index * 2654435761u;
+    uint8_t *y = frame;
+    for (int row = 0; row < height; row++) {
+        for (int column = 0; column < width; column++) {
+            seed = seed * 1103515245u + 12345u;
+            y[row * width + column] = (uint8_t) (((column + row + index * 4) & 0xff) ^ ((seed >> 24) & 0x0f));
+        }
+    }
+    int chroma_size = ((width + 1) >> 1) * ((height + 1) >> 1);
+    memset(frame + width * height, 128 + (index & 0x1f), (size_t) chroma_size);
+    memset(frame + width * height + chroma_size, 128 - (index & 0x1f), (size_t) chroma_size);
+}
+
+int wlanjie::H264Encoder::calibrate(wlanjie::VideoParameter parameter, int frames, wlanjie::CalibrationResult *results) {
+    int max_threads = getThreadCount(parameter);
+    if (frames < 2 || parameter.videoWidth <= 0 || parameter.videoHeight <= 0) {
+        return 0;
+    }
+    parameter.inputFormat = FRAME_FORMAT_I420;
+    parameter.frameWidth = parameter.videoWidth;
+    parameter.frameHeight = parameter.videoHeight;
+    int frame_size = parameter.videoWidth * parameter.videoHeight
+                     + 2 * ((parameter.videoWidth + 1) >> 1) * ((parameter.videoHeight + 1) >> 1);
+    uint8_t *frame = new uint8_t[frame_size];
+    float target_fps = parameter.frameRate * 1.5f;
+    int chosen = 0;
+    float best_fps = 0;
+    int fastest = 0;
+    for (int threads = 1; threads <= max_threads; threads++) {
+        parameter.threadCount = threads;
+        H264Encoder encoder;
+        encoder.setVideoParameter(parameter);
+        if (!encoder.open()) {
+            encoder.close();
+            if (results != NULL) {
+                results[threads - 1].threadCount = threads;
+                results[threads - 1].sliceCount = getSliceCount(parameter);
+                results[threads - 1].fps = 0;
+            }
+            continue;
+        }
+        int64_t start = 0;
+        for (int i = 0; i < frames; i++) {
+            fillCalibrationFrame(frame, parameter.videoWidth, parameter.videoHeight, i);
+            if (i == 1) {
+                start = current_time_ms();
             }
-            uint8_t *encoded_image_buffer = new uint8_t[len];
-            *h264_length = len;
-            int image_length = 0;
-            for (int layer = 0; layer < info.iLayerNum; ++layer) {
-                SLayerBSInfo layerInfo = info.sLayerInfo[layer];
-                int layerSize = 0;
-                for (int nal = 0; nal < layerInfo.iNalCount; ++nal) {
-                    layerSize += layerInfo.pNalLengthInByte[nal];
-                }
-                _outputStream.write((const char *) layerInfo.pBsBuf, layerSize);
-                memcpy(encoded_image_buffer + image_length, layerInfo.pBsBuf, layerSize);
-                image_length += layerSize;
+            int h264_length = 0;
+            uint8_t *h264 = NULL;
+            encoder.encoder((char *) frame, i * 1000 / (parameter.frameRate > 0 ? parameter.frameRate : 25), &h264_length, &h264);
+            if (h264_length > 0) {
+                packet_pool.release((char *) h264);
             }
-            *h264 = encoded_image_buffer;
+        }
+        int64_t elapsed = current_time_ms() - start;
+        encoder.close();
+        float fps = (frames - 1) * 1000.0f / (elapsed > 0 ? elapsed : 1);
+        if (results != NULL) {
+            results[threads - 1].threadCount = threads;
+            results[threads - 1].sliceCount = getSliceCount(parameter);
+            results[threads - 1].fps = fps;
+        }
+        LOGI("calibrate %dx%d threads = %d fps = %.1f", parameter.videoWidth, parameter.videoHeight, threads, fps);
+        if (fps > best_fps) {
+            best_fps = fps;
+            fastest = threads;
+        }
+        if (chosen == 0 && fps >= target_fps) {
+            // the fewest threads fast enough keep the most bits for the picture.
+            chosen = threads;
         }
     }
-}
\ No newline at end of file
+    delete[] frame;
+    return chosen != 0 ? chosen : fastest;
+}
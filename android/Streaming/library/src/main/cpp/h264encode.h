@@ -7,43 +7,113 @@
 
 #include <iosfwd>
 #include "wels/codec_api.h"
-#include <fstream>
-#include <iostream>
+#include "frame_converter.h"
+#include "video_encoder.h"
+
+// openh264 runs at most 4 encoding threads.
+#define H264_MAX_THREADS 4
+// a slice of fewer macroblock rows costs more bits than its thread saves time.
+#define H264_MIN_SLICE_MB_ROWS 4
+// a spatial layer is not smaller than this on its shorter side.
+#define H264_MIN_LAYER_SIZE 90
 
 namespace wlanjie {
 
-    struct VideoParameter {
-        int frameWidth;
-        int frameHeight;
-        int videoWidth;
-        int videoHeight;
-        int bitrate;
-        int frameRate;
+    /**
+     * encode speed of one thread count measured by H264Encoder::calibrate.
+     */
+    struct CalibrationResult {
+        int threadCount;
+        int sliceCount;
+        float fps;
     };
 
-    class H264Encoder {
+    /**
+     * the openh264 backend, with spatial and temporal layers.
+     */
+    class H264Encoder : public VideoEncoder {
     public:
         H264Encoder();
         ~H264Encoder();
 
-        void setVideoParameter(VideoParameter videoParameter);
+        void setVideoParameter(VideoParameter videoParameter) override;
+
+        bool open() override;
+
+        void close() override;
+
+        void setBitrate(int bitrate) override;
+
+        int getBitrate() override;
+
+        void forceKeyframe() override;
+
+        int encodeLayers(char *frame, long pts, H264Layer *layers) override;
 
-        bool openH264Encoder();
+        int getSpatialLayers() const override;
 
-        void closeH264Encoder();
+        /**
+         * @return spatial layers the video size allows, at most H264_MAX_LAYERS.
+         */
+        static int getSpatialLayerCount(const VideoParameter &parameter);
 
-        void encoder(char *rgba, long pts, int *h264_length, uint8_t **h264);
+        /**
+         * @return threads the encoder uses for the parameter, at most H264_MAX_THREADS.
+         */
+        static int getThreadCount(const VideoParameter &parameter);
+
+        /**
+         * @return slices of a frame for the parameter, 1 with a single thread.
+         */
+        static int getSliceCount(const VideoParameter &parameter);
+
+        /**
+         * encode synthetic i420 frames of the video size with 1 to getThreadCount() threads.
+         * @param frames frames encoded for each thread count, the first one, an idr, is not timed.
+         * @param results getThreadCount() entries filled, may be NULL.
+         * @return the fewest threads encoding at 1.5 times the frame rate, else the fastest, 0 on error.
+         */
+        static int calibrate(VideoParameter parameter, int frames, CalibrationResult *results);
     private:
         SEncParamExt createEncoderParams() const;
 
+        /**
+         * @return kbit/s of the max bitrate, never below the target.
+         */
+        int getMaxBitrate() const;
+
+        /**
+         * @param bitrate kbit/s of the full size rendition.
+         * @return kbit/s of all the spatial layers together.
+         */
+        int getTotalBitrate(int bitrate) const;
+
+        /**
+         * set the bitrates of the opened encoder when they changed, in the order keeping target <= max.
+         */
+        void applyBitrate(int target, int max);
+
+        /**
+         * drain the vbv to the timestamp and lower the target as it fills.
+         * @return false when the frame is skipped to keep the vbv from overflowing.
+         */
+        bool updateVbv(long pts);
+
     private:
         ISVCEncoder *encoder_;
         SFrameBSInfo info;
         Source_Picture_s _sourcePicture;
-        Source_Picture_s _scaleSourcePicture;
-        Source_Picture_s _rotationSourcePicture;
-        std::ofstream _outputStream;
+        // rgba is rotated by 180 degrees and scaled, gpu converted i420 passes through.
+        FrameConverter converter;
         VideoParameter parameter;
+        // bitrates set on the encoder, the target is lowered while the vbv is filling.
+        int applied_bitrate;
+        int applied_max_bitrate;
+        // bits in the vbv buffer.
+        int64_t vbv_fullness;
+        long vbv_last_pts;
+        int64_t skipped_frames;
+        int spatial_layers;
     };
 
 }
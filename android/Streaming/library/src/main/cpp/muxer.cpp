@@ -3,207 +3,221 @@
 //
 
 #include "muxer.h"
+#include "packet_pool.h"
 #include "log.h"
 
 #include <srs_kernel_buffer.hpp>
 #include <srs_kernel_error.hpp>
 #include <srs_raw_avc.hpp>
 #include <srs_kernel_utility.hpp>
+#include <string.h>
 
-// the remux raw codec.
-SrsRawH264Stream avc_raw;
-SrsRawAacStream aac_raw;
-
-// for h264 raw stream,
-// @see: https://github.com/ossrs/srs/issues/66#issuecomment-62240521
-SrsBuffer h264_raw_stream;
-// about SPS, @see: 7.3.2.1.1, H.264-AVC-ISO_IEC_14496-10-2012.pdf, page 62
-std::string h264_sps;
-std::string h264_pps;
-// whether the sps and pps sent,
-// @see https://github.com/ossrs/srs/issues/203
-bool h264_sps_pps_sent;
-// only send the ssp and pps when both changed.
-// @see https://github.com/ossrs/srs/issues/204
-bool h264_sps_changed;
-bool h264_pps_changed;
-// for aac raw stream,
-// @see: https://github.com/ossrs/srs/issues/212#issuecomment-64146250
-SrsBuffer aac_raw_stream;
-// the aac sequence header.
-std::string aac_specific_config;
-
-void muxer_sps_pps(u_int32_t dts, u_int32_t pts, char** sps_pps, int* sps_pps_size) {
-
-    // send when sps or pps changed.
-    if (!h264_sps_changed && !h264_pps_changed) {
-        return;
-    }
+wlanjie::Muxer::Muxer() :
+        h264_sps_pps_sent(false),
+        h264_sps_changed(false),
+        h264_pps_changed(false),
+        aac_specific_config_sent(false) {
 
-    // h264 raw to h264 packet.
-    std::string sh;
-    if (avc_raw.mux_sequence_header(h264_sps, h264_pps, dts, pts, sh) != ERROR_SUCCESS) {
-        return;
-    }
+}
 
-    // h264 packet to flv packet.
-    int8_t frame_type = SrsCodecVideoAVCFrameKeyFrame;
-    int8_t avc_packet_type = SrsCodecVideoAVCTypeSequenceHeader;
-    char* flv = NULL;
-    int nb_flv = 0;
-    if (avc_raw.mux_avc2flv(sh, frame_type, avc_packet_type, dts, pts, &flv, &nb_flv) != ERROR_SUCCESS) {
-        return;
-    }
+wlanjie::Muxer::~Muxer() {
 
-    // reset sps and pps.
+}
+
+void wlanjie::Muxer::reset() {
+    h264_sps.clear();
+    h264_pps.clear();
+    h264_sps_pps_sent = false;
     h264_sps_changed = false;
     h264_pps_changed = false;
-    h264_sps_pps_sent = true;
-
-    *sps_pps = flv;
-    *sps_pps_size = nb_flv;
+    aac_specific_config.clear();
+    aac_specific_config_sent = false;
 }
 
-
 /**
-* write h264 IPB-frame.
-*/
-int muxer_ibp( char* frame, int frame_size, u_int32_t dts, u_int32_t pts, char** h264, int* h264_size) {
-    int ret = ERROR_SUCCESS;
+ * write the 5 bytes of a flv video tag before the avc payload.
+ * @see: E.4.3 VideoParameter Tags, video_file_format_spec_v10_1.pdf, page 78
+ */
+static void muxer_avc_tag_header(char* data, int8_t frame_type, int8_t avc_packet_type, u_int32_t dts, u_int32_t pts) {
+    // 1bytes FrameType | CodecID, 1bytes AVCPacketType, 3bytes CompositionTime.
+    u_int32_t cts = pts - dts;
+    data[0] = (char) ((frame_type << 4) | SrsCodecVideoAVC);
+    data[1] = avc_packet_type;
+    data[2] = (char) (cts >> 16);
+    data[3] = (char) (cts >> 8);
+    data[4] = (char) cts;
+}
 
-    // when sps or pps not sent, ignore the packet.
-    if (!h264_sps_pps_sent) {
-        return ERROR_H264_DROP_BEFORE_SPS_PPS;
+/**
+ * @return the first 00 00 01 at or after p, end when there is none.
+ */
+static const char* muxer_find_start_code(const char* p, const char* end) {
+    // memchr finds the 01, then the two bytes before it are checked.
+    const char* search = p + 2;
+    while (search < end) {
+        const char* one = (const char*) memchr(search, 0x01, (size_t) (end - search));
+        if (one == NULL) {
+            break;
+        }
+        if (one[-1] == 0 && one[-2] == 0) {
+            return one - 2;
+        }
+        search = one + 1;
     }
+    return end;
+}
 
-    // 5bits, 7.3.1 NAL unit syntax,
-    // H.264-AVC-ISO_IEC_14496-10.pdf, page 44.
-    //  5: I Frame, 1: P/B Frame
-    // @remark we already group sps/pps to sequence header frame;
-    //      for I/P NALU, we send them in isolate frame, each NALU in a frame;
-    //      for other NALU, for example, AUD/SEI, we just ignore them, because
-    //      AUD used in annexb to split frame, while SEI generally we can ignore it.
-    // TODO: maybe we should group all NALUs split by AUD to a frame.
-    SrsAvcNaluType nut = (SrsAvcNaluType)(frame[0] & 0x1f);
-    if (nut != SrsAvcNaluTypeIDR && nut != SrsAvcNaluTypeNonIDR) {
-        return ret;
+/**
+ * wrap the aac frame in a flv audio tag, the tag is allocated from the packet pool.
+ */
+static void muxer_aac2flv(char* frame, int frame_size, SrsRawAacStreamCodec* codec, char** flv, int* nb_flv) {
+    // 1bytes SoundFormat|SoundRate|SoundSize|SoundType, 1bytes AACPacketType for aac.
+    int header_size = codec->sound_format == SrsCodecAudioAAC ? 2 : 1;
+    int size = frame_size + header_size;
+    char* data = wlanjie::packet_pool.alloc(size);
+    u_int8_t audio_header = codec->sound_type & 0x01;
+    audio_header |= (codec->sound_size << 1) & 0x02;
+    audio_header |= (codec->sound_rate << 2) & 0x0c;
+    audio_header |= (codec->sound_format << 4) & 0xf0;
+    data[0] = audio_header;
+    if (header_size == 2) {
+        data[1] = codec->aac_packet_type;
     }
+    memcpy(data + header_size, frame, frame_size);
 
-    // for IDR frame, the frame is keyframe.
-    SrsCodecVideoAVCFrame frame_type = SrsCodecVideoAVCFrameInterFrame;
-    if (nut == SrsAvcNaluTypeIDR) {
-        frame_type = SrsCodecVideoAVCFrameKeyFrame;
-    }
+    *flv = data;
+    *nb_flv = size;
+}
 
-    std::string ibp;
-    if ((ret = avc_raw.mux_ipb_frame(frame, frame_size, ibp) != ERROR_SUCCESS)) {
-        return ret;
+void wlanjie::Muxer::updateParameterSet(std::string& parameter_set, bool& changed, const char* nal, int nal_size) {
+    // atleast 4bytes to decode the type, profile, constrain and level of the sps.
+    if (nal_size < 4) {
+        return;
     }
-
-    int8_t avc_packet_type = SrsCodecVideoAVCTypeNALU;
-    char* flv = NULL;
-    int nb_flv = 0;
-    if (avc_raw.mux_avc2flv(ibp, frame_type, avc_packet_type, dts, pts, &flv, &nb_flv) != ERROR_SUCCESS) {
-        return ret;
+    if (parameter_set.size() == (size_t) nal_size && memcmp(parameter_set.data(), nal, (size_t) nal_size) == 0) {
+        return;
     }
-
-    *h264 = flv;
-    *h264_size = nb_flv;
-    return ret;
+    parameter_set.assign(nal, (size_t) nal_size);
+    changed = true;
 }
 
-int muxer_sps_pps_frame(char* frame, int frame_size, u_int32_t dts, u_int32_t pts, char** sps_pps, int* sps_pps_size) {
-
-    int ret = ERROR_SUCCESS;
-    // empty frame.
-    if (frame_size <= 0) {
-        return ret;
-    }
-
-    // for sps
-    if (avc_raw.is_sps(frame, frame_size)) {
-        std::string sps;
-        if ((ret = avc_raw.sps_demux(frame, frame_size, sps) != ERROR_SUCCESS)) {
-            return ret;
-        }
+void wlanjie::Muxer::muxSpsPps(u_int32_t dts, u_int32_t pts, char** sps_pps, int* sps_pps_size) {
 
-        if (h264_sps == sps) {
-            return ERROR_H264_DUPLICATED_SPS;
-        }
-        h264_sps_changed = true;
-        h264_sps = sps;
-        return ret;
+    // send when sps or pps changed, and both are known.
+    if ((!h264_sps_changed && !h264_pps_changed) || h264_sps.empty() || h264_pps.empty()) {
+        return;
     }
 
-    // for pps
-    if (avc_raw.is_pps(frame, frame_size)) {
-        std::string pps;
-        if ((ret = avc_raw.pps_demux(frame, frame_size, pps) != ERROR_SUCCESS)) {
-            return ret;
-        }
-
-        if (h264_pps == pps) {
-            return ERROR_H264_DUPLICATED_PPS;
-        }
+    // the AVCDecoderConfigurationRecord, written straight after the flv tag header.
+    // 5.3.4.2.1 Syntax, H.264-AVC-ISO_IEC_14496-15.pdf, page 16
+    int sps_size = (int) h264_sps.size();
+    int pps_size = (int) h264_pps.size();
+    int size = 5 + 5 + 3 + sps_size + 3 + pps_size;
+    char* data = wlanjie::packet_pool.alloc(size);
+    muxer_avc_tag_header(data, SrsCodecVideoAVCFrameKeyFrame, SrsCodecVideoAVCTypeSequenceHeader, dts, pts);
+    char* p = data + 5;
+    // configurationVersion, AVCProfileIndication, profile_compatibility, AVCLevelIndication.
+    *p++ = 0x01;
+    *p++ = h264_sps[1];
+    *p++ = 0x00;
+    *p++ = h264_sps[3];
+    // lengthSizeMinusOne, the nalus are always prefixed by 4bytes size.
+    *p++ = 0x03;
+    // numOfSequenceParameterSets, sequenceParameterSetLength, sequenceParameterSetNALUnit.
+    *p++ = 0x01;
+    *p++ = (char) (sps_size >> 8);
+    *p++ = (char) sps_size;
+    memcpy(p, h264_sps.data(), (size_t) sps_size);
+    p += sps_size;
+    // numOfPictureParameterSets, pictureParameterSetLength, pictureParameterSetNALUnit.
+    *p++ = 0x01;
+    *p++ = (char) (pps_size >> 8);
+    *p++ = (char) pps_size;
+    memcpy(p, h264_pps.data(), (size_t) pps_size);
 
-        h264_pps_changed = true;
-        h264_pps = pps;
-        return ret;
-    }
-
-    // ignore others.
-    // 5bits, 7.3.1 NAL unit syntax,
-    // H.264-AVC-ISO_IEC_14496-10.pdf, page 44.
-    //  7: SPS, 8: PPS, 5: I Frame, 1: P Frame, 9: AUD
-    SrsAvcNaluType nut = (SrsAvcNaluType)(frame[0] & 0x1f);
-    if (nut != SrsAvcNaluTypeSPS && nut != SrsAvcNaluTypePPS
-        && nut != SrsAvcNaluTypeIDR && nut != SrsAvcNaluTypeNonIDR
-        && nut != SrsAvcNaluTypeAccessUnitDelimiter
-            ) {
-        return ret;
-    }
+    // reset sps and pps.
+    h264_sps_changed = false;
+    h264_pps_changed = false;
+    h264_sps_pps_sent = true;
 
-    muxer_sps_pps(dts, pts, sps_pps, sps_pps_size);
-    return ERROR_SUCCESS;
+    *sps_pps = data;
+    *sps_pps_size = size;
 }
 
-char* muxer_h264(char* frames, int frames_size, u_int32_t dts, u_int32_t pts, char** sps_pps, int* sps_pps_size, char** h264, int* h264_size) {
+int wlanjie::Muxer::muxH264(char* frames, int frames_size, u_int32_t dts, u_int32_t pts, char** sps_pps, int* sps_pps_size, char** h264, int* h264_size) {
 
     srs_assert(frames != NULL);
     srs_assert(frames_size > 0);
 
-    int ret = ERROR_SUCCESS;
-
-    if (h264_raw_stream.initialize(frames, frames_size) != ERROR_SUCCESS) {
-        return NULL;
+    const char* end = frames + frames_size;
+    const char* start_code = muxer_find_start_code(frames, end);
+    if (start_code == end) {
+        return ERROR_H264_API_NO_PREFIXED;
     }
 
-    while (!h264_raw_stream.empty()) {
-        char* frame = NULL;
-        int frame_size = 0;
-        if (avc_raw.annexb_demux(&h264_raw_stream, &frame, &frame_size) != ERROR_SUCCESS) {
-            return NULL;
+    h264_nals.clear();
+    int payload_size = 0;
+    SrsCodecVideoAVCFrame frame_type = SrsCodecVideoAVCFrameInterFrame;
+    while (start_code < end) {
+        const char* nal = start_code + 3;
+        start_code = muxer_find_start_code(nal, end);
+        // drop the trailing_zero_8bits, and the leading zero of a 4bytes start code.
+        const char* nal_end = start_code;
+        while (nal_end > nal && nal_end[-1] == 0) {
+            nal_end--;
         }
-        if (frame_size <= 0) {
+        int nal_size = (int) (nal_end - nal);
+        if (nal_size <= 0) {
             continue;
         }
 
-        if ((ret = muxer_sps_pps_frame(frame, frame_size, dts, pts, sps_pps, sps_pps_size)) != ERROR_SUCCESS) {
-            if (ret == ERROR_H264_DUPLICATED_PPS || ret == ERROR_H264_DUPLICATED_SPS ) {
-                continue;
-            }
-        }
-        if ((ret = muxer_ibp(frame, frame_size, dts, pts, h264, h264_size)) != ERROR_SUCCESS) {
-            if (ret == ERROR_H264_DROP_BEFORE_SPS_PPS) {
-                continue;
+        // 5bits, 7.3.1 NAL unit syntax,
+        // H.264-AVC-ISO_IEC_14496-10.pdf, page 44.
+        //  7: SPS, 8: PPS, 5: I Frame, 1: P Frame, 9: AUD, 6: SEI
+        // aud only splits the annexb frames, sei can be ignored.
+        SrsAvcNaluType nut = (SrsAvcNaluType) (nal[0] & 0x1f);
+        if (nut == SrsAvcNaluTypeSPS) {
+            updateParameterSet(h264_sps, h264_sps_changed, nal, nal_size);
+        } else if (nut == SrsAvcNaluTypePPS) {
+            updateParameterSet(h264_pps, h264_pps_changed, nal, nal_size);
+        } else if (nut == SrsAvcNaluTypeIDR || nut == SrsAvcNaluTypeNonIDR) {
+            if (nut == SrsAvcNaluTypeIDR) {
+                frame_type = SrsCodecVideoAVCFrameKeyFrame;
             }
-            return NULL;
+            H264Nal slice = { nal, nal_size };
+            h264_nals.push_back(slice);
+            payload_size += 4 + nal_size;
         }
     }
-    return NULL;
+
+    muxSpsPps(dts, pts, sps_pps, sps_pps_size);
+
+    // when sps or pps not sent, ignore the slices.
+    if (h264_nals.empty() || !h264_sps_pps_sent) {
+        return ERROR_SUCCESS;
+    }
+
+    // each slice prefixed by its 4bytes size, lengthSizeMinusOne of the sequence header.
+    int size = 5 + payload_size;
+    char* data = wlanjie::packet_pool.alloc(size);
+    muxer_avc_tag_header(data, frame_type, SrsCodecVideoAVCTypeNALU, dts, pts);
+    char* p = data + 5;
+    for (size_t i = 0; i < h264_nals.size(); i++) {
+        const H264Nal& slice = h264_nals[i];
+        *p++ = (char) (slice.size >> 24);
+        *p++ = (char) (slice.size >> 16);
+        *p++ = (char) (slice.size >> 8);
+        *p++ = (char) slice.size;
+        memcpy(p, slice.data, (size_t) slice.size);
+        p += slice.size;
+    }
+
+    *h264 = data;
+    *h264_size = size;
+    return ERROR_SUCCESS;
 }
 
-bool aac_is_adts(char* aac_raw_data, int aac_raw_size) {
+static bool aac_is_adts(char* aac_raw_data, int aac_raw_size) {
     SrsBuffer stream;
     if (stream.initialize(aac_raw_data, aac_raw_size) != ERROR_SUCCESS) {
         return false;
@@ -212,55 +226,73 @@ bool aac_is_adts(char* aac_raw_data, int aac_raw_size) {
     return srs_aac_startswith_adts(&stream);
 }
 
-int muxer_audio_frame(char* frame, int frame_size, SrsRawAacStreamCodec* codec, u_int32_t timestamp, char** aac, int* aac_size) {
+int wlanjie::Muxer::muxAudioFrame(char* frame, int frame_size, SrsRawAacStreamCodec* codec, char** aac, int* aac_size) {
     int ret = ERROR_SUCCESS;
 
     char* data = NULL;
     int size = 0;
-    if ((ret = aac_raw.mux_aac2flv(frame, frame_size, codec, timestamp, &data, &size)) != ERROR_SUCCESS) {
-        return ret;
-    }
+    muxer_aac2flv(frame, frame_size, codec, &data, &size);
 
     *aac = data;
     *aac_size = size;
     return ret;
 }
 
-int muxer_aac_frame(SrsRawAacStreamCodec* codec, char* frame, int frame_size, u_int32_t timestamp, char** aac, int* aac_size) {
+int wlanjie::Muxer::muxAacFrame(SrsRawAacStreamCodec* codec, char* frame, int frame_size,
+                                char** aac_sh, int* aac_sh_size, char** aac, int* aac_size) {
     int ret = ERROR_SUCCESS;
 
-    // send out aac sequence header if not sent.
-    if (aac_specific_config.empty()) {
-        std::string sh;
-        if ((ret = aac_raw.mux_sequence_header(codec, sh) != ERROR_SUCCESS)) {
-            return ret;
+    // send out aac sequence header if not sent, the frame follows it.
+    if (!aac_specific_config_sent) {
+        if (aac_specific_config.empty()) {
+            std::string sh;
+            if ((ret = aac_raw.mux_sequence_header(codec, sh) != ERROR_SUCCESS)) {
+                return ret;
+            }
+            aac_specific_config = sh;
         }
-        aac_specific_config = sh;
 
         codec->aac_packet_type = 0;
-
-        if ((ret = muxer_audio_frame((char *) sh.data(), sh.length(), codec, timestamp, aac, aac_size)) != ERROR_SUCCESS) {
-            return ret;
-        }
-    } else {
-
-        codec->aac_packet_type = 1;
-        if ((ret = muxer_audio_frame(frame, frame_size, codec, timestamp, aac, aac_size)) != ERROR_SUCCESS) {
+        if ((ret = muxAudioFrame((char *) aac_specific_config.data(), (int) aac_specific_config.length(), codec,
+                                 aac_sh, aac_sh_size)) != ERROR_SUCCESS) {
             return ret;
         }
+        aac_specific_config_sent = true;
     }
 
+    codec->aac_packet_type = 1;
+    return muxAudioFrame(frame, frame_size, codec, aac, aac_size);
+}
 
-    return ret;
+void wlanjie::Muxer::setAacSpecificConfig(const char* config, int config_size) {
+    std::string sh(config, (size_t) config_size);
+    if (sh != aac_specific_config) {
+        aac_specific_config = sh;
+        aac_specific_config_sent = false;
+    }
 }
 
-int muxer_aac(char sound_format, char sound_rate, char sound_size, char sound_type,
-                char* frames, int frames_size, u_int32_t pts, char** aac, int* aac_size, int* aac_packet_type) {
+int wlanjie::Muxer::muxAacRaw(char* frame, int frame_size, u_int32_t pts, char** aac_sh, int* aac_sh_size,
+                              char** aac, int* aac_size) {
+    if (aac_specific_config.empty()) {
+        return ERROR_AAC_DATA_INVALID;
+    }
+    // the flv aac tag always says 44.1khz 16bit stereo, the player reads the AudioSpecificConfig.
+    SrsRawAacStreamCodec codec;
+    codec.sound_format = SrsCodecAudioAAC;
+    codec.sound_rate = SrsCodecAudioSampleRate44100;
+    codec.sound_size = SrsCodecAudioSampleSize16bit;
+    codec.sound_type = SrsCodecAudioSoundTypeStereo;
+    return muxAacFrame(&codec, frame, frame_size, aac_sh, aac_sh_size, aac, aac_size);
+}
+
+int wlanjie::Muxer::muxAac(char sound_format, char sound_rate, char sound_size, char sound_type,
+                char* frames, int frames_size, u_int32_t pts, char** aac_sh, int* aac_sh_size, char** aac, int* aac_size) {
 
     int ret = ERROR_SUCCESS;
     if (sound_format == SrsCodecAudioAAC) {
         if (!aac_is_adts(frames, frames_size)) {
-            return NULL;
+            return ret;
         }
 
         SrsBuffer* stream = &aac_raw_stream;
@@ -282,10 +314,9 @@ int muxer_aac(char sound_format, char sound_rate, char sound_size, char sound_ty
             codec.sound_size = sound_size;
             codec.sound_type = sound_type;
 
-            if ((ret = muxer_aac_frame(&codec, frame, frame_size, pts, aac, aac_size)) != ERROR_SUCCESS) {
+            if ((ret = muxAacFrame(&codec, frame, frame_size, aac_sh, aac_sh_size, aac, aac_size)) != ERROR_SUCCESS) {
                 return ret;
             }
-            *aac_packet_type = codec.aac_packet_type;
         }
 
     }
@@ -6,11 +6,99 @@
 #define STREAMING_MUXER_H
 
 #include <sys/types.h>
+#include <string>
+#include <vector>
+#include <srs_kernel_buffer.hpp>
+#include <srs_raw_avc.hpp>
 
-extern int muxer_sps_pps(char* frame, int frame_size, u_int32_t dts, u_int32_t pts, char** sps_pps, int* sps_pps_size);
-extern char* muxer_h264(char* frames, int frames_size, u_int32_t dts, u_int32_t pts, char** sps_pps, int* sps_pps_size, char** h264, int* h264_size);
-extern int muxer_aac(char sound_format, char sound_rate, char sound_size, char sound_type,
-                       char* frame, int frame_size, u_int32_t pts, char** aac, int* aac_size, int* aac_packet_type);
+namespace wlanjie {
 
+    /**
+     * remux h264 annexb and aac adts to flv tags, one instance per publishing session.
+     * the flv tags returned are allocated from wlanjie::packet_pool,
+     * release them with wlanjie::packet_pool.release().
+     * video and audio may be muxed from different threads, each method only touches its own state.
+     */
+    class Muxer {
+    public:
+        Muxer();
+
+        ~Muxer();
+
+        /**
+         * forget the sequence headers, the next idr and aac frame send them again.
+         * not thread safe with mux.
+         */
+        void reset();
+
+        /**
+         * mux one h264 annexb access unit, the start codes are scanned in place.
+         * all the slices of the access unit become one flv tag, aud and sei are dropped.
+         * @param sps_pps the flv sequence header, set when the sps or pps bytes changed.
+         * @param h264 the flv tag of the slices, not set before the first sequence header.
+         */
+        int muxH264(char* frames, int frames_size, u_int32_t dts, u_int32_t pts, char** sps_pps, int* sps_pps_size, char** h264, int* h264_size);
+
+        /**
+         * mux aac adts frames, the sequence header is taken from the first adts header.
+         * @param aac_sh the flv sequence header, set before the first frame.
+         */
+        int muxAac(char sound_format, char sound_rate, char sound_size, char sound_type,
+                   char* frames, int frames_size, u_int32_t pts, char** aac_sh, int* aac_sh_size, char** aac, int* aac_size);
+
+        /**
+         * the AudioSpecificConfig of the raw aac frames muxed by muxAacRaw, sent as the sequence header
+         * before the next frame. not thread safe with muxAacRaw.
+         */
+        void setAacSpecificConfig(const char* config, int config_size);
+
+        /**
+         * mux one raw aac access unit without adts, as the MediaCodec and fdk-aac TT_MP4_RAW write it.
+         * frames before setAacSpecificConfig are dropped.
+         * @param aac_sh the flv sequence header, set before the first frame.
+         */
+        int muxAacRaw(char* frame, int frame_size, u_int32_t pts, char** aac_sh, int* aac_sh_size, char** aac, int* aac_size);
+
+    private:
+        struct H264Nal {
+            const char* data;
+            int size;
+        };
+
+        /**
+         * keep the sps or pps, only copied when the bytes differ from the kept ones.
+         */
+        void updateParameterSet(std::string& parameter_set, bool& changed, const char* nal, int nal_size);
+
+        void muxSpsPps(u_int32_t dts, u_int32_t pts, char** sps_pps, int* sps_pps_size);
+
+        int muxAudioFrame(char* frame, int frame_size, SrsRawAacStreamCodec* codec, char** aac, int* aac_size);
+
+        int muxAacFrame(SrsRawAacStreamCodec* codec, char* frame, int frame_size,
+                        char** aac_sh, int* aac_sh_size, char** aac, int* aac_size);
+
+    private:
+        // the remux raw codec.
+        SrsRawAacStream aac_raw;
+
+        // the slices of the access unit being muxed, reused to not allocate for every frame.
+        std::vector<H264Nal> h264_nals;
+        // about SPS, @see: 7.3.2.1.1, H.264-AVC-ISO_IEC_14496-10-2012.pdf, page 62
+        std::string h264_sps;
+        std::string h264_pps;
+        // whether the sps and pps sent,
+        // @see https://github.com/ossrs/srs/issues/203
+        bool h264_sps_pps_sent;
+        // the sequence header is sent again when the sps or pps changed.
+        bool h264_sps_changed;
+        bool h264_pps_changed;
+        // for aac raw stream,
+        // @see: https://github.com/ossrs/srs/issues/212#issuecomment-64146250
+        SrsBuffer aac_raw_stream;
+        // the aac sequence header.
+        std::string aac_specific_config;
+        bool aac_specific_config_sent;
+    };
+}
 
 #endif //STREAMING_MUXER_H
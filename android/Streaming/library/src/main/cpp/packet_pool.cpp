@@ -0,0 +1,138 @@
+//
+// Created by wlanjie on 2017/8/15.
+//
+
+#include <stdlib.h>
+#include <string.h>
+#include <new>
+#include "packet_pool.h"
+#include "log.h"
+
+// keep the data 16 bytes aligned after the header.
+#define PACKET_HEADER_SIZE ((sizeof(Packet) + 15) & ~((size_t) 15))
+
+wlanjie::PacketPool wlanjie::packet_pool;
+
+wlanjie::PacketPool::PacketPool() :
+        hits(0),
+        misses(0),
+        packets_outstanding(0),
+        bytes_outstanding(0),
+        bytes_cached(0) {
+    memset(free_packets, 0, sizeof(free_packets));
+    memset(free_count, 0, sizeof(free_count));
+    pthread_mutex_init(&mutex, NULL);
+}
+
+wlanjie::PacketPool::~PacketPool() {
+    trim();
+    pthread_mutex_destroy(&mutex);
+}
+
+wlanjie::PacketPool::Packet *wlanjie::PacketPool::packetOf(char *data) {
+    return (Packet *) (data - PACKET_HEADER_SIZE);
+}
+
+char *wlanjie::PacketPool::dataOf(Packet *packet) {
+    return (char *) packet + PACKET_HEADER_SIZE;
+}
+
+char *wlanjie::PacketPool::alloc(int size) {
+    int size_class = 0;
+    while (size_class < PACKET_POOL_CLASS_COUNT && (1 << (size_class + PACKET_POOL_MIN_SHIFT)) < size) {
+        size_class++;
+    }
+
+    Packet *packet = NULL;
+    if (size_class < PACKET_POOL_CLASS_COUNT) {
+        pthread_mutex_lock(&mutex);
+        packet = free_packets[size_class];
+        if (packet != NULL) {
+            free_packets[size_class] = packet->next;
+            free_count[size_class]--;
+        }
+        pthread_mutex_unlock(&mutex);
+    }
+
+    if (packet != NULL) {
+        hits++;
+        bytes_cached -= packet->capacity;
+    } else {
+        misses++;
+        // packets larger than the largest class are not cached, allocate the exact size.
+        int capacity = size_class < PACKET_POOL_CLASS_COUNT ? 1 << (size_class + PACKET_POOL_MIN_SHIFT) : size;
+        void *memory = malloc(PACKET_HEADER_SIZE + capacity);
+        if (memory == NULL) {
+            LOGE("alloc packet size = %d failed", size);
+            abort();
+        }
+        packet = new(memory) Packet();
+        packet->size_class = size_class;
+        packet->capacity = capacity;
+    }
+    packet->next = NULL;
+    packet->refs = 1;
+    packets_outstanding++;
+    bytes_outstanding += packet->capacity;
+    return dataOf(packet);
+}
+
+void wlanjie::PacketPool::retain(char *data) {
+    packetOf(data)->refs++;
+}
+
+void wlanjie::PacketPool::release(char *data) {
+    if (data == NULL) {
+        return;
+    }
+    Packet *packet = packetOf(data);
+    if (--packet->refs > 0) {
+        return;
+    }
+    packets_outstanding--;
+    bytes_outstanding -= packet->capacity;
+
+    int size_class = packet->size_class;
+    if (size_class < PACKET_POOL_CLASS_COUNT) {
+        pthread_mutex_lock(&mutex);
+        if (free_count[size_class] < PACKET_POOL_MAX_CACHED) {
+            packet->next = free_packets[size_class];
+            free_packets[size_class] = packet;
+            free_count[size_class]++;
+            bytes_cached += packet->capacity;
+            packet = NULL;
+        }
+        pthread_mutex_unlock(&mutex);
+    }
+    if (packet != NULL) {
+        packet->~Packet();
+        free(packet);
+    }
+}
+
+void wlanjie::PacketPool::trim() {
+    pthread_mutex_lock(&mutex);
+    for (int i = 0; i < PACKET_POOL_CLASS_COUNT; i++) {
+        Packet *packet = free_packets[i];
+        while (packet != NULL) {
+            Packet *next = packet->next;
+            bytes_cached -= packet->capacity;
+            packet->~Packet();
+            free(packet);
+            packet = next;
+        }
+        free_packets[i] = NULL;
+        free_count[i] = 0;
+    }
+    pthread_mutex_unlock(&mutex);
+}
+
+wlanjie::PacketPoolStats wlanjie::PacketPool::stats() {
+    PacketPoolStats stats;
+    stats.hits = hits;
+    stats.misses = misses;
+    stats.packets_outstanding = packets_outstanding;
+    stats.bytes_outstanding = bytes_outstanding;
+    stats.bytes_cached = bytes_cached;
+    return stats;
+}
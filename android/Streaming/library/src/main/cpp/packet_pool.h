@@ -0,0 +1,96 @@
+//
+// Created by wlanjie on 2017/8/15.
+//
+
+#ifndef STREAMING_PACKET_POOL_H
+#define STREAMING_PACKET_POOL_H
+
+#include <atomic>
+#include <pthread.h>
+#include <stdint.h>
+
+// smallest size class, 1 << 8 bytes.
+#define PACKET_POOL_MIN_SHIFT 8
+// largest size class, 1 << 19 bytes, larger packets are not cached.
+#define PACKET_POOL_MAX_SHIFT 19
+#define PACKET_POOL_CLASS_COUNT (PACKET_POOL_MAX_SHIFT - PACKET_POOL_MIN_SHIFT + 1)
+// free packets kept for each size class.
+#define PACKET_POOL_MAX_CACHED 32
+
+namespace wlanjie {
+
+    struct PacketPoolStats {
+        // allocations served from a cached packet.
+        int64_t hits;
+        // allocations that needed malloc.
+        int64_t misses;
+        // packets allocated and not released yet.
+        int packets_outstanding;
+        // capacity of the packets allocated and not released yet.
+        int64_t bytes_outstanding;
+        // capacity of the free packets kept by the pool.
+        int64_t bytes_cached;
+    };
+
+    /**
+     * size class pool of encoded packets, shared by the encoders, the muxer and the sender.
+     * the data returned by alloc() starts with a reference count of 1,
+     * every sink that keeps the packet calls retain(), and every owner calls release()
+     * when done, the last release returns the packet to the free list of its size class.
+     * never free the data with delete[] or free().
+     */
+    class PacketPool {
+    public:
+        PacketPool();
+
+        ~PacketPool();
+
+        /**
+         * @return data of at least size bytes, never NULL.
+         */
+        char *alloc(int size);
+
+        void retain(char *data);
+
+        /**
+         * drop a reference, NULL is ignored.
+         */
+        void release(char *data);
+
+        /**
+         * free all cached packets, the outstanding packets are not touched.
+         */
+        void trim();
+
+        PacketPoolStats stats();
+
+    private:
+        struct Packet {
+            Packet *next;
+            int size_class;
+            int capacity;
+            std::atomic<int> refs;
+        };
+
+        static Packet *packetOf(char *data);
+
+        static char *dataOf(Packet *packet);
+
+    private:
+        Packet *free_packets[PACKET_POOL_CLASS_COUNT];
+        int free_count[PACKET_POOL_CLASS_COUNT];
+        pthread_mutex_t mutex;
+        std::atomic<int64_t> hits;
+        std::atomic<int64_t> misses;
+        std::atomic<int> packets_outstanding;
+        std::atomic<int64_t> bytes_outstanding;
+        std::atomic<int64_t> bytes_cached;
+    };
+
+    /**
+     * the pool every packet producer and the sender share.
+     */
+    extern PacketPool packet_pool;
+}
+
+#endif //STREAMING_PACKET_POOL_H
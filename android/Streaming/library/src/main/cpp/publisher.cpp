@@ -0,0 +1,303 @@
+//
+// Created by wlanjie on 2017/8/16.
+//
+
+#include <string.h>
+#include "publisher.h"
+#include "packet_pool.h"
+#include "log.h"
+
+wlanjie::Publisher::Publisher() :
+        min_kbps(0),
+        max_kbps(0),
+        drop_frame_ms(DEFAULT_DROP_FRAME_DELAY_MS),
+        drop_gop_ms(DEFAULT_DROP_GOP_DELAY_MS),
+        reconnect_initial_delay_ms(DEFAULT_RECONNECT_INITIAL_DELAY_MS),
+        reconnect_max_delay_ms(DEFAULT_RECONNECT_MAX_DELAY_MS),
+        reconnect_max_attempts(0),
+        batch_flush_interval_ms(0),
+        batch_max_bytes(DEFAULT_BATCH_MAX_BYTES),
+        batch_aggregate(false),
+        chunk_size(0),
+        started(false),
+        stopped(false),
+        refs(1) {
+
+}
+
+wlanjie::Publisher::~Publisher() {
+    stop();
+    for (size_t i = 0; i < senders.size(); i++) {
+        delete senders[i];
+    }
+    senders.clear();
+}
+
+int wlanjie::Publisher::connect(const char *url, int rendition) {
+    if (started) {
+        LOGE("can not add destination %s after publish started", url);
+        return -1;
+    }
+    if (rendition < 0 || rendition >= MAX_RENDITIONS) {
+        LOGE("invalid rendition %d of destination %s", rendition, url);
+        return -1;
+    }
+    Sender *sender = new Sender();
+    sender->setChunkSize(chunk_size);
+    int result = sender->connect(url);
+    sender->getBitrateController()->setRange(min_kbps, max_kbps);
+    sender->getQueue()->setDropThreshold(drop_frame_ms, drop_gop_ms);
+    sender->setReconnect(reconnect_initial_delay_ms, reconnect_max_delay_ms, reconnect_max_attempts);
+    sender->setBatch(batch_flush_interval_ms, batch_max_bytes, batch_aggregate);
+    senders.push_back(sender);
+    renditions.push_back(rendition);
+    return result;
+}
+
+void wlanjie::Publisher::start(int max_frames, int max_bytes) {
+    if (started) {
+        return;
+    }
+    for (int i = 0; i < MAX_RENDITIONS; i++) {
+        muxers[i].reset();
+    }
+    stats.reset();
+    stopped = false;
+    for (size_t i = 0; i < senders.size(); i++) {
+        senders[i]->start(max_frames, max_bytes);
+    }
+    started = true;
+}
+
+void wlanjie::Publisher::stop() {
+    stopped = true;
+    for (size_t i = 0; i < senders.size(); i++) {
+        senders[i]->stop();
+    }
+    started = false;
+}
+
+bool wlanjie::Publisher::isStopped() {
+    return stopped;
+}
+
+void wlanjie::Publisher::pushFrame(char *data, int size, int pts, int packet_type, int rendition, int temporal_id) {
+    Frame frame;
+    frame.data = data;
+    frame.size = size;
+    frame.pts = pts;
+    frame.packet_type = packet_type;
+    frame.temporal_id = temporal_id;
+    if (packet_type == VIDEO_TYPE && size > 1) {
+        // flv video tag: 4bits frame type, 1 is key frame; then AVCPacketType, 0 is sequence header.
+        frame.keyframe = ((data[0] >> 4) & 0x0f) == 1;
+        frame.sequence_header = data[1] == 0;
+        // 5 bytes avc header, 4 bytes nalu length, then the nalu header with 2bits nal_ref_idc.
+        frame.disposable = !frame.keyframe && !frame.sequence_header && size > 9 && (data[9] & 0x60) == 0;
+    } else if (packet_type == AUDIO_TYPE && size > 1) {
+        // flv audio tag: 1 byte sound info, then AACPacketType, 0 is sequence header.
+        frame.sequence_header = data[1] == 0;
+    }
+    // every sender keeps its own reference of the packet.
+    for (size_t i = 0; i < senders.size(); i++) {
+        if (rendition < 0 || renditions[i] == rendition) {
+            senders[i]->send(frame);
+        }
+    }
+    packet_pool.release(data);
+}
+
+void wlanjie::Publisher::writeH264(char *data, int size, int pts, int rendition, int temporal_id) {
+    if (data == NULL || size <= 0 || stopped || rendition < 0 || rendition >= MAX_RENDITIONS) {
+        return;
+    }
+    char *sps_pps = NULL;
+    int sps_pps_size = 0;
+    char *h264 = NULL;
+    int h264_size = 0;
+    if (rendition == 0) {
+        stats.video_frames++;
+    }
+    muxers[rendition].muxH264(data, size, (u_int32_t) pts, (u_int32_t) pts, &sps_pps, &sps_pps_size, &h264, &h264_size);
+    if (sps_pps != NULL && sps_pps_size > 0) {
+        pushFrame(sps_pps, sps_pps_size, pts, VIDEO_TYPE, rendition, 0);
+    }
+    if (h264 != NULL && h264_size > 0) {
+        pushFrame(h264, h264_size, pts, VIDEO_TYPE, rendition, temporal_id);
+    }
+}
+
+void wlanjie::Publisher::writeAac(char *data, int size, int pts) {
+    if (data == NULL || size <= 0 || stopped) {
+        return;
+    }
+    char *aac_sh = NULL;
+    int aac_sh_size = 0;
+    char *aac = NULL;
+    int aac_size = 0;
+    stats.audio_frames++;
+    muxers[0].muxAac(10, 3, 1, 1, data, size, (u_int32_t) pts, &aac_sh, &aac_sh_size, &aac, &aac_size);
+    if (aac_sh != NULL && aac_sh_size > 0) {
+        pushFrame(aac_sh, aac_sh_size, pts, AUDIO_TYPE, -1, 0);
+    }
+    if (aac != NULL && aac_size > 0) {
+        pushFrame(aac, aac_size, pts, AUDIO_TYPE, -1, 0);
+    }
+}
+
+void wlanjie::Publisher::writeAacSpecificConfig(char *data, int size) {
+    if (data == NULL || size <= 0) {
+        return;
+    }
+    muxers[0].setAacSpecificConfig(data, size);
+}
+
+void wlanjie::Publisher::writeAacRaw(char *data, int size, int pts) {
+    if (data == NULL || size <= 0 || stopped) {
+        return;
+    }
+    char *aac_sh = NULL;
+    int aac_sh_size = 0;
+    char *aac = NULL;
+    int aac_size = 0;
+    stats.audio_frames++;
+    if (muxers[0].muxAacRaw(data, size, (u_int32_t) pts, &aac_sh, &aac_sh_size, &aac, &aac_size) != 0) {
+        LOGW("aac frame before the AudioSpecificConfig dropped");
+    }
+    if (aac_sh != NULL && aac_sh_size > 0) {
+        pushFrame(aac_sh, aac_sh_size, pts, AUDIO_TYPE, -1, 0);
+    }
+    if (aac != NULL && aac_size > 0) {
+        pushFrame(aac, aac_size, pts, AUDIO_TYPE, -1, 0);
+    }
+}
+
+void wlanjie::Publisher::setVideoBitrateRange(int min_kbps, int max_kbps) {
+    this->min_kbps = min_kbps;
+    this->max_kbps = max_kbps;
+    for (size_t i = 0; i < senders.size(); i++) {
+        senders[i]->getBitrateController()->setRange(min_kbps, max_kbps);
+    }
+}
+
+wlanjie::Sender *wlanjie::Publisher::getPrimary() {
+    for (size_t i = 0; i < senders.size(); i++) {
+        if (senders[i]->isConnected()) {
+            return senders[i];
+        }
+    }
+    // none connected, the first one keeps the bitrate it backed off to until one is back.
+    return senders.empty() ? NULL : senders[0];
+}
+
+int wlanjie::Publisher::getVideoBitrate() {
+    Sender *primary = getPrimary();
+    return primary == NULL ? max_kbps : primary->getBitrateController()->getTargetBitrate();
+}
+
+void wlanjie::Publisher::setDropThreshold(int drop_frame_ms, int drop_gop_ms) {
+    this->drop_frame_ms = drop_frame_ms;
+    this->drop_gop_ms = drop_gop_ms;
+    for (size_t i = 0; i < senders.size(); i++) {
+        senders[i]->getQueue()->setDropThreshold(drop_frame_ms, drop_gop_ms);
+    }
+}
+
+void wlanjie::Publisher::setReconnect(int initial_delay_ms, int max_delay_ms, int max_attempts) {
+    reconnect_initial_delay_ms = initial_delay_ms;
+    reconnect_max_delay_ms = max_delay_ms;
+    reconnect_max_attempts = max_attempts;
+    for (size_t i = 0; i < senders.size(); i++) {
+        senders[i]->setReconnect(initial_delay_ms, max_delay_ms, max_attempts);
+    }
+}
+
+void wlanjie::Publisher::setBatch(int flush_interval_ms, int max_bytes, bool aggregate) {
+    if (started) {
+        LOGE("can not change the batch after publish started");
+        return;
+    }
+    batch_flush_interval_ms = flush_interval_ms;
+    batch_max_bytes = max_bytes;
+    batch_aggregate = aggregate;
+    for (size_t i = 0; i < senders.size(); i++) {
+        senders[i]->setBatch(flush_interval_ms, max_bytes, aggregate);
+    }
+}
+
+void wlanjie::Publisher::setChunkSize(int chunk_size) {
+    this->chunk_size = chunk_size;
+}
+
+bool wlanjie::Publisher::pollKeyframeRequest() {
+    bool requested = false;
+    for (size_t i = 0; i < senders.size(); i++) {
+        // poll all, every request is served by the same idr.
+        requested = senders[i]->pollKeyframeRequest() || requested;
+    }
+    return requested;
+}
+
+int wlanjie::Publisher::getReconnectCount() {
+    int count = 0;
+    for (size_t i = 0; i < senders.size(); i++) {
+        count += senders[i]->getReconnectCount();
+    }
+    return count;
+}
+
+int wlanjie::Publisher::getSenderCount() {
+    return (int) senders.size();
+}
+
+int wlanjie::Publisher::getQueueFrames() {
+    Sender *primary = getPrimary();
+    return primary == NULL ? 0 : primary->getQueue()->frames();
+}
+
+int wlanjie::Publisher::getQueueBytes() {
+    Sender *primary = getPrimary();
+    return primary == NULL ? 0 : primary->getQueue()->bytes();
+}
+
+void wlanjie::Publisher::recordEncodeTime(int ms) {
+    stats.encode_time.record(ms);
+}
+
+void wlanjie::Publisher::getStats(int64_t *values) {
+    memset(values, 0, sizeof(int64_t) * STATS_COUNT);
+    values[STATS_VIDEO_FRAMES] = stats.video_frames;
+    values[STATS_AUDIO_FRAMES] = stats.audio_frames;
+    Sender *primary = getPrimary();
+    values[STATS_TARGET_KBPS] = primary == NULL ? max_kbps : primary->getBitrateController()->getTargetBitrate();
+    values[STATS_DESTINATIONS] = senders.size();
+    stats.encode_time.snapshot(values + STATS_ENCODE_TIME);
+    for (size_t i = 0; i < senders.size(); i++) {
+        Sender *sender = senders[i];
+        values[STATS_RECONNECT_COUNT] += sender->getReconnectCount();
+        values[STATS_CONNECTED_DESTINATIONS] += sender->isConnected() ? 1 : 0;
+        for (int reason = 0; reason < DROP_REASON_COUNT; reason++) {
+            values[STATS_DROPPED + reason] += sender->getQueue()->dropped((DropReason) reason);
+        }
+    }
+    if (primary == NULL) {
+        return;
+    }
+    values[STATS_SEND_KBPS] = primary->getBitrateController()->getSendKbps();
+    values[STATS_SEND_KBPS_AVERAGE] = primary->getSendKbps();
+    values[STATS_SEND_KBPS_30S] = primary->getSendKbps30s();
+    values[STATS_RTT_MS] = primary->getBitrateController()->getRtt();
+    values[STATS_QUEUE_FRAMES] = primary->getQueue()->frames();
+    values[STATS_QUEUE_BYTES] = primary->getQueue()->bytes();
+    primary->getQueueWait()->snapshot(values + STATS_QUEUE_WAIT);
+}
+
+void wlanjie::Publisher::retain() {
+    refs++;
+}
+
+void wlanjie::Publisher::release() {
+    if (--refs == 0) {
+        delete this;
+    }
+}
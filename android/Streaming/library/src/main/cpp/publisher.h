@@ -0,0 +1,177 @@
+//
+// Created by wlanjie on 2017/8/16.
+//
+
+#ifndef STREAMING_PUBLISHER_H
+#define STREAMING_PUBLISHER_H
+
+#include <atomic>
+#include <vector>
+#include "frame_queue.h"
+#include "muxer.h"
+#include "sender.h"
+#include "stats.h"
+
+// video renditions of one session, the spatial layers of the soft encoder.
+#define MAX_RENDITIONS 4
+
+namespace wlanjie {
+
+    /**
+     * one publishing session: a muxer for each video rendition and a sender for each rtmp destination.
+     * each frame is muxed once and the same packet is queued to every sender of its rendition,
+     * audio goes to every sender. every sender has its own connection, queue, drop policy and thread.
+     * the video bitrate follows the uplink of the primary, the first destination in connect order
+     * that is connected, the other destinations drop frames when they can not keep up.
+     * while the primary reconnects the next connected destination takes over.
+     * the Rtmp java object and the encoders writing to the session each hold a reference,
+     * the session is deleted when the last one is released.
+     */
+    class Publisher {
+    public:
+        Publisher();
+
+        /**
+         * add a destination, connect, handshake and publish the stream.
+         * must be called before start.
+         * a destination that fails to connect is kept and reconnected by its sender thread.
+         * @param rendition video rendition published to the destination, 0 is the full size video.
+         * @return 0 on success.
+         */
+        int connect(const char *url, int rendition = 0);
+
+        /**
+         * start the sender threads.
+         */
+        void start(int max_frames, int max_bytes);
+
+        /**
+         * stop the sender threads, drop the pending frames and close the connections.
+         * frames written after stop are dropped.
+         */
+        void stop();
+
+        bool isStopped();
+
+        /**
+         * mux and queue h264 annexb frames.
+         * @param rendition the destinations connected for it get the frame.
+         * @param temporal_id temporal layer of the frame, see Frame::temporal_id.
+         */
+        void writeH264(char *data, int size, int pts, int rendition = 0, int temporal_id = 0);
+
+        /**
+         * mux and queue aac adts frames.
+         */
+        void writeAac(char *data, int size, int pts);
+
+        /**
+         * the AudioSpecificConfig of the frames of writeAacRaw, for example csd-0 of MediaCodec,
+         * queued as the sequence header before the next frame.
+         */
+        void writeAacSpecificConfig(char *data, int size);
+
+        /**
+         * mux and queue one raw aac access unit, no adts header.
+         */
+        void writeAacRaw(char *data, int size, int pts);
+
+        void setVideoBitrateRange(int min_kbps, int max_kbps);
+
+        /**
+         * @return the video bitrate for the uplink of the primary destination.
+         */
+        int getVideoBitrate();
+
+        void setDropThreshold(int drop_frame_ms, int drop_gop_ms);
+
+        /**
+         * @see Sender::setReconnect
+         */
+        void setReconnect(int initial_delay_ms, int max_delay_ms, int max_attempts);
+
+        /**
+         * @see Sender::setBatch
+         */
+        void setBatch(int flush_interval_ms, int max_bytes, bool aggregate);
+
+        /**
+         * must be called before connect.
+         * @see Sender::setChunkSize
+         */
+        void setChunkSize(int chunk_size);
+
+        /**
+         * @return true once after a destination reconnected and needs an idr to restart from.
+         */
+        bool pollKeyframeRequest();
+
+        /**
+         * @return successful reconnects of all destinations.
+         */
+        int getReconnectCount();
+
+        int getSenderCount();
+
+        /**
+         * @return frames waiting in the send queue of the primary destination.
+         */
+        int getQueueFrames();
+
+        /**
+         * @return bytes waiting in the send queue of the primary destination.
+         */
+        int getQueueBytes();
+
+        /**
+         * called by the soft video encoder thread after each frame.
+         */
+        void recordEncodeTime(int ms);
+
+        /**
+         * @param values STATS_COUNT values, see StatsIndex.
+         */
+        void getStats(int64_t *values);
+
+        void retain();
+
+        void release();
+
+    private:
+        ~Publisher();
+
+        /**
+         * @param rendition -1 for every sender.
+         */
+        void pushFrame(char *data, int size, int pts, int packet_type, int rendition, int temporal_id);
+
+        /**
+         * @return the first connected sender, the first sender when none is connected, NULL without senders.
+         */
+        Sender *getPrimary();
+
+    private:
+        // the audio is muxed by the first one.
+        Muxer muxers[MAX_RENDITIONS];
+        PublishStats stats;
+        std::vector<Sender *> senders;
+        // rendition of each sender.
+        std::vector<int> renditions;
+        int min_kbps;
+        int max_kbps;
+        int drop_frame_ms;
+        int drop_gop_ms;
+        int reconnect_initial_delay_ms;
+        int reconnect_max_delay_ms;
+        int reconnect_max_attempts;
+        int batch_flush_interval_ms;
+        int batch_max_bytes;
+        bool batch_aggregate;
+        int chunk_size;
+        bool started;
+        std::atomic<bool> stopped;
+        std::atomic<int> refs;
+    };
+}
+
+#endif //STREAMING_PUBLISHER_H
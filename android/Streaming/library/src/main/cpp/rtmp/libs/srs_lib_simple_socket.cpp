@@ -225,8 +225,29 @@ CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
         
         ssize_t nb_write = ::writev(skt->fd, iov, iov_size);
         
+        // a blocking writev returns early when it is interrupted or the send timeout
+        // fires after part of the iovs are sent, the rest must follow or the
+        // chunk stream is broken.
+        ssize_t total = nb_write;
+        int index = 0;
+        size_t offset = nb_write > 0 ? (size_t)nb_write : 0;
+        while (nb_write > 0) {
+            while (index < iov_size && offset >= iov[index].iov_len) {
+                offset -= iov[index].iov_len;
+                index++;
+            }
+            if (index >= iov_size) {
+                break;
+            }
+            nb_write = ::write(skt->fd, (char*)iov[index].iov_base + offset, iov[index].iov_len - offset);
+            if (nb_write > 0) {
+                total += nb_write;
+                offset += nb_write;
+            }
+        }
+        
         if (nwrite) {
-            *nwrite = nb_write;
+            *nwrite = nb_write > 0 ? total : nb_write;
         }
         
         // On  success,  the  readv()  function  returns the number of bytes read; 
@@ -241,7 +262,7 @@ CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
             return ERROR_SOCKET_WRITE;
         }
         
-        skt->send_bytes += nb_write;
+        skt->send_bytes += total;
         
         return ret;
     }
@@ -1115,6 +1115,77 @@ int srs_rtmp_write_packet(srs_rtmp_t rtmp, char type, u_int32_t timestamp, char*
     return ret;
 }
 
+int srs_rtmp_write_packets(srs_rtmp_t rtmp, 
+    char* types, u_int32_t* timestamps, char** datas, int* sizes, int count
+) {
+    int ret = ERROR_SUCCESS;
+    
+    srs_assert(rtmp != NULL);
+    Context* context = (Context*)rtmp;
+    
+    if (count <= 0) {
+        return ret;
+    }
+    
+    SrsSharedPtrMessage** msgs = new SrsSharedPtrMessage*[count];
+    SrsAutoFreeA(SrsSharedPtrMessage*, msgs);
+    
+    for (int i = 0; i < count; i++) {
+        SrsSharedPtrMessage* msg = NULL;
+        
+        if (types[i] == SRS_RTMP_TYPE_AGGREGATE) {
+            // srs_rtmp_create_msg only knows the flv tag types.
+            SrsMessageHeader header;
+            header.message_type = RTMP_MSG_AggregateMessage;
+            header.payload_length = sizes[i];
+            header.timestamp_delta = (int32_t)timestamps[i];
+            header.timestamp = (int64_t)timestamps[i];
+            header.stream_id = context->stream_id;
+            header.perfer_cid = RTMP_CID_Video;
+            
+            msg = new SrsSharedPtrMessage();
+            ret = msg->create(&header, datas[i], sizes[i]);
+        } else {
+            ret = srs_rtmp_create_msg(types[i], timestamps[i], datas[i], sizes[i], context->stream_id, &msg);
+        }
+        
+        if (ret != ERROR_SUCCESS) {
+            srs_freep(msg);
+            for (int j = 0; j < i; j++) {
+                srs_freep(msgs[j]);
+            }
+            return ret;
+        }
+        msgs[i] = msg;
+    }
+    
+    // send out all msgs, always free them.
+    return context->rtmp->send_and_free_messages(msgs, count, context->stream_id);
+}
+
+int srs_rtmp_set_chunk_size(srs_rtmp_t rtmp, int chunk_size)
+{
+    int ret = ERROR_SUCCESS;
+    
+    srs_assert(rtmp != NULL);
+    Context* context = (Context*)rtmp;
+    
+    if (chunk_size < SRS_CONSTS_RTMP_MIN_CHUNK_SIZE || chunk_size > SRS_CONSTS_RTMP_MAX_CHUNK_SIZE) {
+        ret = ERROR_RTMP_CHUNK_SIZE;
+        srs_error("invalid chunk size %d. ret=%d", chunk_size, ret);
+        return ret;
+    }
+    
+    // the protocol switches the out chunk size once the packet is sent.
+    SrsSetChunkSizePacket* pkt = new SrsSetChunkSizePacket();
+    pkt->chunk_size = chunk_size;
+    if ((ret = context->rtmp->send_and_free_packet(pkt, 0)) != ERROR_SUCCESS) {
+        return ret;
+    }
+    
+    return ret;
+}
+
 srs_bool srs_rtmp_is_onMetaData(char type, char* data, int size)
 {
     int ret = ERROR_SUCCESS;
@@ -302,6 +302,32 @@ extern int srs_rtmp_write_packet(srs_rtmp_t rtmp,
     char type, u_int32_t timestamp, char* data, int size
 );
 
+// 22 = aggregate message, the payload is a sequence of flv tags.
+#define SRS_RTMP_TYPE_AGGREGATE 22
+/**
+* write several packets in order with one writev.
+* each packet is chunked with the out chunk size, the chunks of all
+* packets are sent together unless the chunk header cache runs dry.
+* @param types, the packet types, SRS_RTMP_TYPE_AUDIO, SRS_RTMP_TYPE_VIDEO,
+*            SRS_RTMP_TYPE_SCRIPT or SRS_RTMP_TYPE_AGGREGATE, whose data are
+*            flv tags, each with its 11 bytes header and 4 bytes previous tag size.
+* @param timestamps, datas, sizes, as srs_rtmp_write_packet, count items each.
+* @remark the data is never freed, the caller owns it.
+*
+* @return 0, success; otherswise, failed.
+*/
+extern int srs_rtmp_write_packets(srs_rtmp_t rtmp, 
+    char* types, u_int32_t* timestamps, char** datas, int* sizes, int count
+);
+
+/**
+* send Set Chunk Size to the server and chunk the following packets with it.
+* @param chunk_size, in [128, 65536], publish already sets 60000.
+*
+* @return 0, success; otherswise, failed.
+*/
+extern int srs_rtmp_set_chunk_size(srs_rtmp_t rtmp, int chunk_size);
+
 /**
 * whether type is script data and the data is onMetaData.
 */
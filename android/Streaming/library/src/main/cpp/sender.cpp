@@ -0,0 +1,346 @@
+//
+// Created by wlanjie on 2017/8/17.
+//
+
+#include <stdlib.h>
+#include <string.h>
+#include <sys/time.h>
+#include "sender.h"
+#include "packet_pool.h"
+#include "utils.h"
+#include "log.h"
+#include "srs_kernel_utility.hpp"
+
+wlanjie::Sender::Sender() :
+        rtmp(NULL),
+        kbps_sample_ms(0),
+        send_kbps(0),
+        send_kbps_30s(0),
+        reconnect_initial_delay_ms(DEFAULT_RECONNECT_INITIAL_DELAY_MS),
+        reconnect_max_delay_ms(DEFAULT_RECONNECT_MAX_DELAY_MS),
+        reconnect_max_attempts(0),
+        batch_flush_interval_ms(0),
+        batch_max_bytes(DEFAULT_BATCH_MAX_BYTES),
+        batch_aggregate(false),
+        chunk_size(0),
+        connected(false),
+        keyframe_requested(false),
+        reconnect_count(0),
+        stopping(false),
+        started(false) {
+    video_sequence_header.data = NULL;
+    audio_sequence_header.data = NULL;
+    pthread_mutex_init(&mutex, NULL);
+    pthread_cond_init(&cond, NULL);
+}
+
+wlanjie::Sender::~Sender() {
+    stop();
+    pthread_cond_destroy(&cond);
+    pthread_mutex_destroy(&mutex);
+}
+
+int wlanjie::Sender::connect(const char *url) {
+    if (rtmp != NULL) {
+        LOGE("rtmp not NULL");
+        return -1;
+    }
+    this->url = url;
+    rtmp = srs_rtmp_create(url);
+    int result = 0;
+    if ((result = srs_rtmp_handshake(rtmp)) != 0) {
+        LOGE("srs_rtmp_handshake error = %d", result);
+    } else if ((result = srs_rtmp_connect_app(rtmp)) != 0) {
+        LOGE("srs_rtmp_connect_app error =%d", result);
+    } else if ((result = srs_rtmp_publish_stream(rtmp)) != 0) {
+        LOGE("srs_rtmp_publish_stream = %d", result);
+    } else if (chunk_size > 0 && (result = srs_rtmp_set_chunk_size(rtmp, chunk_size)) != 0) {
+        LOGE("srs_rtmp_set_chunk_size %d error = %d", chunk_size, result);
+    }
+    if (result != 0) {
+        srs_rtmp_destroy(rtmp);
+        rtmp = NULL;
+        return -1;
+    }
+    connected = true;
+    return 0;
+}
+
+void wlanjie::Sender::setReconnect(int initial_delay_ms, int max_delay_ms, int max_attempts) {
+    reconnect_initial_delay_ms = initial_delay_ms > 0 ? initial_delay_ms : DEFAULT_RECONNECT_INITIAL_DELAY_MS;
+    reconnect_max_delay_ms = max_delay_ms >= reconnect_initial_delay_ms ? max_delay_ms : reconnect_initial_delay_ms;
+    reconnect_max_attempts = max_attempts > 0 ? max_attempts : 0;
+}
+
+void wlanjie::Sender::setBatch(int flush_interval_ms, int max_bytes, bool aggregate) {
+    batch_flush_interval_ms = flush_interval_ms > 0 ? flush_interval_ms : 0;
+    batch_max_bytes = max_bytes > 0 ? max_bytes : 0;
+    batch_aggregate = aggregate;
+}
+
+void wlanjie::Sender::setChunkSize(int chunk_size) {
+    this->chunk_size = chunk_size > 0 ? chunk_size : 0;
+}
+
+void wlanjie::Sender::start(int max_frames, int max_bytes) {
+    if (started) {
+        return;
+    }
+    queue.reset();
+    queue.setCapacity(max_frames, max_bytes);
+    queue.resume();
+    queue_wait.reset();
+    // srs samples with its cached clock.
+    srs_update_system_time_ms();
+    kbps.set_io(NULL, &send_statistic);
+    kbps_sample_ms = current_time_ms();
+    pthread_mutex_lock(&mutex);
+    stopping = false;
+    pthread_mutex_unlock(&mutex);
+    pthread_attr_t attr;
+    pthread_attr_init(&attr);
+    started = pthread_create(&worker, &attr, sendThread, this) == 0;
+    pthread_attr_destroy(&attr);
+}
+
+void wlanjie::Sender::stop() {
+    pthread_mutex_lock(&mutex);
+    stopping = true;
+    pthread_cond_broadcast(&cond);
+    pthread_mutex_unlock(&mutex);
+    queue.abort();
+    if (started) {
+        pthread_join(worker, NULL);
+        started = false;
+    }
+    // the queue stays aborted, a push racing with the stop is refused instead of pinned until the restart.
+    queue.reset();
+    packet_pool.release(video_sequence_header.data);
+    video_sequence_header.data = NULL;
+    packet_pool.release(audio_sequence_header.data);
+    audio_sequence_header.data = NULL;
+    if (rtmp != NULL) {
+        srs_rtmp_destroy(rtmp);
+        rtmp = NULL;
+    }
+    connected = false;
+}
+
+void wlanjie::Sender::send(const Frame &frame) {
+    Frame copy = frame;
+    packet_pool.retain(copy.data);
+    if (!queue.push(copy)) {
+        LOGW("drop frame size = %d, queue frames = %d bytes = %d",
+             copy.size, queue.frames(), queue.bytes());
+        packet_pool.release(copy.data);
+    }
+}
+
+bool wlanjie::Sender::pollKeyframeRequest() {
+    return keyframe_requested.exchange(false);
+}
+
+bool wlanjie::Sender::isConnected() {
+    return connected;
+}
+
+int wlanjie::Sender::getReconnectCount() {
+    return reconnect_count;
+}
+
+int wlanjie::Sender::getSendKbps() {
+    return send_kbps;
+}
+
+int wlanjie::Sender::getSendKbps30s() {
+    return send_kbps_30s;
+}
+
+wlanjie::Histogram *wlanjie::Sender::getQueueWait() {
+    return &queue_wait;
+}
+
+wlanjie::FrameQueue *wlanjie::Sender::getQueue() {
+    return &queue;
+}
+
+wlanjie::BitrateController *wlanjie::Sender::getBitrateController() {
+    return &bitrate_controller;
+}
+
+void *wlanjie::Sender::sendThread(void *arg) {
+    Sender *sender = (Sender *) arg;
+    sender->loop();
+    return NULL;
+}
+
+void wlanjie::Sender::loop() {
+    int max_frames = batch_max_bytes > 0 ? SENDER_MAX_BATCH_FRAMES : 1;
+    int count;
+    while ((count = queue.popBatch(batch, max_frames, batch_max_bytes, batch_flush_interval_ms)) > 0) {
+        int64_t start = current_time_ms();
+        int bytes = 0;
+        for (int i = 0; i < count; i++) {
+            if (batch[i].sequence_header) {
+                cacheSequenceHeader(batch[i]);
+            }
+            queue_wait.record((int) (start - batch[i].enqueue_ms));
+            bytes += batch[i].size;
+        }
+        int ret = rtmp == NULL ? -1 : writeBatch(batch, count);
+        for (int i = 0; i < count; i++) {
+            packet_pool.release(batch[i].data);
+        }
+        if (ret != 0) {
+            LOGE("srs_rtmp_write_packet error = %d, reconnect %s", ret, url.c_str());
+            // the frames are dropped, the stream restarts from the sequence headers and an idr.
+            if (!reconnect()) {
+                break;
+            }
+            continue;
+        }
+        bitrate_controller.onPacketSent(bytes, (int) (current_time_ms() - start), queue.bytes());
+        onWritten(bytes);
+    }
+    connected = false;
+}
+
+int wlanjie::Sender::write(const Frame &frame) {
+    // srs_rtmp_write_packet sends the payload synchronously and does not keep it.
+    return srs_rtmp_write_packet(rtmp, (char) (frame.packet_type == AUDIO_TYPE ? SRS_RTMP_TYPE_AUDIO : SRS_RTMP_TYPE_VIDEO),
+                                 (u_int32_t) frame.pts, frame.data, frame.size);
+}
+
+int wlanjie::Sender::writeBatch(Frame *frames, int count) {
+    if (count == 1) {
+        return write(frames[0]);
+    }
+    if (batch_aggregate) {
+        return writeAggregate(frames, count);
+    }
+    for (int i = 0; i < count; i++) {
+        batch_types[i] = (char) (frames[i].packet_type == AUDIO_TYPE ? SRS_RTMP_TYPE_AUDIO : SRS_RTMP_TYPE_VIDEO);
+        batch_timestamps[i] = (u_int32_t) frames[i].pts;
+        batch_datas[i] = frames[i].data;
+        batch_sizes[i] = frames[i].size;
+    }
+    return srs_rtmp_write_packets(rtmp, batch_types, batch_timestamps, batch_datas, batch_sizes, count);
+}
+
+int wlanjie::Sender::writeAggregate(Frame *frames, int count) {
+    // 11 bytes flv tag header, the tag data and 4 bytes previous tag size.
+    int size = 0;
+    for (int i = 0; i < count; i++) {
+        size += 11 + frames[i].size + 4;
+    }
+    char *data = packet_pool.alloc(size);
+    char *p = data;
+    for (int i = 0; i < count; i++) {
+        int tag_size = frames[i].size;
+        u_int32_t pts = (u_int32_t) frames[i].pts;
+        *p++ = (char) (frames[i].packet_type == AUDIO_TYPE ? SRS_RTMP_TYPE_AUDIO : SRS_RTMP_TYPE_VIDEO);
+        *p++ = (char) (tag_size >> 16);
+        *p++ = (char) (tag_size >> 8);
+        *p++ = (char) tag_size;
+        *p++ = (char) (pts >> 16);
+        *p++ = (char) (pts >> 8);
+        *p++ = (char) pts;
+        *p++ = (char) (pts >> 24);
+        // stream id, always 0.
+        *p++ = 0;
+        *p++ = 0;
+        *p++ = 0;
+        memcpy(p, frames[i].data, (size_t) tag_size);
+        p += tag_size;
+        int previous_tag_size = 11 + tag_size;
+        *p++ = (char) (previous_tag_size >> 24);
+        *p++ = (char) (previous_tag_size >> 16);
+        *p++ = (char) (previous_tag_size >> 8);
+        *p++ = (char) previous_tag_size;
+    }
+    // the sub tags keep their own timestamps, the message carries the one of the first tag.
+    char type = SRS_RTMP_TYPE_AGGREGATE;
+    u_int32_t timestamp = (u_int32_t) frames[0].pts;
+    int ret = srs_rtmp_write_packets(rtmp, &type, &timestamp, &data, &size, 1);
+    packet_pool.release(data);
+    return ret;
+}
+
+void wlanjie::Sender::cacheSequenceHeader(const Frame &frame) {
+    Frame *cached = frame.packet_type == AUDIO_TYPE ? &audio_sequence_header : &video_sequence_header;
+    packet_pool.retain(frame.data);
+    packet_pool.release(cached->data);
+    *cached = frame;
+}
+
+bool wlanjie::Sender::reconnect() {
+    connected = false;
+    if (rtmp != NULL) {
+        srs_rtmp_destroy(rtmp);
+        rtmp = NULL;
+    }
+    // connect() assigns the url.
+    std::string target = url;
+    unsigned int seed = (unsigned int) current_time_ms();
+    int delay = reconnect_initial_delay_ms;
+    for (int attempt = 1; reconnect_max_attempts == 0 || attempt <= reconnect_max_attempts; attempt++) {
+        // wait between half and the whole delay, so several clients do not reconnect at once.
+        int wait = delay / 2 + rand_r(&seed) % (delay / 2 + 1);
+        LOGI("reconnect %s attempt %d in %d ms", url.c_str(), attempt, wait);
+        if (!waitFor(wait)) {
+            return false;
+        }
+        // the server starts a new stream, the decoder needs the sequence headers first.
+        if (connect(target.c_str()) == 0
+            && (video_sequence_header.data == NULL || write(video_sequence_header) == 0)
+            && (audio_sequence_header.data == NULL || write(audio_sequence_header) == 0)) {
+            reconnect_count++;
+            if (!queue.restartFromKeyframe()) {
+                keyframe_requested = true;
+            }
+            LOGI("reconnect %s success, %d frames queued", url.c_str(), queue.frames());
+            return true;
+        }
+        connected = false;
+        if (rtmp != NULL) {
+            srs_rtmp_destroy(rtmp);
+            rtmp = NULL;
+        }
+        delay = delay * 2 < reconnect_max_delay_ms ? delay * 2 : reconnect_max_delay_ms;
+    }
+    LOGE("give up %s after %d reconnect attempts", url.c_str(), reconnect_max_attempts);
+    // frames pushed to the destination from now on are dropped.
+    queue.abort();
+    return false;
+}
+
+bool wlanjie::Sender::waitFor(int ms) {
+    struct timeval now;
+    gettimeofday(&now, NULL);
+    int64_t deadline_us = (int64_t) now.tv_sec * 1000000 + now.tv_usec + (int64_t) ms * 1000;
+    struct timespec deadline;
+    deadline.tv_sec = (time_t) (deadline_us / 1000000);
+    deadline.tv_nsec = (long) (deadline_us % 1000000) * 1000;
+    pthread_mutex_lock(&mutex);
+    while (!stopping) {
+        if (pthread_cond_timedwait(&cond, &mutex, &deadline) != 0) {
+            break;
+        }
+    }
+    bool stopped = stopping;
+    pthread_mutex_unlock(&mutex);
+    return !stopped;
+}
+
+void wlanjie::Sender::onWritten(int size) {
+    send_statistic.add(size);
+    int64_t now = current_time_ms();
+    if (now - kbps_sample_ms < KBPS_SAMPLE_INTERVAL_MS) {
+        return;
+    }
+    kbps_sample_ms = now;
+    srs_update_system_time_ms();
+    kbps.sample();
+    send_kbps = kbps.get_send_kbps();
+    send_kbps_30s = kbps.get_send_kbps_30s();
+}
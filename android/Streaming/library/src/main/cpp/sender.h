@@ -0,0 +1,191 @@
+//
+// Created by wlanjie on 2017/8/17.
+//
+
+#ifndef STREAMING_SENDER_H
+#define STREAMING_SENDER_H
+
+#include <atomic>
+#include <string>
+#include <pthread.h>
+#include "frame_queue.h"
+#include "bitrate_controller.h"
+#include "stats.h"
+#include "srs_librtmp.hpp"
+#include "srs_protocol_kbps.hpp"
+
+// first wait before reconnecting, doubled after each failed attempt.
+#define DEFAULT_RECONNECT_INITIAL_DELAY_MS 500
+// longest wait between two reconnect attempts.
+#define DEFAULT_RECONNECT_MAX_DELAY_MS 16000
+// interval to sample the send kbps.
+#define KBPS_SAMPLE_INTERVAL_MS 1000
+// most frames written with one writev.
+#define SENDER_MAX_BATCH_FRAMES 64
+// default max bytes written with one writev, 0 writes every frame on its own.
+#define DEFAULT_BATCH_MAX_BYTES (64 * 1024)
+
+namespace wlanjie {
+
+    /**
+     * one rtmp destination: the connection, its own bounded send queue and drop policy,
+     * the bitrate controller measuring its uplink and the thread writing to it.
+     * a slow destination only fills and drops its own queue.
+     * when a write fails, the thread reconnects with exponential backoff and jitter while
+     * the encoders keep queuing, then sends the cached sequence headers again and
+     * continues from the newest idr in the queue, or asks for a new idr when there is none.
+     * at each wakeup the thread takes all pending frames, up to the max batch bytes,
+     * and writes their chunks with one writev, optionally as one aggregate message.
+     */
+    class Sender {
+    public:
+        Sender();
+
+        ~Sender();
+
+        /**
+         * connect, handshake and publish the stream.
+         * when it fails, the sender thread keeps trying to reconnect after start.
+         * @return 0 on success.
+         */
+        int connect(const char *url);
+
+        /**
+         * @param initial_delay_ms first wait before reconnecting, doubled after each failed attempt.
+         * @param max_delay_ms longest wait between two attempts.
+         * @param max_attempts attempts before giving up the destination, 0 to retry until stopped.
+         */
+        void setReconnect(int initial_delay_ms, int max_delay_ms, int max_attempts);
+
+        /**
+         * @param flush_interval_ms wait up to this long after a frame for more frames to write together,
+         *        0 to write what is pending without waiting.
+         * @param max_bytes max bytes written with one writev, 0 to write every frame on its own.
+         * @param aggregate write a batch as one rtmp aggregate message.
+         */
+        void setBatch(int flush_interval_ms, int max_bytes, bool aggregate);
+
+        /**
+         * @param chunk_size outbound chunk size sent after publish, 0 keeps the srs default of 60000.
+         */
+        void setChunkSize(int chunk_size);
+
+        /**
+         * start the sender thread.
+         */
+        void start(int max_frames, int max_bytes);
+
+        /**
+         * stop the sender thread, drop the pending frames and close the connection.
+         */
+        void stop();
+
+        /**
+         * queue a reference of the frame, the frame data stays owned by the caller.
+         */
+        void send(const Frame &frame);
+
+        /**
+         * @return true once after the sender needs an idr to restart from.
+         */
+        bool pollKeyframeRequest();
+
+        bool isConnected();
+
+        int getReconnectCount();
+
+        /**
+         * @return average send kbps since the sender started.
+         */
+        int getSendKbps();
+
+        /**
+         * @return send kbps of the last 30 seconds.
+         */
+        int getSendKbps30s();
+
+        /**
+         * @return time the frames wait in the send queue.
+         */
+        Histogram *getQueueWait();
+
+        FrameQueue *getQueue();
+
+        BitrateController *getBitrateController();
+
+    private:
+        static void *sendThread(void *arg);
+
+        void loop();
+
+        int write(const Frame &frame);
+
+        /**
+         * write the frames in order with one writev.
+         */
+        int writeBatch(Frame *frames, int count);
+
+        /**
+         * write the frames as one aggregate message, a sequence of flv tags.
+         */
+        int writeAggregate(Frame *frames, int count);
+
+        /**
+         * keep the newest sequence header of the frame type to send it after a reconnect.
+         */
+        void cacheSequenceHeader(const Frame &frame);
+
+        /**
+         * reconnect until success, the sender is stopped or the attempts are used up.
+         * @return false when the sender should quit.
+         */
+        bool reconnect();
+
+        /**
+         * @return false when the sender is stopped while waiting.
+         */
+        bool waitFor(int ms);
+
+        /**
+         * count the bytes written and sample the kbps, called by the sender thread only.
+         */
+        void onWritten(int size);
+
+    private:
+        srs_rtmp_t rtmp;
+        std::string url;
+        FrameQueue queue;
+        BitrateController bitrate_controller;
+        Histogram queue_wait;
+        SendStatistic send_statistic;
+        // SrsKbps is not thread safe, it is sampled by the sender thread and read through the atomics.
+        SrsKbps kbps;
+        int64_t kbps_sample_ms;
+        std::atomic<int> send_kbps;
+        std::atomic<int> send_kbps_30s;
+        Frame video_sequence_header;
+        Frame audio_sequence_header;
+        int reconnect_initial_delay_ms;
+        int reconnect_max_delay_ms;
+        int reconnect_max_attempts;
+        int batch_flush_interval_ms;
+        int batch_max_bytes;
+        bool batch_aggregate;
+        int chunk_size;
+        Frame batch[SENDER_MAX_BATCH_FRAMES];
+        char batch_types[SENDER_MAX_BATCH_FRAMES];
+        u_int32_t batch_timestamps[SENDER_MAX_BATCH_FRAMES];
+        char *batch_datas[SENDER_MAX_BATCH_FRAMES];
+        int batch_sizes[SENDER_MAX_BATCH_FRAMES];
+        std::atomic<bool> connected;
+        std::atomic<bool> keyframe_requested;
+        std::atomic<int> reconnect_count;
+        bool stopping;
+        pthread_mutex_t mutex;
+        pthread_cond_t cond;
+        pthread_t worker;
+        bool started;
+    };
+}
+
+#endif //STREAMING_SENDER_H
@@ -0,0 +1,45 @@
+//
+// Created by wlanjie on 2017/8/18.
+//
+
+#include "stats.h"
+
+wlanjie::Histogram::Histogram() {
+    reset();
+}
+
+void wlanjie::Histogram::record(int ms) {
+    int index = 0;
+    while (index < HISTOGRAM_BUCKET_COUNT - 1 && ms > (1 << index)) {
+        index++;
+    }
+    buckets[index].fetch_add(1, std::memory_order_relaxed);
+}
+
+void wlanjie::Histogram::snapshot(int64_t *counts) {
+    for (int i = 0; i < HISTOGRAM_BUCKET_COUNT; i++) {
+        counts[i] = buckets[i].load(std::memory_order_relaxed);
+    }
+}
+
+void wlanjie::Histogram::reset() {
+    for (int i = 0; i < HISTOGRAM_BUCKET_COUNT; i++) {
+        buckets[i].store(0, std::memory_order_relaxed);
+    }
+}
+
+wlanjie::SendStatistic::SendStatistic() : bytes(0) {
+
+}
+
+void wlanjie::SendStatistic::add(int bytes) {
+    this->bytes.fetch_add(bytes, std::memory_order_relaxed);
+}
+
+int64_t wlanjie::SendStatistic::get_recv_bytes() {
+    return 0;
+}
+
+int64_t wlanjie::SendStatistic::get_send_bytes() {
+    return bytes.load(std::memory_order_relaxed);
+}
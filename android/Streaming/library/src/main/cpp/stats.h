@@ -0,0 +1,107 @@
+//
+// Created by wlanjie on 2017/8/18.
+//
+
+#ifndef STREAMING_STATS_H
+#define STREAMING_STATS_H
+
+#include <atomic>
+#include <stdint.h>
+#include "frame_queue.h"
+#include "srs_protocol_io.hpp"
+
+// buckets of the latency histograms, bucket i counts values up to 2^i ms, the last one the rest.
+#define HISTOGRAM_BUCKET_COUNT 12
+
+namespace wlanjie {
+
+    /**
+     * layout of the stats array returned to java, keep in sync with StreamingStats.java.
+     */
+    enum StatsIndex {
+        // frames muxed since the publish started.
+        STATS_VIDEO_FRAMES = 0,
+        STATS_AUDIO_FRAMES,
+        // send kbps of the primary destination, last second, since start and last 30 seconds.
+        STATS_SEND_KBPS,
+        STATS_SEND_KBPS_AVERAGE,
+        STATS_SEND_KBPS_30S,
+        // video bitrate chosen by the bitrate controller.
+        STATS_TARGET_KBPS,
+        // send queue of the primary destination.
+        STATS_QUEUE_FRAMES,
+        STATS_QUEUE_BYTES,
+        STATS_RTT_MS,
+        // successful reconnects of all destinations.
+        STATS_RECONNECT_COUNT,
+        STATS_DESTINATIONS,
+        STATS_CONNECTED_DESTINATIONS,
+        // frames dropped by all destinations, one value for each DropReason.
+        STATS_DROPPED,
+        // HISTOGRAM_BUCKET_COUNT counts of the soft video encode time.
+        STATS_ENCODE_TIME = STATS_DROPPED + DROP_REASON_COUNT,
+        // HISTOGRAM_BUCKET_COUNT counts of the queue wait of the primary destination.
+        STATS_QUEUE_WAIT = STATS_ENCODE_TIME + HISTOGRAM_BUCKET_COUNT,
+        STATS_COUNT = STATS_QUEUE_WAIT + HISTOGRAM_BUCKET_COUNT
+    };
+
+    /**
+     * lock free latency histogram with power of two millisecond buckets.
+     * record() is called on the hot path, snapshot() by the poller.
+     */
+    class Histogram {
+    public:
+        Histogram();
+
+        void record(int ms);
+
+        /**
+         * @param counts HISTOGRAM_BUCKET_COUNT counts since the last reset.
+         */
+        void snapshot(int64_t *counts);
+
+        void reset();
+
+    private:
+        std::atomic<int64_t> buckets[HISTOGRAM_BUCKET_COUNT];
+    };
+
+    /**
+     * bytes written by a sender, the output io of its SrsKbps.
+     */
+    class SendStatistic : public ISrsProtocolStatistic {
+    public:
+        SendStatistic();
+
+        void add(int bytes);
+
+        virtual int64_t get_recv_bytes();
+
+        virtual int64_t get_send_bytes();
+
+    private:
+        std::atomic<int64_t> bytes;
+    };
+
+    /**
+     * counters of a publishing session written by the encoder threads.
+     * every counter is an atomic, nothing takes a lock to measure.
+     */
+    struct PublishStats {
+        // frames muxed, soft or hardware encoded.
+        std::atomic<int64_t> video_frames;
+        std::atomic<int64_t> audio_frames;
+        // time the soft video encoder takes for a frame.
+        Histogram encode_time;
+
+        PublishStats() : video_frames(0), audio_frames(0) {}
+
+        void reset() {
+            video_frames = 0;
+            audio_frames = 0;
+            encode_time.reset();
+        }
+    };
+}
+
+#endif //STREAMING_STATS_H
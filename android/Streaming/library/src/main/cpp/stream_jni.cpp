@@ -7,13 +7,16 @@
 #define _Included_com_wlanjie_ffmpeg_library_FFmpeg
 
 #include <jni.h>
+#include <string.h>
+#include <pthread.h>
 #include "audioencode.h"
+#include "video_encoder.h"
 #include "h264encode.h"
-#include "muxer.h"
+#include "frame_converter.h"
+#include "publisher.h"
+#include "packet_pool.h"
+#include "utils.h"
 #include "log.h"
-#include "rtmp/libs/srs_librtmp.hpp"
-#include <queue>
-#include <unistd.h>
 
 #ifndef NELEM
 #define NELEM(x) ((int) (sizeof(x) / sizeof((x)[0])))
@@ -21,102 +24,327 @@
 #define RTMP_CLASS_NAME "com/wlanjie/streaming/rtmp/Rtmp"
 #define VIDEO_ENCODER_CLASS_NAME "com/wlanjie/streaming/video/OpenH264Encoder"
 #define AUDIO_ENCODER_CLASS_NAME "com/wlanjie/streaming/audio/FdkAACEncoder"
+#define FRAME_CONVERTER_CLASS_NAME "com/wlanjie/streaming/video/FrameConverter"
 #ifdef __cplusplus
 extern "C" {
 #endif
 
-#define AUDIO_TYPE 0
-#define VIDEO_TYPE 1
+/**
+ * a soft video encoder writing to a publisher.
+ */
+struct VideoEncoderSession {
+    // created for the codec of the video parameter.
+    wlanjie::VideoEncoder *encoder;
+    int codec;
+    wlanjie::Publisher *publisher;
+};
 
-struct Frame {
-    char *data;
-    int size = 0;
-    int packet_type;
-    int pts;
+/**
+ * a soft audio encoder writing to a publisher.
+ */
+struct AudioEncoderSession {
+    wlanjie::AudioEncode encoder;
+    wlanjie::Publisher *publisher;
 };
 
-std::queue<Frame> q;
-
-wlanjie::H264Encoder h264Encoder;
-wlanjie::AudioEncode audioEncode;
-srs_rtmp_t rtmp;
-bool is_stop = false;
-pthread_t worker;
-pthread_mutex_t mutex;
-std::ofstream _outputStream;
-
-void *publish(void *arg) {
-    while (!is_stop) {
-        while (!q.empty()) {
-            pthread_mutex_lock(&mutex);
-            Frame frame = q.front();
-            q.pop();
-
-            srs_rtmp_write_packet(rtmp, (char) (frame.packet_type == AUDIO_TYPE ? SRS_RTMP_TYPE_AUDIO : SRS_RTMP_TYPE_VIDEO),
-                                  (u_int32_t) frame.pts, frame.data, frame.size);
-            delete[] frame.data;
-            pthread_mutex_unlock(&mutex);
-        }
-        usleep(1000 * 500);
+// the mNativeHandle fields of Rtmp, OpenH264Encoder, FdkAACEncoder and FrameConverter.
+jfieldID rtmp_handle_field;
+jfieldID video_encoder_handle_field;
+jfieldID audio_encoder_handle_field;
+jfieldID frame_converter_handle_field;
+
+// guards the handle of every Rtmp object against destroy, held only to read and retain it.
+pthread_mutex_t publisher_handle_mutex = PTHREAD_MUTEX_INITIALIZER;
+
+wlanjie::Publisher *get_publisher(JNIEnv *env, jobject object) {
+    return (wlanjie::Publisher *) env->GetLongField(object, rtmp_handle_field);
+}
+
+/**
+ * the session of an Rtmp object retained for one native call, so the writers and the stats poller
+ * run concurrently without the java lock and a destroy on another thread can not delete it under them.
+ * publisher is NULL after destroy.
+ */
+struct PublisherRef {
+    wlanjie::Publisher *publisher;
+
+    PublisherRef(JNIEnv *env, jobject object);
+
+    ~PublisherRef();
+};
+
+PublisherRef::PublisherRef(JNIEnv *env, jobject object) {
+    pthread_mutex_lock(&publisher_handle_mutex);
+    publisher = get_publisher(env, object);
+    if (publisher != NULL) {
+        publisher->retain();
     }
-    return NULL;
+    pthread_mutex_unlock(&publisher_handle_mutex);
 }
 
-void Android_JNI_startPublish(JNIEnv *env, jobject object) {
-    pthread_attr_t attr;
-    pthread_attr_init(&attr);
-    pthread_create(&worker, &attr, publish, NULL);
-    pthread_mutex_init(&mutex, NULL);
+PublisherRef::~PublisherRef() {
+    if (publisher != NULL) {
+        publisher->release();
+    }
 }
 
+VideoEncoderSession *get_video_encoder(JNIEnv *env, jobject object) {
+    return (VideoEncoderSession *) env->GetLongField(object, video_encoder_handle_field);
+}
 
-void muxer_aac_success(char *data, int size, int pts) {
-    if (data == NULL || size <= 0) {
-        return;
+AudioEncoderSession *get_audio_encoder(JNIEnv *env, jobject object) {
+    return (AudioEncoderSession *) env->GetLongField(object, audio_encoder_handle_field);
+}
+
+wlanjie::FrameConverter *get_frame_converter(JNIEnv *env, jobject object) {
+    return (wlanjie::FrameConverter *) env->GetLongField(object, frame_converter_handle_field);
+}
+
+void Android_JNI_rtmp_setup(JNIEnv *env, jobject object) {
+    wlanjie::Publisher *publisher = new wlanjie::Publisher();
+    env->SetLongField(object, rtmp_handle_field, (jlong) publisher);
+}
+
+jint Android_JNI_connect(JNIEnv *env, jobject object, jstring url, jint rendition) {
+    wlanjie::Publisher *publisher = get_publisher(env, object);
+    if (publisher == NULL) {
+        return -1;
+    }
+    const char *rtmp_url = env->GetStringUTFChars(url, 0);
+    int result = publisher->connect(rtmp_url, rendition);
+    env->ReleaseStringUTFChars(url, rtmp_url);
+    return result;
+}
+
+void Android_JNI_startPublish(JNIEnv *env, jobject object, jint max_frames, jint max_bytes) {
+    wlanjie::Publisher *publisher = get_publisher(env, object);
+    if (publisher != NULL) {
+        publisher->start(max_frames, max_bytes);
     }
-    char *aac = NULL;
-    int aac_length = 0;
-    int aac_packet_type = 0;
-    muxer_aac(10, 3, 1, 1, data, size, pts, &aac, &aac_length, &aac_packet_type);
+}
+
+void Android_JNI_set_video_bitrate_range(JNIEnv *env, jobject object, jint min_kbps, jint max_kbps) {
+    wlanjie::Publisher *publisher = get_publisher(env, object);
+    if (publisher != NULL) {
+        publisher->setVideoBitrateRange(min_kbps, max_kbps);
+    }
+}
+
+jint Android_JNI_get_video_bitrate(JNIEnv *env, jobject object) {
+    PublisherRef ref(env, object);
+    wlanjie::Publisher *publisher = ref.publisher;
+    return publisher == NULL ? 0 : publisher->getVideoBitrate();
+}
+
+void Android_JNI_set_drop_threshold(JNIEnv *env, jobject object, jint drop_frame_ms, jint drop_gop_ms) {
+    wlanjie::Publisher *publisher = get_publisher(env, object);
+    if (publisher != NULL) {
+        publisher->setDropThreshold(drop_frame_ms, drop_gop_ms);
+    }
+}
+
+void Android_JNI_set_reconnect(JNIEnv *env, jobject object, jint initial_delay_ms, jint max_delay_ms, jint max_attempts) {
+    wlanjie::Publisher *publisher = get_publisher(env, object);
+    if (publisher != NULL) {
+        publisher->setReconnect(initial_delay_ms, max_delay_ms, max_attempts);
+    }
+}
+
+void Android_JNI_set_batch(JNIEnv *env, jobject object, jint flush_interval_ms, jint max_bytes, jboolean aggregate) {
+    wlanjie::Publisher *publisher = get_publisher(env, object);
+    if (publisher != NULL) {
+        publisher->setBatch(flush_interval_ms, max_bytes, aggregate == JNI_TRUE);
+    }
+}
+
+void Android_JNI_set_chunk_size(JNIEnv *env, jobject object, jint chunk_size) {
+    wlanjie::Publisher *publisher = get_publisher(env, object);
+    if (publisher != NULL) {
+        publisher->setChunkSize(chunk_size);
+    }
+}
+
+jboolean Android_JNI_poll_keyframe_request(JNIEnv *env, jobject object) {
+    PublisherRef ref(env, object);
+    wlanjie::Publisher *publisher = ref.publisher;
+    return (jboolean) (publisher != NULL && publisher->pollKeyframeRequest());
+}
+
+jint Android_JNI_get_reconnect_count(JNIEnv *env, jobject object) {
+    PublisherRef ref(env, object);
+    wlanjie::Publisher *publisher = ref.publisher;
+    return publisher == NULL ? 0 : publisher->getReconnectCount();
+}
+
+jint Android_JNI_get_destination_count(JNIEnv *env, jobject object) {
+    PublisherRef ref(env, object);
+    wlanjie::Publisher *publisher = ref.publisher;
+    return publisher == NULL ? 0 : publisher->getSenderCount();
+}
+
+jint Android_JNI_get_queue_frames(JNIEnv *env, jobject object) {
+    PublisherRef ref(env, object);
+    wlanjie::Publisher *publisher = ref.publisher;
+    return publisher == NULL ? 0 : publisher->getQueueFrames();
+}
+
+jint Android_JNI_get_queue_bytes(JNIEnv *env, jobject object) {
+    PublisherRef ref(env, object);
+    wlanjie::Publisher *publisher = ref.publisher;
+    return publisher == NULL ? 0 : publisher->getQueueBytes();
+}
 
-    if (aac_length > 0) {
-        Frame frame;
-        frame.data = aac;
-        frame.size = aac_length;
-        frame.pts = pts;
-        frame.packet_type = AUDIO_TYPE;
-        q.push(frame);
+jboolean Android_JNI_get_stats(JNIEnv *env, jobject object, jlongArray values) {
+    PublisherRef ref(env, object);
+    wlanjie::Publisher *publisher = ref.publisher;
+    if (publisher == NULL || values == NULL || env->GetArrayLength(values) < wlanjie::STATS_COUNT) {
+        return JNI_FALSE;
     }
+    int64_t stats[wlanjie::STATS_COUNT];
+    publisher->getStats(stats);
+    env->SetLongArrayRegion(values, 0, wlanjie::STATS_COUNT, (jlong *) stats);
+    return JNI_TRUE;
+}
+
+jlong Android_JNI_get_packet_pool_hits(JNIEnv *env, jclass clazz) {
+    return wlanjie::packet_pool.stats().hits;
 }
 
-void muxer_h264_success(char *data, int size, int pts) {
-    char* sps_pps = NULL;
-    int sps_pps_size = 0;
-    char* h264 = NULL;
-    int h264_size = 0;
+jlong Android_JNI_get_packet_pool_misses(JNIEnv *env, jclass clazz) {
+    return wlanjie::packet_pool.stats().misses;
+}
+
+jlong Android_JNI_get_packet_pool_bytes(JNIEnv *env, jclass clazz) {
+    return wlanjie::packet_pool.stats().bytes_outstanding;
+}
+
+/**
+ * resolve the memory of a direct ByteBuffer, no copy is made.
+ * @return NULL when the buffer is not direct or the range is out of the buffer.
+ */
+char *get_direct_buffer(JNIEnv *env, jobject buffer, jint offset, jint size) {
+    char *data = (char *) env->GetDirectBufferAddress(buffer);
     if (data == NULL) {
-        return;
+        LOGE("ByteBuffer must be direct");
+        return NULL;
     }
-    muxer_h264(data, size, pts, pts, &sps_pps, &sps_pps_size, &h264, &h264_size);
-    if (sps_pps != NULL && sps_pps_size > 0) {
-        Frame frame;
-        frame.data = sps_pps;
-        frame.size = sps_pps_size;
-        frame.pts = pts;
-        frame.packet_type = VIDEO_TYPE;
-        q.push(frame);
+    if (offset < 0 || size <= 0 || offset + size > env->GetDirectBufferCapacity(buffer)) {
+        LOGE("invalid ByteBuffer range offset = %d size = %d", offset, size);
+        return NULL;
     }
-    if (h264 != NULL && h264_size > 0) {
-        Frame frame;
-        frame.data = h264;
-        frame.size = h264_size;
-        frame.pts = pts;
-        frame.packet_type = VIDEO_TYPE;
-        q.push(frame);
+    return data + offset;
+}
+
+int Android_JNI_write_video(JNIEnv *env, jobject object, jbyteArray frame, jlong timestamp) {
+    PublisherRef ref(env, object);
+    wlanjie::Publisher *publisher = ref.publisher;
+    if (publisher == NULL) {
+        return -1;
+    }
+    jbyte *data = env->GetByteArrayElements(frame, NULL);
+    jsize data_size = env->GetArrayLength(frame);
+    publisher->writeH264((char *) data, data_size, (int) timestamp);
+    env->ReleaseByteArrayElements(frame, data, JNI_ABORT);
+    return 0;
+}
+
+int Android_JNI_write_video_buffer(JNIEnv *env, jobject object, jobject frame, jint offset, jint size, jlong timestamp) {
+    PublisherRef ref(env, object);
+    wlanjie::Publisher *publisher = ref.publisher;
+    char *data = get_direct_buffer(env, frame, offset, size);
+    if (publisher == NULL || data == NULL) {
+        return -1;
     }
+    publisher->writeH264(data, size, (int) timestamp);
+    return 0;
 }
 
-void Android_JNI_setVideoParameter(JNIEnv *env, jobject object, jobject videoParameterObject) {
+jint Android_JNI_write_audio(JNIEnv *env, jobject object, jbyteArray frame, jlong timestamp,
+                             jint sampleRate, jint channel) {
+    PublisherRef ref(env, object);
+    wlanjie::Publisher *publisher = ref.publisher;
+    if (publisher == NULL) {
+        return -1;
+    }
+    jbyte *data = env->GetByteArrayElements(frame, NULL);
+    jsize data_size = env->GetArrayLength(frame);
+    publisher->writeAac((char *) data, data_size, (int) timestamp);
+    env->ReleaseByteArrayElements(frame, data, JNI_ABORT);
+    return 0;
+}
+
+jint Android_JNI_write_audio_buffer(JNIEnv *env, jobject object, jobject frame, jint offset, jint size,
+                                    jlong timestamp, jint sampleRate, jint channel) {
+    PublisherRef ref(env, object);
+    wlanjie::Publisher *publisher = ref.publisher;
+    char *data = get_direct_buffer(env, frame, offset, size);
+    if (publisher == NULL || data == NULL) {
+        return -1;
+    }
+    publisher->writeAac(data, size, (int) timestamp);
+    return 0;
+}
+
+jint Android_JNI_write_audio_specific_config(JNIEnv *env, jobject object, jobject config, jint offset, jint size) {
+    PublisherRef ref(env, object);
+    wlanjie::Publisher *publisher = ref.publisher;
+    char *data = get_direct_buffer(env, config, offset, size);
+    if (publisher == NULL || data == NULL) {
+        return -1;
+    }
+    publisher->writeAacSpecificConfig(data, size);
+    return 0;
+}
+
+jint Android_JNI_write_raw_audio(JNIEnv *env, jobject object, jobject frame, jint offset, jint size, jlong timestamp) {
+    PublisherRef ref(env, object);
+    wlanjie::Publisher *publisher = ref.publisher;
+    char *data = get_direct_buffer(env, frame, offset, size);
+    if (publisher == NULL || data == NULL) {
+        return -1;
+    }
+    publisher->writeAacRaw(data, size, (int) timestamp);
+    return 0;
+}
+
+void Android_JNI_destroy(JNIEnv *env, jobject object) {
+    pthread_mutex_lock(&publisher_handle_mutex);
+    wlanjie::Publisher *publisher = get_publisher(env, object);
+    env->SetLongField(object, rtmp_handle_field, 0);
+    pthread_mutex_unlock(&publisher_handle_mutex);
+    if (publisher == NULL) {
+        return;
+    }
+    // a call that retained it before finishes with the stopped session.
+    publisher->stop();
+    // the encoders still writing to the session keep it alive, their frames are dropped.
+    publisher->release();
+    wlanjie::PacketPoolStats stats = wlanjie::packet_pool.stats();
+    LOGI("packet pool hits = %lld misses = %lld outstanding = %d packets %lld bytes",
+         (long long) stats.hits, (long long) stats.misses, stats.packets_outstanding, (long long) stats.bytes_outstanding);
+    wlanjie::packet_pool.trim();
+}
+
+void Android_JNI_enable_log(JNIEnv *env, jclass clazz) {
+#define LOG
+}
+
+void Android_JNI_video_encoder_setup(JNIEnv *env, jobject object, jobject rtmp) {
+    PublisherRef ref(env, rtmp);
+    wlanjie::Publisher *publisher = ref.publisher;
+    if (publisher == NULL) {
+        LOGE("rtmp is destroyed");
+        return;
+    }
+    VideoEncoderSession *session = new VideoEncoderSession();
+    session->encoder = NULL;
+    session->codec = -1;
+    publisher->retain();
+    session->publisher = publisher;
+    env->SetLongField(object, video_encoder_handle_field, (jlong) session);
+}
+
+void read_video_parameter(JNIEnv *env, jobject videoParameterObject, wlanjie::VideoParameter *parameter) {
     jclass videoParameterClass = env->GetObjectClass(videoParameterObject);
     jmethodID getFrameWidthId = env->GetMethodID(videoParameterClass, "getFrameWidth", "()I");
     jint frameWidth = env->CallIntMethod(videoParameterObject, getFrameWidthId);
@@ -136,148 +364,355 @@ void Android_JNI_setVideoParameter(JNIEnv *env, jobject object, jobject videoPar
     jmethodID getFrameRateId = env->GetMethodID(videoParameterClass, "getFrameRate", "()I");
     jint frameRate = env->CallIntMethod(videoParameterObject, getFrameRateId);
 
-    wlanjie::VideoParameter parameter;
-    parameter.frameWidth = frameWidth;
-    parameter.frameHeight = frameHeight;
-    parameter.videoWidth = videoWidth;
-    parameter.videoHeight = videoHeight;
-    parameter.frameRate = frameRate;
-    parameter.bitrate = bitrate;
-    h264Encoder.setVideoParameter(parameter);
+    jmethodID getInputFormatId = env->GetMethodID(videoParameterClass, "getInputFormat", "()I");
+    jint inputFormat = env->CallIntMethod(videoParameterObject, getInputFormatId);
+
+    jmethodID getScaleFilterId = env->GetMethodID(videoParameterClass, "getScaleFilter", "()I");
+    jint scaleFilter = env->CallIntMethod(videoParameterObject, getScaleFilterId);
+
+    jmethodID getThreadCountId = env->GetMethodID(videoParameterClass, "getThreadCount", "()I");
+    jint threadCount = env->CallIntMethod(videoParameterObject, getThreadCountId);
+
+    jmethodID getSliceCountId = env->GetMethodID(videoParameterClass, "getSliceCount", "()I");
+    jint sliceCount = env->CallIntMethod(videoParameterObject, getSliceCountId);
+
+    jmethodID getRateControlId = env->GetMethodID(videoParameterClass, "getRateControl", "()I");
+    jint rateControl = env->CallIntMethod(videoParameterObject, getRateControlId);
+
+    jmethodID getMaxBitrateId = env->GetMethodID(videoParameterClass, "getMaxBitrate", "()I");
+    jint maxBitrate = env->CallIntMethod(videoParameterObject, getMaxBitrateId);
+
+    jmethodID getVbvBufferSizeId = env->GetMethodID(videoParameterClass, "getVbvBufferSize", "()I");
+    jint vbvBufferSize = env->CallIntMethod(videoParameterObject, getVbvBufferSizeId);
+
+    jmethodID getMinQpId = env->GetMethodID(videoParameterClass, "getMinQp", "()I");
+    jint minQp = env->CallIntMethod(videoParameterObject, getMinQpId);
+
+    jmethodID getMaxQpId = env->GetMethodID(videoParameterClass, "getMaxQp", "()I");
+    jint maxQp = env->CallIntMethod(videoParameterObject, getMaxQpId);
+
+    jmethodID getIntraPeriodId = env->GetMethodID(videoParameterClass, "getIntraPeriod", "()I");
+    jint intraPeriod = env->CallIntMethod(videoParameterObject, getIntraPeriodId);
+
+    jmethodID getSpatialLayersId = env->GetMethodID(videoParameterClass, "getSpatialLayers", "()I");
+    jint spatialLayers = env->CallIntMethod(videoParameterObject, getSpatialLayersId);
+
+    jmethodID getTemporalLayersId = env->GetMethodID(videoParameterClass, "getTemporalLayers", "()I");
+    jint temporalLayers = env->CallIntMethod(videoParameterObject, getTemporalLayersId);
+
+    jmethodID getCodecId = env->GetMethodID(videoParameterClass, "getCodec", "()I");
+    jint codec = env->CallIntMethod(videoParameterObject, getCodecId);
+
+    jmethodID getPresetId = env->GetMethodID(videoParameterClass, "getPreset", "()I");
+    jint preset = env->CallIntMethod(videoParameterObject, getPresetId);
+
+    jmethodID getTuneId = env->GetMethodID(videoParameterClass, "getTune", "()I");
+    jint tune = env->CallIntMethod(videoParameterObject, getTuneId);
+
+    jmethodID isSlicedThreadsId = env->GetMethodID(videoParameterClass, "isSlicedThreads", "()Z");
+    jboolean slicedThreads = env->CallBooleanMethod(videoParameterObject, isSlicedThreadsId);
+    env->DeleteLocalRef(videoParameterClass);
+
+    parameter->frameWidth = frameWidth;
+    parameter->frameHeight = frameHeight;
+    parameter->videoWidth = videoWidth;
+    parameter->videoHeight = videoHeight;
+    parameter->frameRate = frameRate;
+    parameter->bitrate = bitrate;
+    parameter->inputFormat = inputFormat;
+    parameter->scaleFilter = scaleFilter;
+    parameter->threadCount = threadCount;
+    parameter->sliceCount = sliceCount;
+    parameter->rateControl = rateControl;
+    parameter->maxBitrate = maxBitrate;
+    parameter->vbvBufferSize = vbvBufferSize;
+    parameter->minQp = minQp;
+    parameter->maxQp = maxQp;
+    parameter->intraPeriod = intraPeriod;
+    parameter->spatialLayers = spatialLayers;
+    parameter->temporalLayers = temporalLayers;
+    parameter->codec = codec;
+    parameter->preset = preset;
+    parameter->tune = tune;
+    parameter->slicedThreads = slicedThreads == JNI_TRUE;
 }
 
-jboolean Android_JNI_openH264Encoder(JNIEnv *env, jobject object) {
-    h264Encoder.openH264Encoder();
-    return JNI_TRUE;
+void Android_JNI_setVideoParameter(JNIEnv *env, jobject object, jobject videoParameterObject) {
+    VideoEncoderSession *session = get_video_encoder(env, object);
+    if (session == NULL) {
+        return;
+    }
+    wlanjie::VideoParameter parameter;
+    read_video_parameter(env, videoParameterObject, &parameter);
+    if (session->encoder == NULL || session->codec != parameter.codec) {
+        // the backend is chosen before the encoder is opened.
+        if (session->encoder != NULL) {
+            session->encoder->close();
+            delete session->encoder;
+        }
+        session->encoder = wlanjie::VideoEncoder::create(parameter.codec);
+        session->codec = parameter.codec;
+        if (session->encoder == NULL) {
+            LOGE("unknown video codec %d", parameter.codec);
+            return;
+        }
+    }
+    session->encoder->setVideoParameter(parameter);
 }
 
-void Android_JNI_closeH264Encoder(JNIEnv *env, jobject object) {
-    std::queue<Frame> empty;
-    std::swap(q, empty);
-    h264Encoder.closeH264Encoder();
+jint Android_JNI_calibrate_video_encoder(JNIEnv *env, jclass clazz, jobject videoParameterObject, jint frames,
+                                         jfloatArray fps) {
+    wlanjie::VideoParameter parameter;
+    read_video_parameter(env, videoParameterObject, &parameter);
+    wlanjie::CalibrationResult results[H264_MAX_THREADS];
+    memset(results, 0, sizeof(results));
+    int threads = wlanjie::H264Encoder::calibrate(parameter, frames, results);
+    if (fps != NULL) {
+        jfloat values[H264_MAX_THREADS];
+        int count = env->GetArrayLength(fps);
+        if (count > H264_MAX_THREADS) {
+            count = H264_MAX_THREADS;
+        }
+        for (int i = 0; i < count; i++) {
+            values[i] = results[i].fps;
+        }
+        env->SetFloatArrayRegion(fps, 0, count, values);
+    }
+    return threads;
 }
 
-jboolean Android_JNI_openAacEncode(JNIEnv *env, jobject object, jint channels, jint sample_rate,
-                                   jint bitrate) {
-    return (jboolean) audioEncode.open(channels, sample_rate, bitrate);
+jboolean Android_JNI_open_video_encoder(JNIEnv *env, jobject object) {
+    VideoEncoderSession *session = get_video_encoder(env, object);
+    if (session == NULL || session->encoder == NULL) {
+        return JNI_FALSE;
+    }
+    return (jboolean) session->encoder->open();
 }
 
-jint Android_JNI_encode_audio(JNIEnv *env, jobject object, jbyteArray pcm, jint pts) {
-    if (is_stop) {
-        return 0;
+void Android_JNI_close_video_encoder(JNIEnv *env, jobject object) {
+    VideoEncoderSession *session = get_video_encoder(env, object);
+    if (session == NULL) {
+        return;
     }
-    jbyte *pcm_frame = env->GetByteArrayElements(pcm, NULL);
-    int pcm_length = env->GetArrayLength(pcm);
-    int aac_size;
-    uint8_t *aac;
-    audioEncode.encode((char *) pcm_frame, pcm_length, &aac_size, &aac);
-    env->ReleaseByteArrayElements(pcm, pcm_frame, NULL);
-    if (aac_size > 0) {
-        muxer_aac_success((char *) aac, aac_size, pts);
+    env->SetLongField(object, video_encoder_handle_field, 0);
+    if (session->encoder != NULL) {
+        session->encoder->close();
+        delete session->encoder;
     }
-    return 0;
+    session->publisher->release();
+    delete session;
 }
 
-void Android_JNI_closeAacEncoder() {
-    audioEncode.close();
+void encode_video_frame(VideoEncoderSession *session, char *frame, jlong pts) {
+    wlanjie::Publisher *publisher = session->publisher;
+    wlanjie::VideoEncoder *encoder = session->encoder;
+    if (publisher->isStopped() || encoder == NULL) {
+        return;
+    }
+    encoder->setBitrate(publisher->getVideoBitrate());
+    if (publisher->pollKeyframeRequest()) {
+        encoder->forceKeyframe();
+    }
+    wlanjie::H264Layer layers[H264_MAX_LAYERS];
+    int64_t start = wlanjie::current_time_ms();
+    int count = encoder->encodeLayers(frame, (long) pts, layers);
+    publisher->recordEncodeTime((int) (wlanjie::current_time_ms() - start));
+    // each spatial layer goes to the destinations of its rendition.
+    for (int rendition = 0; rendition < count; rendition++) {
+        if (layers[rendition].data == NULL) {
+            continue;
+        }
+        publisher->writeH264((char *) layers[rendition].data, layers[rendition].size, (int) layers[rendition].pts,
+                             rendition, layers[rendition].temporal_id);
+        wlanjie::packet_pool.release((char *) layers[rendition].data);
+    }
 }
 
 void Android_JNI_encode_video(JNIEnv *env, jobject object, jbyteArray data, jlong pts) {
-    if (is_stop) {
+    VideoEncoderSession *session = get_video_encoder(env, object);
+    if (session == NULL) {
         return;
     }
     jbyte *frame = env->GetByteArrayElements(data, NULL);
-    int h264_size;
-    uint8_t *h264;
-    h264Encoder.encoder((char *) frame, (long) pts, &h264_size, &h264);
-    env->ReleaseByteArrayElements(data, frame, NULL);
-    if (h264_size > 0) {
-        muxer_h264_success((char *) h264, h264_size, (int) pts);
-        delete[] h264;
+    encode_video_frame(session, (char *) frame, pts);
+    env->ReleaseByteArrayElements(data, frame, JNI_ABORT);
+}
+
+void Android_JNI_encode_video_buffer(JNIEnv *env, jobject object, jobject data, jint offset, jint size, jlong pts) {
+    VideoEncoderSession *session = get_video_encoder(env, object);
+    char *frame = get_direct_buffer(env, data, offset, size);
+    if (session == NULL || frame == NULL) {
+        return;
     }
+    encode_video_frame(session, frame, pts);
 }
 
-jint Android_JNI_connect(JNIEnv *env, jobject object, jstring url) {
-    if (rtmp != NULL) {
-        LOGE("rtmp not NULL");
-        return -1;
+void Android_JNI_frame_converter_setup(JNIEnv *env, jobject object) {
+    env->SetLongField(object, frame_converter_handle_field, (jlong) new wlanjie::FrameConverter());
+}
+
+jboolean Android_JNI_frame_converter_configure(JNIEnv *env, jobject object, jint format,
+                                               jint src_width, jint src_height, jint dst_width, jint dst_height,
+                                               jint rotation, jint filter) {
+    wlanjie::FrameConverter *converter = get_frame_converter(env, object);
+    if (converter == NULL) {
+        return JNI_FALSE;
     }
-    is_stop = false;
-    const char *rtmp_url = env->GetStringUTFChars(url, 0);
-    rtmp = srs_rtmp_create(rtmp_url);
-    int result = 0;
-    if ((result = srs_rtmp_handshake(rtmp)) != 0) {
-        LOGE("srs_rtmp_handshake error = %d", result);
-        return -1;
+    return (jboolean) (converter->setup((wlanjie::FrameFormat) format, src_width, src_height, dst_width, dst_height,
+                                        (libyuv::RotationMode) rotation, (libyuv::FilterMode) filter) == 0);
+}
+
+jboolean Android_JNI_frame_converter_convert(JNIEnv *env, jobject object, jobject src, jint src_size, jobject dst) {
+    wlanjie::FrameConverter *converter = get_frame_converter(env, object);
+    if (converter == NULL) {
+        return JNI_FALSE;
     }
-    if ((result = srs_rtmp_connect_app(rtmp)) != 0) {
-        LOGE("srs_rtmp_connect_app error =%d", result);
-        return -1;
+    char *src_data = get_direct_buffer(env, src, 0, src_size);
+    char *dst_data = get_direct_buffer(env, dst, 0, converter->getOutputSize());
+    if (src_data == NULL || dst_data == NULL) {
+        return JNI_FALSE;
     }
-    if ((result = srs_rtmp_publish_stream(rtmp)) != 0) {
-        LOGE("srs_rtmp_publish_stream = %d", result);
-        return -1;
+    wlanjie::I420Frame target;
+    wlanjie::FrameConverter::wrap((uint8_t *) dst_data, converter->getOutputWidth(), converter->getOutputHeight(), &target);
+    return (jboolean) (converter->convert((const uint8_t *) src_data, target) == 0);
+}
+
+void Android_JNI_frame_converter_release(JNIEnv *env, jobject object) {
+    wlanjie::FrameConverter *converter = get_frame_converter(env, object);
+    if (converter == NULL) {
+        return;
     }
+    env->SetLongField(object, frame_converter_handle_field, 0);
+    delete converter;
+}
 
-    _outputStream.open("/sdcard/streaming.h264", std::ios_base::binary | std::ios_base::out);
-    env->ReleaseStringUTFChars(url, rtmp_url);
+void Android_JNI_audio_encoder_setup(JNIEnv *env, jobject object, jobject rtmp) {
+    PublisherRef ref(env, rtmp);
+    wlanjie::Publisher *publisher = ref.publisher;
+    if (publisher == NULL) {
+        LOGE("rtmp is destroyed");
+        return;
+    }
+    AudioEncoderSession *session = new AudioEncoderSession();
+    publisher->retain();
+    session->publisher = publisher;
+    env->SetLongField(object, audio_encoder_handle_field, (jlong) session);
+}
 
-    return 0;
+jboolean Android_JNI_openAacEncode(JNIEnv *env, jobject object, jint channels, jint sample_rate,
+                                   jint bitrate) {
+    AudioEncoderSession *session = get_audio_encoder(env, object);
+    if (session == NULL) {
+        return JNI_FALSE;
+    }
+    if (!session->encoder.open(channels, sample_rate, bitrate)) {
+        return JNI_FALSE;
+    }
+    uint8_t *config = NULL;
+    int config_size = session->encoder.getSpecificConfig(&config);
+    session->publisher->writeAacSpecificConfig((char *) config, config_size);
+    return JNI_TRUE;
 }
 
-int Android_JNI_write_video(JNIEnv *env, jobject object, jbyteArray frame, jlong timestamp) {
-    jbyte *data = env->GetByteArrayElements(frame, NULL);
-    jsize data_size = env->GetArrayLength(frame);
-    muxer_h264_success((char *) data, data_size, timestamp);
-    env->ReleaseByteArrayElements(frame, data, NULL);
-    return 0;
+void Android_JNI_closeAacEncoder(JNIEnv *env, jobject object) {
+    AudioEncoderSession *session = get_audio_encoder(env, object);
+    if (session == NULL) {
+        return;
+    }
+    env->SetLongField(object, audio_encoder_handle_field, 0);
+    session->encoder.close();
+    session->publisher->release();
+    delete session;
 }
 
-jint Android_JNI_write_audio(JNIEnv *env, jobject object, jbyteArray frame, jlong timestamp,
-                             jint sampleRate, jint channel) {
-    jbyte *data = env->GetByteArrayElements(frame, NULL);
-    jsize data_size = env->GetArrayLength(frame);
-    muxer_aac_success((char *) data, data_size, timestamp);
-    env->ReleaseByteArrayElements(frame, data, NULL);
-    return 0;
+void encode_audio_frame(AudioEncoderSession *session, char *pcm, int pcm_length, int pts) {
+    if (session->publisher->isStopped()) {
+        return;
+    }
+    int aac_size = 0;
+    uint8_t *aac;
+    session->encoder.encode(pcm, pcm_length, &aac_size, &aac);
+    if (aac_size > 0) {
+        session->publisher->writeAacRaw((char *) aac, aac_size, pts);
+    }
 }
 
-void Android_JNI_destroy(JNIEnv *env, jobject object) {
-    _outputStream.close();
-    is_stop = true;
-    srs_rtmp_destroy(rtmp);
-    void *retval;
-    pthread_join(worker, &retval);
-    pthread_mutex_destroy(&mutex);
-    rtmp = NULL;
+jint Android_JNI_encode_audio(JNIEnv *env, jobject object, jbyteArray pcm, jint pts) {
+    AudioEncoderSession *session = get_audio_encoder(env, object);
+    if (session == NULL) {
+        return -1;
+    }
+    jbyte *pcm_frame = env->GetByteArrayElements(pcm, NULL);
+    int pcm_length = env->GetArrayLength(pcm);
+    encode_audio_frame(session, (char *) pcm_frame, pcm_length, pts);
+    env->ReleaseByteArrayElements(pcm, pcm_frame, JNI_ABORT);
+    return 0;
 }
 
-void Android_JNI_enable_log(JNIEnv *env, jobject object) {
-#define LOG
+jint Android_JNI_encode_audio_buffer(JNIEnv *env, jobject object, jobject pcm, jint offset, jint size, jint pts) {
+    AudioEncoderSession *session = get_audio_encoder(env, object);
+    char *pcm_frame = get_direct_buffer(env, pcm, offset, size);
+    if (session == NULL || pcm_frame == NULL) {
+        return -1;
+    }
+    encode_audio_frame(session, pcm_frame, size, pts);
+    return 0;
 }
 
 static JNINativeMethod rtmp_methods[] = {
-        {"startPublish", "()V",                   (void *) Android_JNI_startPublish},
-        {"connect",      "(Ljava/lang/String;)I", (void *) Android_JNI_connect},
+        {"nativeSetup",  "()V",                   (void *) Android_JNI_rtmp_setup},
+        {"startPublish", "(II)V",                 (void *) Android_JNI_startPublish},
+        {"setVideoBitrateRange", "(II)V",         (void *) Android_JNI_set_video_bitrate_range},
+        {"getVideoBitrate", "()I",                (void *) Android_JNI_get_video_bitrate},
+        {"setDropThreshold", "(II)V",             (void *) Android_JNI_set_drop_threshold},
+        {"setReconnect", "(III)V",                (void *) Android_JNI_set_reconnect},
+        {"setBatch", "(IIZ)V",                    (void *) Android_JNI_set_batch},
+        {"setChunkSize", "(I)V",                  (void *) Android_JNI_set_chunk_size},
+        {"pollKeyframeRequest", "()Z",            (void *) Android_JNI_poll_keyframe_request},
+        {"getReconnectCount", "()I",              (void *) Android_JNI_get_reconnect_count},
+        {"getDestinationCount", "()I",            (void *) Android_JNI_get_destination_count},
+        {"getQueueFrames", "()I",                 (void *) Android_JNI_get_queue_frames},
+        {"getQueueBytes", "()I",                  (void *) Android_JNI_get_queue_bytes},
+        {"getStats", "([J)Z",                     (void *) Android_JNI_get_stats},
+        {"getPacketPoolHits", "()J",              (void *) Android_JNI_get_packet_pool_hits},
+        {"getPacketPoolMisses", "()J",            (void *) Android_JNI_get_packet_pool_misses},
+        {"getPacketPoolBytes", "()J",             (void *) Android_JNI_get_packet_pool_bytes},
+        {"connect",      "(Ljava/lang/String;I)I", (void *) Android_JNI_connect},
         {"writeVideo",   "([BJ)I",                (void *) Android_JNI_write_video},
+        {"writeVideo",   "(Ljava/nio/ByteBuffer;IIJ)I", (void *) Android_JNI_write_video_buffer},
         {"writeAudio",   "([BJII)I",              (void *) Android_JNI_write_audio},
+        {"writeAudio",   "(Ljava/nio/ByteBuffer;IIJII)I", (void *) Android_JNI_write_audio_buffer},
+        {"writeAudioSpecificConfig", "(Ljava/nio/ByteBuffer;II)I", (void *) Android_JNI_write_audio_specific_config},
+        {"writeRawAudio", "(Ljava/nio/ByteBuffer;IIJ)I", (void *) Android_JNI_write_raw_audio},
         {"destroy",      "()V",                   (void *) Android_JNI_destroy},
         {"enableLog",   "()V",                   (void *) Android_JNI_enable_log}
 };
 
 static JNINativeMethod video_encoder_methods[] = {
-        {"openEncoder",         "()Z",      (void *) Android_JNI_openH264Encoder},
-        {"closeEncoder",        "()V",      (void *) Android_JNI_closeH264Encoder},
+        {"nativeSetup",         "(Lcom/wlanjie/streaming/rtmp/Rtmp;)V", (void *) Android_JNI_video_encoder_setup},
+        {"openEncoder",         "()Z",      (void *) Android_JNI_open_video_encoder},
+        {"closeEncoder",        "()V",      (void *) Android_JNI_close_video_encoder},
         {"setVideoParameter",   "(Lcom/wlanjie/streaming/video/VideoParameter;)V", (void *) Android_JNI_setVideoParameter },
         {"encode",              "([BJ)V", (void *) Android_JNI_encode_video},
+        {"encode",              "(Ljava/nio/ByteBuffer;IIJ)V", (void *) Android_JNI_encode_video_buffer},
+        {"nativeCalibrate",     "(Lcom/wlanjie/streaming/video/VideoParameter;I[F)I", (void *) Android_JNI_calibrate_video_encoder},
 };
 
 static JNINativeMethod audio_encoder_methods[] = {
+        {"nativeSetup",  "(Lcom/wlanjie/streaming/rtmp/Rtmp;)V", (void *) Android_JNI_audio_encoder_setup},
         {"openEncoder",  "(III)Z", (void *) Android_JNI_openAacEncode},
         {"encode",       "([BI)I", (void *) Android_JNI_encode_audio},
+        {"encode",       "(Ljava/nio/ByteBuffer;III)I", (void *) Android_JNI_encode_audio_buffer},
         {"closeEncoder", "()V",    (void *) Android_JNI_closeAacEncoder},
 };
 
+static JNINativeMethod frame_converter_methods[] = {
+        {"nativeSetup",     "()V",          (void *) Android_JNI_frame_converter_setup},
+        {"nativeConfigure", "(IIIIIII)Z",   (void *) Android_JNI_frame_converter_configure},
+        {"nativeConvert",   "(Ljava/nio/ByteBuffer;ILjava/nio/ByteBuffer;)Z", (void *) Android_JNI_frame_converter_convert},
+        {"nativeRelease",   "()V",          (void *) Android_JNI_frame_converter_release},
+};
+
 JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
     JNIEnv *env = NULL;
     if ((vm)->GetEnv((void **) &env, JNI_VERSION_1_6) != JNI_OK) {
@@ -285,10 +720,16 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
     }
     jclass rtmp_class = env->FindClass(RTMP_CLASS_NAME);
     env->RegisterNatives(rtmp_class, rtmp_methods, NELEM(rtmp_methods));
+    rtmp_handle_field = env->GetFieldID(rtmp_class, "mNativeHandle", "J");
     jclass video_encoder_class = env->FindClass(VIDEO_ENCODER_CLASS_NAME);
     env->RegisterNatives(video_encoder_class, video_encoder_methods, NELEM(video_encoder_methods));
+    video_encoder_handle_field = env->GetFieldID(video_encoder_class, "mNativeHandle", "J");
     jclass audio_encoder_class = env->FindClass(AUDIO_ENCODER_CLASS_NAME);
     env->RegisterNatives(audio_encoder_class, audio_encoder_methods, NELEM(audio_encoder_methods));
+    audio_encoder_handle_field = env->GetFieldID(audio_encoder_class, "mNativeHandle", "J");
+    jclass frame_converter_class = env->FindClass(FRAME_CONVERTER_CLASS_NAME);
+    env->RegisterNatives(frame_converter_class, frame_converter_methods, NELEM(frame_converter_methods));
+    frame_converter_handle_field = env->GetFieldID(frame_converter_class, "mNativeHandle", "J");
     return JNI_VERSION_1_6;
 }
 
@@ -0,0 +1,32 @@
+//
+// Created by wlanjie on 2017/8/14.
+//
+
+#ifndef STREAMING_UTILS_H
+#define STREAMING_UTILS_H
+
+#include <stdint.h>
+#include <time.h>
+
+namespace wlanjie {
+
+    /**
+     * monotonic clock in milliseconds.
+     */
+    inline int64_t current_time_ms() {
+        struct timespec now;
+        clock_gettime(CLOCK_MONOTONIC, &now);
+        return (int64_t) now.tv_sec * 1000 + now.tv_nsec / 1000000;
+    }
+
+    /**
+     * monotonic clock in nanoseconds.
+     */
+    inline int64_t current_time_ns() {
+        struct timespec now;
+        clock_gettime(CLOCK_MONOTONIC, &now);
+        return (int64_t) now.tv_sec * 1000000000 + now.tv_nsec;
+    }
+}
+
+#endif //STREAMING_UTILS_H
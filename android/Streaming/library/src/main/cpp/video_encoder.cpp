@@ -0,0 +1,34 @@
+//
+// Created by wlanjie on 2017/8/19.
+//
+
+#include <stddef.h>
+#include "video_encoder.h"
+#include "h264encode.h"
+#include "x264encode.h"
+#include "packet_pool.h"
+
+wlanjie::VideoEncoder *wlanjie::VideoEncoder::create(int codec) {
+    switch (codec) {
+        case VIDEO_CODEC_OPENH264:
+            return new H264Encoder();
+        case VIDEO_CODEC_X264:
+            return new X264Encoder();
+        default:
+            return NULL;
+    }
+}
+
+void wlanjie::VideoEncoder::encoder(char *frame, long pts, int *h264_length, uint8_t **h264) {
+    H264Layer layers[H264_MAX_LAYERS];
+    int count = encodeLayers(frame, pts, layers);
+    for (int i = 1; i < count; i++) {
+        if (layers[i].data != NULL) {
+            packet_pool.release((char *) layers[i].data);
+        }
+    }
+    if (count > 0 && layers[0].data != NULL) {
+        *h264_length = layers[0].size;
+        *h264 = layers[0].data;
+    }
+}
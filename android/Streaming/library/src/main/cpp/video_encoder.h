@@ -0,0 +1,144 @@
+//
+// Created by wlanjie on 2017/8/19.
+//
+
+#ifndef STREAMING_VIDEO_ENCODER_H
+#define STREAMING_VIDEO_ENCODER_H
+
+#include <stdint.h>
+
+// renditions of one encode, openh264 encodes at most 4 spatial and 4 temporal layers.
+#define H264_MAX_LAYERS 4
+
+namespace wlanjie {
+
+    /**
+     * backends of the soft video encoder, keep in sync with VideoParameter.java.
+     */
+    enum VideoCodec {
+        VIDEO_CODEC_OPENH264 = 0,
+        VIDEO_CODEC_X264 = 1
+    };
+
+    /**
+     * rate control of the soft encoder, keep in sync with VideoParameter.java.
+     */
+    enum RateControl {
+        // the bitrate is held at the target, frames are never skipped.
+        RATE_CONTROL_BITRATE = 0,
+        // constant quality in the qp range, the bitrate follows the picture.
+        RATE_CONTROL_QUALITY = 1,
+        // the bitrate is measured against the frame timestamps, for a variable frame rate.
+        RATE_CONTROL_TIMESTAMP = 2,
+        // bitrate, frames are skipped when the buffer would overflow.
+        RATE_CONTROL_BITRATE_SKIP = 3
+    };
+
+    struct VideoParameter {
+        int frameWidth;
+        int frameHeight;
+        int videoWidth;
+        int videoHeight;
+        int bitrate;
+        int frameRate;
+        // a FrameFormat.
+        int inputFormat;
+        // a libyuv::FilterMode of the cpu scale.
+        int scaleFilter;
+        // encoder threads, 0 for the cores online.
+        int threadCount;
+        // slices of a frame, 0 to choose from the resolution and the threads.
+        int sliceCount;
+        // a RateControl.
+        int rateControl;
+        // kbit/s the rate control never exceeds, 0 for the target bitrate.
+        int maxBitrate;
+        // kbit of the vbv buffer drained at maxBitrate, 0 without a vbv.
+        int vbvBufferSize;
+        // qp range of the rate control, 0 for the encoder default.
+        int minQp;
+        int maxQp;
+        // frames between two idr frames, 0 for the first frame only.
+        int intraPeriod;
+        // renditions encoded at once, each half the size and a third of the bitrate of the one above.
+        int spatialLayers;
+        // temporal layers, the top one is not referenced and can be dropped by the sender.
+        int temporalLayers;
+        // a VideoCodec.
+        int codec;
+        // index of x264_preset_names, x264 only.
+        int preset;
+        // bits of the x264_tune_names indices, x264 only.
+        int tune;
+        // x264 threads encode slices of one frame instead of frames in parallel, a frame less latency.
+        int slicedThreads;
+    };
+
+    /**
+     * the frame of one rendition encoded by VideoEncoder::encodeLayers.
+     */
+    struct H264Layer {
+        // annexb allocated from the packet pool, NULL when the rendition has no frame.
+        uint8_t *data;
+        int size;
+        // temporal layer of the frame, 0 is the base layer.
+        int temporal_id;
+        // timestamp of the frame, older than the input while the encoder delays frames.
+        long pts;
+    };
+
+    /**
+     * a soft h264 encoder, the publishing session encodes through it whatever the backend.
+     * frames are rgba of the frame size, i420 or nv12 of the video size, as parameter.inputFormat.
+     * called from one thread at a time.
+     */
+    class VideoEncoder {
+    public:
+        /**
+         * @return a closed encoder of the codec, NULL for an unknown codec.
+         */
+        static VideoEncoder *create(int codec);
+
+        virtual ~VideoEncoder() {}
+
+        virtual void setVideoParameter(VideoParameter videoParameter) = 0;
+
+        virtual bool open() = 0;
+
+        virtual void close() = 0;
+
+        /**
+         * change the target bitrate of the opened encoder.
+         * @param bitrate kbit/s
+         */
+        virtual void setBitrate(int bitrate) = 0;
+
+        virtual int getBitrate() = 0;
+
+        /**
+         * encode the next frame as an idr.
+         */
+        virtual void forceKeyframe() = 0;
+
+        /**
+         * encode a frame to all the renditions.
+         * @param layers getSpatialLayers() entries, 0 is the full size rendition,
+         *               the caller releases the data of each one.
+         * @return renditions filled, 0 when no frame was output.
+         */
+        virtual int encodeLayers(char *frame, long pts, H264Layer *layers) = 0;
+
+        /**
+         * @return renditions the opened encoder produces.
+         */
+        virtual int getSpatialLayers() const = 0;
+
+        /**
+         * encode a frame to the full size rendition only.
+         * @param h264 annexb frame allocated from the packet pool, the caller releases it.
+         */
+        void encoder(char *frame, long pts, int *h264_length, uint8_t **h264);
+    };
+}
+
+#endif //STREAMING_VIDEO_ENCODER_H
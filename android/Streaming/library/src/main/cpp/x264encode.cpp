@@ -0,0 +1,218 @@
+//
+// Created by wlanjie on 2017/8/19.
+//
+
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include "x264.h"
+#include "x264encode.h"
+#include "packet_pool.h"
+#include "log.h"
+
+static void logX264(void *context, int level, const char *format, va_list args) {
+    char message[256];
+    vsnprintf(message, sizeof(message), format, args);
+    if (level <= X264_LOG_ERROR) {
+        LOGE("x264 %s", message);
+    } else {
+        LOGW("x264 %s", message);
+    }
+}
+
+wlanjie::X264Encoder::X264Encoder() :
+        encoder_(NULL),
+        params((x264_param_t *) calloc(1, sizeof(x264_param_t))),
+        picture((x264_picture_t *) calloc(1, sizeof(x264_picture_t))),
+        force_keyframe(false) {
+    memset(&parameter, 0, sizeof(VideoParameter));
+}
+
+wlanjie::X264Encoder::~X264Encoder() {
+    close();
+    free(params);
+    free(picture);
+}
+
+void wlanjie::X264Encoder::setVideoParameter(wlanjie::VideoParameter videoParameter) {
+    this->parameter = videoParameter;
+}
+
+bool wlanjie::X264Encoder::createEncoderParams(x264_param_t *params) const {
+    const char *preset = x264_preset_names[parameter.preset >= 0 && parameter.preset < X264_PRESET_COUNT
+                                           ? parameter.preset : 0];
+    // x264 takes the tunes as one comma separated string.
+    char tune[128] = {0};
+    for (int i = 0; i < X264_TUNE_COUNT; i++) {
+        if (parameter.tune & (1 << i)) {
+            if (tune[0] != 0) {
+                strcat(tune, ",");
+            }
+            strcat(tune, x264_tune_names[i]);
+        }
+    }
+    if (x264_param_default_preset(params, preset, tune[0] != 0 ? tune : NULL) != 0) {
+        LOGE("x264 preset %s tune %s error", preset, tune);
+        return false;
+    }
+    params->i_width = parameter.videoWidth;
+    params->i_height = parameter.videoHeight;
+    params->i_csp = X264_CSP_I420;
+    params->i_fps_num = (uint32_t) (parameter.frameRate > 0 ? parameter.frameRate : 25);
+    params->i_fps_den = 1;
+    // the pts are in ms.
+    params->i_timebase_num = 1;
+    params->i_timebase_den = 1000;
+    params->b_vfr_input = parameter.rateControl == RATE_CONTROL_TIMESTAMP;
+    params->i_threads = parameter.threadCount > 0 ? parameter.threadCount : X264_THREADS_AUTO;
+    // frame threads delay the output a frame each, slice threads split every frame.
+    params->b_sliced_threads = parameter.slicedThreads != 0;
+    if (parameter.sliceCount > 0) {
+        params->i_slice_count = parameter.sliceCount;
+    }
+    params->i_keyint_max = parameter.intraPeriod > 0 ? parameter.intraPeriod : X264_KEYINT_MAX_INFINITE;
+    params->i_bframe = 0;
+    params->b_repeat_headers = 1;
+    params->b_annexb = 1;
+    params->i_log_level = X264_LOG_WARNING;
+    params->pf_log = logX264;
+
+    if (parameter.rateControl == RATE_CONTROL_QUALITY) {
+        // crf of the preset, capped only when a max bitrate is set.
+        params->rc.i_rc_method = X264_RC_CRF;
+        if (parameter.maxBitrate > 0) {
+            params->rc.i_vbv_max_bitrate = parameter.maxBitrate;
+            params->rc.i_vbv_buffer_size = parameter.vbvBufferSize > 0 ? parameter.vbvBufferSize : parameter.maxBitrate;
+        }
+    } else {
+        params->rc.i_rc_method = X264_RC_ABR;
+        params->rc.i_bitrate = parameter.bitrate;
+        params->rc.i_vbv_max_bitrate = getMaxBitrate();
+        // one second of the max bitrate without a vbv size.
+        params->rc.i_vbv_buffer_size = parameter.vbvBufferSize > 0 ? parameter.vbvBufferSize : getMaxBitrate();
+    }
+    if (parameter.minQp > 0) {
+        params->rc.i_qp_min = parameter.minQp;
+    }
+    if (parameter.maxQp > 0) {
+        params->rc.i_qp_max = parameter.maxQp;
+    }
+    LOGI("x264 %dx%d frameRate = %d bitrate = %d preset = %s tune = %s threads = %d sliced = %d rateControl = %d",
+         parameter.videoWidth, parameter.videoHeight, parameter.frameRate, parameter.bitrate, preset, tune,
+         params->i_threads, params->b_sliced_threads, parameter.rateControl);
+    return true;
+}
+
+bool wlanjie::X264Encoder::open() {
+    if (!createEncoderParams(params)) {
+        return false;
+    }
+    encoder_ = x264_encoder_open(params);
+    if (encoder_ == NULL) {
+        LOGE("open x264 error");
+        return false;
+    }
+    // the encoder keeps its own copy, read back what it chose for a later reconfig.
+    x264_encoder_parameters(encoder_, params);
+
+    FrameFormat format = (FrameFormat) parameter.inputFormat;
+    // gpu converted frames are already of the video size and rotated.
+    bool rgba = format == FRAME_FORMAT_RGBA;
+    if (converter.setup(format,
+                        rgba ? parameter.frameWidth : parameter.videoWidth,
+                        rgba ? parameter.frameHeight : parameter.videoHeight,
+                        parameter.videoWidth, parameter.videoHeight,
+                        rgba ? libyuv::kRotate180 : libyuv::kRotate0,
+                        (libyuv::FilterMode) parameter.scaleFilter) != 0) {
+        LOGE("frame converter setup error");
+        return false;
+    }
+    x264_picture_init(picture);
+    picture->img.i_csp = X264_CSP_I420;
+    picture->img.i_plane = 3;
+    force_keyframe = false;
+    return true;
+}
+
+void wlanjie::X264Encoder::close() {
+    if (encoder_ != NULL) {
+        // frames still delayed in the encoder are dropped.
+        x264_encoder_close(encoder_);
+        encoder_ = NULL;
+    }
+    converter.release();
+}
+
+void wlanjie::X264Encoder::setBitrate(int bitrate) {
+    if (encoder_ == NULL || bitrate <= 0 || bitrate == parameter.bitrate) {
+        return;
+    }
+    // the max bitrate keeps its ratio to the target.
+    if (parameter.maxBitrate > 0 && parameter.bitrate > 0) {
+        parameter.maxBitrate = (int) ((int64_t) parameter.maxBitrate * bitrate / parameter.bitrate);
+    }
+    parameter.bitrate = bitrate;
+    // x264 only changes the bitrate of a vbv, the crf keeps its quality.
+    if (params->rc.i_rc_method != X264_RC_ABR || params->rc.i_vbv_buffer_size <= 0) {
+        return;
+    }
+    params->rc.i_bitrate = bitrate;
+    params->rc.i_vbv_max_bitrate = getMaxBitrate();
+    if (x264_encoder_reconfig(encoder_, params) < 0) {
+        LOGE("x264 reconfig bitrate %d error", bitrate);
+    }
+}
+
+int wlanjie::X264Encoder::getBitrate() {
+    return parameter.bitrate;
+}
+
+int wlanjie::X264Encoder::getMaxBitrate() const {
+    return parameter.maxBitrate > parameter.bitrate ? parameter.maxBitrate : parameter.bitrate;
+}
+
+void wlanjie::X264Encoder::forceKeyframe() {
+    force_keyframe = true;
+}
+
+int wlanjie::X264Encoder::encodeLayers(char *frame, long pts, wlanjie::H264Layer *layers) {
+    if (encoder_ == NULL) {
+        return 0;
+    }
+    I420Frame input;
+    if (converter.convert((const uint8_t *) frame, &input) != 0) {
+        LOGE("convert frame error");
+        return 0;
+    }
+    for (int plane = 0; plane < 3; plane++) {
+        picture->img.plane[plane] = input.data[plane];
+        picture->img.i_stride[plane] = input.stride[plane];
+    }
+    picture->i_pts = pts;
+    picture->i_type = force_keyframe ? X264_TYPE_IDR : X264_TYPE_AUTO;
+    force_keyframe = false;
+    x264_nal_t *nals = NULL;
+    int nal_count = 0;
+    x264_picture_t output;
+    int size = x264_encoder_encode(encoder_, &nals, &nal_count, picture, &output);
+    if (size < 0) {
+        LOGE("x264 encode error = %d", size);
+        return 0;
+    }
+    if (size == 0 || nal_count <= 0) {
+        // delayed by the lookahead or the frame threads.
+        return 0;
+    }
+    // the payloads of a frame follow each other in one buffer of the encoder.
+    layers[0].data = (uint8_t *) packet_pool.alloc(size);
+    memcpy(layers[0].data, nals[0].p_payload, (size_t) size);
+    layers[0].size = size;
+    layers[0].temporal_id = 0;
+    layers[0].pts = (long) output.i_pts;
+    return 1;
+}
+
+int wlanjie::X264Encoder::getSpatialLayers() const {
+    return 1;
+}
@@ -0,0 +1,75 @@
+//
+// Created by wlanjie on 2017/8/19.
+//
+
+#ifndef STREAMING_X264ENCODER_H
+#define STREAMING_X264ENCODER_H
+
+#include <stdint.h>
+#include "frame_converter.h"
+#include "video_encoder.h"
+
+// x264.h is only included by the source, its nal enums clash with those of openh264.
+struct x264_t;
+struct x264_param_t;
+struct x264_picture_t;
+
+// presets of x264_preset_names, ultrafast to placebo.
+#define X264_PRESET_COUNT 10
+// tunes of x264_tune_names, film to zerolatency.
+#define X264_TUNE_COUNT 8
+
+namespace wlanjie {
+
+    /**
+     * the x264 backend, better quality for the bits than openh264 at the same speed, a single layer.
+     * no b frames, the muxer writes the pts as the dts.
+     * the bitrate modes run x264 abr under a vbv, which is what lets setBitrate reconfigure it,
+     * frames are never skipped, a full vbv raises the qp instead.
+     */
+    class X264Encoder : public VideoEncoder {
+    public:
+        X264Encoder();
+
+        ~X264Encoder();
+
+        void setVideoParameter(VideoParameter videoParameter) override;
+
+        bool open() override;
+
+        void close() override;
+
+        void setBitrate(int bitrate) override;
+
+        int getBitrate() override;
+
+        void forceKeyframe() override;
+
+        int encodeLayers(char *frame, long pts, H264Layer *layers) override;
+
+        int getSpatialLayers() const override;
+
+    private:
+        /**
+         * @return false when x264 does not know the preset or the tunes.
+         */
+        bool createEncoderParams(x264_param_t *params) const;
+
+        /**
+         * @return kbit/s of the max bitrate, never below the target.
+         */
+        int getMaxBitrate() const;
+
+    private:
+        x264_t *encoder_;
+        // the parameters the encoder opened with, changed by setBitrate.
+        x264_param_t *params;
+        x264_picture_t *picture;
+        // rgba is rotated by 180 degrees and scaled, gpu converted i420 passes through.
+        FrameConverter converter;
+        VideoParameter parameter;
+        bool force_keyframe;
+    };
+}
+
+#endif //STREAMING_X264ENCODER_H
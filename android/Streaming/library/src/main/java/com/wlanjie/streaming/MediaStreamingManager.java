@@ -4,6 +4,9 @@ import android.graphics.SurfaceTexture;
 import android.media.MediaCodec;
 import android.opengl.GLSurfaceView;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
 import com.wlanjie.streaming.audio.AudioEncoder;
@@ -21,8 +24,10 @@ import com.wlanjie.streaming.setting.AudioSetting;
 import com.wlanjie.streaming.setting.CameraSetting;
 import com.wlanjie.streaming.setting.EncoderType;
 import com.wlanjie.streaming.setting.StreamingSetting;
+import com.wlanjie.streaming.util.OpenGLUtils;
 import com.wlanjie.streaming.util.StreamingLog;
 import com.wlanjie.streaming.util.VideoUtil;
+import com.wlanjie.streaming.video.FrameConverter;
 import com.wlanjie.streaming.video.OnMediaCodecEncoderListener;
 import com.wlanjie.streaming.video.OpenH264Encoder;
 import com.wlanjie.streaming.video.SurfaceTextureCallback;
@@ -30,6 +35,11 @@ import com.wlanjie.streaming.video.VideoParameter;
 import com.wlanjie.streaming.video.VideoRenderer;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by wlanjie on 2017/6/25.
@@ -44,12 +54,28 @@ public class MediaStreamingManager {
   private CameraSetting mCameraSetting;
   private StreamingSetting mStreamingSetting;
   private AudioProcessor mAudioProcessor;
-  private AudioEncoder mAudioEncoder;
+  private volatile AudioEncoder mAudioEncoder;
+  private volatile Rtmp mRtmp;
+  private OpenH264Encoder mOpenH264Encoder;
+  private FrameConverter mFrameConverter;
+  private FdkAACEncoder mFdkAACEncoder;
   private CallbackBridge mCallbacks = new CallbackBridge();
   private LivingCamera mCamera;
   private long mPresentTimeUs;
+  private int mVideoBitrate;
   private volatile boolean mIsStartPublish = false;
   private CameraCallback mCameraCallback;
+  private final AtomicLong mCapturedFrames = new AtomicLong();
+  private final Handler mStatsHandler = new Handler(Looper.getMainLooper());
+  private OnStreamingStatsListener mOnStreamingStatsListener;
+  private int mStatsIntervalMs;
+  // counters of the previous snapshot, the rates are measured against them.
+  private long mLastStatsTimeMs;
+  private long mLastCapturedFrames;
+  private long mLastRenderedFrames;
+  private long mLastVideoFrames;
+  private final long[] mPipelineStats = new long[StreamingStats.STAGE_COUNT * 2 + 1];
+  private final long[] mLastPipelineStats = new long[StreamingStats.STAGE_COUNT * 2 + 1];
 
   public MediaStreamingManager(final GLSurfaceView glSurfaceView) {
     mGLSurfaceView = glSurfaceView;
@@ -57,6 +83,7 @@ public class MediaStreamingManager {
     mVideoRenderer.getSurfaceTexture().setOnFrameAvailableListener(new SurfaceTexture.OnFrameAvailableListener() {
       @Override
       public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+        mCapturedFrames.incrementAndGet();
         glSurfaceView.requestRender();
       }
     });
@@ -86,7 +113,10 @@ public class MediaStreamingManager {
     mVideoRenderer.setStreamingSetting(streamingSetting);
     mAudioProcessor = new AudioProcessor(AudioUtils.getAudioRecord(audioSetting), audioSetting);
 
-    mGLSurfaceView.setEGLContextClientVersion(2);
+    // the soft encoder reads the frames back asynchronously with pixel pack buffers on gles 3,
+    // the frames handed to the hardware encoder are fenced instead of finished.
+    boolean gles3 = OpenGLUtils.supportsGles3(mGLSurfaceView.getContext());
+    mGLSurfaceView.setEGLContextClientVersion(gles3 ? 3 : 2);
     mGLSurfaceView.setRenderer(mVideoRenderer);
     mGLSurfaceView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
 
@@ -122,29 +152,109 @@ public class MediaStreamingManager {
     if (mStreamingSetting == null) {
       throw new IllegalArgumentException("StreamingSetting is null.");
     }
-    if (TextUtils.isEmpty(mStreamingSetting.getRtmpUrl()) || !mStreamingSetting.getRtmpUrl().startsWith("rtmp://")) {
+    List<String> urls = mStreamingSetting.getRtmpUrls();
+    if (urls.isEmpty()) {
       throw new IllegalArgumentException("url must be rtmp://");
     }
-    int result = Rtmp.connect(mStreamingSetting.getRtmpUrl());
-    if (result != 0) {
+    Map<String, Integer> renditionUrls = mStreamingSetting.getRenditionUrls();
+    List<String> allUrls = new ArrayList<>(urls);
+    allUrls.addAll(renditionUrls.keySet());
+    for (String url : allUrls) {
+      if (TextUtils.isEmpty(url) || !url.startsWith("rtmp://")) {
+        throw new IllegalArgumentException("url must be rtmp://");
+      }
+    }
+    final Rtmp rtmp = new Rtmp();
+    rtmp.setReconnect(mStreamingSetting.getReconnectInitialDelayMs(), mStreamingSetting.getReconnectMaxDelayMs(),
+        mStreamingSetting.getReconnectMaxAttempts());
+    rtmp.setChunkSize(mStreamingSetting.getChunkSize());
+    rtmp.setBatch(mStreamingSetting.getBatchFlushIntervalMs(), mStreamingSetting.getMaxBatchBytes(),
+        mStreamingSetting.isAggregateMessages());
+    int connected = 0;
+    for (String url : allUrls) {
+      Integer rendition = renditionUrls.get(url);
+      if (rtmp.connect(url, rendition == null ? 0 : rendition) == 0) {
+        connected++;
+      } else {
+        // kept, the sender reconnects it in the background.
+        StreamingLog.e("connect " + url + " error.");
+      }
+    }
+    if (connected == 0) {
+      rtmp.destroy();
       throw new RuntimeException("connect rtmp server error.");
     }
-    Rtmp.startPublish();
-    mVideoRenderer.startEncoder();
-    mAudioProcessor.start();
-    mPresentTimeUs = System.nanoTime();
-    if (mStreamingSetting.getEncoderType() == EncoderType.SOFT) {
-      createVideoParameter();
-      OpenH264Encoder.openEncoder();
+    rtmp.setVideoBitrateRange(mStreamingSetting.getMinBps(), mStreamingSetting.getMaxBps());
+    mVideoBitrate = mStreamingSetting.getMaxBps();
+    rtmp.setDropThreshold(mStreamingSetting.getDropFrameDelayMs(), mStreamingSetting.getDropGopDelayMs());
+    rtmp.startPublish(mStreamingSetting.getQueueMaxFrames(), mStreamingSetting.getQueueMaxBytes());
+    mRtmp = rtmp;
+    int frameFormat = VideoParameter.FORMAT_RGBA;
+    if (mStreamingSetting.getEncoderType().isSoft() && mStreamingSetting.isGpuColorConversion()) {
+      if (VideoParameter.canConvertOnGpu(VideoParameter.FORMAT_I420, mStreamingSetting.getVideoWidth(), mStreamingSetting.getVideoHeight())) {
+        frameFormat = VideoParameter.FORMAT_I420;
+      } else {
+        StreamingLog.w("video size " + mStreamingSetting.getVideoWidth() + "x" + mStreamingSetting.getVideoHeight()
+            + " can not be converted on the gpu, convert on the cpu.");
+      }
+    }
+    mVideoRenderer.setFrameFormat(frameFormat);
+    mPresentTimeUs = System.nanoTime() / 1000;
+    if (mStreamingSetting.getEncoderType().isSoft()) {
+      final OpenH264Encoder videoEncoder = new OpenH264Encoder(rtmp);
+      VideoParameter videoParameter = createVideoParameter();
+      if (frameFormat == VideoParameter.FORMAT_RGBA) {
+        // converted on a worker thread of the renderer, the encoder only encodes.
+        FrameConverter frameConverter = new FrameConverter();
+        if (!frameConverter.setup(VideoParameter.FORMAT_RGBA, videoParameter.getFrameWidth(), videoParameter.getFrameHeight(),
+            videoParameter.getVideoWidth(), videoParameter.getVideoHeight(), FrameConverter.ROTATE_180,
+            mStreamingSetting.getScaleFilter())) {
+          frameConverter.release();
+          rtmp.destroy();
+          mRtmp = null;
+          throw new IllegalArgumentException("can not convert " + videoParameter.getFrameWidth() + "x" + videoParameter.getFrameHeight()
+              + " to " + videoParameter.getVideoWidth() + "x" + videoParameter.getVideoHeight());
+        }
+        mFrameConverter = frameConverter;
+      }
+      mVideoRenderer.setFrameConverter(mFrameConverter);
+      videoParameter.setInputFormat(VideoParameter.FORMAT_I420);
+      videoParameter.setScaleFilter(mStreamingSetting.getScaleFilter());
+      videoParameter.setSliceCount(mStreamingSetting.getEncoderSlices());
+      videoParameter.setRateControl(mStreamingSetting.getRateControl());
+      videoParameter.setMaxBitrate(mStreamingSetting.getPeakBps());
+      videoParameter.setVbvBufferSize(mStreamingSetting.getVbvBufferSize());
+      videoParameter.setQpRange(mStreamingSetting.getMinQp(), mStreamingSetting.getMaxQp());
+      videoParameter.setIntraPeriod(mStreamingSetting.getIfi() * videoParameter.getFrameRate());
+      videoParameter.setSpatialLayers(mStreamingSetting.getSpatialLayers());
+      videoParameter.setTemporalLayers(mStreamingSetting.getTemporalLayers());
+      boolean x264 = mStreamingSetting.getEncoderType() == EncoderType.SOFT_X264;
+      videoParameter.setCodec(x264 ? VideoParameter.CODEC_X264 : VideoParameter.CODEC_OPENH264);
+      videoParameter.setPreset(mStreamingSetting.getX264Preset());
+      videoParameter.setTune(mStreamingSetting.getX264Tune());
+      videoParameter.setSlicedThreads(mStreamingSetting.isSlicedThreads());
+      int threads = mStreamingSetting.getEncoderThreads();
+      // the calibration measures openh264.
+      if (threads <= 0 && !x264 && mStreamingSetting.isCalibrateEncoder()) {
+        threads = OpenH264Encoder.getCalibratedThreads(videoParameter);
+      }
+      videoParameter.setThreadCount(threads);
+      videoEncoder.setVideoParameter(videoParameter);
+      videoEncoder.openEncoder();
+      mOpenH264Encoder = videoEncoder;
 
-      FdkAACEncoder.openEncoder(mAudioSetting.getChannelCount(), mAudioSetting.getSampleRate(), mAudioSetting.getMaxBps() * 1000);
+      final FdkAACEncoder audioEncoder = new FdkAACEncoder(rtmp);
+      audioEncoder.openEncoder(mAudioSetting.getChannelCount(), mAudioSetting.getSampleRate(), mAudioSetting.getMaxBps() * 1000);
+      mFdkAACEncoder = audioEncoder;
       mVideoRenderer.setOnFrameListener(new VideoRenderer.OnFrameListener() {
         @Override
-        public void onFrame(byte[] rgba) {
+        public void onFrame(ByteBuffer frame, long timestampNs) {
           if (!mIsStartPublish) {
             return;
           }
-          OpenH264Encoder.encode(rgba, System.nanoTime() / 1000 - mPresentTimeUs);
+          // the time of the readback, not of the encode, the pipeline delay does not jitter the stream.
+          long timestampMs = Math.max(0, (timestampNs / 1000 - mPresentTimeUs) / 1000);
+          videoEncoder.encode(frame, 0, frame.capacity(), timestampMs);
         }
       });
     } else {
@@ -154,53 +264,190 @@ public class MediaStreamingManager {
           if (!mIsStartPublish) {
             return;
           }
-          buffer.position(info.offset);
-          buffer.limit(info.offset + info.size);
-          byte[] h264 = new byte[info.size];
-          buffer.get(h264, 0, info.size);
-          Rtmp.writeVideo(h264, (int) (System.nanoTime() - mPresentTimeUs));
+          int bitrate = rtmp.getVideoBitrate();
+          if (bitrate > 0 && bitrate != mVideoBitrate) {
+            mVideoBitrate = bitrate;
+            mVideoRenderer.setEncoderBitrate(bitrate);
+          }
+          if (rtmp.pollKeyframeRequest()) {
+            mVideoRenderer.requestEncoderKeyframe();
+          }
+          // the slot time the governor gave the frame through eglPresentationTimeANDROID, paced to the fps.
+          long timestampMs = Math.max(0, (info.presentationTimeUs - mPresentTimeUs) / 1000);
+          rtmp.writeVideo(buffer, info.offset, info.size, timestampMs);
         }
       });
     }
+    mVideoRenderer.startEncoder();
+    mAudioProcessor.start();
 
     mAudioProcessor.setOnAudioRecordListener(new OnAudioRecordListener() {
       @Override
-      public void onAudioRecord(byte[] buffer, int size) {
-        if (mStreamingSetting.getEncoderType() == EncoderType.SOFT) {
+      public void onAudioRecord(ByteBuffer buffer, int size) {
+        if (mStreamingSetting.getEncoderType().isSoft()) {
           if (!mIsStartPublish) {
             return;
           }
-          FdkAACEncoder.encode(buffer, (int) (System.nanoTime() - mPresentTimeUs));
+          mFdkAACEncoder.encode(buffer, 0, size, (int) getTimestampMs());
         } else {
           if (mAudioEncoder == null) {
-            mAudioEncoder = new AudioEncoder();
-            mAudioEncoder.start(mAudioSetting);
-            mAudioEncoder.setOnAudioEncoderListener(new OnAudioEncoderListener() {
+            AudioEncoder audioEncoder = new AudioEncoder();
+            // before start, the codec config comes out once and the mux needs it before any frame.
+            audioEncoder.setOnAudioEncoderListener(new OnAudioEncoderListener() {
               @Override
-              public void onAudioEncode(byte[] data, int size, long timeUs) {
-                if (!mIsStartPublish) {
+              public void onAudioSpecificConfig(ByteBuffer data, int offset, int size) {
+                Rtmp rtmp = mRtmp;
+                if (rtmp == null) {
                   return;
                 }
-                Rtmp.writeAudio(data, (int) (System.nanoTime() - mPresentTimeUs), mAudioSetting.getSampleRate(), mAudioSetting.getChannelCount());
+                rtmp.writeAudioSpecificConfig(data, offset, size);
+              }
+
+              @Override
+              public void onAudioEncode(ByteBuffer data, int offset, int size, long timeUs) {
+                Rtmp rtmp = mRtmp;
+                if (!mIsStartPublish || rtmp == null) {
+                  return;
+                }
+                // the sample clock, not the time the burst of the encoder thread came out.
+                rtmp.writeRawAudio(data, offset, size, Math.max(0, (timeUs - mPresentTimeUs) / 1000));
               }
             });
+            audioEncoder.start(mAudioSetting);
+            mAudioEncoder = audioEncoder;
           }
-          mAudioEncoder.offerEncoder(buffer);
+          mAudioEncoder.offerEncoder(buffer, size);
         }
       }
     });
 
     mIsStartPublish = true;
+    synchronized (this) {
+      mLastStatsTimeMs = 0;
+      // a new pipeline counts from 0.
+      Arrays.fill(mLastPipelineStats, 0);
+      scheduleStats();
+    }
+  }
+
+  /**
+   * poll the streaming counters, the rates are measured since the previous snapshot,
+   * taken by this method or for the listener.
+   * @return null when not streaming.
+   */
+  public synchronized StreamingStats getStreamingStats() {
+    Rtmp rtmp = mRtmp;
+    if (!mIsStartPublish || rtmp == null) {
+      return null;
+    }
+    long[] values = new long[StreamingStats.VALUE_COUNT];
+    if (!rtmp.getStats(values)) {
+      return null;
+    }
+    long now = SystemClock.elapsedRealtime();
+    long capturedFrames = mCapturedFrames.get();
+    long renderedFrames = mVideoRenderer.getRenderedFrames();
+    long videoFrames = values[StreamingStats.INDEX_VIDEO_FRAMES];
+    float captureFps = 0;
+    float renderFps = 0;
+    float encodeFps = 0;
+    long elapsed = now - mLastStatsTimeMs;
+    if (mLastStatsTimeMs > 0 && elapsed > 0) {
+      captureFps = (capturedFrames - mLastCapturedFrames) * 1000f / elapsed;
+      renderFps = (renderedFrames - mLastRenderedFrames) * 1000f / elapsed;
+      encodeFps = (videoFrames - mLastVideoFrames) * 1000f / elapsed;
+    }
+    mLastStatsTimeMs = now;
+    mLastCapturedFrames = capturedFrames;
+    mLastRenderedFrames = renderedFrames;
+    mLastVideoFrames = videoFrames;
+
+    float[] stageTimeMs = new float[StreamingStats.STAGE_COUNT];
+    long pipelineDropped = 0;
+    if (mVideoRenderer.getPipelineStats(mPipelineStats)) {
+      for (int stage = 0; stage < StreamingStats.STAGE_COUNT; stage++) {
+        long frames = mPipelineStats[stage * 2] - mLastPipelineStats[stage * 2];
+        long timeNs = mPipelineStats[stage * 2 + 1] - mLastPipelineStats[stage * 2 + 1];
+        stageTimeMs[stage] = frames > 0 ? timeNs / 1000000f / frames : 0;
+      }
+      pipelineDropped = mPipelineStats[StreamingStats.STAGE_COUNT * 2];
+      System.arraycopy(mPipelineStats, 0, mLastPipelineStats, 0, mPipelineStats.length);
+    } else {
+      pipelineDropped = mVideoRenderer.getEncoderDroppedFrames();
+    }
+    long[] frameRateStats = new long[3];
+    mVideoRenderer.getFrameRateStats(frameRateStats);
+    long[] latencyStats = new long[3];
+    float encoderLatencyMs = 0;
+    float encoderLatencyMaxMs = 0;
+    if (mVideoRenderer.getEncoderLatencyStats(latencyStats) && latencyStats[0] > 0) {
+      encoderLatencyMs = latencyStats[1] / 1000000f / latencyStats[0];
+      encoderLatencyMaxMs = latencyStats[2] / 1000000f;
+    }
+    AudioEncoder audioEncoder = mAudioEncoder;
+    long audioOverruns = audioEncoder != null ? audioEncoder.getOverrunCount() : 0;
+    return new StreamingStats(now, captureFps, renderFps, encodeFps, values, stageTimeMs, pipelineDropped,
+        frameRateStats, encoderLatencyMs, encoderLatencyMaxMs, audioOverruns);
+  }
+
+  /**
+   * receive the streaming counters on the main thread while streaming.
+   * @param listener null to stop.
+   * @param intervalMs time between two callbacks.
+   */
+  public synchronized void setOnStreamingStatsListener(OnStreamingStatsListener listener, int intervalMs) {
+    if (listener != null && intervalMs <= 0) {
+      throw new IllegalArgumentException("intervalMs must be > 0");
+    }
+    mOnStreamingStatsListener = listener;
+    mStatsIntervalMs = intervalMs;
+    mStatsHandler.removeCallbacks(mStatsRunnable);
+    if (mIsStartPublish) {
+      scheduleStats();
+    }
+  }
+
+  private void scheduleStats() {
+    if (mOnStreamingStatsListener != null) {
+      mStatsHandler.postDelayed(mStatsRunnable, mStatsIntervalMs);
+    }
+  }
+
+  private final Runnable mStatsRunnable = new Runnable() {
+    @Override
+    public void run() {
+      OnStreamingStatsListener listener;
+      StreamingStats stats;
+      synchronized (MediaStreamingManager.this) {
+        listener = mOnStreamingStatsListener;
+        stats = getStreamingStats();
+        if (stats == null) {
+          return;
+        }
+        scheduleStats();
+      }
+      if (listener != null) {
+        listener.onStreamingStats(stats);
+      }
+    }
+  };
+
+  /**
+   * @return milliseconds since the streaming started, the rtmp timestamp.
+   */
+  private long getTimestampMs() {
+    return (System.nanoTime() / 1000 - mPresentTimeUs) / 1000;
   }
 
   public boolean isStartPublish() {
     return mIsStartPublish;
   }
 
-  private void createVideoParameter() {
+  private VideoParameter createVideoParameter() {
     VideoParameter videoParameter = new VideoParameter();
-    videoParameter.setBitrate(512);
-    videoParameter.setFrameRate(25);
+    videoParameter.setBitrate(mStreamingSetting.getMaxBps());
+    // without pacing the encoder sees the camera rate, at most 30 fps.
+    videoParameter.setFrameRate(mStreamingSetting.getFps() > 0 ? mStreamingSetting.getFps() : 30);
     StreamingLog.d("soft video width = " + mStreamingSetting.getVideoWidth());
     StreamingLog.d("soft video height = " + mStreamingSetting.getVideoHeight());
     StreamingLog.d("soft frame width = " + mCameraSetting.getPreviewWidth());
@@ -221,22 +468,32 @@ public class MediaStreamingManager {
     }
     videoParameter.setFrameWidth(cameraWidth);
     videoParameter.setFrameHeight(cameraHeight);
-    OpenH264Encoder.setVideoParameter(videoParameter);
+    return videoParameter;
   }
 
   public void stopStreaming() {
     if (!mIsStartPublish) {
       return;
     }
-    if (mStreamingSetting.getEncoderType() == EncoderType.SOFT) {
-      FdkAACEncoder.closeEncoder();
-      OpenH264Encoder.closeEncoder();
-    } else {
-      mVideoRenderer.stopEncoder();
+    mStatsHandler.removeCallbacks(mStatsRunnable);
+    // the soft encoder pipeline is stopped before the encoder it calls is closed.
+    mVideoRenderer.stopEncoder();
+    if (mStreamingSetting.getEncoderType().isSoft()) {
+      mFdkAACEncoder.closeEncoder();
+      mOpenH264Encoder.closeEncoder();
+      if (mFrameConverter != null) {
+        mFrameConverter.release();
+        mFrameConverter = null;
+      }
+      mVideoRenderer.setFrameConverter(null);
     }
     mAudioProcessor.stopEncode();
     mAudioProcessor.interrupt();
-    Rtmp.destroy();
+    if (mAudioEncoder != null) {
+      mAudioEncoder.stop();
+      mAudioEncoder = null;
+    }
+    mRtmp.destroy();
     mVideoRenderer.destroy();
     mIsStartPublish = false;
   }
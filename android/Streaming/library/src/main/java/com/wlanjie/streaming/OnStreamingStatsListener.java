@@ -0,0 +1,13 @@
+package com.wlanjie.streaming;
+
+/**
+ * Created by wlanjie on 2017/8/18.
+ */
+public interface OnStreamingStatsListener {
+
+  /**
+   * called on the main thread at the interval given to
+   * {@link MediaStreamingManager#setOnStreamingStatsListener(OnStreamingStatsListener, int)}.
+   */
+  void onStreamingStats(StreamingStats stats);
+}
@@ -0,0 +1,379 @@
+package com.wlanjie.streaming;
+
+/**
+ * Created by wlanjie on 2017/8/18.
+ *
+ * snapshot of the streaming counters.
+ * the rates are measured over the interval since the previous snapshot,
+ * the totals and histograms since the streaming started.
+ */
+public class StreamingStats {
+
+  /**
+   * the queue reached max frames or max bytes.
+   */
+  public final static int DROP_QUEUE_FULL = 0;
+
+  /**
+   * inter frames dropped until the next idr because the queue delay is too long.
+   */
+  public final static int DROP_CONGESTION_FRAME = 1;
+
+  /**
+   * whole gops dropped because the queue delay is too long.
+   */
+  public final static int DROP_CONGESTION_GOP = 2;
+
+  /**
+   * video before the newest idr dropped after a reconnect.
+   */
+  public final static int DROP_RECONNECT = 3;
+
+  public final static int DROP_REASON_COUNT = 4;
+
+  /**
+   * buckets of the histograms, bucket i counts values up to 2^i ms, the last one the rest.
+   */
+  public final static int HISTOGRAM_BUCKET_COUNT = 12;
+
+  /**
+   * the soft encoder reads the frame back from the gpu on the gl thread.
+   */
+  public final static int STAGE_READBACK = 0;
+
+  /**
+   * the soft encoder converts the frame to i420 on the cpu, only without the gpu conversion.
+   */
+  public final static int STAGE_CONVERT = 1;
+
+  /**
+   * the soft encoder encodes the frame.
+   */
+  public final static int STAGE_ENCODE = 2;
+
+  public final static int STAGE_COUNT = 3;
+
+  // layout of the native stats array, keep in sync with StatsIndex in stats.h.
+  final static int INDEX_VIDEO_FRAMES = 0;
+  final static int INDEX_AUDIO_FRAMES = 1;
+  final static int INDEX_SEND_KBPS = 2;
+  final static int INDEX_SEND_KBPS_AVERAGE = 3;
+  final static int INDEX_SEND_KBPS_30S = 4;
+  final static int INDEX_TARGET_KBPS = 5;
+  final static int INDEX_QUEUE_FRAMES = 6;
+  final static int INDEX_QUEUE_BYTES = 7;
+  final static int INDEX_RTT_MS = 8;
+  final static int INDEX_RECONNECT_COUNT = 9;
+  final static int INDEX_DESTINATIONS = 10;
+  final static int INDEX_CONNECTED_DESTINATIONS = 11;
+  final static int INDEX_DROPPED = 12;
+  final static int INDEX_ENCODE_TIME = INDEX_DROPPED + DROP_REASON_COUNT;
+  final static int INDEX_QUEUE_WAIT = INDEX_ENCODE_TIME + HISTOGRAM_BUCKET_COUNT;
+
+  /**
+   * size of the array {@link com.wlanjie.streaming.rtmp.Rtmp#getStats(long[])} fills.
+   */
+  public final static int VALUE_COUNT = INDEX_QUEUE_WAIT + HISTOGRAM_BUCKET_COUNT;
+
+  private final long mTimestampMs;
+  private final float mCaptureFps;
+  private final float mRenderFps;
+  private final float mEncodeFps;
+  private final long[] mValues;
+  private final float[] mStageTimeMs;
+  private final long mPipelineDroppedFrames;
+  // frames the frame rate governor delivered, dropped and duplicated.
+  private final long[] mFrameRateStats;
+  private final float mEncoderLatencyMs;
+  private final float mEncoderLatencyMaxMs;
+  private final long mAudioOverruns;
+
+  StreamingStats(long timestampMs, float captureFps, float renderFps, float encodeFps, long[] values,
+                 float[] stageTimeMs, long pipelineDroppedFrames, long[] frameRateStats,
+                 float encoderLatencyMs, float encoderLatencyMaxMs, long audioOverruns) {
+    mTimestampMs = timestampMs;
+    mCaptureFps = captureFps;
+    mRenderFps = renderFps;
+    mEncodeFps = encodeFps;
+    mValues = values;
+    mStageTimeMs = stageTimeMs;
+    mPipelineDroppedFrames = pipelineDroppedFrames;
+    mFrameRateStats = frameRateStats;
+    mEncoderLatencyMs = encoderLatencyMs;
+    mEncoderLatencyMaxMs = encoderLatencyMaxMs;
+    mAudioOverruns = audioOverruns;
+  }
+
+  /**
+   * @return SystemClock.elapsedRealtime() when the snapshot was taken.
+   */
+  public long getTimestampMs() {
+    return mTimestampMs;
+  }
+
+  /**
+   * @return camera frames per second.
+   */
+  public float getCaptureFps() {
+    return mCaptureFps;
+  }
+
+  /**
+   * @return preview frames drawn per second.
+   */
+  public float getRenderFps() {
+    return mRenderFps;
+  }
+
+  /**
+   * @return video frames encoded and muxed per second, soft or hardware encoded.
+   */
+  public float getEncodeFps() {
+    return mEncodeFps;
+  }
+
+  public long getVideoFrames() {
+    return mValues[INDEX_VIDEO_FRAMES];
+  }
+
+  public long getAudioFrames() {
+    return mValues[INDEX_AUDIO_FRAMES];
+  }
+
+  /**
+   * @return send kbps of the primary destination in the last second.
+   */
+  public int getSendKbps() {
+    return (int) mValues[INDEX_SEND_KBPS];
+  }
+
+  /**
+   * @return average send kbps of the primary destination since the streaming started.
+   */
+  public int getSendKbpsAverage() {
+    return (int) mValues[INDEX_SEND_KBPS_AVERAGE];
+  }
+
+  /**
+   * @return send kbps of the primary destination in the last 30 seconds.
+   */
+  public int getSendKbps30s() {
+    return (int) mValues[INDEX_SEND_KBPS_30S];
+  }
+
+  /**
+   * @return video bitrate chosen by the adaptive bitrate controller.
+   */
+  public int getTargetKbps() {
+    return (int) mValues[INDEX_TARGET_KBPS];
+  }
+
+  /**
+   * @return frames waiting in the send queue of the primary destination.
+   */
+  public int getQueueFrames() {
+    return (int) mValues[INDEX_QUEUE_FRAMES];
+  }
+
+  /**
+   * @return bytes waiting in the send queue of the primary destination.
+   */
+  public int getQueueBytes() {
+    return (int) mValues[INDEX_QUEUE_BYTES];
+  }
+
+  /**
+   * @return time a write to the primary destination blocks, an estimate of the rtt.
+   */
+  public int getRttMs() {
+    return (int) mValues[INDEX_RTT_MS];
+  }
+
+  /**
+   * @return successful reconnects of all destinations.
+   */
+  public int getReconnectCount() {
+    return (int) mValues[INDEX_RECONNECT_COUNT];
+  }
+
+  public int getDestinationCount() {
+    return (int) mValues[INDEX_DESTINATIONS];
+  }
+
+  public int getConnectedDestinationCount() {
+    return (int) mValues[INDEX_CONNECTED_DESTINATIONS];
+  }
+
+  /**
+   * @param reason one of the DROP_ constants.
+   * @return frames dropped by all destinations for the reason.
+   */
+  public long getDroppedFrames(int reason) {
+    if (reason < 0 || reason >= DROP_REASON_COUNT) {
+      throw new IllegalArgumentException("unknown drop reason " + reason);
+    }
+    return mValues[INDEX_DROPPED + reason];
+  }
+
+  public long getDroppedFrames() {
+    long dropped = 0;
+    for (int reason = 0; reason < DROP_REASON_COUNT; reason++) {
+      dropped += mValues[INDEX_DROPPED + reason];
+    }
+    return dropped;
+  }
+
+  /**
+   * @param stage one of the STAGE_ constants.
+   * @return average ms a frame spent in the stage of the soft encoder over the interval, 0 when no frame passed.
+   */
+  public float getStageTimeMs(int stage) {
+    if (stage < 0 || stage >= STAGE_COUNT) {
+      throw new IllegalArgumentException("unknown stage " + stage);
+    }
+    return mStageTimeMs[stage];
+  }
+
+  /**
+   * @return average ms from the swap of a frame to the input surface of the hardware encoder to its output
+   * over the interval, 0 with the soft encoder or when no frame came out.
+   */
+  public float getEncoderLatencyMs() {
+    return mEncoderLatencyMs;
+  }
+
+  /**
+   * @return the longest ms from the swap of a frame to the output of the hardware encoder over the interval.
+   */
+  public float getEncoderLatencyMaxMs() {
+    return mEncoderLatencyMaxMs;
+  }
+
+  /**
+   * @return pcm reads the hardware audio encoder dropped since the streaming started because it fell behind
+   * the capture, each one an audible gap.
+   */
+  public long getAudioOverruns() {
+    return mAudioOverruns;
+  }
+
+  /**
+   * @return frames the soft encoder dropped since the streaming started because a later stage was busy,
+   * the newer frame replaced them. with the hardware encoder, the frames dropped because its EncoderGL thread
+   * still held every hand-off texture.
+   */
+  public long getPipelineDroppedFrames() {
+    return mPipelineDroppedFrames;
+  }
+
+  /**
+   * @return frames given to the video encoder since the streaming started, paced to
+   * {@link com.wlanjie.streaming.setting.StreamingSetting#getFps()}. duplicates are not counted.
+   */
+  public long getGovernorDeliveredFrames() {
+    return mFrameRateStats[0];
+  }
+
+  /**
+   * @return camera frames not given to the video encoder because they came faster than the fps.
+   */
+  public long getGovernorDroppedFrames() {
+    return mFrameRateStats[1];
+  }
+
+  /**
+   * @return frames given to the video encoder once more because the camera came slower than the fps.
+   */
+  public long getGovernorDuplicatedFrames() {
+    return mFrameRateStats[2];
+  }
+
+  /**
+   * @return HISTOGRAM_BUCKET_COUNT counts of the soft video encode time.
+   */
+  public long[] getEncodeTimeHistogram() {
+    return copyHistogram(INDEX_ENCODE_TIME);
+  }
+
+  /**
+   * @return HISTOGRAM_BUCKET_COUNT counts of the time frames wait in the send queue of the primary destination.
+   */
+  public long[] getQueueWaitHistogram() {
+    return copyHistogram(INDEX_QUEUE_WAIT);
+  }
+
+  /**
+   * @param percentile between 0 and 100.
+   * @return upper bound in ms of the bucket holding the percentile of the encode time, -1 when empty.
+   */
+  public int getEncodeTimePercentileMs(float percentile) {
+    return percentile(INDEX_ENCODE_TIME, percentile);
+  }
+
+  /**
+   * @param percentile between 0 and 100.
+   * @return upper bound in ms of the bucket holding the percentile of the queue wait, -1 when empty.
+   */
+  public int getQueueWaitPercentileMs(float percentile) {
+    return percentile(INDEX_QUEUE_WAIT, percentile);
+  }
+
+  /**
+   * @return upper bound in ms of the histogram bucket, Integer.MAX_VALUE for the last one.
+   */
+  public static int getBucketUpperBoundMs(int bucket) {
+    return bucket >= HISTOGRAM_BUCKET_COUNT - 1 ? Integer.MAX_VALUE : 1 << bucket;
+  }
+
+  private long[] copyHistogram(int index) {
+    long[] histogram = new long[HISTOGRAM_BUCKET_COUNT];
+    System.arraycopy(mValues, index, histogram, 0, HISTOGRAM_BUCKET_COUNT);
+    return histogram;
+  }
+
+  private int percentile(int index, float percentile) {
+    long total = 0;
+    for (int i = 0; i < HISTOGRAM_BUCKET_COUNT; i++) {
+      total += mValues[index + i];
+    }
+    if (total == 0) {
+      return -1;
+    }
+    long rank = (long) Math.ceil(total * Math.max(0, Math.min(100, percentile)) / 100.0);
+    long count = 0;
+    for (int i = 0; i < HISTOGRAM_BUCKET_COUNT; i++) {
+      count += mValues[index + i];
+      if (count >= rank) {
+        return getBucketUpperBoundMs(i);
+      }
+    }
+    return getBucketUpperBoundMs(HISTOGRAM_BUCKET_COUNT - 1);
+  }
+
+  @Override
+  public String toString() {
+    return "StreamingStats{capture fps = " + mCaptureFps +
+        ", render fps = " + mRenderFps +
+        ", encode fps = " + mEncodeFps +
+        ", send kbps = " + getSendKbps() +
+        ", target kbps = " + getTargetKbps() +
+        ", queue frames = " + getQueueFrames() +
+        ", queue bytes = " + getQueueBytes() +
+        ", rtt ms = " + getRttMs() +
+        ", reconnects = " + getReconnectCount() +
+        ", dropped = " + getDroppedFrames() +
+        ", encode p95 ms = " + getEncodeTimePercentileMs(95) +
+        ", queue wait p95 ms = " + getQueueWaitPercentileMs(95) +
+        ", readback ms = " + mStageTimeMs[STAGE_READBACK] +
+        ", convert ms = " + mStageTimeMs[STAGE_CONVERT] +
+        ", encode ms = " + mStageTimeMs[STAGE_ENCODE] +
+        ", pipeline dropped = " + mPipelineDroppedFrames +
+        ", encoder latency ms = " + mEncoderLatencyMs +
+        ", encoder latency max ms = " + mEncoderLatencyMaxMs +
+        ", audio overruns = " + mAudioOverruns +
+        ", governor delivered = " + mFrameRateStats[0] +
+        ", governor dropped = " + mFrameRateStats[1] +
+        ", governor duplicated = " + mFrameRateStats[2] +
+        "}";
+  }
+}
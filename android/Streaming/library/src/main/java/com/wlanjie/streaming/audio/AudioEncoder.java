@@ -4,103 +4,270 @@ import android.media.AudioFormat;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 
 import com.wlanjie.streaming.setting.AudioSetting;
+import com.wlanjie.streaming.util.StreamingLog;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by wlanjie on 2017/6/24.
+ *
+ * the hardware aac encoder. the capture thread only copies the pcm to a ring buffer,
+ * the AudioEncoder thread feeds the codec from it and drains the output, so a stalled codec
+ * never blocks the AudioRecord, the pcm that does not fit is dropped and counted as an overrun.
+ * from lollipop the codec runs in the asynchronous mode on that thread, before it the thread polls.
  */
 public class AudioEncoder {
 
   private final static String MIME = "audio/mp4a-latm";
   private final static int AAC_PROFILE = MediaCodecInfo.CodecProfileLevel.AACObjectLC;
   private final static int AUDIO_FORMAT = AudioFormat.ENCODING_PCM_16BIT;
-  private MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
-  private OnAudioEncoderListener mOnAudioEncoderListener;
-  private long mPresentTimeUs;
+  // pcm the ring buffer holds while the codec stalls, in ms.
+  private final static int RING_BUFFER_MS = 500;
+  // the poll of the synchronous mode, in us.
+  private final static long DEQUEUE_TIMEOUT_US = 5000;
+  // input buffers of the asynchronous mode the codec handed out, more than any codec keeps.
+  private final static int MAX_INPUT_BUFFERS = 32;
+
+  private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+  private volatile OnAudioEncoderListener mOnAudioEncoderListener;
+  private final boolean mAsync = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
 
   private AudioSetting mAudioSetting;
   private MediaCodec mMediaCodec;
+  private HandlerThread mEncoderThread;
+  private Handler mEncodeHandler;
+  private PcmRingBuffer mRingBuffer;
+  private volatile boolean mIsStarted;
+  // a feed is posted to the encoder thread, the capture thread posts at most one.
+  private final AtomicBoolean mFeedPending = new AtomicBoolean();
+  // System.nanoTime() based capture time of the first sample in us, the sample clock starts there.
+  private volatile long mStartTimeUs = -1;
+
+  // the rest is only touched on the encoder thread.
+  private final int[] mInputBuffers = new int[MAX_INPUT_BUFFERS];
+  private int mInputBufferCount;
+  private int mFrameSize;
+  private long mSamples;
 
   public AudioEncoder() {
   }
 
+  /**
+   * set before start, the AudioSpecificConfig is output only once after it.
+   */
   public void setOnAudioEncoderListener(OnAudioEncoderListener l) {
     mOnAudioEncoderListener = l;
   }
 
   public void start(AudioSetting audioSetting) {
     mAudioSetting = audioSetting;
-    mMediaCodec = getAudioMediaCodec();
-    mMediaCodec.start();
-    mPresentTimeUs = System.nanoTime() / 1000;
+    mFrameSize = audioSetting.getChannelCount() * 2;
+    mStartTimeUs = -1;
+    mSamples = 0;
+    mRingBuffer = new PcmRingBuffer(audioSetting.getSampleRate() * mFrameSize * RING_BUFFER_MS / 1000);
+    mEncoderThread = new HandlerThread("AudioEncoder");
+    mEncoderThread.start();
+    mEncodeHandler = new Handler(mEncoderThread.getLooper());
+    // the callbacks of the asynchronous mode go to the looper of the thread creating the codec.
+    runOnEncoderThread(new Runnable() {
+      @Override
+      public void run() {
+        mMediaCodec = getAudioMediaCodec();
+        if (mMediaCodec != null) {
+          mMediaCodec.start();
+          mIsStarted = true;
+        }
+      }
+    });
+    if (mIsStarted && !mAsync) {
+      mEncodeHandler.post(mEncodeRunnable);
+    }
   }
 
-  public synchronized void stop() {
-    if (mMediaCodec != null) {
-      mMediaCodec.stop();
-      mMediaCodec.release();
-      mMediaCodec = null;
+  public void stop() {
+    mIsStarted = false;
+    if (mEncoderThread == null) {
+      return;
     }
+    // after the poll returned or the last callback ran, nothing touches the codec any more.
+    runOnEncoderThread(new Runnable() {
+      @Override
+      public void run() {
+        if (mMediaCodec != null) {
+          mMediaCodec.stop();
+          mMediaCodec.release();
+          mMediaCodec = null;
+        }
+      }
+    });
+    // the handler stays, a late post of the capture thread is dropped by the quit looper.
+    mEncoderThread.quit();
+    mEncoderThread = null;
   }
 
-  public synchronized void offerEncoder(byte[] input) {
-    if (mMediaCodec == null) {
+  /**
+   * copy the pcm for the encoder thread, on the capture thread, never waits for the codec.
+   * @param size bytes of 16bit pcm from the start of input.
+   */
+  public void offerEncoder(ByteBuffer input, int size) {
+    if (!mIsStarted) {
+      return;
+    }
+    if (mStartTimeUs < 0) {
+      // the read returned when the last sample was captured.
+      mStartTimeUs = System.nanoTime() / 1000 - (long) (size / mFrameSize) * 1000000 / mAudioSetting.getSampleRate();
+    }
+    if (!mRingBuffer.write(input, size)) {
       return;
     }
+    if (mAsync && mFeedPending.compareAndSet(false, true)) {
+      mEncodeHandler.post(mFeedRunnable);
+    }
+  }
+
+  /**
+   * @return pcm writes dropped because the encoder fell behind since the start.
+   */
+  public long getOverrunCount() {
+    PcmRingBuffer ringBuffer = mRingBuffer;
+    return ringBuffer != null ? ringBuffer.getOverruns() : 0;
+  }
+
+  private final Runnable mFeedRunnable = new Runnable() {
+    @Override
+    public void run() {
+      mFeedPending.set(false);
+      if (!mIsStarted) {
+        return;
+      }
+      while (mInputBufferCount > 0 && mRingBuffer.available() >= mFrameSize) {
+        int index = mInputBuffers[--mInputBufferCount];
+        queueInput(index, mMediaCodec.getInputBuffer(index));
+      }
+    }
+  };
+
+  private final MediaCodec.Callback mCallback = Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ? null :
+      new MediaCodec.Callback() {
+    @Override
+    public void onInputBufferAvailable(MediaCodec codec, int index) {
+      if (!mIsStarted) {
+        return;
+      }
+      if (mRingBuffer.available() >= mFrameSize) {
+        queueInput(index, codec.getInputBuffer(index));
+      } else if (mInputBufferCount < MAX_INPUT_BUFFERS) {
+        // filled by the next feed.
+        mInputBuffers[mInputBufferCount++] = index;
+      }
+    }
+
+    @Override
+    public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+      if (mIsStarted) {
+        output(codec.getOutputBuffer(index), info);
+      }
+      codec.releaseOutputBuffer(index, false);
+    }
+
+    @Override
+    public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+      StreamingLog.e("audio encoder error " + e.getMessage());
+    }
+
+    @Override
+    public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+    }
+  };
+
+  private final Runnable mEncodeRunnable = new Runnable() {
+    @Override
+    public void run() {
+      encode();
+    }
+  };
+
+  /**
+   * the synchronous mode before lollipop, the poll blocks in the codec instead of the capture thread.
+   */
+  private void encode() {
     ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
     ByteBuffer[] outputBuffers = mMediaCodec.getOutputBuffers();
-    int inputBufferIndex = mMediaCodec.dequeueInputBuffer(12000);
-    if (inputBufferIndex >= 0) {
-      ByteBuffer inputBuffer = inputBuffers[inputBufferIndex];
-      inputBuffer.clear();
-      inputBuffer.put(input, 0 , input.length);
-      long pts = System.nanoTime() / 1000 - mPresentTimeUs;
-      mMediaCodec.queueInputBuffer(inputBufferIndex, 0, input.length, pts, 0);
-    }
-
-    int outputBufferIndex = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 12000);
-    while (outputBufferIndex >= 0) {
-      ByteBuffer outputBuffer = outputBuffers[outputBufferIndex];
-      if (mOnAudioEncoderListener != null) {
-        int outBitSize = mBufferInfo.size;
-        int outPacketSize = outBitSize + 7;
-        outputBuffer.position(mBufferInfo.offset);
-        outputBuffer.limit(mBufferInfo.offset + outBitSize);
-        byte[] aac = new byte[outPacketSize];
-        addAdtsToPacket(aac, outPacketSize);
-        outputBuffer.get(aac, 7, outBitSize);
-        outputBuffer.position(mBufferInfo.offset);
-        mOnAudioEncoderListener.onAudioEncode(aac, outPacketSize, mBufferInfo.presentationTimeUs);
+    while (mIsStarted) {
+      while (mRingBuffer.available() >= mFrameSize) {
+        int index = mMediaCodec.dequeueInputBuffer(0);
+        if (index < 0) {
+          break;
+        }
+        queueInput(index, inputBuffers[index]);
+      }
+      int index = mMediaCodec.dequeueOutputBuffer(mBufferInfo, DEQUEUE_TIMEOUT_US);
+      while (index >= 0 || index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+        if (index >= 0) {
+          output(outputBuffers[index], mBufferInfo);
+          mMediaCodec.releaseOutputBuffer(index, false);
+        } else {
+          outputBuffers = mMediaCodec.getOutputBuffers();
+        }
+        index = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 0);
       }
-      mMediaCodec.releaseOutputBuffer(outputBufferIndex, false);
-      outputBufferIndex = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 0);
     }
   }
 
+  private void queueInput(int index, ByteBuffer inputBuffer) {
+    inputBuffer.clear();
+    int size = mRingBuffer.read(inputBuffer, inputBuffer.capacity(), mFrameSize);
+    // the time of the samples, not of the feed, the codec may run late.
+    long pts = mStartTimeUs + mSamples * 1000000 / mAudioSetting.getSampleRate();
+    mSamples += size / mFrameSize;
+    mMediaCodec.queueInputBuffer(index, 0, size, pts, 0);
+  }
+
   /**
-   * Add ADTS header at the beginning of each and every AAC packet.
-   * This is needed as MediaCodec encoder generates a packet of raw
-   * AAC data.
-   * <p>
-   * Note the packetLen must count in the ADTS header itself.
-   **/
-  private void addAdtsToPacket(byte[] packet, int packetLen) {
-    int profile = 2;  //AAC LC
-    //39=MediaCodecInfo.CodecProfileLevel.AACObjectELD;
-    int freqIdx = 4;  //44.1KHz
-    int chanCfg = 2;  //CPE
-
-    // fill in ADTS data
-    packet[0] = (byte) 0xFF;
-    packet[1] = (byte) 0xF9;
-    packet[2] = (byte) (((profile - 1) << 6) + (freqIdx << 2) + (chanCfg >> 2));
-    packet[3] = (byte) (((chanCfg & 3) << 6) + (packetLen >> 11));
-    packet[4] = (byte) ((packetLen & 0x7FF) >> 3);
-    packet[5] = (byte) (((packetLen & 7) << 5) + 0x1F);
-    packet[6] = (byte) 0xFC;
+   * hand the raw output of the codec to the listener, the codec config buffer is the AudioSpecificConfig.
+   */
+  private void output(ByteBuffer outputBuffer, MediaCodec.BufferInfo info) {
+    OnAudioEncoderListener listener = mOnAudioEncoderListener;
+    if (listener == null || info.size <= 0) {
+      return;
+    }
+    if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+      listener.onAudioSpecificConfig(outputBuffer, info.offset, info.size);
+    } else {
+      listener.onAudioEncode(outputBuffer, info.offset, info.size, info.presentationTimeUs);
+    }
+  }
+
+  /**
+   * run the task on the AudioEncoder thread and wait for it.
+   */
+  private void runOnEncoderThread(final Runnable task) {
+    final CountDownLatch done = new CountDownLatch(1);
+    boolean posted = mEncodeHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          task.run();
+        } finally {
+          done.countDown();
+        }
+      }
+    });
+    if (!posted) {
+      return;
+    }
+    try {
+      done.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
   }
 
   private MediaCodec getAudioMediaCodec() {
@@ -114,6 +281,10 @@ public class AudioEncoder {
     MediaCodec mediaCodec = null;
     try {
       mediaCodec = MediaCodec.createEncoderByType(MIME);
+      if (mAsync) {
+        // before configure, the codec runs asynchronously from then on.
+        mediaCodec.setCallback(mCallback);
+      }
       mediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
     } catch (Exception e) {
       e.printStackTrace();
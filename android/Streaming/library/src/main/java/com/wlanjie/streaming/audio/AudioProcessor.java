@@ -5,11 +5,13 @@ import android.os.Process;
 
 import com.wlanjie.streaming.setting.AudioSetting;
 
+import java.nio.ByteBuffer;
+
 /**
  * Created by wlanjie on 2017/6/24.
  */
 public class AudioProcessor extends Thread {
-  private byte[] mRecordBuffer;
+  private ByteBuffer mRecordBuffer;
   private int mRecordBufferSize;
   private AudioRecord mAudioRecord;
   private AudioSetting mAudioSetting;
@@ -20,7 +22,7 @@ public class AudioProcessor extends Thread {
     mAudioRecord = audioRecord;
     mAudioSetting = audioSetting;
     mRecordBufferSize = AudioUtils.getRecordBufferSize(audioSetting.getChannelCount(), audioSetting.getSampleRate());
-    mRecordBuffer = new byte[4096];
+    mRecordBuffer = ByteBuffer.allocateDirect(4096);
   }
 
   public void setOnAudioRecordListener(OnAudioRecordListener l) {
@@ -41,7 +43,8 @@ public class AudioProcessor extends Thread {
     super.run();
     mAudioRecord.startRecording();
     while (!mStop) {
-      int readLen = mAudioRecord.read(mRecordBuffer, 0, mRecordBuffer.length);
+      mRecordBuffer.clear();
+      int readLen = mAudioRecord.read(mRecordBuffer, mRecordBuffer.capacity());
       if (readLen > 0) {
         if (mOnAudioRecordListener != null) {
           mOnAudioRecordListener.onAudioRecord(mRecordBuffer, readLen);
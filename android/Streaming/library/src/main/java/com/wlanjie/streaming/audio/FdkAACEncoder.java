@@ -1,14 +1,38 @@
 package com.wlanjie.streaming.audio;
 
+import com.wlanjie.streaming.rtmp.Rtmp;
+
+import java.nio.ByteBuffer;
+
 /**
  * Created by caowu15 on 2017/6/27.
  */
 
 public class FdkAACEncoder {
 
-  public native static boolean openEncoder(int channelCount, int sampleRate, int bitRate);
+  /**
+   * the native encoder session, 0 after closeEncoder.
+   */
+  private long mNativeHandle;
+
+  /**
+   * @param rtmp the session the encoded frames are published to.
+   */
+  public FdkAACEncoder(Rtmp rtmp) {
+    nativeSetup(rtmp);
+  }
+
+  private native void nativeSetup(Rtmp rtmp);
+
+  public synchronized native boolean openEncoder(int channelCount, int sampleRate, int bitRate);
+
+  public synchronized native void closeEncoder();
 
-  public native static void closeEncoder();
+  public synchronized native int encode(byte[] data, int pts);
 
-  public native static int encode(byte[] data, int size);
+  /**
+   * encode 16bit pcm without copying it to the java heap.
+   * @param data a direct ByteBuffer.
+   */
+  public synchronized native int encode(ByteBuffer data, int offset, int size, int pts);
 }
@@ -1,8 +1,20 @@
 package com.wlanjie.streaming.audio;
 
+import java.nio.ByteBuffer;
+
 /**
  * Created by wlanjie on 2017/6/24.
  */
 public interface OnAudioEncoderListener {
-  void onAudioEncode(byte[] data, int size, long timeUs);
+  /**
+   * the AudioSpecificConfig, before the first frame.
+   * @param data a direct buffer, reused by the encoder after the call returns.
+   */
+  void onAudioSpecificConfig(ByteBuffer data, int offset, int size);
+
+  /**
+   * @param data a direct buffer holding a raw aac access unit, reused by the encoder after the call returns.
+   * @param timeUs System.nanoTime() based capture time of the first sample in us, counted in samples.
+   */
+  void onAudioEncode(ByteBuffer data, int offset, int size, long timeUs);
 }
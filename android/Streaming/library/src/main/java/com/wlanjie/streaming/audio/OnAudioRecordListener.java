@@ -1,8 +1,14 @@
 package com.wlanjie.streaming.audio;
 
+import java.nio.ByteBuffer;
+
 /**
  * Created by wlanjie on 2017/6/25.
  */
 public interface OnAudioRecordListener {
-  void onAudioRecord(byte[] buffer, int size);
+  /**
+   * @param buffer a direct ByteBuffer of pcm, reused for the next read.
+   * @param size bytes of pcm in the buffer.
+   */
+  void onAudioRecord(ByteBuffer buffer, int size);
 }
@@ -0,0 +1,79 @@
+package com.wlanjie.streaming.audio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by wlanjie on 2017/8/19.
+ *
+ * pcm handed from the capture thread to the encoder thread without a lock.
+ * one thread writes and one thread reads, each only moves its own position.
+ * a write that does not fit is dropped whole and counted as an overrun, the writer never waits.
+ */
+class PcmRingBuffer {
+
+  private final byte[] mBuffer;
+  // bytes written and read since the creation, the index is the position modulo the capacity.
+  private final AtomicLong mWritePosition = new AtomicLong();
+  private final AtomicLong mReadPosition = new AtomicLong();
+  private final AtomicLong mOverruns = new AtomicLong();
+
+  PcmRingBuffer(int capacity) {
+    mBuffer = new byte[capacity];
+  }
+
+  /**
+   * copy size bytes from the start of input, on the writing thread.
+   * @return false when there was no room, the bytes are dropped.
+   */
+  boolean write(ByteBuffer input, int size) {
+    long write = mWritePosition.get();
+    if (size > mBuffer.length - (write - mReadPosition.get())) {
+      mOverruns.incrementAndGet();
+      return false;
+    }
+    input.clear();
+    int index = (int) (write % mBuffer.length);
+    int first = Math.min(size, mBuffer.length - index);
+    input.get(mBuffer, index, first);
+    input.get(mBuffer, 0, size - first);
+    // publishes the bytes to the reader.
+    mWritePosition.lazySet(write + size);
+    return true;
+  }
+
+  /**
+   * move at most size bytes to output, on the reading thread.
+   * @param align the bytes read are a multiple of it, a whole frame of samples.
+   * @return bytes read.
+   */
+  int read(ByteBuffer output, int size, int align) {
+    long read = mReadPosition.get();
+    int available = (int) Math.min(mWritePosition.get() - read, Math.min(size, output.remaining()));
+    available -= available % align;
+    if (available <= 0) {
+      return 0;
+    }
+    int index = (int) (read % mBuffer.length);
+    int first = Math.min(available, mBuffer.length - index);
+    output.put(mBuffer, index, first);
+    output.put(mBuffer, 0, available - first);
+    // frees the room to the writer.
+    mReadPosition.lazySet(read + available);
+    return available;
+  }
+
+  /**
+   * @return bytes waiting to be read.
+   */
+  int available() {
+    return (int) (mWritePosition.get() - mReadPosition.get());
+  }
+
+  /**
+   * @return writes dropped because the reader fell behind.
+   */
+  long getOverruns() {
+    return mOverruns.get();
+  }
+}
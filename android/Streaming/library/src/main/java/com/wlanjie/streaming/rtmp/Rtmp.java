@@ -1,19 +1,184 @@
 package com.wlanjie.streaming.rtmp;
 
+import java.nio.ByteBuffer;
+
 /**
  * Created by wlanjie on 2017/6/24.
+ *
+ * connect, the settings, startPublish and destroy are serialized on the instance.
+ * the writes and the stats are not, the audio and video threads write at the same time,
+ * the native session is kept alive for a call running while another thread destroys it.
  */
 public class Rtmp {
 
-  public static native int connect(String rtmpUrl);
+  /**
+   * the native publishing session, 0 after destroy.
+   */
+  private long mNativeHandle;
+
+  /**
+   * create a publishing session, each instance has its own connection, send queue and sender thread.
+   * call destroy() when it is not used anymore.
+   */
+  public Rtmp() {
+    nativeSetup();
+  }
+
+  private native void nativeSetup();
+
+  /**
+   * add a destination and publish to it, can be called once for each destination before startPublish.
+   * every destination gets the same muxed frames through its own send queue and thread,
+   * the primary is the first destination in connect order that is connected, its uplink drives
+   * the video bitrate, queue and send stats. while it reconnects the next connected one takes over.
+   * a destination that fails to connect is kept and reconnected in the background after startPublish.
+   * @return 0 on success.
+   */
+  public int connect(String rtmpUrl) {
+    return connect(rtmpUrl, 0);
+  }
+
+  /**
+   * add a destination publishing one video rendition, see connect(String).
+   * @param rendition spatial layer of the soft encoder, 0 is the full size video,
+   *                  1 half of it and so on. audio goes to every destination.
+   * @return 0 on success.
+   */
+  public synchronized native int connect(String rtmpUrl, int rendition);
+
+  /**
+   * set how a destination reconnects when the connection is lost.
+   * the frames are queued while reconnecting, after a reconnect the stream restarts at an idr.
+   * @param initialDelayMs first wait before reconnecting, doubled after each failed attempt, with jitter.
+   * @param maxDelayMs longest wait between two attempts.
+   * @param maxAttempts attempts before giving up a destination, 0 to retry until destroy.
+   */
+  public synchronized native void setReconnect(int initialDelayMs, int maxDelayMs, int maxAttempts);
+
+  /**
+   * set how the sender threads coalesce queued frames, must be called before startPublish.
+   * all frames pending at a wakeup are chunked and written with one writev.
+   * @param flushIntervalMs wait up to this long after a frame for more frames to write together,
+   * 0 to write what is pending without waiting.
+   * @param maxBatchBytes max bytes written with one writev, 0 to write every frame on its own.
+   * @param aggregate write a batch as one rtmp aggregate message.
+   */
+  public synchronized native void setBatch(int flushIntervalMs, int maxBatchBytes, boolean aggregate);
+
+  /**
+   * set the outbound chunk size sent with Set Chunk Size after publish, must be called before connect.
+   * @param chunkSize in [128, 65536], 0 keeps the default of 60000.
+   */
+  public synchronized native void setChunkSize(int chunkSize);
+
+  /**
+   * @return true once after a destination reconnected without an idr queued,
+   * the video encoder should produce an idr as soon as possible.
+   */
+  public native boolean pollKeyframeRequest();
+
+  /**
+   * @return successful reconnects of all destinations.
+   */
+  public native int getReconnectCount();
+
+  /**
+   * @return destinations added by connect.
+   */
+  public native int getDestinationCount();
+
+  public native int writeVideo(byte[] data, long pts);
+
+  /**
+   * write h264 annexb frames without copying them to the java heap.
+   * @param data a direct ByteBuffer, for example the output buffer of MediaCodec.
+   */
+  public native int writeVideo(ByteBuffer data, int offset, int size, long pts);
+
+  public native int writeAudio(byte[] data, long pts, int simpleRate, int channel);
+
+  /**
+   * write aac frames without copying them to the java heap.
+   * @param data a direct ByteBuffer.
+   */
+  public native int writeAudio(ByteBuffer data, int offset, int size, long pts, int simpleRate, int channel);
+
+  /**
+   * the AudioSpecificConfig of the frames of writeRawAudio, csd-0 of MediaCodec,
+   * sent as the aac sequence header before the next frame.
+   * @param data a direct ByteBuffer.
+   */
+  public native int writeAudioSpecificConfig(ByteBuffer data, int offset, int size);
+
+  /**
+   * write one raw aac access unit without an adts header, as MediaCodec outputs it.
+   * the frames before writeAudioSpecificConfig are dropped.
+   * @param data a direct ByteBuffer, for example the output buffer of MediaCodec.
+   */
+  public native int writeRawAudio(ByteBuffer data, int offset, int size, long pts);
+
+  /**
+   * start the sender thread.
+   * @param maxFrames max frames the send queue can hold.
+   * @param maxBytes max bytes the send queue can hold.
+   */
+  public synchronized native void startPublish(int maxFrames, int maxBytes);
+
+  /**
+   * set the range the video bitrate adapts in, the bitrate starts at maxKbps.
+   * when minKbps is not less than maxKbps the bitrate is fixed.
+   */
+  public synchronized native void setVideoBitrateRange(int minKbps, int maxKbps);
+
+  /**
+   * @return the video bitrate in kbps the encoder should use for the uplink of the primary destination.
+   */
+  public native int getVideoBitrate();
+
+  /**
+   * set when the send queue of each destination drops video to catch up with a congested uplink.
+   * audio and sequence headers are never dropped.
+   * @param dropFrameMs queue delay to drop inter frames until the next idr, 0 to disable.
+   * @param dropGopMs queue delay to drop whole gops, 0 to disable.
+   */
+  public synchronized native void setDropThreshold(int dropFrameMs, int dropGopMs);
+
+  /**
+   * @return frames waiting in the send queue of the primary destination.
+   */
+  public native int getQueueFrames();
+
+  /**
+   * @return bytes waiting in the send queue of the primary destination.
+   */
+  public native int getQueueBytes();
+
+  /**
+   * copy the native counters of the session, no lock is taken on the streaming threads.
+   * @param values at least {@link com.wlanjie.streaming.StreamingStats#VALUE_COUNT} values.
+   * @return false when the session is destroyed.
+   */
+  public native boolean getStats(long[] values);
 
-  public static native int writeVideo(byte[] data, long pts);
+  /**
+   * @return encoded packets served from the native packet pool without malloc.
+   */
+  public static native long getPacketPoolHits();
 
-  public static native int writeAudio(byte[] data, long pts, int simpleRate, int channel);
+  /**
+   * @return encoded packets the native packet pool had to malloc.
+   */
+  public static native long getPacketPoolMisses();
 
-  public static native void startPublish();
+  /**
+   * @return bytes of the native packet pool held by the encoders, the muxer and the send queue.
+   */
+  public static native long getPacketPoolBytes();
 
-  public static native void destroy();
+  /**
+   * stop the sender thread and close the connection, the encoders still attached drop their frames.
+   */
+  public synchronized native void destroy();
 
   public static native void enableLog();
 }
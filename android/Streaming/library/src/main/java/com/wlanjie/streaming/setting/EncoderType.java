@@ -5,6 +5,23 @@ package com.wlanjie.streaming.setting;
  */
 
 public enum EncoderType {
+  /**
+   * openh264 on the cpu.
+   */
   SOFT,
-  HARD
+  /**
+   * MediaCodec.
+   */
+  HARD,
+  /**
+   * x264 on the cpu, better quality for the bits than openh264 at the same speed.
+   */
+  SOFT_X264;
+
+  /**
+   * @return the frames are read back and encoded on the cpu.
+   */
+  public boolean isSoft() {
+    return this != HARD;
+  }
 }
@@ -1,18 +1,53 @@
 package com.wlanjie.streaming.setting; 
- 
+
+import com.wlanjie.streaming.video.VideoParameter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 /** 
  * Created by wlanjie on 2017/6/14. 
  */ 
 public class StreamingSetting { 
  
   private String rtmpUrl;
+  private final List<String> backupRtmpUrls = new ArrayList<>();
+  private final Map<String, Integer> renditionUrls = new LinkedHashMap<>();
   private int fps = 15;
   private int videoWidth = 360;
   private int videoHeight = 640;
   private int maxBps = 500;
-  private int minBps;
+  private int minBps = 200;
   private int ifi = 2;
   private EncoderType mEncoderType = EncoderType.SOFT;
+  private int queueMaxFrames = 256;
+  private int queueMaxBytes = 2 * 1024 * 1024;
+  private int dropFrameDelayMs = 1000;
+  private int dropGopDelayMs = 3000;
+  private int reconnectInitialDelayMs = 500;
+  private int reconnectMaxDelayMs = 16000;
+  private int reconnectMaxAttempts = 0;
+  private int batchFlushIntervalMs = 0;
+  private int maxBatchBytes = 64 * 1024;
+  private boolean aggregateMessages = false;
+  private int chunkSize = 0;
+  private boolean gpuColorConversion = true;
+  private int scaleFilter = VideoParameter.FILTER_NONE;
+  private int encoderThreads = 0;
+  private int encoderSlices = 0;
+  private boolean calibrateEncoder = false;
+  private int rateControl = VideoParameter.RATE_CONTROL_BITRATE_SKIP;
+  private int peakBps = 0;
+  private int vbvBufferSize = 0;
+  private int minQp = 0;
+  private int maxQp = 0;
+  private int spatialLayers = 1;
+  private int temporalLayers = 1;
+  private int x264Preset = VideoParameter.PRESET_ULTRAFAST;
+  private int x264Tune = VideoParameter.TUNE_ZEROLATENCY;
+  private boolean slicedThreads = true;
  
   public String getRtmpUrl() {
     return rtmpUrl;
@@ -22,11 +57,53 @@ public class StreamingSetting {
     this.rtmpUrl = rtmpUrl;
     return this;
   } 
+
+  /**
+   * publish the same stream to one more destination, it is encoded and muxed once.
+   * the rtmp url set by setRtmpUrl is the primary destination.
+   */
+  public StreamingSetting addRtmpUrl(String rtmpUrl) {
+    backupRtmpUrls.add(rtmpUrl);
+    return this;
+  }
+
+  /**
+   * @return the primary rtmp url followed by the urls added with addRtmpUrl.
+   */
+  public List<String> getRtmpUrls() {
+    List<String> urls = new ArrayList<>();
+    if (rtmpUrl != null) {
+      urls.add(rtmpUrl);
+    }
+    urls.addAll(backupRtmpUrls);
+    return urls;
+  }
+
+  /**
+   * publish a lower rendition of the soft encoder to a destination, see setSpatialLayers.
+   * @param rendition 1 is half the video size, 2 a quarter and so on, 0 is the full size stream
+   *                  the urls of setRtmpUrl and addRtmpUrl get.
+   */
+  public StreamingSetting addRenditionUrl(int rendition, String rtmpUrl) {
+    renditionUrls.put(rtmpUrl, rendition);
+    return this;
+  }
+
+  /**
+   * @return the urls added with addRenditionUrl and their rendition.
+   */
+  public Map<String, Integer> getRenditionUrls() {
+    return new LinkedHashMap<>(renditionUrls);
+  }
  
   public int getFps() { 
     return fps;
   } 
  
+  /**
+   * @param fps frames per second given to the video encoder, the camera frames are dropped or
+   *            duplicated to it while the preview keeps the camera rate. <= 0 encodes every camera frame.
+   */
   public StreamingSetting setFps(int fps) {
     this.fps = fps;
     return this;
@@ -72,6 +149,9 @@ public class StreamingSetting {
     return ifi;
   } 
  
+  /**
+   * @param ifi seconds between two key frames, the intra period of both encoders.
+   */
   public StreamingSetting setIfi(int ifi) {
     this.ifi = ifi;
     return this;
@@ -84,4 +164,323 @@ public class StreamingSetting {
   public void setEncoderType(EncoderType mEncoderType) {
     this.mEncoderType = mEncoderType;
   }
-}
\ No newline at end of file
+
+  public int getQueueMaxFrames() {
+    return queueMaxFrames;
+  }
+
+  /**
+   * max frames waiting to be sent, frames are dropped when the queue is full.
+   */
+  public StreamingSetting setQueueMaxFrames(int queueMaxFrames) {
+    this.queueMaxFrames = queueMaxFrames;
+    return this;
+  }
+
+  public int getQueueMaxBytes() {
+    return queueMaxBytes;
+  }
+
+  /**
+   * max bytes waiting to be sent, frames are dropped when the queue is full.
+   */
+  public StreamingSetting setQueueMaxBytes(int queueMaxBytes) {
+    this.queueMaxBytes = queueMaxBytes;
+    return this;
+  }
+
+  public int getDropFrameDelayMs() {
+    return dropFrameDelayMs;
+  }
+
+  /**
+   * when the oldest queued video waits longer than this, inter frames are dropped until the next idr.
+   * 0 to disable.
+   */
+  public StreamingSetting setDropFrameDelayMs(int dropFrameDelayMs) {
+    this.dropFrameDelayMs = dropFrameDelayMs;
+    return this;
+  }
+
+  public int getDropGopDelayMs() {
+    return dropGopDelayMs;
+  }
+
+  /**
+   * when the oldest queued video waits longer than this, whole gops are dropped.
+   * 0 to disable.
+   */
+  public StreamingSetting setDropGopDelayMs(int dropGopDelayMs) {
+    this.dropGopDelayMs = dropGopDelayMs;
+    return this;
+  }
+
+  public int getReconnectInitialDelayMs() {
+    return reconnectInitialDelayMs;
+  }
+
+  /**
+   * first wait before reconnecting a lost connection, doubled after each failed attempt.
+   */
+  public StreamingSetting setReconnectInitialDelayMs(int reconnectInitialDelayMs) {
+    this.reconnectInitialDelayMs = reconnectInitialDelayMs;
+    return this;
+  }
+
+  public int getReconnectMaxDelayMs() {
+    return reconnectMaxDelayMs;
+  }
+
+  /**
+   * longest wait between two reconnect attempts.
+   */
+  public StreamingSetting setReconnectMaxDelayMs(int reconnectMaxDelayMs) {
+    this.reconnectMaxDelayMs = reconnectMaxDelayMs;
+    return this;
+  }
+
+  public int getReconnectMaxAttempts() {
+    return reconnectMaxAttempts;
+  }
+
+  /**
+   * reconnect attempts before a destination is given up, 0 to retry until the streaming stops.
+   */
+  public StreamingSetting setReconnectMaxAttempts(int reconnectMaxAttempts) {
+    this.reconnectMaxAttempts = reconnectMaxAttempts;
+    return this;
+  }
+
+  public int getBatchFlushIntervalMs() {
+    return batchFlushIntervalMs;
+  }
+
+  /**
+   * wait up to this long after a frame for more frames to send with it,
+   * 0 to send the pending frames without waiting.
+   */
+  public StreamingSetting setBatchFlushIntervalMs(int batchFlushIntervalMs) {
+    this.batchFlushIntervalMs = batchFlushIntervalMs;
+    return this;
+  }
+
+  public int getMaxBatchBytes() {
+    return maxBatchBytes;
+  }
+
+  /**
+   * max bytes sent with one writev, 0 to send every frame on its own.
+   */
+  public StreamingSetting setMaxBatchBytes(int maxBatchBytes) {
+    this.maxBatchBytes = maxBatchBytes;
+    return this;
+  }
+
+  public boolean isAggregateMessages() {
+    return aggregateMessages;
+  }
+
+  /**
+   * send each batch as one rtmp aggregate message, the server must support them.
+   */
+  public StreamingSetting setAggregateMessages(boolean aggregateMessages) {
+    this.aggregateMessages = aggregateMessages;
+    return this;
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * outbound rtmp chunk size in [128, 65536], 0 keeps the default of 60000.
+   */
+  public StreamingSetting setChunkSize(int chunkSize) {
+    this.chunkSize = chunkSize;
+    return this;
+  }
+
+  public boolean isGpuColorConversion() {
+    return gpuColorConversion;
+  }
+
+  /**
+   * convert the frames of the soft encoder to i420 on the gpu, false reads back rgba
+   * and converts them on the cpu. sizes the gpu can not pack, a width not a multiple of 8
+   * or a height not a multiple of 4, are converted on the cpu.
+   */
+  public StreamingSetting setGpuColorConversion(boolean gpuColorConversion) {
+    this.gpuColorConversion = gpuColorConversion;
+    return this;
+  }
+
+  public int getScaleFilter() {
+    return scaleFilter;
+  }
+
+  /**
+   * filter of the cpu scale when the gpu color conversion is off,
+   * one of the VideoParameter.FILTER_ constants.
+   */
+  public StreamingSetting setScaleFilter(int scaleFilter) {
+    this.scaleFilter = scaleFilter;
+    return this;
+  }
+
+  public int getEncoderThreads() {
+    return encoderThreads;
+  }
+
+  /**
+   * threads of the soft encoder, each encodes slices of a frame.
+   * 0 uses the cores online, or the calibrated count with setCalibrateEncoder.
+   */
+  public StreamingSetting setEncoderThreads(int encoderThreads) {
+    this.encoderThreads = encoderThreads;
+    return this;
+  }
+
+  public int getEncoderSlices() {
+    return encoderSlices;
+  }
+
+  /**
+   * slices of a frame of the soft encoder, 0 for one slice for each thread.
+   */
+  public StreamingSetting setEncoderSlices(int encoderSlices) {
+    this.encoderSlices = encoderSlices;
+    return this;
+  }
+
+  public boolean isCalibrateEncoder() {
+    return calibrateEncoder;
+  }
+
+  /**
+   * measure the soft encoder at the video size before the first stream and use the fewest
+   * threads keeping up with the fps, when setEncoderThreads is 0. the first startStreaming
+   * of a video size takes longer.
+   */
+  public StreamingSetting setCalibrateEncoder(boolean calibrateEncoder) {
+    this.calibrateEncoder = calibrateEncoder;
+    return this;
+  }
+
+  public int getX264Preset() {
+    return x264Preset;
+  }
+
+  /**
+   * preset of EncoderType.SOFT_X264, VideoParameter.PRESET_ULTRAFAST or PRESET_SUPERFAST keep up on most phones.
+   */
+  public StreamingSetting setX264Preset(int x264Preset) {
+    this.x264Preset = x264Preset;
+    return this;
+  }
+
+  public int getX264Tune() {
+    return x264Tune;
+  }
+
+  /**
+   * tunes of EncoderType.SOFT_X264, VideoParameter.TUNE values combined with |.
+   * without TUNE_ZEROLATENCY the lookahead delays the stream by dozens of frames.
+   */
+  public StreamingSetting setX264Tune(int x264Tune) {
+    this.x264Tune = x264Tune;
+    return this;
+  }
+
+  public boolean isSlicedThreads() {
+    return slicedThreads;
+  }
+
+  /**
+   * threads of EncoderType.SOFT_X264 encode slices of one frame, else whole frames in parallel
+   * with a frame of delay for each thread.
+   */
+  public StreamingSetting setSlicedThreads(boolean slicedThreads) {
+    this.slicedThreads = slicedThreads;
+    return this;
+  }
+
+  public int getRateControl() {
+    return rateControl;
+  }
+
+  /**
+   * rate control of the soft encoder, one of the VideoParameter.RATE_CONTROL_ constants.
+   */
+  public StreamingSetting setRateControl(int rateControl) {
+    this.rateControl = rateControl;
+    return this;
+  }
+
+  public int getPeakBps() {
+    return peakBps;
+  }
+
+  /**
+   * kbit/s the soft encoder never exceeds, 0 for the target bitrate of setMaxBps.
+   */
+  public StreamingSetting setPeakBps(int peakBps) {
+    this.peakBps = peakBps;
+    return this;
+  }
+
+  public int getVbvBufferSize() {
+    return vbvBufferSize;
+  }
+
+  /**
+   * kbit of the vbv buffer of the soft encoder, drained at the peak bitrate, 0 without a vbv.
+   * one second of the peak bitrate bounds the bursts the sender sees.
+   */
+  public StreamingSetting setVbvBufferSize(int vbvBufferSize) {
+    this.vbvBufferSize = vbvBufferSize;
+    return this;
+  }
+
+  public int getMinQp() {
+    return minQp;
+  }
+
+  public int getMaxQp() {
+    return maxQp;
+  }
+
+  /**
+   * qp range of the soft encoder in [0, 51], 0 for the encoder default.
+   */
+  public StreamingSetting setQpRange(int minQp, int maxQp) {
+    this.minQp = minQp;
+    this.maxQp = maxQp;
+    return this;
+  }
+
+  public int getSpatialLayers() {
+    return spatialLayers;
+  }
+
+  /**
+   * renditions of the soft encoder encoded at once, a bitrate ladder without a second encoder.
+   * each rendition is half the size and a third of the bitrate of the one above, up to 4.
+   */
+  public StreamingSetting setSpatialLayers(int spatialLayers) {
+    this.spatialLayers = spatialLayers;
+    return this;
+  }
+
+  public int getTemporalLayers() {
+    return temporalLayers;
+  }
+
+  /**
+   * temporal layers of the soft encoder, up to 4. under congestion the sender drops the top layer
+   * and keeps sending the others at a lower frame rate instead of waiting for the next idr.
+   */
+  public StreamingSetting setTemporalLayers(int temporalLayers) {
+    this.temporalLayers = temporalLayers;
+    return this;
+  }
+}
@@ -1,8 +1,11 @@
 package com.wlanjie.streaming.util;
 
+import android.app.ActivityManager;
+import android.content.Context;
 import android.content.res.Resources;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
+import android.os.Build;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -77,4 +80,28 @@ public class OpenGLUtils {
     GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GL10.GL_TEXTURE_WRAP_T, GL10.GL_CLAMP_TO_EDGE);
     return texture[0];
   }
+
+  /**
+   * @return true when the device supports gles 3 and the GLES30 bindings exist.
+   */
+  public static boolean supportsGles3(Context context) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+      return false;
+    }
+    ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+    return activityManager != null && activityManager.getDeviceConfigurationInfo().reqGlEsVersion >= 0x30000;
+  }
+
+  /**
+   * @return true when the current context is gles 3 or newer, call on the gl thread.
+   */
+  public static boolean isGles3Context() {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+      return false;
+    }
+    // "OpenGL ES <major>.<minor> <vendor specific>"
+    String version = GLES20.glGetString(GLES20.GL_VERSION);
+    return version != null && version.startsWith("OpenGL ES ") && version.length() > 10
+        && Character.isDigit(version.charAt(10)) && version.charAt(10) >= '3';
+  }
 }
@@ -0,0 +1,73 @@
+package com.wlanjie.streaming.video;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Created by wlanjie on 2017/8/19.
+ *
+ * converts frames to tightly packed i420 of the encoder size on the cpu, rotated and scaled.
+ * the sequence of libyuv calls is planned by setup, convert does not allocate.
+ */
+public class FrameConverter {
+
+  public static final int ROTATE_0 = 0;
+  public static final int ROTATE_90 = 90;
+  public static final int ROTATE_180 = 180;
+  public static final int ROTATE_270 = 270;
+
+  /**
+   * the native converter, 0 after release.
+   */
+  private long mNativeHandle;
+  private int mOutputSize;
+
+  public FrameConverter() {
+    nativeSetup();
+  }
+
+  private native void nativeSetup();
+
+  private native boolean nativeConfigure(int format, int srcWidth, int srcHeight, int dstWidth, int dstHeight,
+                                         int rotation, int filter);
+
+  private native boolean nativeConvert(ByteBuffer src, int srcSize, ByteBuffer dst);
+
+  private native void nativeRelease();
+
+  /**
+   * @param format the format of the source, one of the VideoParameter.FORMAT_ constants.
+   * @param dstWidth width after the rotation.
+   * @param rotation one of the ROTATE_ constants.
+   * @param filter one of the VideoParameter.FILTER_ constants.
+   * @return false when the sizes are invalid.
+   */
+  public synchronized boolean setup(int format, int srcWidth, int srcHeight, int dstWidth, int dstHeight,
+                                    int rotation, int filter) {
+    if (!nativeConfigure(format, srcWidth, srcHeight, dstWidth, dstHeight, rotation, filter)) {
+      mOutputSize = 0;
+      return false;
+    }
+    mOutputSize = dstWidth * dstHeight + 2 * ((dstWidth + 1) / 2) * ((dstHeight + 1) / 2);
+    return true;
+  }
+
+  /**
+   * @return bytes of a converted frame.
+   */
+  public synchronized int getOutputSize() {
+    return mOutputSize;
+  }
+
+  /**
+   * @param src a direct ByteBuffer of the source format and size.
+   * @param dst a direct ByteBuffer of at least getOutputSize() bytes.
+   */
+  public synchronized boolean convert(ByteBuffer src, ByteBuffer dst) {
+    return nativeConvert(src, src.capacity(), dst);
+  }
+
+  public synchronized void release() {
+    nativeRelease();
+    mOutputSize = 0;
+  }
+}
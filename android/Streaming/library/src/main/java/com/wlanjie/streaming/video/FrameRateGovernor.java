@@ -0,0 +1,90 @@
+package com.wlanjie.streaming.video;
+
+/**
+ * Created by wlanjie on 2017/8/19.
+ *
+ * paces the frames given to the encoder to a fixed frame rate, whatever rate the camera draws at.
+ * output slots are laid on a monotonic clock from the first frame, slot k at start + k * interval.
+ * a frame falls in the slot nearest its time: a second frame for a slot already taken is dropped,
+ * a frame after missed slots fills them with duplicates. the preview is not paced.
+ * called on the gl thread, the counters are read from any thread.
+ */
+class FrameRateGovernor {
+
+  // a longer gap is a stall, the camera paused or the gl thread blocked. the clock restarts
+  // instead of bursting duplicates into the encoder.
+  private static final int MAX_DUPLICATES = 2;
+
+  private final long mIntervalNs;
+  private long mStartNs = -1;
+  // the next output slot not given a frame yet.
+  private long mNextSlot;
+  private long mSlotTimeNs;
+
+  private volatile long mDeliveredFrames;
+  private volatile long mDroppedFrames;
+  private volatile long mDuplicatedFrames;
+
+  /**
+   * @param fps frames per second of the output, every frame is delivered at its own time when <= 0.
+   */
+  FrameRateGovernor(int fps) {
+    mIntervalNs = fps > 0 ? 1000000000L / fps : 0;
+  }
+
+  /**
+   * @param timeNs monotonic time of the frame.
+   * @return times to encode the frame, 0 to drop it, more than 1 to fill missed slots.
+   */
+  int onFrame(long timeNs) {
+    if (mIntervalNs <= 0) {
+      mSlotTimeNs = timeNs;
+      mDeliveredFrames++;
+      return 1;
+    }
+    if (mStartNs < 0) {
+      mStartNs = timeNs;
+      mNextSlot = 0;
+    }
+    // the nearest slot, a camera at the output rate jitters around the slots without dropping.
+    long slot = (timeNs - mStartNs + mIntervalNs / 2) / mIntervalNs;
+    if (slot < mNextSlot) {
+      mDroppedFrames++;
+      return 0;
+    }
+    long count = slot - mNextSlot + 1;
+    if (count > MAX_DUPLICATES + 1) {
+      // the frame takes the next slot at its own time.
+      mStartNs = timeNs - mNextSlot * mIntervalNs;
+      count = 1;
+    }
+    mSlotTimeNs = mStartNs + mNextSlot * mIntervalNs;
+    mNextSlot += count;
+    mDeliveredFrames++;
+    mDuplicatedFrames += count - 1;
+    return (int) count;
+  }
+
+  /**
+   * @return time of the first slot of the frame onFrame delivered last.
+   */
+  long getSlotTimeNs() {
+    return mSlotTimeNs;
+  }
+
+  /**
+   * @return time between two slots, 0 when not paced.
+   */
+  long getIntervalNs() {
+    return mIntervalNs;
+  }
+
+  /**
+   * @param values frames delivered, dropped and duplicated, 3 values.
+   */
+  void getStats(long[] values) {
+    values[0] = mDeliveredFrames;
+    values[1] = mDroppedFrames;
+    values[2] = mDuplicatedFrames;
+  }
+}
@@ -19,19 +19,27 @@ class InputSurface {
   private EGLContext mEGLContext = null;
   private EGLSurface mEGLSurface = null;
 
-  public InputSurface(Surface surface) {
+  /**
+   * @param sharedContext the context sharing its textures with the one of the surface.
+   * @param gles3 create a gles 3 context, the shared context is gles 3.
+   */
+  public InputSurface(Surface surface, EGLContext sharedContext, boolean gles3) {
     if (surface == null) {
       throw new NullPointerException();
     }
     mSurface = surface;
-    eglSetup();
+    eglSetup(sharedContext, gles3);
   }
 
+  /**
+   * on the thread the context is current on.
+   */
   public void release() {
+    EGL14.eglMakeCurrent(mEGLDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
     EGL14.eglDestroySurface(mEGLDisplay, mEGLSurface);
     EGL14.eglDestroyContext(mEGLDisplay, mEGLContext);
+    // the display stays initialized, the preview of the shared context still uses it.
     EGL14.eglReleaseThread();
-    EGL14.eglTerminate(mEGLDisplay);
 
     mSurface.release();
 
@@ -68,7 +76,7 @@ class InputSurface {
     EGLExt.eglPresentationTimeANDROID(mEGLDisplay, mEGLSurface, nsecs);
   }
 
-  private void eglSetup() {
+  private void eglSetup(EGLContext sharedContext, boolean gles3) {
     mEGLDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
     if (mEGLDisplay == EGL14.EGL_NO_DISPLAY) {
       throw new RuntimeException("unable to get EGL14 display");
@@ -83,18 +91,18 @@ class InputSurface {
         EGL14.EGL_RED_SIZE, 8,
         EGL14.EGL_GREEN_SIZE, 8,
         EGL14.EGL_BLUE_SIZE, 8,
-        EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+        EGL14.EGL_RENDERABLE_TYPE, gles3 ? EGLExt.EGL_OPENGL_ES3_BIT_KHR : EGL14.EGL_OPENGL_ES2_BIT,
         EGL_RECORDABLE_ANDROID, 1,
         EGL14.EGL_NONE
     };
     EGLConfig[] configs = new EGLConfig[1];
     int[] numConfigs = new int[1];
     if (!EGL14.eglChooseConfig(mEGLDisplay, attribList, 0, configs, 0, configs.length, numConfigs, 0)) {
-      throw new RuntimeException("unable to find RGB888+recordable ES2 EGL config");
+      throw new RuntimeException("unable to find RGB888+recordable " + (gles3 ? "ES3" : "ES2") + " EGL config");
     }
 
-    int[] attrib_list = { EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE };
-    mEGLContext = EGL14.eglCreateContext(mEGLDisplay, configs[0], EGL14.eglGetCurrentContext(), attrib_list, 0);
+    int[] attrib_list = { EGL14.EGL_CONTEXT_CLIENT_VERSION, gles3 ? 3 : 2, EGL14.EGL_NONE };
+    mEGLContext = EGL14.eglCreateContext(mEGLDisplay, configs[0], sharedContext, attrib_list, 0);
 //		GlUtil.checkEglError("eglCreateContext");
     if (mEGLContext == null) {
       throw new RuntimeException("null context");
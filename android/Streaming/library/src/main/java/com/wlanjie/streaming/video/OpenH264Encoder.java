@@ -1,12 +1,77 @@
 package com.wlanjie.streaming.video;
 
+import com.wlanjie.streaming.rtmp.Rtmp;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Created by wlanjie on 2017/6/25.
+ *
+ * the soft video encoder session, openh264 or x264 as VideoParameter.getCodec(),
+ * the backend is chosen by setVideoParameter before openEncoder.
  */
 public class OpenH264Encoder {
 
-  public native static boolean openEncoder();
-  public native static void closeEncoder();
-  public native static void setVideoParameter(VideoParameter parameter);
-  public native static void encode(byte[] data, long pts);
+  /**
+   * most threads the encoder runs.
+   */
+  public static final int MAX_THREADS = 4;
+
+  // calibrated thread counts by video size and frame rate, measured once a process.
+  private static final Map<String, Integer> sCalibratedThreads = new HashMap<>();
+
+  /**
+   * the native encoder session, 0 after closeEncoder.
+   */
+  private long mNativeHandle;
+
+  /**
+   * @param rtmp the session the encoded frames are published to.
+   */
+  public OpenH264Encoder(Rtmp rtmp) {
+    nativeSetup(rtmp);
+  }
+
+  private native void nativeSetup(Rtmp rtmp);
+
+  private static native int nativeCalibrate(VideoParameter parameter, int frames, float[] fps);
+
+  public synchronized native boolean openEncoder();
+  public synchronized native void closeEncoder();
+  public synchronized native void setVideoParameter(VideoParameter parameter);
+  public synchronized native void encode(byte[] data, long pts);
+
+  /**
+   * encode a rgba frame without copying it to the java heap.
+   * @param data a direct ByteBuffer.
+   */
+  public synchronized native void encode(ByteBuffer data, int offset, int size, long pts);
+
+  /**
+   * encode synthetic frames of the video size with 1 to MAX_THREADS threads and measure the fps,
+   * on the calling thread, it takes about frames times 4 encode times.
+   * @param fps the fps of each thread count, may be null.
+   * @return the fewest threads encoding at 1.5 times the frame rate, else the fastest, 0 on error.
+   */
+  public static int calibrate(VideoParameter parameter, int frames, float[] fps) {
+    return nativeCalibrate(parameter, frames, fps);
+  }
+
+  /**
+   * {@link #calibrate(VideoParameter, int, float[])} once for a video size and frame rate.
+   * @return threads to encode with, 0 to let the encoder choose.
+   */
+  public static int getCalibratedThreads(VideoParameter parameter) {
+    String key = parameter.getVideoWidth() + "x" + parameter.getVideoHeight() + "@" + parameter.getFrameRate();
+    synchronized (sCalibratedThreads) {
+      Integer threads = sCalibratedThreads.get(key);
+      if (threads == null) {
+        threads = calibrate(parameter, 30, null);
+        sCalibratedThreads.put(key, threads);
+      }
+      return threads;
+    }
+  }
 }
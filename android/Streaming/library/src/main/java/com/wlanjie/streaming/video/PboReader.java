@@ -0,0 +1,210 @@
+package com.wlanjie.streaming.video;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+
+import com.wlanjie.streaming.util.StreamingLog;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Created by wlanjie on 2017/8/19.
+ *
+ * asynchronous readback of the rendered frame with a ring of pixel pack buffers, gles 3 only.
+ * glReadPixels into a pbo returns without waiting for the gpu, the pbo of the previous frame
+ * is mapped while the current one renders, and the mapped memory goes to the encoder thread
+ * without a copy. the encoder calls release() when it is done, the gl thread unmaps it.
+ * while the encoder is busy with a frame, only the newest pending frame is kept.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+class PboReader {
+
+  private static final int FREE = 0;
+  // glReadPixels issued, the gpu may still be writing.
+  private static final int PENDING = 1;
+  // mapped and handed to the encoder thread.
+  private static final int MAPPED = 2;
+  // released by the encoder thread, the gl thread unmaps it.
+  private static final int DONE = 3;
+  // the longest the gl thread waits for the encoder to give a frame back before deleting the buffers.
+  private static final long RELEASE_TIMEOUT_MS = 200;
+
+  private final int[] mPbos;
+  private final ByteBuffer[] mMapped;
+  private final AtomicIntegerArray mStates;
+  private final Object mReleaseLock = new Object();
+  private int mWriteIndex;
+  private int mPendingIndex = -1;
+  private int mSize;
+
+  PboReader(int count) {
+    mPbos = new int[count];
+    mMapped = new ByteBuffer[count];
+    mStates = new AtomicIntegerArray(count);
+  }
+
+  /**
+   * allocate the buffers on the gl thread.
+   */
+  void setSize(int width, int height) {
+    if (mSize == width * height * 4) {
+      return;
+    }
+    destroy();
+    mSize = width * height * 4;
+    GLES30.glGenBuffers(mPbos.length, mPbos, 0);
+    for (int pbo : mPbos) {
+      GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pbo);
+      GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, mSize, null, GLES30.GL_STREAM_READ);
+    }
+    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+  }
+
+  /**
+   * read the bound framebuffer into the next pbo and map the previous frame, on the gl thread.
+   * @return the previous frame, or null when there is none or the encoder is still busy.
+   */
+  ByteBuffer read(int width, int height) {
+    if (mSize == 0) {
+      return null;
+    }
+    unmapReleased();
+    boolean encoding = false;
+    for (int i = 0; i < mPbos.length; i++) {
+      encoding |= mStates.get(i) == MAPPED;
+    }
+
+    ByteBuffer frame = null;
+    if (!encoding && mPendingIndex >= 0) {
+      GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPbos[mPendingIndex]);
+      frame = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0, mSize, GLES30.GL_MAP_READ_BIT);
+      if (frame != null) {
+        mMapped[mPendingIndex] = frame;
+        mStates.set(mPendingIndex, MAPPED);
+      } else {
+        mStates.set(mPendingIndex, FREE);
+      }
+      mPendingIndex = -1;
+    }
+
+    // the slot with the encoder is skipped, at least one other is free or pending.
+    int index = mWriteIndex;
+    while (mStates.get(index) == MAPPED || mStates.get(index) == DONE) {
+      index = (index + 1) % mPbos.length;
+    }
+    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPbos[index]);
+    // with a pack buffer bound the last argument is an offset in the buffer, the call does not wait.
+    GLES30.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+    if (mPendingIndex >= 0 && mPendingIndex != index) {
+      mStates.set(mPendingIndex, FREE);
+    }
+    // the newest frame replaces a pending one the encoder had no time for.
+    mStates.set(index, PENDING);
+    mPendingIndex = index;
+    mWriteIndex = (index + 1) % mPbos.length;
+    return frame;
+  }
+
+  /**
+   * unmap the frames given back and forget the pending one, on the gl thread while no
+   * encoder reads, so a late frame of a stopped encoder does not stay mapped.
+   */
+  void recycle() {
+    if (mSize == 0) {
+      return;
+    }
+    unmapReleased();
+    if (mPendingIndex >= 0) {
+      mStates.set(mPendingIndex, FREE);
+      mPendingIndex = -1;
+    }
+  }
+
+  /**
+   * called by the encoder thread when it no longer reads the frame returned by read().
+   */
+  void release(ByteBuffer frame) {
+    for (int i = 0; i < mMapped.length; i++) {
+      if (mMapped[i] == frame) {
+        if (mStates.compareAndSet(i, MAPPED, DONE)) {
+          synchronized (mReleaseLock) {
+            mReleaseLock.notifyAll();
+          }
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * delete the buffers on the gl thread, after the encoder gave back the frame it reads.
+   * a frame it still holds after RELEASE_TIMEOUT_MS is left mapped and its buffer is not deleted,
+   * it is freed with the context instead of being unmapped under the encoder.
+   */
+  void destroy() {
+    if (mSize == 0) {
+      return;
+    }
+    awaitReleased();
+    for (int i = 0; i < mPbos.length; i++) {
+      if (mStates.get(i) == MAPPED) {
+        StreamingLog.w("pbo " + mPbos[i] + " is still read by the encoder, it is abandoned.");
+        // glDeleteBuffers skips 0, a deleted buffer would be unmapped.
+        mPbos[i] = 0;
+        mMapped[i] = null;
+      } else if (mMapped[i] != null) {
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPbos[i]);
+        GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+        mMapped[i] = null;
+      }
+      mStates.set(i, FREE);
+    }
+    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+    GLES30.glDeleteBuffers(mPbos.length, mPbos, 0);
+    mPendingIndex = -1;
+    mWriteIndex = 0;
+    mSize = 0;
+  }
+
+  private void awaitReleased() {
+    long deadline = System.currentTimeMillis() + RELEASE_TIMEOUT_MS;
+    synchronized (mReleaseLock) {
+      while (isMapped()) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          return;
+        }
+        try {
+          mReleaseLock.wait(remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  private boolean isMapped() {
+    for (int i = 0; i < mPbos.length; i++) {
+      if (mStates.get(i) == MAPPED) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void unmapReleased() {
+    for (int i = 0; i < mPbos.length; i++) {
+      if (mStates.get(i) == DONE) {
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPbos[i]);
+        GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+        mMapped[i] = null;
+        mStates.set(i, FREE);
+      }
+    }
+  }
+}
@@ -3,6 +3,7 @@ package com.wlanjie.streaming.video;
 import android.content.Context;
 import android.content.res.Resources;
 import android.opengl.GLES20;
+import android.os.Build;
 
 import com.wlanjie.streaming.R;
 import com.wlanjie.streaming.util.OpenGLUtils;
@@ -10,7 +11,6 @@ import com.wlanjie.streaming.util.OpenGLUtils;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
 
 /**
  * Created by wlanjie on 2017/5/25.
@@ -31,7 +31,14 @@ public class RendererScreen {
   private int mInputWidth;
   private int mInputHeight;
   private int mFboId;
-  private IntBuffer mFboBuffer;
+  private ByteBuffer mFboBuffer;
+  // bytes of a frame read back.
+  private int mFrameSize;
+  // asynchronous readback on gles 3, null on gles 2.
+  private PboReader mPboReader;
+  // gpu conversion to the encoder format, null when the frames are read back as rgba.
+  private RendererYuv mRendererYuv;
+  private int mFrameFormat = VideoParameter.FORMAT_RGBA;
   private Resources mResources;
   private final FloatBuffer mReadPixelTextureBuffer;
   private final float[] TEXTURE_BUFFER = {
@@ -59,11 +66,18 @@ public class RendererScreen {
     mReadPixelTextureBuffer.put(TEXTURE_BUFFER).position(0);
   }
 
-  public void init() {
+  /**
+   * @param asyncReadback read the frames back with pixel pack buffers when the context is gles 3.
+   */
+  public void init(boolean asyncReadback) {
     mScreenProgramId = OpenGLUtils.loadProgram(OpenGLUtils.readSharedFromRawResource(mResources, R.raw.vertex_default), OpenGLUtils.readSharedFromRawResource(mResources, R.raw.fragment_default));
     mScreenPosition = GLES20.glGetAttribLocation(mScreenProgramId, "position");
     mScreenUniformTexture = GLES20.glGetUniformLocation(mScreenProgramId, "inputImageTexture");
     mScreenTextureCoordinate = GLES20.glGetAttribLocation(mScreenProgramId, "inputTextureCoordinate");
+    if (asyncReadback && mPboReader == null && OpenGLUtils.isGles3Context() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+      // one pbo with the encoder, one pending and one being written.
+      mPboReader = new PboReader(3);
+    }
   }
 
   void setDisplaySize(int width, int height) {
@@ -75,14 +89,58 @@ public class RendererScreen {
     if (mFboId != 0 && width != mInputWidth && height != mInputHeight) {
         destroyFboTexture();
     }
-    mFboBuffer = IntBuffer.allocate(width * height);
     mInputHeight = height;
     mInputWidth = width;
+    if (mRendererYuv == null) {
+      allocateReadback(width, height);
+    }
     int[] fbo = new int[1];
     GLES20.glGenFramebuffers(1, fbo, 0);
     mFboId = fbo[0];
   }
 
+  /**
+   * choose the format readPixel returns, on the gl thread.
+   * @param format one of the VideoParameter.FORMAT_ constants, i420 and nv12 are converted
+   *               on the gpu to the video size and rotated as the encoder expects.
+   */
+  void setFrameFormat(int format, int videoWidth, int videoHeight) {
+    if (format == VideoParameter.FORMAT_RGBA) {
+      if (mRendererYuv != null) {
+        mRendererYuv.destroy();
+        mRendererYuv = null;
+      }
+      if (mInputWidth > 0 && mInputHeight > 0) {
+        allocateReadback(mInputWidth, mInputHeight);
+      }
+    } else {
+      if (mRendererYuv == null) {
+        mRendererYuv = new RendererYuv(mResources);
+        mRendererYuv.init();
+      }
+      mRendererYuv.setSize(format, videoWidth, videoHeight);
+      allocateReadback(mRendererYuv.getOutputWidth(), mRendererYuv.getOutputHeight());
+    }
+    mFrameFormat = format;
+  }
+
+  int getFrameFormat() {
+    return mFrameFormat;
+  }
+
+  /**
+   * @param width pixels of 4 bytes read back.
+   */
+  private void allocateReadback(int width, int height) {
+    mFrameSize = width * height * 4;
+    if (mPboReader != null) {
+      mPboReader.setSize(width, height);
+    } else {
+      mFboBuffer = ByteBuffer.allocateDirect(width * height * 4)
+          .order(ByteOrder.nativeOrder());
+    }
+  }
+
   private void destroyFboTexture() {
     if (mFboId != 0) {
       GLES20.glDeleteFramebuffers(1, new int[] { mFboId }, 0);
@@ -108,7 +166,27 @@ public class RendererScreen {
     GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
   }
 
-  public void readPixel(int textureId) {
+  /**
+   * draw the texture to the fbo and read it back, on the gl thread.
+   * on gles 3 the read goes to a pixel pack buffer without waiting, the previous frame is returned
+   * mapped and must be given back with releaseFrame; on gles 2 the frame is read synchronously.
+   * @return the frame in the format of setFrameFormat, null when no frame is ready.
+   */
+  public ByteBuffer readPixel(int textureId) {
+    return readPixel(textureId, mFboBuffer);
+  }
+
+  /**
+   * @param output a direct ByteBuffer of getFrameSize() bytes the frame is read to on gles 2,
+   *               not used by the asynchronous readback.
+   */
+  ByteBuffer readPixel(int textureId, ByteBuffer output) {
+    if (mRendererYuv != null) {
+      mRendererYuv.draw(textureId);
+      ByteBuffer frame = readFramebuffer(mRendererYuv.getOutputWidth(), mRendererYuv.getOutputHeight(), output);
+      GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+      return frame;
+    }
     GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
     GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFboId);
     GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
@@ -128,14 +206,56 @@ public class RendererScreen {
     GLES20.glVertexAttribPointer(mScreenTextureCoordinate, 2, GLES20.GL_FLOAT, false, 4 * 2, mTextureBuffer);
 
     GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-    GLES20.glReadPixels(0, 0, mInputWidth, mInputHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mFboBuffer);
+    ByteBuffer frame = readFramebuffer(mInputWidth, mInputHeight, output);
     GLES20.glDisableVertexAttribArray(mScreenPosition);
     GLES20.glDisableVertexAttribArray(mScreenTextureCoordinate);
     GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
     GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    return frame;
+  }
+
+  private ByteBuffer readFramebuffer(int width, int height, ByteBuffer output) {
+    if (mPboReader != null) {
+      return mPboReader.read(width, height);
+    }
+    output.clear();
+    GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, output);
+    return output;
+  }
+
+  /**
+   * @return bytes of a frame returned by readPixel.
+   */
+  int getFrameSize() {
+    return mFrameSize;
+  }
+
+  /**
+   * @return true when readPixel returns mapped pixel pack buffers, read in place and released.
+   */
+  public boolean isAsyncReadback() {
+    return mPboReader != null;
+  }
+
+  /**
+   * give back a frame returned by readPixel once it is encoded, from any thread.
+   */
+  public void releaseFrame(ByteBuffer frame) {
+    if (mPboReader != null) {
+      mPboReader.release(frame);
+    }
   }
 
-  public IntBuffer getFboBuffer() {
+  /**
+   * unmap the frames released after the encoder stopped, on the gl thread.
+   */
+  void recycleFrames() {
+    if (mPboReader != null) {
+      mPboReader.recycle();
+    }
+  }
+
+  public ByteBuffer getFboBuffer() {
     return mFboBuffer;
   }
 
@@ -145,6 +265,14 @@ public class RendererScreen {
 
   public void destroy() {
     GLES20.glDeleteProgram(mScreenProgramId);
+    if (mRendererYuv != null) {
+      mRendererYuv.destroy();
+      mRendererYuv = null;
+    }
+    mFrameFormat = VideoParameter.FORMAT_RGBA;
+    if (mPboReader != null) {
+      mPboReader.destroy();
+    }
   }
 
   public void updateTextureCoordinate(float[] textureCords) {
@@ -4,10 +4,11 @@ import android.content.Context;
 import android.content.res.Resources;
 import android.opengl.EGL14;
 import android.opengl.EGLContext;
-import android.opengl.EGLDisplay;
-import android.opengl.EGLSurface;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.support.annotation.RequiresApi;
 
 import com.wlanjie.streaming.R;
@@ -16,30 +17,88 @@ import com.wlanjie.streaming.util.OpenGLUtils;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by wlanjie on 2017/5/25.
+ *
+ * draws the frames to the input surface of the hardware encoder on the EncoderGL thread,
+ * its context shares the textures of the gl thread. the gl thread copies the filtered frame to a free
+ * hand-off texture, fences the copy and posts the texture, the EncoderGL thread waits for the fence
+ * on the gpu, draws and swaps. a swap blocked by the codec only holds the EncoderGL thread,
+ * a frame finding every hand-off texture in use is dropped.
+ * gles 2 has no fence, a copy is posted with the next frame, after the swap of the window flushed it,
+ * the gl thread never waits for the gpu.
+ * a fence the EncoderGL thread did not consume after stop is deleted by the gl thread,
+ * the EncoderGL thread has released its context by then.
  */
-
 @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
 public class RendererVideoEncoder {
 
+  // one texture being swapped, one queued and one being copied.
+  private static final int HANDOFF_COUNT = 3;
+  private static final int FREE = 0;
+  // copied by the gl thread, until the EncoderGL thread swapped it.
+  private static final int BUSY = 1;
+
   private final FloatBuffer mCubeBuffer;
   private final FloatBuffer mTextureBuffer;
 
-  // screen
+  // the copy, on the gl thread.
+  private int mCopyProgramId;
+  private int mCopyPosition;
+  private int mCopyUniformTexture;
+  private int mCopyTextureCoordinate;
+  private int mFboId;
+  // whether the copy is fenced with glFenceSync, else it is posted with the next frame on gles 2.
+  private boolean mFenced;
+  // the copy of the previous frame on gles 2, posted by the next drawEncoder.
+  private HandOff mPendingHandOff;
+
+  // screen, on the EncoderGL thread.
   private int mProgramId;
   private int mPosition;
   private int mUniformTexture;
   private int mTextureCoordinate;
+  private boolean mSurfaceReady;
+
   private int mVideoWidth;
   private int mVideoHeight;
   private Resources mResources;
+  private VideoEncoder mEncoder;
+  private HandlerThread mThread;
+  private volatile Handler mHandler;
+  // stop ran, a late start from the gl thread does nothing.
+  private boolean mStopped;
+
+  private final int[] mHandOffTextures = new int[HANDOFF_COUNT];
+  private final AtomicIntegerArray mHandOffStates = new AtomicIntegerArray(HANDOFF_COUNT);
+  private final HandOff[] mHandOffs = new HandOff[HANDOFF_COUNT];
+  private final AtomicLong mDroppedFrames = new AtomicLong();
+
+  /**
+   * a copied frame, written by the gl thread before it is posted.
+   */
+  private final class HandOff implements Runnable {
+    final int index;
+    long fence;
+    long presentationTimeNs;
+    long intervalNs;
+    int count;
 
-  private EGLDisplay mSavedEglDisplay     = null;
-  private EGLSurface mSavedEglDrawSurface = null;
-  private EGLSurface mSavedEglReadSurface = null;
-  private EGLContext mSavedEglContext     = null;
+    HandOff(int index) {
+      this.index = index;
+    }
+
+    @Override
+    public void run() {
+      drawHandOff(this);
+      // a fence left after stop goes back to the gl thread with the texture.
+      mHandOffStates.set(index, FREE);
+    }
+  }
 
   public RendererVideoEncoder(Context context) {
     mResources = context.getResources();
@@ -52,13 +111,9 @@ public class RendererVideoEncoder {
         .order(ByteOrder.nativeOrder())
         .asFloatBuffer();
     mTextureBuffer.put(OpenGLUtils.TEXTURE).position(0);
-  }
-
-  public void init() {
-    mProgramId = OpenGLUtils.loadProgram(OpenGLUtils.readSharedFromRawResource(mResources, R.raw.vertex_default), OpenGLUtils.readSharedFromRawResource(mResources, R.raw.fragment_default));
-    mPosition = GLES20.glGetAttribLocation(mProgramId, "position");
-    mUniformTexture = GLES20.glGetUniformLocation(mProgramId, "inputImageTexture");
-    mTextureCoordinate = GLES20.glGetAttribLocation(mProgramId, "inputTextureCoordinate");
+    for (int i = 0; i < HANDOFF_COUNT; i++) {
+      mHandOffs[i] = new HandOff(i);
+    }
   }
 
   public void setVideoSize(int width, int height) {
@@ -66,64 +121,242 @@ public class RendererVideoEncoder {
     mVideoHeight = height;
   }
 
-  public void drawEncoder(int textureId, VideoEncoder encoder, FloatBuffer cubeBuffer, FloatBuffer textureBuffer) {
-    if (encoder != null) {
-      saveRenderState();
-      if (encoder.firstTimeSetup()) {
+  /**
+   * create the hand-off textures and start the EncoderGL thread, on the gl thread.
+   * the context of the gl thread is shared with the input surface of the encoder.
+   */
+  public synchronized void start(final VideoEncoder encoder) {
+    if (mThread != null || mStopped) {
+      return;
+    }
+    mCopyProgramId = loadProgram();
+    mCopyPosition = GLES20.glGetAttribLocation(mCopyProgramId, "position");
+    mCopyUniformTexture = GLES20.glGetUniformLocation(mCopyProgramId, "inputImageTexture");
+    mCopyTextureCoordinate = GLES20.glGetAttribLocation(mCopyProgramId, "inputTextureCoordinate");
+    int[] fbo = new int[1];
+    GLES20.glGenFramebuffers(1, fbo, 0);
+    mFboId = fbo[0];
+    GLES20.glGenTextures(HANDOFF_COUNT, mHandOffTextures, 0);
+    for (int texture : mHandOffTextures) {
+      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+      GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+      GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+      GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+      GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+      GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, mVideoWidth, mVideoHeight, 0,
+          GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+    }
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    mFenced = OpenGLUtils.isGles3Context();
+
+    final EGLContext sharedContext = EGL14.eglGetCurrentContext();
+    final boolean gles3 = mFenced;
+    mEncoder = encoder;
+    mThread = new HandlerThread("EncoderGL");
+    mThread.start();
+    mHandler = new Handler(mThread.getLooper());
+    // queued before the first frame, the gl thread does not wait for the codec to start.
+    mHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        if (!encoder.firstTimeSetup(sharedContext, gles3)) {
+          return;
+        }
         encoder.startEncoder();
         encoder.makeCurrent();
-        init();
-      } else {
-        encoder.makeCurrent();
+        mProgramId = loadProgram();
+        mPosition = GLES20.glGetAttribLocation(mProgramId, "position");
+        mUniformTexture = GLES20.glGetUniformLocation(mProgramId, "inputImageTexture");
+        mTextureCoordinate = GLES20.glGetAttribLocation(mProgramId, "inputTextureCoordinate");
+        mSurfaceReady = true;
       }
-      GLES20.glViewport(0, 0, mVideoWidth, mVideoHeight);
-      GLES20.glUseProgram(mProgramId);
+    });
+  }
 
-      GLES20.glEnableVertexAttribArray(mPosition);
-      GLES20.glVertexAttribPointer(mPosition, 2, GLES20.GL_FLOAT, false, 4 * 2, cubeBuffer);
+  public synchronized boolean isStarted() {
+    return mThread != null || mStopped;
+  }
 
-      GLES20.glEnableVertexAttribArray(mTextureCoordinate);
-      GLES20.glVertexAttribPointer(mTextureCoordinate, 2, GLES20.GL_FLOAT, false, 4 * 2, textureBuffer);
+  /**
+   * copy the frame to a hand-off texture and post it to the EncoderGL thread, on the gl thread.
+   * @param presentationTimeNs System.nanoTime() based time of the frame.
+   * @param intervalNs time between the frames when the frame is encoded more than once.
+   * @param count times the frame is encoded, to fill missed slots.
+   * @return false when the frame is dropped because the encoder still holds every hand-off texture.
+   */
+  public boolean drawEncoder(int textureId, FloatBuffer cubeBuffer, FloatBuffer textureBuffer,
+                             long presentationTimeNs, long intervalNs, int count) {
+    Handler handler = mHandler;
+    if (handler == null) {
+      return false;
+    }
+    if (mPendingHandOff != null) {
+      // the swap of the window since the copy flushed it.
+      post(handler, mPendingHandOff);
+      mPendingHandOff = null;
+    }
+    HandOff handOff = null;
+    for (int i = 0; i < HANDOFF_COUNT; i++) {
+      if (mHandOffStates.compareAndSet(i, FREE, BUSY)) {
+        handOff = mHandOffs[i];
+        break;
+      }
+    }
+    if (handOff == null) {
+      mDroppedFrames.incrementAndGet();
+      return false;
+    }
+    deleteFence(handOff);
 
-      GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
-      GLES20.glUniform1i(mUniformTexture, 0);
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFboId);
+    GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D,
+        mHandOffTextures[handOff.index], 0);
+    GLES20.glViewport(0, 0, mVideoWidth, mVideoHeight);
+    draw(mCopyProgramId, mCopyPosition, mCopyUniformTexture, mCopyTextureCoordinate, textureId,
+        cubeBuffer, textureBuffer);
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
 
-      GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    handOff.fence = mFenced ? GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0) : 0;
+    // the fence only signals once it reached the gpu.
+    GLES20.glFlush();
+    handOff.presentationTimeNs = presentationTimeNs;
+    handOff.intervalNs = intervalNs;
+    handOff.count = count;
+    if (!mFenced) {
+      mPendingHandOff = handOff;
+      return true;
+    }
+    return post(handler, handOff);
+  }
 
-      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+  /**
+   * @return false when stopped, the EncoderGL thread is gone and the texture is free again.
+   */
+  private boolean post(Handler handler, HandOff handOff) {
+    if (handler.post(handOff)) {
+      return true;
+    }
+    deleteFence(handOff);
+    mHandOffStates.set(handOff.index, FREE);
+    return false;
+  }
 
-      GLES20.glDisableVertexAttribArray(mPosition);
-      GLES20.glDisableVertexAttribArray(mTextureCoordinate);
+  /**
+   * on the gl thread, while the hand-off is not with the EncoderGL thread.
+   */
+  private static void deleteFence(HandOff handOff) {
+    if (handOff.fence != 0) {
+      GLES30.glDeleteSync(handOff.fence);
+      handOff.fence = 0;
+    }
+  }
 
-      encoder.swapBuffers();
-      restoreRenderState();
+  /**
+   * release the input surface on the EncoderGL thread and wait for it, before the encoder stops.
+   * the textures of the gl thread are deleted by destroy on the gl thread.
+   */
+  public synchronized void stop() {
+    mStopped = true;
+    final Handler handler = mHandler;
+    mHandler = null;
+    if (handler == null) {
+      return;
     }
+    final CountDownLatch done = new CountDownLatch(1);
+    // after the frames already posted.
+    boolean posted = handler.post(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (mSurfaceReady) {
+            GLES20.glDeleteProgram(mProgramId);
+            mSurfaceReady = false;
+          }
+          mEncoder.releaseInputSurface();
+        } finally {
+          done.countDown();
+        }
+      }
+    });
+    if (posted) {
+      try {
+        done.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    mThread.quit();
   }
 
-  public void destroy() {
-    GLES20.glDeleteProgram(mProgramId);
+  /**
+   * frames dropped because the EncoderGL thread was busy with the previous ones.
+   */
+  public long getDroppedFrames() {
+    return mDroppedFrames.get();
   }
 
-  private void saveRenderState() {
-    mSavedEglDisplay     = EGL14.eglGetCurrentDisplay();
-    mSavedEglDrawSurface = EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW);
-    mSavedEglReadSurface = EGL14.eglGetCurrentSurface(EGL14.EGL_READ);
-    mSavedEglContext     = EGL14.eglGetCurrentContext();
+  /**
+   * delete the copy program, the fbo, the hand-off textures and the fences left, on the gl thread after stop.
+   */
+  public void destroy() {
+    mPendingHandOff = null;
+    for (HandOff handOff : mHandOffs) {
+      // the EncoderGL thread no longer touches the fences once stop released the surface.
+      deleteFence(handOff);
+    }
+    if (mCopyProgramId != 0) {
+      GLES20.glDeleteProgram(mCopyProgramId);
+      GLES20.glDeleteFramebuffers(1, new int[] { mFboId }, 0);
+      GLES20.glDeleteTextures(HANDOFF_COUNT, mHandOffTextures, 0);
+      mCopyProgramId = 0;
+    }
   }
 
-  private void restoreRenderState() {
-    if (!EGL14.eglMakeCurrent(
-        mSavedEglDisplay,
-        mSavedEglDrawSurface,
-        mSavedEglReadSurface,
-        mSavedEglContext)) {
-      throw new RuntimeException("eglMakeCurrent failed");
+  /**
+   * wait for the copy on the gpu, then draw the texture and swap it to the codec, on the EncoderGL thread.
+   */
+  private void drawHandOff(HandOff handOff) {
+    if (!mSurfaceReady) {
+      // no context to delete the fence, the gl thread deletes it.
+      return;
+    }
+    if (handOff.fence != 0) {
+      GLES30.glWaitSync(handOff.fence, 0, GLES30.GL_TIMEOUT_IGNORED);
+      GLES30.glDeleteSync(handOff.fence);
+      handOff.fence = 0;
+    }
+    GLES20.glViewport(0, 0, mVideoWidth, mVideoHeight);
+    for (int i = 0; i < handOff.count; i++) {
+      draw(mProgramId, mPosition, mUniformTexture, mTextureCoordinate, mHandOffTextures[handOff.index],
+          mCubeBuffer, mTextureBuffer);
+      mEncoder.swapBuffers(handOff.presentationTimeNs + i * handOff.intervalNs);
     }
   }
 
-  public void updateTextureCoordinate(float[] textureCords) {
-    mTextureBuffer.clear();
-    mTextureBuffer.put(textureCords).position(0);
+  private int loadProgram() {
+    return OpenGLUtils.loadProgram(OpenGLUtils.readSharedFromRawResource(mResources, R.raw.vertex_default),
+        OpenGLUtils.readSharedFromRawResource(mResources, R.raw.fragment_default));
+  }
+
+  private static void draw(int programId, int position, int uniformTexture, int textureCoordinate, int textureId,
+                           FloatBuffer cubeBuffer, FloatBuffer textureBuffer) {
+    GLES20.glUseProgram(programId);
+
+    GLES20.glEnableVertexAttribArray(position);
+    GLES20.glVertexAttribPointer(position, 2, GLES20.GL_FLOAT, false, 4 * 2, cubeBuffer);
+
+    GLES20.glEnableVertexAttribArray(textureCoordinate);
+    GLES20.glVertexAttribPointer(textureCoordinate, 2, GLES20.GL_FLOAT, false, 4 * 2, textureBuffer);
+
+    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+    GLES20.glUniform1i(uniformTexture, 0);
+
+    GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+    GLES20.glDisableVertexAttribArray(position);
+    GLES20.glDisableVertexAttribArray(textureCoordinate);
   }
 }
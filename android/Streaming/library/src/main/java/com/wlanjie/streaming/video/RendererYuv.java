@@ -0,0 +1,170 @@
+package com.wlanjie.streaming.video;
+
+import android.content.res.Resources;
+import android.opengl.GLES20;
+
+import com.wlanjie.streaming.R;
+import com.wlanjie.streaming.util.OpenGLUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Created by wlanjie on 2017/8/19.
+ *
+ * converts the filtered rgba texture to i420 or nv12 of the video size on the gpu.
+ * every output pixel packs 4 bytes of a plane, the target is width / 4 by height * 3 / 2,
+ * so the readback is the frame ready to encode. the scale and the 180 degrees rotation
+ * the soft encoder did on the cpu are done in the same pass.
+ */
+class RendererYuv {
+
+  private final Resources mResources;
+  private final FloatBuffer mCubeBuffer;
+  private final FloatBuffer mTextureBuffer;
+
+  private int mProgramId;
+  private int mPosition;
+  private int mUniformTexture;
+  private int mTextureCoordinate;
+  private int mUniformOutputSize;
+  private int mUniformFlip;
+  private int mUniformNv12;
+
+  private int mFboId;
+  private int mFboTextureId;
+  private int mWidth;
+  private int mHeight;
+  private int mFormat = VideoParameter.FORMAT_I420;
+
+  RendererYuv(Resources resources) {
+    mResources = resources;
+    mCubeBuffer = ByteBuffer.allocateDirect(OpenGLUtils.CUBE.length * 4)
+        .order(ByteOrder.nativeOrder())
+        .asFloatBuffer();
+    mCubeBuffer.put(OpenGLUtils.CUBE).position(0);
+
+    mTextureBuffer = ByteBuffer.allocateDirect(OpenGLUtils.TEXTURE.length * 4)
+        .order(ByteOrder.nativeOrder())
+        .asFloatBuffer();
+    mTextureBuffer.put(OpenGLUtils.TEXTURE).position(0);
+  }
+
+  void init() {
+    mProgramId = OpenGLUtils.loadProgram(OpenGLUtils.readSharedFromRawResource(mResources, R.raw.vertex_default), OpenGLUtils.readSharedFromRawResource(mResources, R.raw.fragment_yuv));
+    mPosition = GLES20.glGetAttribLocation(mProgramId, "position");
+    mUniformTexture = GLES20.glGetUniformLocation(mProgramId, "inputImageTexture");
+    mTextureCoordinate = GLES20.glGetAttribLocation(mProgramId, "inputTextureCoordinate");
+    mUniformOutputSize = GLES20.glGetUniformLocation(mProgramId, "outputSize");
+    mUniformFlip = GLES20.glGetUniformLocation(mProgramId, "flip");
+    mUniformNv12 = GLES20.glGetUniformLocation(mProgramId, "nv12");
+  }
+
+  /**
+   * a texel packs 4 bytes of one plane row. the chroma rows of i420 are width / 2 bytes,
+   * and each of its chroma planes fills height / 4 output rows.
+   */
+  static boolean canPack(int format, int width, int height) {
+    if (format == VideoParameter.FORMAT_I420) {
+      return width % 8 == 0 && height % 4 == 0;
+    }
+    return width % 4 == 0 && height % 2 == 0;
+  }
+
+  /**
+   * @param format VideoParameter.FORMAT_I420 or VideoParameter.FORMAT_NV12.
+   * @param width video width, a multiple of 4, of 8 for i420.
+   * @param height video height, a multiple of 2, of 4 for i420.
+   */
+  void setSize(int format, int width, int height) {
+    if (!canPack(format, width, height)) {
+      throw new IllegalArgumentException("video size " + width + "x" + height + " can not be packed");
+    }
+    mFormat = format;
+    if (width == mWidth && height == mHeight) {
+      return;
+    }
+    destroyFboTexture();
+    mWidth = width;
+    mHeight = height;
+    int[] fbo = new int[1];
+    int[] texture = new int[1];
+    GLES20.glGenFramebuffers(1, fbo, 0);
+    GLES20.glGenTextures(1, texture, 0);
+    mFboId = fbo[0];
+    mFboTextureId = texture[0];
+
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mFboTextureId);
+    GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, getOutputWidth(), getOutputHeight(), 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+    // one texel is 4 bytes of a plane, nothing may be filtered.
+    GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+    GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+    GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+    GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFboId);
+    GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, mFboTextureId, 0);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+  }
+
+  int getOutputWidth() {
+    return mWidth / 4;
+  }
+
+  int getOutputHeight() {
+    return mHeight * 3 / 2;
+  }
+
+  /**
+   * @return bytes of the converted frame.
+   */
+  int getFrameSize() {
+    return mWidth * mHeight * 3 / 2;
+  }
+
+  /**
+   * convert the texture, the fbo is left bound for the readback.
+   */
+  void draw(int textureId) {
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFboId);
+    GLES20.glUseProgram(mProgramId);
+    GLES20.glViewport(0, 0, getOutputWidth(), getOutputHeight());
+    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+    GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+    GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+    GLES20.glUniform1i(mUniformTexture, 0);
+    GLES20.glUniform2f(mUniformOutputSize, mWidth, mHeight);
+    // the encoder expects the frame rotated by 180 degrees from the texture rows read back.
+    GLES20.glUniform2f(mUniformFlip, 1.0f, 1.0f);
+    GLES20.glUniform1f(mUniformNv12, mFormat == VideoParameter.FORMAT_NV12 ? 1.0f : 0.0f);
+
+    GLES20.glEnableVertexAttribArray(mPosition);
+    GLES20.glVertexAttribPointer(mPosition, 2, GLES20.GL_FLOAT, false, 4 * 2, mCubeBuffer);
+    GLES20.glEnableVertexAttribArray(mTextureCoordinate);
+    GLES20.glVertexAttribPointer(mTextureCoordinate, 2, GLES20.GL_FLOAT, false, 4 * 2, mTextureBuffer);
+    GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    GLES20.glDisableVertexAttribArray(mPosition);
+    GLES20.glDisableVertexAttribArray(mTextureCoordinate);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+  }
+
+  private void destroyFboTexture() {
+    if (mFboId != 0) {
+      GLES20.glDeleteFramebuffers(1, new int[] { mFboId }, 0);
+      mFboId = 0;
+    }
+    if (mFboTextureId != 0) {
+      GLES20.glDeleteTextures(1, new int[] { mFboTextureId }, 0);
+      mFboTextureId = 0;
+    }
+    mWidth = 0;
+    mHeight = 0;
+  }
+
+  void destroy() {
+    destroyFboTexture();
+    GLES20.glDeleteProgram(mProgramId);
+  }
+}
@@ -0,0 +1,347 @@
+package com.wlanjie.streaming.video;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Created by wlanjie on 2017/8/19.
+ *
+ * the stages of the soft encoder: the gl thread reads a frame back, a convert thread converts it
+ * to i420 when the gpu did not, an encode thread encodes it.
+ * a frame belongs to one stage at a time and is handed over through a single slot mailbox.
+ * a newer frame replaces the one still waiting in a mailbox, so when the encoder falls behind
+ * the oldest frames are dropped, the gl thread never waits and no stage sees a frame being written.
+ */
+class SoftEncodePipeline {
+
+  static final int STAGE_READBACK = 0;
+  static final int STAGE_CONVERT = 1;
+  static final int STAGE_ENCODE = 2;
+  static final int STAGE_COUNT = 3;
+
+  // one frame being written, one waiting and one with the next stage.
+  private static final int POOL_SIZE = 3;
+
+  /**
+   * gives a mapped pixel pack buffer back to the renderer.
+   */
+  interface OnReleaseListener {
+    void onRelease(ByteBuffer buffer);
+  }
+
+  static final class Frame {
+    private final FramePool mPool;
+    ByteBuffer buffer;
+    long timestampNs;
+    // times the frame is encoded, the copies fill the slots after timestampNs.
+    int count;
+
+    private Frame(FramePool pool) {
+      mPool = pool;
+    }
+  }
+
+  /**
+   * the frames of one stage, allocated on the first use, at most POOL_SIZE.
+   */
+  private static final class FramePool {
+    private final ArrayBlockingQueue<Frame> mFree = new ArrayBlockingQueue<>(POOL_SIZE);
+    private int mAllocated;
+
+    /**
+     * called by the one thread writing the frames of the pool.
+     * @return null when all the frames are busy.
+     */
+    Frame acquire(int size) {
+      Frame frame = mFree.poll();
+      if (frame == null && mAllocated < POOL_SIZE) {
+        frame = new Frame(this);
+        mAllocated++;
+      }
+      if (frame != null && (frame.buffer == null || frame.buffer.capacity() != size)) {
+        frame.buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+      }
+      return frame;
+    }
+
+    void release(Frame frame) {
+      mFree.offer(frame);
+    }
+  }
+
+  /**
+   * a single frame handed from one stage to the next, the newest wins.
+   */
+  private static final class Mailbox {
+    private Frame mFrame;
+    private boolean mQuit;
+
+    /**
+     * @return the frame replaced, it was never taken.
+     */
+    synchronized Frame offer(Frame frame) {
+      Frame replaced = mFrame;
+      mFrame = frame;
+      notifyAll();
+      return replaced;
+    }
+
+    synchronized Frame poll() {
+      Frame frame = mFrame;
+      mFrame = null;
+      return frame;
+    }
+
+    /**
+     * @return null after quit.
+     */
+    synchronized Frame take() throws InterruptedException {
+      while (mFrame == null && !mQuit) {
+        wait();
+      }
+      return poll();
+    }
+
+    synchronized void quit() {
+      mQuit = true;
+      notifyAll();
+    }
+  }
+
+  private final FramePool mReadbackPool = new FramePool();
+  private final FramePool mConvertPool = new FramePool();
+  private final Mailbox mConvertMailbox = new Mailbox();
+  private final Mailbox mEncodeMailbox = new Mailbox();
+  private final FrameConverter mConverter;
+  private final VideoRenderer.OnFrameListener mOnFrameListener;
+  private final OnReleaseListener mOnReleaseListener;
+  private final long mFrameIntervalNs;
+  private Thread mConvertThread;
+  private Thread mEncodeThread;
+  // guarded by this, a frame submitted after stop goes straight back.
+  private boolean mStopped;
+
+  private final AtomicLongArray mStageFrames = new AtomicLongArray(STAGE_COUNT);
+  private final AtomicLongArray mStageTimeNs = new AtomicLongArray(STAGE_COUNT);
+  private final AtomicLong mDroppedFrames = new AtomicLong();
+
+  /**
+   * @param converter the convert stage, null when the frames are read back as i420.
+   * @param listener the encode stage.
+   * @param releaseListener takes back the mapped buffers given to submitMapped.
+   * @param frameIntervalNs time between the copies of a frame encoded more than once.
+   */
+  SoftEncodePipeline(FrameConverter converter, VideoRenderer.OnFrameListener listener,
+                     OnReleaseListener releaseListener, long frameIntervalNs) {
+    mConverter = converter;
+    mOnFrameListener = listener;
+    mOnReleaseListener = releaseListener;
+    mFrameIntervalNs = frameIntervalNs;
+  }
+
+  void start() {
+    if (mConverter != null) {
+      mConvertThread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          convertLoop();
+        }
+      }, "SoftConvert");
+      mConvertThread.start();
+    }
+    mEncodeThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        encodeLoop();
+      }
+    }, "SoftEncode");
+    mEncodeThread.start();
+  }
+
+  /**
+   * stop the workers and wait for the frame being encoded, the frames waiting are released.
+   */
+  void stop() {
+    synchronized (this) {
+      mStopped = true;
+    }
+    mConvertMailbox.quit();
+    mEncodeMailbox.quit();
+    join(mConvertThread);
+    join(mEncodeThread);
+    mConvertThread = null;
+    mEncodeThread = null;
+    recycle(mConvertMailbox.poll());
+    recycle(mEncodeMailbox.poll());
+  }
+
+  /**
+   * a frame to read back into, on the gl thread.
+   * when all frames are busy the oldest frame still waiting is taken over.
+   * @return null when every frame is being converted or encoded, the frame is dropped.
+   */
+  Frame acquireFrame(int size) {
+    Frame frame = mReadbackPool.acquire(size);
+    if (frame == null) {
+      frame = (mConverter != null ? mConvertMailbox : mEncodeMailbox).poll();
+      if (frame != null) {
+        mDroppedFrames.incrementAndGet();
+        if (frame.buffer.capacity() != size) {
+          frame.buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        }
+      }
+    }
+    if (frame == null) {
+      mDroppedFrames.incrementAndGet();
+    }
+    return frame;
+  }
+
+  /**
+   * hand a frame from acquireFrame to the next stage, on the gl thread.
+   * @param count times the frame is encoded, see FrameRateGovernor.
+   */
+  void submit(Frame frame, long timestampNs, int count) {
+    frame.timestampNs = timestampNs;
+    frame.count = count;
+    submitFrame(frame);
+  }
+
+  /**
+   * hand a mapped pixel pack buffer to the next stage, on the gl thread.
+   * it goes back to the OnReleaseListener when the stage is done with it, or at once after stop.
+   */
+  void submitMapped(ByteBuffer buffer, long timestampNs, int count) {
+    Frame frame = new Frame(null);
+    frame.buffer = buffer;
+    frame.timestampNs = timestampNs;
+    frame.count = count;
+    submitFrame(frame);
+  }
+
+  /**
+   * the gl thread may still hold the pipeline while stop runs, the lock orders the hand over
+   * before the mailboxes are drained by stop or rejects it after.
+   */
+  private void submitFrame(Frame frame) {
+    synchronized (this) {
+      if (!mStopped) {
+        handOver(mConverter != null ? mConvertMailbox : mEncodeMailbox, frame);
+        return;
+      }
+    }
+    recycle(frame);
+  }
+
+  void recordReadback(long timeNs) {
+    record(STAGE_READBACK, timeNs);
+  }
+
+  /**
+   * @param values frames and time in ns of each stage, then the frames dropped,
+   *               STAGE_COUNT * 2 + 1 values.
+   */
+  void getStats(long[] values) {
+    for (int stage = 0; stage < STAGE_COUNT; stage++) {
+      values[stage * 2] = mStageFrames.get(stage);
+      values[stage * 2 + 1] = mStageTimeNs.get(stage);
+    }
+    values[STAGE_COUNT * 2] = mDroppedFrames.get();
+  }
+
+  private void convertLoop() {
+    try {
+      while (true) {
+        Frame input = mConvertMailbox.take();
+        if (input == null) {
+          return;
+        }
+        int size = mConverter.getOutputSize();
+        Frame output = mConvertPool.acquire(size);
+        if (output == null) {
+          // the converted frame waiting for the encoder is older, it is replaced.
+          output = mEncodeMailbox.poll();
+          mDroppedFrames.incrementAndGet();
+        }
+        if (output == null) {
+          recycle(input);
+          continue;
+        }
+        long start = System.nanoTime();
+        boolean converted = mConverter.convert(input.buffer, output.buffer);
+        record(STAGE_CONVERT, System.nanoTime() - start);
+        output.timestampNs = input.timestampNs;
+        output.count = input.count;
+        // the source is given back before the encoder starts, a mapped buffer is free for the next readback.
+        recycle(input);
+        if (converted) {
+          handOver(mEncodeMailbox, output);
+        } else {
+          recycle(output);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void encodeLoop() {
+    try {
+      while (true) {
+        Frame frame = mEncodeMailbox.take();
+        if (frame == null) {
+          return;
+        }
+        try {
+          for (int i = 0; i < frame.count; i++) {
+            long start = System.nanoTime();
+            mOnFrameListener.onFrame(frame.buffer, frame.timestampNs + i * mFrameIntervalNs);
+            record(STAGE_ENCODE, System.nanoTime() - start);
+          }
+        } finally {
+          recycle(frame);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void handOver(Mailbox mailbox, Frame frame) {
+    Frame replaced = mailbox.offer(frame);
+    if (replaced != null) {
+      mDroppedFrames.incrementAndGet();
+      recycle(replaced);
+    }
+  }
+
+  private void recycle(Frame frame) {
+    if (frame == null) {
+      return;
+    }
+    if (frame.mPool != null) {
+      frame.mPool.release(frame);
+    } else {
+      mOnReleaseListener.onRelease(frame.buffer);
+    }
+  }
+
+  private void record(int stage, long timeNs) {
+    mStageFrames.incrementAndGet(stage);
+    mStageTimeNs.addAndGet(stage, timeNs);
+  }
+
+  private static void join(Thread thread) {
+    if (thread == null) {
+      return;
+    }
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
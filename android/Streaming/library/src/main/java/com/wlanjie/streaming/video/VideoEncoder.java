@@ -3,26 +3,38 @@ package com.wlanjie.streaming.video;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
+import android.opengl.EGLContext;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
-import android.os.SystemClock;
 import android.support.annotation.RequiresApi;
 
 import com.wlanjie.streaming.setting.StreamingSetting;
+import com.wlanjie.streaming.util.StreamingLog;
 import com.wlanjie.streaming.util.VideoUtil;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Created by wlanjie on 2017/6/28.
+ *
+ * the hardware encoder, fed through an input surface on the EncoderGL thread of RendererVideoEncoder.
+ * the codec is created, drained and released on the Encoder thread.
+ * from lollipop the codec runs in the asynchronous mode, every output buffer is delivered
+ * by a callback on that thread as soon as it is ready. before it the thread polls the codec,
+ * blocking in dequeueOutputBuffer.
  */
 
 @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
 public class VideoEncoder {
   private final static String MIME = "video/avc";
+  // the poll of the synchronous mode, in us.
+  private final static long DEQUEUE_TIMEOUT_US = 10000;
+  // frames the codec may hold between the swap and the output.
+  private final static int LATENCY_SLOTS = 32;
   private StreamingSetting mStreamingSetting;
   private InputSurface mInputSurface;
   private MediaCodec mMediaCodec;
@@ -30,30 +42,49 @@ public class VideoEncoder {
   private Handler mEncodeHandler;
   private MediaCodec.BufferInfo mBufferInfo;
   private volatile boolean mIsStarted;
-  private final ReentrantLock mEncoderLock = new ReentrantLock();
-  private OnMediaCodecEncoderListener mEncoderListener;
+  private volatile OnMediaCodecEncoderListener mEncoderListener;
+  private final boolean mAsync = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+
+  // the time of the swap of each frame still in the codec, keyed by the presentation time.
+  private final long[] mSubmitPtsUs = new long[LATENCY_SLOTS];
+  private final long[] mSubmitTimeNs = new long[LATENCY_SLOTS];
+  private int mSubmitIndex;
+  private long mLatencyFrames;
+  private long mLatencyTotalNs;
+  private long mLatencyMaxNs;
 
   public void prepareEncoder(StreamingSetting streamingSetting) {
     mStreamingSetting = streamingSetting;
     if (mMediaCodec != null || mInputSurface != null) {
       throw new IllegalStateException("prepareEncoder already called.");
     }
-    mMediaCodec = getMediaCodec();
     mEncoderThread = new HandlerThread("Encoder");
     mEncoderThread.start();
     mEncodeHandler = new Handler(mEncoderThread.getLooper());
     mBufferInfo = new MediaCodec.BufferInfo();
+    // the callbacks of the asynchronous mode go to the looper of the thread creating the codec.
+    runOnEncoderThread(new Runnable() {
+      @Override
+      public void run() {
+        mMediaCodec = getMediaCodec();
+      }
+    });
   }
 
   public void setOnMediaCodecEncoderListener(OnMediaCodecEncoderListener l) {
     mEncoderListener = l;
   }
 
-  public boolean firstTimeSetup() {
+  /**
+   * create the input surface, on the thread drawing to it.
+   * @param sharedContext the context whose textures are drawn to the surface.
+   * @param gles3 whether the shared context is gles 3.
+   */
+  public boolean firstTimeSetup(EGLContext sharedContext, boolean gles3) {
     if (mMediaCodec == null || mInputSurface != null) {
       return false;
     }
-    mInputSurface = new InputSurface(mMediaCodec.createInputSurface());
+    mInputSurface = new InputSurface(mMediaCodec.createInputSurface(), sharedContext, gles3);
     mMediaCodec.start();
     return true;
   }
@@ -62,14 +93,30 @@ public class VideoEncoder {
     mInputSurface.makeCurrent();
   }
 
-  public void swapBuffers() {
+  /**
+   * @param presentationTimeNs time of the frame, set before the swap submits it.
+   */
+  public void swapBuffers(long presentationTimeNs) {
+    mInputSurface.setPresentationTime(presentationTimeNs);
+    recordSubmit(presentationTimeNs / 1000, System.nanoTime());
     mInputSurface.swapBuffers();
-    mInputSurface.setPresentationTime(System.nanoTime());
+  }
+
+  /**
+   * release the input surface, on the thread drawing to it, before stopEncoder.
+   */
+  public void releaseInputSurface() {
+    if (mInputSurface != null) {
+      mInputSurface.release();
+      mInputSurface = null;
+    }
   }
 
   public void startEncoder() {
     mIsStarted = true;
-    mEncodeHandler.post(mEncoderRunnable);
+    if (!mAsync) {
+      mEncodeHandler.post(mEncoderRunnable);
+    }
   }
 
   public void stopEncoder() {
@@ -77,25 +124,61 @@ public class VideoEncoder {
       return;
     }
     mIsStarted = false;
-    if (mInputSurface != null) {
-      mInputSurface.release();
-    }
-    if (mMediaCodec != null) {
-      mMediaCodec.stop();
-      mMediaCodec.release();
-      mMediaCodec = null;
-    }
-    if (mEncodeHandler != null) {
-      mEncodeHandler.removeCallbacks(mEncoderRunnable);
-    }
+    // after the poll returned or the last callback ran, nothing touches the codec any more.
+    runOnEncoderThread(new Runnable() {
+      @Override
+      public void run() {
+        if (mMediaCodec != null) {
+          mMediaCodec.stop();
+          mMediaCodec.release();
+          mMediaCodec = null;
+        }
+      }
+    });
     if (mEncoderThread != null) {
-      mEncoderThread.getLooper().quit();
-      mEncoderThread.interrupt();
       mEncoderThread.quit();
       mEncoderThread = null;
     }
   }
 
+  /**
+   * the time from the swap of a frame to its output buffer, measured since the previous call.
+   * @param values frames, total ns and max ns, 3 values.
+   */
+  public synchronized void getLatencyStats(long[] values) {
+    values[0] = mLatencyFrames;
+    values[1] = mLatencyTotalNs;
+    values[2] = mLatencyMaxNs;
+    mLatencyFrames = 0;
+    mLatencyTotalNs = 0;
+    mLatencyMaxNs = 0;
+  }
+
+  /**
+   * change the bitrate of the running encoder.
+   * @param bitrate kbps
+   */
+  public void setBitrate(int bitrate) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT || mMediaCodec == null || !mIsStarted) {
+      return;
+    }
+    Bundle params = new Bundle();
+    params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate * 1000);
+    mMediaCodec.setParameters(params);
+  }
+
+  /**
+   * ask the running encoder to produce an idr as soon as possible.
+   */
+  public void requestKeyframe() {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT || mMediaCodec == null || !mIsStarted) {
+      return;
+    }
+    Bundle params = new Bundle();
+    params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+    mMediaCodec.setParameters(params);
+  }
+
   private final Runnable mEncoderRunnable = new Runnable() {
     @Override
     public void run() {
@@ -103,21 +186,101 @@ public class VideoEncoder {
     }
   };
 
+  private final MediaCodec.Callback mCallback = Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP ? null :
+      new MediaCodec.Callback() {
+    @Override
+    public void onInputBufferAvailable(MediaCodec codec, int index) {
+      // the frames come from the input surface.
+    }
+
+    @Override
+    public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+      if (!mIsStarted) {
+        codec.releaseOutputBuffer(index, false);
+        return;
+      }
+      output(codec.getOutputBuffer(index), info);
+      codec.releaseOutputBuffer(index, false);
+    }
+
+    @Override
+    public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+      StreamingLog.e("video encoder error " + e.getMessage());
+    }
+
+    @Override
+    public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+      // the sps and pps also come as a codec config buffer.
+    }
+  };
+
+  /**
+   * the synchronous mode before lollipop, the poll blocks in the codec instead of sleeping.
+   */
   private void encode() {
     ByteBuffer[] outBuffers = mMediaCodec.getOutputBuffers();
     while (mIsStarted) {
-      mEncoderLock.lock();
-      int outBufferIndex = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 12000);
+      int outBufferIndex = mMediaCodec.dequeueOutputBuffer(mBufferInfo, DEQUEUE_TIMEOUT_US);
       if (outBufferIndex >= 0) {
-        ByteBuffer buffer = outBuffers[outBufferIndex];
-        if (mEncoderListener != null) {
-          mEncoderListener.onEncode(buffer, mBufferInfo);
-        }
+        output(outBuffers[outBufferIndex], mBufferInfo);
         mMediaCodec.releaseOutputBuffer(outBufferIndex, false);
-      } else {
-        SystemClock.sleep(10);
+      } else if (outBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+        outBuffers = mMediaCodec.getOutputBuffers();
       }
-      mEncoderLock.unlock();
+    }
+  }
+
+  private void output(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+    if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+      recordOutput(info.presentationTimeUs, System.nanoTime());
+    }
+    OnMediaCodecEncoderListener listener = mEncoderListener;
+    if (listener != null) {
+      listener.onEncode(buffer, info);
+    }
+  }
+
+  private synchronized void recordSubmit(long presentationTimeUs, long timeNs) {
+    mSubmitPtsUs[mSubmitIndex] = presentationTimeUs;
+    mSubmitTimeNs[mSubmitIndex] = timeNs;
+    mSubmitIndex = (mSubmitIndex + 1) % LATENCY_SLOTS;
+  }
+
+  private synchronized void recordOutput(long presentationTimeUs, long timeNs) {
+    for (int i = 0; i < LATENCY_SLOTS; i++) {
+      if (mSubmitTimeNs[i] != 0 && mSubmitPtsUs[i] == presentationTimeUs) {
+        long latencyNs = timeNs - mSubmitTimeNs[i];
+        mSubmitTimeNs[i] = 0;
+        mLatencyFrames++;
+        mLatencyTotalNs += latencyNs;
+        mLatencyMaxNs = Math.max(mLatencyMaxNs, latencyNs);
+        return;
+      }
+    }
+  }
+
+  /**
+   * run the task on the Encoder thread and wait for it.
+   */
+  private void runOnEncoderThread(final Runnable task) {
+    final CountDownLatch done = new CountDownLatch(1);
+    boolean posted = mEncodeHandler.post(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          task.run();
+        } finally {
+          done.countDown();
+        }
+      }
+    });
+    if (!posted) {
+      return;
+    }
+    try {
+      done.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
   }
 
@@ -135,6 +298,10 @@ public class VideoEncoder {
     MediaCodec mediaCodec = null;
     try {
       mediaCodec = MediaCodec.createEncoderByType(MIME);
+      if (mAsync) {
+        // before configure, the codec runs asynchronously from then on.
+        mediaCodec.setCallback(mCallback);
+      }
       mediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
     } catch (IOException e) {
       e.printStackTrace();
@@ -5,12 +5,113 @@ package com.wlanjie.streaming.video;
  * Call by Jni
  */
 public class VideoParameter {
+
+  /**
+   * rgba of the frame size, converted, rotated and scaled by the encoder.
+   */
+  public static final int FORMAT_RGBA = 0;
+
+  /**
+   * i420 of the video size, converted on the gpu and encoded as is.
+   */
+  public static final int FORMAT_I420 = 1;
+
+  /**
+   * nv12 of the video size, converted on the gpu.
+   */
+  public static final int FORMAT_NV12 = 2;
+
+  /**
+   * scale filters of the cpu conversion of rgba frames, the values of libyuv FilterMode.
+   * none is the fastest and aliases when shrinking, box the slowest and smoothest.
+   */
+  public static final int FILTER_NONE = 0;
+  public static final int FILTER_LINEAR = 1;
+  public static final int FILTER_BILINEAR = 2;
+  public static final int FILTER_BOX = 3;
+
+  /**
+   * rate controls of the soft encoder.
+   * bitrate holds the target bitrate and never skips a frame.
+   */
+  public static final int RATE_CONTROL_BITRATE = 0;
+
+  /**
+   * constant quality in the qp range, the bitrate follows the picture up to the max bitrate.
+   */
+  public static final int RATE_CONTROL_QUALITY = 1;
+
+  /**
+   * the bitrate is measured against the frame timestamps, for a variable frame rate.
+   */
+  public static final int RATE_CONTROL_TIMESTAMP = 2;
+
+  /**
+   * bitrate, frames are skipped when the vbv buffer would overflow.
+   */
+  public static final int RATE_CONTROL_BITRATE_SKIP = 3;
+
+  /**
+   * backends of the soft encoder.
+   */
+  public static final int CODEC_OPENH264 = 0;
+  public static final int CODEC_X264 = 1;
+
+  /**
+   * x264 presets, faster presets spend less cpu for more bits.
+   */
+  public static final int PRESET_ULTRAFAST = 0;
+  public static final int PRESET_SUPERFAST = 1;
+  public static final int PRESET_VERYFAST = 2;
+  public static final int PRESET_FASTER = 3;
+  public static final int PRESET_FAST = 4;
+  public static final int PRESET_MEDIUM = 5;
+
+  /**
+   * x264 tunes, combined with |, only one of film, animation, grain, stillimage, psnr and ssim.
+   */
+  public static final int TUNE_FILM = 1;
+  public static final int TUNE_ANIMATION = 1 << 1;
+  public static final int TUNE_GRAIN = 1 << 2;
+  public static final int TUNE_STILLIMAGE = 1 << 3;
+  public static final int TUNE_PSNR = 1 << 4;
+  public static final int TUNE_SSIM = 1 << 5;
+  public static final int TUNE_FASTDECODE = 1 << 6;
+  /**
+   * no lookahead and no frame threads, every frame is output as soon as it is encoded.
+   */
+  public static final int TUNE_ZEROLATENCY = 1 << 7;
+
+  /**
+   * whether frames of the video size can be converted to the format on the gpu,
+   * else the rgba frames are converted on the cpu.
+   */
+  public static boolean canConvertOnGpu(int format, int videoWidth, int videoHeight) {
+    return RendererYuv.canPack(format, videoWidth, videoHeight);
+  }
+
   private int frameWidth;
   private int frameHeight;
   private int videoWidth;
   private int videoHeight;
   private int bitrate;
   private int frameRate;
+  private int inputFormat = FORMAT_RGBA;
+  private int scaleFilter = FILTER_NONE;
+  private int threadCount;
+  private int sliceCount;
+  private int rateControl = RATE_CONTROL_BITRATE_SKIP;
+  private int maxBitrate;
+  private int vbvBufferSize;
+  private int minQp;
+  private int maxQp;
+  private int intraPeriod;
+  private int spatialLayers = 1;
+  private int temporalLayers = 1;
+  private int codec = CODEC_OPENH264;
+  private int preset = PRESET_ULTRAFAST;
+  private int tune = TUNE_ZEROLATENCY;
+  private boolean slicedThreads = true;
 
   public int getFrameWidth() {
     return frameWidth;
@@ -59,4 +160,183 @@ public class VideoParameter {
   public void setFrameRate(int frameRate) {
     this.frameRate = frameRate;
   }
+
+  public int getInputFormat() {
+    return inputFormat;
+  }
+
+  /**
+   * @param inputFormat format of the frames given to the encoder, one of the FORMAT_ constants.
+   */
+  public void setInputFormat(int inputFormat) {
+    this.inputFormat = inputFormat;
+  }
+
+  public int getScaleFilter() {
+    return scaleFilter;
+  }
+
+  /**
+   * @param scaleFilter one of the FILTER_ constants.
+   */
+  public void setScaleFilter(int scaleFilter) {
+    this.scaleFilter = scaleFilter;
+  }
+
+  public int getThreadCount() {
+    return threadCount;
+  }
+
+  /**
+   * @param threadCount encoder threads, 0 for the cores online. at most OpenH264Encoder.MAX_THREADS,
+   *                    and fewer on small videos, a slice needs 4 macroblock rows.
+   */
+  public void setThreadCount(int threadCount) {
+    this.threadCount = threadCount;
+  }
+
+  public int getSliceCount() {
+    return sliceCount;
+  }
+
+  /**
+   * @param sliceCount slices of a frame encoded in parallel, 0 for one slice for each thread.
+   */
+  public void setSliceCount(int sliceCount) {
+    this.sliceCount = sliceCount;
+  }
+
+  public int getRateControl() {
+    return rateControl;
+  }
+
+  /**
+   * @param rateControl one of the RATE_CONTROL_ constants.
+   */
+  public void setRateControl(int rateControl) {
+    this.rateControl = rateControl;
+  }
+
+  public int getMaxBitrate() {
+    return maxBitrate;
+  }
+
+  /**
+   * @param maxBitrate kbit/s the rate control never exceeds, 0 for the bitrate.
+   *                   it keeps its ratio to the bitrate when the bitrate adapts.
+   */
+  public void setMaxBitrate(int maxBitrate) {
+    this.maxBitrate = maxBitrate;
+  }
+
+  public int getVbvBufferSize() {
+    return vbvBufferSize;
+  }
+
+  /**
+   * @param vbvBufferSize kbit of the vbv buffer drained at the max bitrate, 0 without a vbv.
+   *                      past half full the target bitrate is lowered, with RATE_CONTROL_BITRATE_SKIP
+   *                      a frame overflowing it is skipped. not used by RATE_CONTROL_QUALITY.
+   */
+  public void setVbvBufferSize(int vbvBufferSize) {
+    this.vbvBufferSize = vbvBufferSize;
+  }
+
+  public int getMinQp() {
+    return minQp;
+  }
+
+  public int getMaxQp() {
+    return maxQp;
+  }
+
+  /**
+   * @param minQp lowest qp in [0, 51], 0 for the encoder default.
+   * @param maxQp highest qp in [0, 51], 0 for the encoder default.
+   */
+  public void setQpRange(int minQp, int maxQp) {
+    this.minQp = minQp;
+    this.maxQp = maxQp;
+  }
+
+  public int getIntraPeriod() {
+    return intraPeriod;
+  }
+
+  /**
+   * @param intraPeriod frames between two idr frames, 0 for the first frame only.
+   */
+  public void setIntraPeriod(int intraPeriod) {
+    this.intraPeriod = intraPeriod;
+  }
+
+  public int getSpatialLayers() {
+    return spatialLayers;
+  }
+
+  /**
+   * @param spatialLayers renditions encoded at once, at most 4, each half the size and a third of the
+   *                      bitrate of the one above. fewer are encoded when the video is too small.
+   */
+  public void setSpatialLayers(int spatialLayers) {
+    this.spatialLayers = spatialLayers;
+  }
+
+  public int getTemporalLayers() {
+    return temporalLayers;
+  }
+
+  /**
+   * @param temporalLayers temporal layers, at most 4. the top layer is not referenced and is dropped
+   *                       first under congestion, the intra period is rounded up to a multiple of
+   *                       2^(temporalLayers - 1) frames.
+   */
+  public void setTemporalLayers(int temporalLayers) {
+    this.temporalLayers = temporalLayers;
+  }
+
+  public int getCodec() {
+    return codec;
+  }
+
+  /**
+   * @param codec CODEC_OPENH264 or CODEC_X264, x264 encodes a single layer.
+   */
+  public void setCodec(int codec) {
+    this.codec = codec;
+  }
+
+  public int getPreset() {
+    return preset;
+  }
+
+  /**
+   * @param preset one of the PRESET values, x264 only.
+   */
+  public void setPreset(int preset) {
+    this.preset = preset;
+  }
+
+  public int getTune() {
+    return tune;
+  }
+
+  /**
+   * @param tune TUNE values combined with |, 0 for none, x264 only.
+   */
+  public void setTune(int tune) {
+    this.tune = tune;
+  }
+
+  public boolean isSlicedThreads() {
+    return slicedThreads;
+  }
+
+  /**
+   * @param slicedThreads x264 threads encode slices of one frame instead of frames in parallel,
+   *                      no frame of delay for each thread at a little more bits.
+   */
+  public void setSlicedThreads(boolean slicedThreads) {
+    this.slicedThreads = slicedThreads;
+  }
 }
@@ -5,19 +5,15 @@ import android.graphics.SurfaceTexture;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.os.Build;
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Message;
 
 import com.wlanjie.streaming.setting.CameraSetting;
-import com.wlanjie.streaming.setting.EncoderType;
 import com.wlanjie.streaming.setting.StreamingSetting;
 import com.wlanjie.streaming.util.OpenGLUtils;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -26,16 +22,20 @@ import javax.microedition.khronos.opengles.GL10;
  * Created by wlanjie on 2017/6/24.
  */
 public class VideoRenderer implements GLSurfaceView.Renderer {
-  private static final int SOFT_ENCODER_MESSAGE = 0;
 
   private Context mContext;
   private Effect mEffect;
-  private ByteBuffer mFrameBuffer;
   private float[] mSurfaceMatrix = new float[16];
   private SurfaceTexture mSurfaceTexture;
   private int mSurfaceTextureId;
-  private Handler mHandler;
-  private HandlerThread mEncoderThread;
+  // the stages of the soft encoder, null with the hardware encoder.
+  private volatile SoftEncodePipeline mPipeline;
+  private FrameConverter mFrameConverter;
+  // the slot time and count of the frame a mapped pixel pack buffer holds.
+  private long mLastReadbackNs;
+  private int mLastReadbackCount;
+  // paces the frames given to the encoder, created by startEncoder.
+  private volatile FrameRateGovernor mGovernor;
   private OnFrameListener mOnFrameListener;
   private StreamingSetting mStreamingSetting;
   private CameraSetting mCameraSetting;
@@ -44,8 +44,18 @@ public class VideoRenderer implements GLSurfaceView.Renderer {
   private FloatBuffer mTextureBuffer;
   private FloatBuffer mRecordTextureBuffer;
   private VideoEncoder mVideoEncoder;
-  private RendererVideoEncoder mRendererVideoEncoder;
+  // applied to every VideoEncoder initEncoder creates.
+  private OnMediaCodecEncoderListener mOnMediaCodecEncoderListener;
+  // started by the gl thread with the first frame.
+  private volatile RendererVideoEncoder mRendererVideoEncoder;
+  // stopped, their gl objects are deleted by the gl thread with the next frame.
+  private final ConcurrentLinkedQueue<RendererVideoEncoder> mStoppedRendererVideoEncoders =
+      new ConcurrentLinkedQueue<>();
   private SurfaceTextureCallback mSurfaceTextureCallback;
+  // written by the gl thread only.
+  private volatile long mRenderedFrames;
+  // format of the frames given to the OnFrameListener, applied by the gl thread.
+  private volatile int mFrameFormat = VideoParameter.FORMAT_RGBA;
 
   public VideoRenderer(Context context) {
     mContext = context;
@@ -86,63 +96,104 @@ public class VideoRenderer implements GLSurfaceView.Renderer {
     if (mSurfaceTextureCallback != null) {
       mSurfaceTextureCallback.onSurfaceCreated();
     }
+    // the gl objects of the stopped encoders went with the previous context.
+    mStoppedRendererVideoEncoders.clear();
     GLES20.glDisable(GL10.GL_DITHER);
     GLES20.glClearColor(1.0f, 1.0f, 1.0f, 1.0f);
 
-    mRendererScreen.init();
+    // only the soft encoder reads the frames back.
+    mRendererScreen.init(mStreamingSetting.getEncoderType().isSoft());
     mEffect.init();
   }
 
+  /**
+   * @param format one of the VideoParameter.FORMAT_ constants, set before startEncoder.
+   *               i420 and nv12 frames are converted on the gpu to the video size.
+   */
+  public void setFrameFormat(int format) {
+    mFrameFormat = format;
+  }
+
+  /**
+   * convert the frames on a worker thread before they are encoded, set before startEncoder.
+   * @param converter null when the frames are encoded as read back.
+   */
+  public void setFrameConverter(FrameConverter converter) {
+    mFrameConverter = converter;
+  }
+
   public void startEncoder() {
     initEncoder();
   }
 
+  /**
+   * the output of the hardware encoder, kept for the encoder of the next startEncoder.
+   */
   public void setOnMediaCodecEncoderListener(OnMediaCodecEncoderListener l) {
-    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+    mOnMediaCodecEncoderListener = l;
+    if (mVideoEncoder != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
       mVideoEncoder.setOnMediaCodecEncoderListener(l);
     }
   }
 
-  public void stopEncoder() {
-    if (mHandler != null) {
-      mHandler.removeMessages(SOFT_ENCODER_MESSAGE);
+  public void setEncoderBitrate(int bitrate) {
+    if (mVideoEncoder != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+      mVideoEncoder.setBitrate(bitrate);
     }
-    if (mEncoderThread != null) {
-      mEncoderThread.getLooper().quit();
-      mEncoderThread.interrupt();
-      mEncoderThread.quit();
-      mEncoderThread = null;
+  }
+
+  public void requestEncoderKeyframe() {
+    if (mVideoEncoder != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+      mVideoEncoder.requestKeyframe();
+    }
+  }
+
+  public void stopEncoder() {
+    SoftEncodePipeline pipeline = mPipeline;
+    mPipeline = null;
+    if (pipeline != null) {
+      pipeline.stop();
     }
     if (mVideoEncoder != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+      // the input surface is released on the EncoderGL thread before the codec stops.
+      RendererVideoEncoder rendererVideoEncoder = mRendererVideoEncoder;
+      mRendererVideoEncoder = null;
+      if (rendererVideoEncoder != null) {
+        rendererVideoEncoder.stop();
+        mStoppedRendererVideoEncoders.add(rendererVideoEncoder);
+      }
       mVideoEncoder.stopEncoder();
     }
   }
 
   private void initEncoder() {
-    if (mStreamingSetting.getEncoderType() == EncoderType.SOFT) {
-      mEncoderThread = new HandlerThread("glDraw");
-      mEncoderThread.start();
-      mHandler = new Handler(mEncoderThread.getLooper()) {
+    FrameRateGovernor governor = new FrameRateGovernor(mStreamingSetting.getFps());
+    mGovernor = governor;
+    if (mStreamingSetting.getEncoderType().isSoft()) {
+      SoftEncodePipeline pipeline = new SoftEncodePipeline(mFrameConverter, new OnFrameListener() {
         @Override
-        public void handleMessage(Message msg) {
-          super.handleMessage(msg);
-          IntBuffer buffer = mRendererScreen.getFboBuffer();
-          if (buffer == null) {
-            return;
-          }
-          mFrameBuffer.asIntBuffer().put(buffer.array());
-          if (mOnFrameListener != null) {
-            mOnFrameListener.onFrame(mFrameBuffer.array());
+        public void onFrame(ByteBuffer frame, long timestampNs) {
+          OnFrameListener listener = mOnFrameListener;
+          if (listener != null) {
+            listener.onFrame(frame, timestampNs);
           }
         }
-      };
+      }, new SoftEncodePipeline.OnReleaseListener() {
+        @Override
+        public void onRelease(ByteBuffer buffer) {
+          mRendererScreen.releaseFrame(buffer);
+        }
+      }, governor.getIntervalNs());
+      pipeline.start();
+      mPipeline = pipeline;
     } else {
       mVideoEncoder = new VideoEncoder();
       if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+        mVideoEncoder.setOnMediaCodecEncoderListener(mOnMediaCodecEncoderListener);
         mVideoEncoder.prepareEncoder(mStreamingSetting);
-        mRendererVideoEncoder = new RendererVideoEncoder(mContext);
-        mRendererVideoEncoder.init();
-        mRendererVideoEncoder.setVideoSize(mStreamingSetting.getVideoWidth(), mStreamingSetting.getVideoHeight());
+        RendererVideoEncoder rendererVideoEncoder = new RendererVideoEncoder(mContext);
+        rendererVideoEncoder.setVideoSize(mStreamingSetting.getVideoWidth(), mStreamingSetting.getVideoHeight());
+        mRendererVideoEncoder = rendererVideoEncoder;
       }
     }
   }
@@ -178,8 +229,6 @@ public class VideoRenderer implements GLSurfaceView.Renderer {
     if (mSurfaceTextureCallback != null) {
       mSurfaceTextureCallback.onSurfaceChanged(width, height);
     }
-    mFrameBuffer = ByteBuffer.allocate(width * height * 4);
-
     int previewWidth = mCameraSetting.getPreviewWidth();
     int previewHeight = mCameraSetting.getPreviewHeight();
     int cameraWidth;
@@ -207,6 +256,12 @@ public class VideoRenderer implements GLSurfaceView.Renderer {
 
   @Override
   public void onDrawFrame(GL10 gl) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+      RendererVideoEncoder stopped;
+      while ((stopped = mStoppedRendererVideoEncoders.poll()) != null) {
+        stopped.destroy();
+      }
+    }
     GLES20.glClearColor(1.0f, 1.0f, 1.0f, 1.0f);
     GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
 
@@ -221,15 +276,115 @@ public class VideoRenderer implements GLSurfaceView.Renderer {
       textureId = mEffect.drawToFboTexture(mSurfaceTextureId);
       mRendererScreen.draw(textureId, mCubeBuffer, mTextureBuffer);
     }
-    if (mHandler != null) {
-      mRendererScreen.readPixel(textureId);
-      mHandler.sendEmptyMessage(SOFT_ENCODER_MESSAGE);
+    // the preview follows the camera, the encoder gets the frames the governor lets through.
+    FrameRateGovernor governor = mGovernor;
+    int count = governor != null ? governor.onFrame(System.nanoTime()) : 0;
+    SoftEncodePipeline pipeline = mPipeline;
+    if (pipeline == null && mRendererScreen.isAsyncReadback()) {
+      // frames submitted while stopEncoder ran came back released, they are unmapped here.
+      mRendererScreen.recycleFrames();
     }
-    if (mRendererVideoEncoder != null) {
-      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
-        mRendererVideoEncoder.drawEncoder(textureId, mVideoEncoder, mCubeBuffer, mRecordTextureBuffer);
+    if (count > 0) {
+      if (pipeline != null) {
+        readFrame(pipeline, textureId, governor.getSlotTimeNs(), count);
       }
+      RendererVideoEncoder rendererVideoEncoder = mRendererVideoEncoder;
+      if (rendererVideoEncoder != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+        if (!rendererVideoEncoder.isStarted()) {
+          rendererVideoEncoder.start(mVideoEncoder);
+        }
+        // copied once and handed to the EncoderGL thread, which encodes it count times.
+        rendererVideoEncoder.drawEncoder(textureId, mCubeBuffer, mRecordTextureBuffer, governor.getSlotTimeNs(),
+            governor.getIntervalNs(), count);
+      }
+    }
+    mRenderedFrames++;
+  }
+
+  /**
+   * read the frame back and hand it to the pipeline, the gl thread never waits for the encoder.
+   */
+  private void readFrame(SoftEncodePipeline pipeline, int textureId, long timestampNs, int count) {
+    if (mRendererScreen.getFrameFormat() != mFrameFormat) {
+      mRendererScreen.setFrameFormat(mFrameFormat, mStreamingSetting.getVideoWidth(), mStreamingSetting.getVideoHeight());
+    }
+    long start = System.nanoTime();
+    if (mRendererScreen.isAsyncReadback()) {
+      // the mapped buffer holds the frame of the previous readback.
+      ByteBuffer mapped = mRendererScreen.readPixel(textureId, null);
+      if (mapped != null) {
+        pipeline.submitMapped(mapped, mLastReadbackNs, mLastReadbackCount);
+      }
+      mLastReadbackNs = timestampNs;
+      mLastReadbackCount = count;
+    } else {
+      SoftEncodePipeline.Frame frame = pipeline.acquireFrame(mRendererScreen.getFrameSize());
+      if (frame == null) {
+        return;
+      }
+      mRendererScreen.readPixel(textureId, frame.buffer);
+      pipeline.submit(frame, timestampNs, count);
+    }
+    pipeline.recordReadback(System.nanoTime() - start);
+  }
+
+  /**
+   * @param values frames and time in ns of the readback, convert and encode stages,
+   *               then the frames dropped, 7 values.
+   * @return false without the soft encoder.
+   */
+  public boolean getPipelineStats(long[] values) {
+    SoftEncodePipeline pipeline = mPipeline;
+    if (pipeline == null) {
+      return false;
     }
+    pipeline.getStats(values);
+    return true;
+  }
+
+  /**
+   * @param values frames the governor delivered to the encoder, dropped and duplicated, 3 values.
+   * @return false before the encoder started.
+   */
+  public boolean getFrameRateStats(long[] values) {
+    FrameRateGovernor governor = mGovernor;
+    if (governor == null) {
+      return false;
+    }
+    governor.getStats(values);
+    return true;
+  }
+
+  /**
+   * @param values frames, total ns and max ns from the swap to the output of the hardware encoder
+   *               since the previous call, 3 values.
+   * @return false without the hardware encoder.
+   */
+  public boolean getEncoderLatencyStats(long[] values) {
+    VideoEncoder encoder = mVideoEncoder;
+    if (encoder == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+      return false;
+    }
+    encoder.getLatencyStats(values);
+    return true;
+  }
+
+  /**
+   * @return frames the hardware encoder dropped because its EncoderGL thread was busy.
+   */
+  public long getEncoderDroppedFrames() {
+    RendererVideoEncoder rendererVideoEncoder = mRendererVideoEncoder;
+    if (rendererVideoEncoder == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+      return 0;
+    }
+    return rendererVideoEncoder.getDroppedFrames();
+  }
+
+  /**
+   * @return frames drawn since the renderer was created.
+   */
+  public long getRenderedFrames() {
+    return mRenderedFrames;
   }
 
   public SurfaceTexture getSurfaceTexture() {
@@ -239,9 +394,6 @@ public class VideoRenderer implements GLSurfaceView.Renderer {
   public void destroy() {
     mEffect.destroy();
     mRendererScreen.destroy();
-    if (mRendererVideoEncoder != null) {
-      mRendererVideoEncoder.destroy();
-    }
   }
 
   public void setOnFrameListener(OnFrameListener l) {
@@ -249,7 +401,14 @@ public class VideoRenderer implements GLSurfaceView.Renderer {
   }
 
   public interface OnFrameListener {
-    void onFrame(byte[] rgba);
+    /**
+     * called on the encoder thread.
+     * @param frame a direct ByteBuffer of the frame, i420 when a FrameConverter is set, else in the
+     *              format of setFrameFormat. it is reused once the method returns.
+     * @param timestampNs System.nanoTime() based time of the output slot, paced to the fps of the setting.
+     *                    a frame is given more than once to fill missed slots.
+     */
+    void onFrame(ByteBuffer frame, long timestampNs);
   }
 
   private float[] resetTextureCord(int width, int height, int inputWidth, int inputHeight) {
@@ -0,0 +1,66 @@
+#ifdef GL_FRAGMENT_PRECISION_HIGH
+precision highp float;
+#else
+precision mediump float;
+#endif
+
+varying vec2 textureCoordinate;
+
+uniform sampler2D inputImageTexture;
+// width and height of the encoded frame.
+uniform vec2 outputSize;
+// 1.0 mirrors the axis, a rotation of 180 degrees mirrors both.
+uniform vec2 flip;
+// 0.0 for i420, 1.0 for nv12.
+uniform float nv12;
+
+// bt.601 limited range, as libyuv RGBAToI420.
+const vec4 Y_COEFF = vec4(0.257, 0.504, 0.098, 16.0 / 255.0);
+const vec4 U_COEFF = vec4(-0.148, -0.291, 0.439, 128.0 / 255.0);
+const vec4 V_COEFF = vec4(0.439, -0.368, -0.071, 128.0 / 255.0);
+
+vec4 sampleAt(vec2 pixel) {
+    vec2 uv = pixel / outputSize;
+    uv = mix(uv, 1.0 - uv, flip);
+    return vec4(texture2D(inputImageTexture, uv).rgb, 1.0);
+}
+
+float luma(float x, float y) {
+    return dot(sampleAt(vec2(x, y)), Y_COEFF);
+}
+
+// the center of the 2x2 block of the chroma sample, the linear filter averages it.
+vec4 chroma(float x, float y) {
+    return sampleAt(vec2(x * 2.0 + 1.0, y * 2.0 + 1.0));
+}
+
+void main() {
+    // every output pixel packs 4 bytes of a plane row, the target is width / 4 by height * 3 / 2.
+    vec2 frag = floor(gl_FragCoord.xy);
+    float x = frag.x * 4.0;
+    float width = outputSize.x;
+    float height = outputSize.y;
+    if (frag.y < height) {
+        float y = frag.y + 0.5;
+        gl_FragColor = vec4(luma(x + 0.5, y), luma(x + 1.5, y), luma(x + 2.5, y), luma(x + 3.5, y));
+        return;
+    }
+    float row = frag.y - height;
+    if (nv12 > 0.5) {
+        // interleaved uv rows of width bytes, two chroma samples per output pixel.
+        float cx = x / 2.0;
+        vec4 c0 = chroma(cx, row);
+        vec4 c1 = chroma(cx + 1.0, row);
+        gl_FragColor = vec4(dot(c0, U_COEFF), dot(c0, V_COEFF), dot(c1, U_COEFF), dot(c1, V_COEFF));
+        return;
+    }
+    // the u plane then the v plane, each output row of width bytes holds two chroma rows.
+    float quarter = height / 4.0;
+    vec4 coeff = row < quarter ? U_COEFF : V_COEFF;
+    row = row < quarter ? row : row - quarter;
+    float halfWidth = width / 2.0;
+    float cy = row * 2.0 + (x < halfWidth ? 0.0 : 1.0);
+    float cx = x < halfWidth ? x : x - halfWidth;
+    gl_FragColor = vec4(dot(chroma(cx, cy), coeff), dot(chroma(cx + 1.0, cy), coeff),
+                        dot(chroma(cx + 2.0, cy), coeff), dot(chroma(cx + 3.0, cy), coeff));
+}